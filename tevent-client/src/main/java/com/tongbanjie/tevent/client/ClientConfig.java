@@ -2,6 +2,8 @@ package com.tongbanjie.tevent.client;
 
 import com.tongbanjie.tevent.common.Constants;
 
+import java.io.File;
+
 /**
  * 〈一句话功能简述〉<p>
  * 〈功能详细描述〉
@@ -31,6 +33,52 @@ public class ClientConfig{
      */
     private String registryAddress = System.getProperty(Constants.TEVENT_REGISTRY_ADDRESS, "192.168.1.120:2181");
 
+    /**
+     * 事务消息本地日志目录，由一个进程独占，同一台机器上的多个进程需配置不同目录
+     */
+    private String transactionJournalDir = System.getProperty("user.home") + File.separator + "tevent"
+            + File.separator + "journal";
+
+    /**
+     * 事务消息本地日志单个文件大小上限
+     */
+    private long transactionJournalFileSize = 1024 * 1024 * 64;
+
+    /**
+     * 事务消息本地日志是否同步刷盘(多个线程的写入合并刷盘)，关闭后进程崩溃不丢失，但机器掉电可能丢失
+     */
+    private boolean transactionJournalSyncFlush = true;
+
+    /**
+     * 未完结事务消息的恢复间隔(毫秒)
+     */
+    private long transactionRecoverInterval = 1000 * 10;
+
+    /**
+     * 异步发送时单个批次的字节数上限
+     */
+    private int sendBatchSize = 1024 * 16;
+
+    /**
+     * 异步发送时批次未满的最长等待时间(毫秒)
+     */
+    private long sendLingerMillis = 5;
+
+    /**
+     * 异步发送缓冲的总字节数上限
+     */
+    private long sendBufferMemory = 1024 * 1024 * 32;
+
+    /**
+     * 发送缓冲不足时send的最长阻塞时间(毫秒)，0表示立即失败
+     */
+    private long sendMaxBlockMillis = 1000 * 60;
+
+    /**
+     * 批量发送请求的超时时间(毫秒)
+     */
+    private long sendBatchTimeoutMillis = 1000 * 3;
+
     /*********************************** setter getter ***********************************/
 
 
@@ -66,5 +114,76 @@ public class ClientConfig{
         this.registryAddress = registryAddress;
     }
 
+    public String getTransactionJournalDir() {
+        return transactionJournalDir;
+    }
+
+    public void setTransactionJournalDir(String transactionJournalDir) {
+        this.transactionJournalDir = transactionJournalDir;
+    }
+
+    public long getTransactionJournalFileSize() {
+        return transactionJournalFileSize;
+    }
+
+    public void setTransactionJournalFileSize(long transactionJournalFileSize) {
+        this.transactionJournalFileSize = transactionJournalFileSize;
+    }
+
+    public boolean getTransactionJournalSyncFlush() {
+        return transactionJournalSyncFlush;
+    }
+
+    public void setTransactionJournalSyncFlush(boolean transactionJournalSyncFlush) {
+        this.transactionJournalSyncFlush = transactionJournalSyncFlush;
+    }
+
+    public long getTransactionRecoverInterval() {
+        return transactionRecoverInterval;
+    }
+
+    public void setTransactionRecoverInterval(long transactionRecoverInterval) {
+        this.transactionRecoverInterval = transactionRecoverInterval;
+    }
+
+    public int getSendBatchSize() {
+        return sendBatchSize;
+    }
+
+    public void setSendBatchSize(int sendBatchSize) {
+        this.sendBatchSize = sendBatchSize;
+    }
+
+    public long getSendLingerMillis() {
+        return sendLingerMillis;
+    }
+
+    public void setSendLingerMillis(long sendLingerMillis) {
+        this.sendLingerMillis = sendLingerMillis;
+    }
+
+    public long getSendBufferMemory() {
+        return sendBufferMemory;
+    }
+
+    public void setSendBufferMemory(long sendBufferMemory) {
+        this.sendBufferMemory = sendBufferMemory;
+    }
+
+    public long getSendMaxBlockMillis() {
+        return sendMaxBlockMillis;
+    }
+
+    public void setSendMaxBlockMillis(long sendMaxBlockMillis) {
+        this.sendMaxBlockMillis = sendMaxBlockMillis;
+    }
+
+    public long getSendBatchTimeoutMillis() {
+        return sendBatchTimeoutMillis;
+    }
+
+    public void setSendBatchTimeoutMillis(long sendBatchTimeoutMillis) {
+        this.sendBatchTimeoutMillis = sendBatchTimeoutMillis;
+    }
 
 }
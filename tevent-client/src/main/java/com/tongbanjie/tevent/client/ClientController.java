@@ -1,13 +1,21 @@
 package com.tongbanjie.tevent.client;
 
+import com.tongbanjie.tevent.client.accumulator.SendAccumulator;
+import com.tongbanjie.tevent.client.accumulator.SendCallback;
 import com.tongbanjie.tevent.client.cluster.ClusterClient;
 import com.tongbanjie.tevent.client.cluster.FailoverClusterClient;
 import com.tongbanjie.tevent.client.example.TransactionCheckListenerExample;
 import com.tongbanjie.tevent.client.processer.ServerRequestProcessor;
 import com.tongbanjie.tevent.client.sender.MQMessageSender;
 import com.tongbanjie.tevent.client.sender.RocketMQMessageSender;
+import com.tongbanjie.tevent.client.transaction.LocalTransactionExecutor;
+import com.tongbanjie.tevent.client.transaction.TransactionProducer;
+import com.tongbanjie.tevent.client.transaction.TransactionSendResult;
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.body.RocketMQBody;
 import com.tongbanjie.tevent.common.Constants;
 import com.tongbanjie.tevent.common.util.NamedSingleThreadFactory;
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.common.util.NamedThreadFactory;
 import com.tongbanjie.tevent.registry.Address;
 import com.tongbanjie.tevent.registry.RecoverableRegistry;
@@ -16,12 +24,14 @@ import com.tongbanjie.tevent.cluster.loadbalance.LoadBalanceFactory;
 import com.tongbanjie.tevent.cluster.loadbalance.LoadBalanceStrategy;
 import com.tongbanjie.tevent.registry.zookeeper.ClientZooKeeperRegistry;
 import com.tongbanjie.tevent.rpc.RpcClient;
+import com.tongbanjie.tevent.rpc.exception.RpcException;
 import com.tongbanjie.tevent.rpc.netty.NettyClientConfig;
 import com.tongbanjie.tevent.rpc.netty.NettyRpcClient;
 import com.tongbanjie.tevent.rpc.protocol.RequestCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.concurrent.*;
 
 /**
@@ -53,6 +63,12 @@ public class ClientController {
     //集群客户端，支持failover和loadBalance
     private ClusterClient clusterClient;
 
+    //事务消息生产者，首次发送事务消息时创建，日志目录中有上次遗留的日志时在启动时创建
+    private volatile TransactionProducer transactionProducer;
+
+    //异步发送消息累积器
+    private SendAccumulator sendAccumulator;
+
     /********************** 服务 ***********************/
     //服务注册
     private final RecoverableRegistry clientRegistry;
@@ -97,6 +113,8 @@ public class ClientController {
 
             this.serverManager = new ServerManager(this);
 
+            this.sendAccumulator = new SendAccumulator(this.clientConfig, this.clusterClient, this.clientRegistry);
+
             this.sendMessageExecutor = new ThreadPoolExecutor(//
                     this.clientConfig.getSendMessageThreadPoolNums(),//
                     this.clientConfig.getSendMessageThreadPoolNums(),//
@@ -114,6 +132,7 @@ public class ClientController {
     public void registerProcessor() {
         ServerRequestProcessor serverRequestProcessor = new ServerRequestProcessor(this);
         this.rpcClient.registerProcessor(RequestCode.CHECK_TRANSACTION_STATE, serverRequestProcessor, this.sendMessageExecutor);
+        this.rpcClient.registerProcessor(RequestCode.BATCH_CHECK_TRANSACTION_STATE, serverRequestProcessor, this.sendMessageExecutor);
     }
 
     public void start() throws Exception {
@@ -123,6 +142,10 @@ public class ClientController {
             this.rpcClient.start();
         }
 
+        if (this.sendAccumulator != null) {
+            this.sendAccumulator.start();
+        }
+
         //定时向所有服务端发送心跳
         this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
 
@@ -142,9 +165,29 @@ public class ClientController {
         } catch (Exception e) {
             LOGGER.error("The registry connect failed, address: " + clientConfig.getRegistryAddress(), e);
         }
+
+        //上次遗留的本地日志在启动时加载并恢复，不等到下次发送事务消息
+        if (TransactionProducer.hasJournal(this.clientConfig)) {
+            try {
+                this.transactionProducer();
+            } catch (IOException e) {
+                LOGGER.error("Load transaction journal failed, dir: " + clientConfig.getTransactionJournalDir(), e);
+            }
+        }
     }
 
     public void shutdown() {
+        //发出累积的批次后再关闭rpcClient
+        if (this.sendAccumulator != null) {
+            this.sendAccumulator.shutdown();
+        }
+
+        synchronized (this) {
+            if (this.transactionProducer != null) {
+                this.transactionProducer.shutdown();
+            }
+        }
+
         if (this.rpcClient != null) {
             this.rpcClient.shutdown();
         }
@@ -152,6 +195,47 @@ public class ClientController {
         if (this.sendMessageExecutor != null) {
             this.sendMessageExecutor.shutdown();
         }
+
+        for (MQMessageSender mqMessageSender : this.messageSenderTable.values()) {
+            mqMessageSender.shutdown();
+        }
+    }
+
+    /**
+     * 发送事务消息：异步PREPARE的同时执行本地事务，本地事务完成即返回，COMMIT/ROLLBACK异步单向发送
+     * @throws IOException 写本地日志失败，或本地日志目录已被其他进程锁定
+     */
+    public TransactionSendResult sendMessageInTransaction(RocketMQBody mqBody,
+                                                          LocalTransactionExecutor<RocketMQBody> executor,
+                                                          Object arg) throws IOException {
+        return this.transactionProducer().sendMessageInTransaction(mqBody, executor, arg);
+    }
+
+    /**
+     * 首次使用时创建事务消息生产者并加载本地日志，未使用事务消息且没有遗留日志的进程不锁定日志目录
+     */
+    private TransactionProducer transactionProducer() throws IOException {
+        TransactionProducer producer = this.transactionProducer;
+        if (producer != null) {
+            return producer;
+        }
+        synchronized (this) {
+            if (this.transactionProducer == null) {
+                producer = new TransactionProducer(this.clientConfig, this.clusterClient, this.messageSenderTable);
+                producer.start();
+                this.transactionProducer = producer;
+            }
+            return this.transactionProducer;
+        }
+    }
+
+    /**
+     * 异步发送消息：消息加入累积器即返回，按服务端批量发送，结果通过callback返回；
+     * 发送缓冲不足时阻塞，超过sendMaxBlockMillis后抛出RpcTooMuchRequestException
+     */
+    public void sendMessageAsync(MQType mqType, MQBody mqBody, SendCallback callback)
+            throws InterruptedException, RpcException {
+        this.sendAccumulator.send(mqType, mqBody, callback);
     }
 
     public NettyClientConfig getNettyClientConfig() {
@@ -21,15 +21,22 @@ import com.tongbanjie.tevent.registry.Address;
 import com.tongbanjie.tevent.registry.RecoverableRegistry;
 import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
 import com.tongbanjie.tevent.cluster.loadbalance.RandomLoadBalance;
+import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
 import com.tongbanjie.tevent.rpc.RpcClient;
 import com.tongbanjie.tevent.rpc.exception.*;
 import com.tongbanjie.tevent.rpc.protocol.RequestCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
 import com.tongbanjie.tevent.rpc.protocol.body.HeartbeatData;
+import com.tongbanjie.tevent.rpc.protocol.header.HeartbeatHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.HeartbeatResponseHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -50,6 +57,10 @@ public class ServerManager {
 
     private final ConcurrentHashMap<String/* group */, MQMessageSender> messageSenderTable;
 
+    //已在心跳响应中声明支持合并心跳的服务端
+    private final ConcurrentHashMap<String/* server address */, Boolean> combinedServerTable =
+            new ConcurrentHashMap<String, Boolean>();
+
     private ThreadLocal<LoadBalance<Address>> loadBalanceThreadLocal = new ThreadLocal<LoadBalance<Address>>(){
         @Override
         protected LoadBalance<Address> initialValue() {
@@ -68,27 +79,79 @@ public class ServerManager {
         if(LOGGER.isDebugEnabled()){
             LOGGER.debug("Start to send heartbeat to {} servers.",  copy.size());
         }
+        //下线的服务端可能以旧版本重新上线，重新探测
+        Set<String> discovered = new HashSet<String>();
+        for(Address address : copy){
+            discovered.add(address.getAddress());
+        }
+        combinedServerTable.keySet().retainAll(discovered);
+        if(copy.isEmpty() || this.messageSenderTable.isEmpty()){
+            return;
+        }
+
+        //所有group合并为一个心跳，服务端按摘要判断group是否变化
+        List<String> groups = new ArrayList<String>(this.messageSenderTable.keySet());
+        Collections.sort(groups);
+        HeartbeatData heartbeatData = new HeartbeatData();
+        heartbeatData.setClientId("");//TODO clientId
+        heartbeatData.setGroup(groups.get(0));
+        heartbeatData.setGroups(groups);
+        String groupsDigest = digest(groups);
+
         for(Address address : copy){
-            sendHeartbeatToServer(address);
+            if(combinedServerTable.containsKey(address.getAddress())){
+                HeartbeatHeader heartbeatHeader = new HeartbeatHeader();
+                heartbeatHeader.setGroupsDigest(groupsDigest);
+                sendHeartbeat(address, heartbeatHeader, heartbeatData, 3000);
+            }else{
+                sendGroupHeartbeats(address, groups, 3000);
+            }
         }
     }
 
-    private void sendHeartbeatToServer(final Address serverAddr){
-        for(String producerGroup : this.messageSenderTable.keySet()){
+    /**
+     * 旧版本服务端只读取HeartbeatData.group，未声明支持合并心跳的服务端按group逐个发送心跳；
+     * 第一个心跳等待响应，响应声明支持合并心跳后改为发送合并心跳
+     */
+    private void sendGroupHeartbeats(final Address serverAddr, List<String> groups, final long timeoutMillis) {
+        for(int i = 0; i < groups.size(); i++){
             HeartbeatData heartbeatData = new HeartbeatData();
             heartbeatData.setClientId("");//TODO clientId
-            heartbeatData.setGroup(producerGroup);
-            sendHeartbeat(serverAddr, heartbeatData, 3000);
+            heartbeatData.setGroup(groups.get(i));
+            if(i > 0){
+                sendHeartbeat(serverAddr, new HeartbeatHeader(), heartbeatData, timeoutMillis);
+                continue;
+            }
+            RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.HEART_BEAT, new HeartbeatHeader());
+            request.setBody(heartbeatData);
+            try {
+                this.rpcClient.invokeAsync(serverAddr.getAddress(), request, timeoutMillis, new InvokeCallback() {
+                    @Override
+                    public void operationComplete(ResponseFuture responseFuture) {
+                        RpcCommand response = responseFuture.getResponseCommand();
+                        Map<String, String> customFields = response == null ? null : response.getCustomFields();
+                        if(customFields != null
+                                && "true".equals(customFields.get(HeartbeatResponseHeader.COMBINED_SUPPORTED))){
+                            if(combinedServerTable.putIfAbsent(serverAddr.getAddress(), Boolean.TRUE) == null){
+                                LOGGER.info("Server {} supports combined heartbeat.", serverAddr);
+                            }
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                LOGGER.warn("Send heartbeat to server " + serverAddr + " exception.", e);
+            }
         }
     }
 
     private void sendHeartbeat(final Address serverAddr,
-                              final HeartbeatData heartbeatData,
-                              final long timeoutMillis ) {
+                               final HeartbeatHeader heartbeatHeader,
+                               final HeartbeatData heartbeatData,
+                               final long timeoutMillis ) {
         if(LOGGER.isDebugEnabled()){
             LOGGER.debug("Send heartbeat to server {}.", serverAddr);
         }
-        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.HEART_BEAT, null);
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.HEART_BEAT, heartbeatHeader);
         request.setBody(heartbeatData);
 
         try {
@@ -120,5 +183,27 @@ public class ServerManager {
         return address;
     }
 
+    /**
+     * group列表的摘要(md5)
+     */
+    private static String digest(List<String> groups) {
+        StringBuilder joined = new StringBuilder();
+        for(String group : groups){
+            joined.append(group).append('\n');
+        }
+        try {
+            byte[] bytes = MessageDigest.getInstance("MD5").digest(joined.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for(byte b : bytes){
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
 
 }
@@ -0,0 +1,114 @@
+package com.tongbanjie.tevent.client.accumulator;
+
+import com.tongbanjie.tevent.rpc.exception.RpcTooMuchRequestException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发送缓冲内存池<p>
+ * 限制累积器中待发送消息的总字节数，内存不足时按到达顺序排队等待，
+ * 超过最大阻塞时间仍无法分配则抛出RpcTooMuchRequestException
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class BufferPool {
+
+    private final long totalMemory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //等待分配内存的线程，先到先得，避免大消息被小消息饿死
+    private final Deque<Condition> waiters = new ArrayDeque<Condition>();
+
+    private long availableMemory;
+
+    BufferPool(long totalMemory) {
+        this.totalMemory = totalMemory;
+        this.availableMemory = totalMemory;
+    }
+
+    /**
+     * 分配size字节
+     * @param size
+     * @param maxBlockMillis 内存不足时最大阻塞时间，0表示立即失败
+     * @throws InterruptedException
+     * @throws RpcTooMuchRequestException
+     */
+    void allocate(int size, long maxBlockMillis) throws InterruptedException, RpcTooMuchRequestException {
+        if (size > totalMemory) {
+            throw new RpcTooMuchRequestException("Message size " + size + " is larger than the send buffer memory " + totalMemory);
+        }
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && availableMemory >= size) {
+                availableMemory -= size;
+                return;
+            }
+
+            Condition moreMemory = lock.newCondition();
+            waiters.addLast(moreMemory);
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMillis);
+            try {
+                //只有队首的等待者可以分配
+                while (waiters.peekFirst() != moreMemory || availableMemory < size) {
+                    if (remainingNanos <= 0) {
+                        throw new RpcTooMuchRequestException("Failed to allocate " + size + " bytes within "
+                                + maxBlockMillis + "ms, send buffer memory: " + totalMemory + ", available: " + availableMemory);
+                    }
+                    remainingNanos = moreMemory.awaitNanos(remainingNanos);
+                }
+                availableMemory -= size;
+            } finally {
+                waiters.remove(moreMemory);
+                //剩余内存可能满足下一个等待者
+                signalFirstWaiter();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(int size) {
+        lock.lock();
+        try {
+            availableMemory += size;
+            signalFirstWaiter();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalFirstWaiter() {
+        Condition first = waiters.peekFirst();
+        if (first != null && availableMemory > 0) {
+            first.signal();
+        }
+    }
+
+    long getTotalMemory() {
+        return totalMemory;
+    }
+
+    long getAvailableMemory() {
+        lock.lock();
+        try {
+            return availableMemory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiterCount() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
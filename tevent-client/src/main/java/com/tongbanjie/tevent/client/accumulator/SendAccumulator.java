@@ -0,0 +1,324 @@
+package com.tongbanjie.tevent.client.accumulator;
+
+import com.tongbanjie.tevent.client.ClientConfig;
+import com.tongbanjie.tevent.client.cluster.ClusterClient;
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.registry.Address;
+import com.tongbanjie.tevent.registry.Registry;
+import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
+import com.tongbanjie.tevent.rpc.exception.RpcConnectException;
+import com.tongbanjie.tevent.rpc.exception.RpcException;
+import com.tongbanjie.tevent.rpc.exception.RpcTimeoutException;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.SerializeType;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchSendMessageData;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchSendResultData;
+import com.tongbanjie.tevent.rpc.protocol.body.SendFailedItem;
+import com.tongbanjie.tevent.rpc.protocol.header.SendMessageHeader;
+import com.tongbanjie.tevent.rpc.util.RpcSerializeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 消息发送累积器<p>
+ * 异步发送的消息按MQ类型累积成批，批次达到batchSize字节或等待超过linger后
+ * 由发送线程以一个BATCH_SEND_MESSAGE请求发出；每个批次通过ClusterClient选择服务端，
+ * 与同步调用共用熔断、失败服务端排除和重试预算，批次的结果计入所选服务端的熔断器。
+ * 待发送消息的总字节数受BufferPool限制，内存不足时send阻塞，超过maxBlock后失败
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class SendAccumulator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SendAccumulator.class);
+
+    //没有待发送批次时发送线程的最长等待时间
+    private static final long IdleWaitMillis = 1000;
+
+    private final ClusterClient clusterClient;
+
+    private final Registry registry;
+
+    private final int batchSize;
+
+    private final long lingerMillis;
+
+    private final long maxBlockMillis;
+
+    private final long sendTimeoutMillis;
+
+    private final BufferPool bufferPool;
+
+    private final ConcurrentMap<MQType, Deque<SendBatch>> batchTable = new ConcurrentHashMap<MQType, Deque<SendBatch>>();
+
+    private final Sender sender = new Sender();
+
+    private volatile boolean closed = false;
+
+    public SendAccumulator(ClientConfig clientConfig, ClusterClient clusterClient, Registry registry) {
+        this.clusterClient = clusterClient;
+        this.registry = registry;
+        this.batchSize = clientConfig.getSendBatchSize();
+        this.lingerMillis = clientConfig.getSendLingerMillis();
+        this.maxBlockMillis = clientConfig.getSendMaxBlockMillis();
+        this.sendTimeoutMillis = clientConfig.getSendBatchTimeoutMillis();
+        this.bufferPool = new BufferPool(clientConfig.getSendBufferMemory());
+    }
+
+    public void start() {
+        this.sender.start();
+    }
+
+    /**
+     * 停止接收新消息，发出全部累积的批次
+     */
+    public void shutdown() {
+        this.closed = true;
+        this.sender.shutdown();
+    }
+
+    /**
+     * 异步发送消息，消息加入累积器即返回，发送结果通过callback返回
+     * @param mqType
+     * @param mqBody
+     * @param callback
+     * @throws InterruptedException
+     * @throws RpcException 发送缓冲内存不足(RpcTooMuchRequestException)或没有可用的服务端(RpcConnectException)
+     */
+    public void send(MQType mqType, MQBody mqBody, SendCallback callback) throws InterruptedException, RpcException {
+        if (closed) {
+            throw new IllegalStateException("SendAccumulator has been shutdown");
+        }
+        List<Address> discovered = registry.getDiscovered();
+        if (discovered == null || discovered.isEmpty()) {
+            throw new RpcConnectException("Send failed, no available server.");
+        }
+        byte[] message = RpcSerializeUtils.serialize(mqBody, SerializeType.JSON);
+        bufferPool.allocate(message.length, maxBlockMillis);
+
+        boolean appended = false;
+        try {
+            Deque<SendBatch> deque = getOrCreateDeque(mqType);
+            boolean newBatch = false;
+            boolean ready;
+            synchronized (deque) {
+                //在队列锁内检查，保证关闭前追加的消息都能被最后一次drain取出
+                if (closed) {
+                    throw new IllegalStateException("SendAccumulator has been shutdown");
+                }
+                SendBatch last = deque.peekLast();
+                if (last == null || !last.tryAppend(message, callback, batchSize)) {
+                    last = new SendBatch(mqType, System.currentTimeMillis());
+                    last.tryAppend(message, callback, batchSize);
+                    deque.addLast(last);
+                    newBatch = true;
+                }
+                appended = true;
+                ready = deque.size() > 1 || last.isFull(batchSize);
+            }
+            if (ready || newBatch) {
+                sender.wakeup();
+            }
+        } finally {
+            if (!appended) {
+                bufferPool.release(message.length);
+            }
+        }
+    }
+
+    private Deque<SendBatch> getOrCreateDeque(MQType mqType) {
+        Deque<SendBatch> deque = batchTable.get(mqType);
+        if (deque == null) {
+            deque = new ArrayDeque<SendBatch>();
+            Deque<SendBatch> exist = batchTable.putIfAbsent(mqType, deque);
+            if (exist != null) {
+                deque = exist;
+            }
+        }
+        return deque;
+    }
+
+    /**
+     * 取出已就绪的批次：写满、后面已有新批次、等待超过linger，或强制全部取出
+     * @return 距离下一个批次就绪的等待时间
+     */
+    private long drain(List<SendBatch> ready, boolean force) {
+        long now = System.currentTimeMillis();
+        long nextWait = IdleWaitMillis;
+        for (Deque<SendBatch> deque : batchTable.values()) {
+            synchronized (deque) {
+                SendBatch first;
+                while ((first = deque.peekFirst()) != null) {
+                    long waited = now - first.createTime;
+                    if (force || deque.size() > 1 || first.isFull(batchSize) || waited >= lingerMillis) {
+                        ready.add(deque.pollFirst());
+                    } else {
+                        nextWait = Math.min(nextWait, lingerMillis - waited);
+                        break;
+                    }
+                }
+            }
+        }
+        return nextWait;
+    }
+
+    /**
+     * 通过ClusterClient选择未熔断的服务端发送，连接失败时在重试预算内转移到其他服务端
+     */
+    private void sendBatch(final SendBatch batch) {
+        SendMessageHeader header = new SendMessageHeader();
+        header.setMqType(batch.mqType);
+        BatchSendMessageData sendData = new BatchSendMessageData();
+        sendData.setMessages(batch.messages);
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.BATCH_SEND_MESSAGE, header,
+                SerializeType.JSON, sendData);
+        try {
+            clusterClient.invokeAsync(sendTimeoutMillis, request, new InvokeCallback() {
+                @Override
+                public void operationComplete(ResponseFuture responseFuture) {
+                    RpcCommand response = responseFuture.getResponseCommand();
+                    if (response != null) {
+                        complete(batch, response);
+                    } else if (!responseFuture.isSendRequestOK()) {
+                        fail(batch, new RpcException("Batch send failed, mqType: " + batch.mqType,
+                                responseFuture.getCause()));
+                    } else {
+                        fail(batch, new RpcTimeoutException("Batch send timeout, mqType: " + batch.mqType
+                                + ", timeout: " + sendTimeoutMillis + "ms"));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("Batch send failed, mqType: " + batch.mqType + ", messages: " + batch.messages.size(), e);
+            fail(batch, e);
+        }
+    }
+
+    private void complete(SendBatch batch, RpcCommand response) {
+        Map<Integer, String> failedTable = new HashMap<Integer, String>();
+        if (response.getCmdCode() != ResponseCode.SUCCESS) {
+            BatchSendResultData resultData = response.getBody(BatchSendResultData.class);
+            if (resultData == null || resultData.getFailedItems() == null) {
+                //整批失败，如服务端繁忙
+                fail(batch, new RpcException(response.getRemark()));
+                return;
+            }
+            for (SendFailedItem item : resultData.getFailedItems()) {
+                failedTable.put(item.getIndex(), item.getRemark());
+            }
+        }
+        bufferPool.release(batch.sizeInBytes);
+        for (int i = 0; i < batch.callbacks.size(); i++) {
+            String remark = failedTable.get(i);
+            if (remark == null) {
+                onSuccess(batch.callbacks.get(i));
+            } else {
+                onException(batch.callbacks.get(i), new RpcException(remark));
+            }
+        }
+    }
+
+    private void fail(SendBatch batch, Throwable e) {
+        bufferPool.release(batch.sizeInBytes);
+        for (SendCallback callback : batch.callbacks) {
+            onException(callback, e);
+        }
+    }
+
+    private void onSuccess(SendCallback callback) {
+        try {
+            callback.onSuccess();
+        } catch (Throwable e) {
+            LOGGER.warn("Execute send callback exception", e);
+        }
+    }
+
+    private void onException(SendCallback callback, Throwable cause) {
+        try {
+            callback.onException(cause);
+        } catch (Throwable e) {
+            LOGGER.warn("Execute send callback exception", e);
+        }
+    }
+
+    public long getAvailableMemory() {
+        return bufferPool.getAvailableMemory();
+    }
+
+    public int getBlockedCount() {
+        return bufferPool.getWaiterCount();
+    }
+
+    /**
+     * 发送线程
+     */
+    private class Sender extends ServiceThread {
+
+        Sender() {
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public String getServiceName() {
+            return "SendAccumulatorSender";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            long nextWait = IdleWaitMillis;
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(nextWait);
+                    nextWait = sendReady(false);
+                } catch (Throwable e) {
+                    LOGGER.error(this.getServiceName() + " service has exception. ", e);
+                    nextWait = lingerMillis;
+                }
+            }
+
+            //发出剩余的批次
+            sendReady(true);
+            //关闭后不再追加，仍有剩余时通知失败，避免callback永不返回
+            failRemaining();
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+
+        private void failRemaining() {
+            List<SendBatch> remaining = new ArrayList<SendBatch>();
+            drain(remaining, true);
+            for (SendBatch batch : remaining) {
+                LOGGER.warn("SendAccumulator has been shutdown, discard batch, mqType: {}, messages: {}",
+                        batch.mqType, batch.messages.size());
+                fail(batch, new IllegalStateException("SendAccumulator has been shutdown"));
+            }
+        }
+
+        private long sendReady(boolean force) {
+            List<SendBatch> ready = new ArrayList<SendBatch>();
+            long nextWait = drain(ready, force);
+            for (SendBatch batch : ready) {
+                sendBatch(batch);
+            }
+            return Math.max(nextWait, 1);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.tongbanjie.tevent.client.accumulator;
+
+import com.tongbanjie.tevent.common.message.MQType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同一MQ类型的一批消息<p>
+ * 由累积器在所属队列的锁内追加，出队后只由发送线程访问
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class SendBatch {
+
+    final MQType mqType;
+
+    final long createTime;
+
+    final List<byte[]> messages = new ArrayList<byte[]>();
+
+    final List<SendCallback> callbacks = new ArrayList<SendCallback>();
+
+    int sizeInBytes = 0;
+
+    SendBatch(MQType mqType, long createTime) {
+        this.mqType = mqType;
+        this.createTime = createTime;
+    }
+
+    /**
+     * 追加消息，超过批次大小时返回false；空批次总能追加，超大消息单独成批
+     */
+    boolean tryAppend(byte[] message, SendCallback callback, int batchSize) {
+        if (!messages.isEmpty() && sizeInBytes + message.length > batchSize) {
+            return false;
+        }
+        messages.add(message);
+        callbacks.add(callback);
+        sizeInBytes += message.length;
+        return true;
+    }
+
+    boolean isFull(int batchSize) {
+        return sizeInBytes >= batchSize;
+    }
+}
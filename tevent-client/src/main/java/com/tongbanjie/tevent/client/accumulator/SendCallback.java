@@ -0,0 +1,16 @@
+package com.tongbanjie.tevent.client.accumulator;
+
+/**
+ * 异步发送消息回调<p>
+ * 服务端确认消息已投递到MQ后回调onSuccess，发送失败、超时或服务端投递失败时回调onException
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public interface SendCallback {
+
+    void onSuccess();
+
+    void onException(Throwable e);
+
+}
@@ -0,0 +1,282 @@
+package com.tongbanjie.tevent.client.cluster;
+
+import com.tongbanjie.tevent.registry.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个服务端的熔断器<p>
+ * CLOSED: 正常调用，滑动窗口内请求数达到minRequests，且失败率超过failureRateThreshold
+ * 或窗口内成功调用的耗时p99超过slowCallMillis时熔断；耗时同样按桶统计，只看窗口内的调用；
+ * OPEN: 不选择该服务端，openMillis后进入HALF_OPEN；
+ * HALF_OPEN: 最多放行halfOpenProbes个探测请求，全部成功则恢复CLOSED，任一失败重新OPEN
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int BUCKETS = 10;
+
+    private final Address address;
+
+    private final long bucketMillis;
+
+    private final int minRequests;
+
+    private final double failureRateThreshold;
+
+    private final long slowCallMillis;
+
+    private final long openMillis;
+
+    private final int halfOpenProbes;
+
+    /********************** 状态，由this保护 ***********************/
+
+    private State state = State.CLOSED;
+
+    private long openedTime;
+
+    private int probesInFlight;
+
+    private int probeSuccesses;
+
+    //滑动窗口，每个桶统计bucketMillis内的请求
+    private final long[] bucketEpochs = new long[BUCKETS];
+
+    private final int[] bucketRequests = new int[BUCKETS];
+
+    private final int[] bucketFailures = new int[BUCKETS];
+
+    //耗时不低于slowCallMillis的成功调用
+    private final int[] bucketSlowCalls = new int[BUCKETS];
+
+    /********************** 统计 ***********************/
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    //熔断期间被拒绝的请求
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    private final AtomicLong openCount = new AtomicLong(0);
+
+    private final AtomicLong slowCallCount = new AtomicLong(0);
+
+    public CircuitBreaker(Address address, long windowMillis, int minRequests, double failureRateThreshold,
+                          long slowCallMillis, long openMillis, int halfOpenProbes) {
+        this.address = address;
+        this.bucketMillis = Math.max(windowMillis / BUCKETS, 1);
+        this.minRequests = minRequests;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * 是否可以选择该服务端，不改变状态
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() - openedTime >= openMillis;
+            case HALF_OPEN:
+                return probesInFlight < halfOpenProbes;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 选中该服务端后申请调用，HALF_OPEN时占用一个探测名额
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedTime < openMillis) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            transitTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess(long costMillis) {
+        requestCount.incrementAndGet();
+        boolean slow = costMillis >= slowCallMillis;
+        if (slow) {
+            slowCallCount.incrementAndGet();
+        }
+        record(false, slow);
+        if (state == State.HALF_OPEN) {
+            releaseProbe();
+            if (++probeSuccesses >= halfOpenProbes) {
+                transitTo(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            checkTrip();
+        }
+    }
+
+    public synchronized void onFailure() {
+        requestCount.incrementAndGet();
+        failedCount.incrementAndGet();
+        record(true, false);
+        if (state == State.HALF_OPEN) {
+            releaseProbe();
+            transitTo(State.OPEN);
+        } else if (state == State.CLOSED) {
+            checkTrip();
+        }
+    }
+
+    /**
+     * 调用结果无法判断(如oneway、本地限流)，只归还探测名额
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            releaseProbe();
+        }
+    }
+
+    private void releaseProbe() {
+        if (probesInFlight > 0) {
+            probesInFlight--;
+        }
+    }
+
+    private void checkTrip() {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        int requests = 0;
+        int failures = 0;
+        int slowCalls = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (epoch - bucketEpochs[i] < BUCKETS) {
+                requests += bucketRequests[i];
+                failures += bucketFailures[i];
+                slowCalls += bucketSlowCalls[i];
+            }
+        }
+        if (requests < minRequests) {
+            return;
+        }
+        if ((double) failures / requests >= failureRateThreshold) {
+            LOGGER.warn("Circuit breaker open, address: {}, requests: {}, failures: {}", address, requests, failures);
+            transitTo(State.OPEN);
+            return;
+        }
+        //慢调用超过1%即p99不低于slowCallMillis
+        int successes = requests - failures;
+        if (slowCalls > 0 && slowCalls >= successes - (int) Math.ceil(successes * 0.99) + 1) {
+            LOGGER.warn("Circuit breaker open, address: {}, requests: {}, slow calls: {}, p99 >= {}ms",
+                    address, requests, slowCalls, slowCallMillis);
+            transitTo(State.OPEN);
+        }
+    }
+
+    private void record(boolean failure, boolean slow) {
+        long epoch = System.currentTimeMillis() / bucketMillis;
+        int i = (int) (epoch % BUCKETS);
+        if (bucketEpochs[i] != epoch) {
+            bucketEpochs[i] = epoch;
+            bucketRequests[i] = 0;
+            bucketFailures[i] = 0;
+            bucketSlowCalls[i] = 0;
+        }
+        bucketRequests[i]++;
+        if (failure) {
+            bucketFailures[i]++;
+        }
+        if (slow) {
+            bucketSlowCalls[i]++;
+        }
+    }
+
+    private void transitTo(State newState) {
+        if (state == newState) {
+            return;
+        }
+        LOGGER.info("Circuit breaker state change, address: {}, {} -> {}", address, state, newState);
+        state = newState;
+        switch (newState) {
+            case OPEN:
+                openedTime = System.currentTimeMillis();
+                openCount.incrementAndGet();
+                break;
+            case HALF_OPEN:
+                probesInFlight = 0;
+                probeSuccesses = 0;
+                break;
+            case CLOSED:
+                //重新统计
+                for (int i = 0; i < BUCKETS; i++) {
+                    bucketEpochs[i] = 0;
+                    bucketRequests[i] = 0;
+                    bucketFailures[i] = 0;
+                    bucketSlowCalls[i] = 0;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    public long getSlowCallCount() {
+        return slowCallCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{" +
+                "address=" + address +
+                ", state=" + getState() +
+                ", requestCount=" + getRequestCount() +
+                ", failedCount=" + getFailedCount() +
+                ", rejectedCount=" + getRejectedCount() +
+                ", openCount=" + getOpenCount() +
+                ", slowCallCount=" + getSlowCallCount() +
+                '}';
+    }
+}
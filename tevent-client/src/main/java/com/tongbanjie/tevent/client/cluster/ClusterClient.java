@@ -5,18 +5,26 @@ import com.tongbanjie.tevent.registry.Address;
 import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
 import com.tongbanjie.tevent.registry.Registry;
 import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
 import com.tongbanjie.tevent.rpc.RpcClient;
 import com.tongbanjie.tevent.rpc.exception.RpcConnectException;
 import com.tongbanjie.tevent.rpc.exception.RpcSendRequestException;
 import com.tongbanjie.tevent.rpc.exception.RpcTimeoutException;
 import com.tongbanjie.tevent.rpc.exception.RpcTooMuchRequestException;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * 集群客户端 <p>
- * 支持失败策略和loadBalance
+ * 支持失败策略和loadBalance；
+ * 每个服务端一个熔断器，select只在未熔断的服务端中选择
  *
  * @author zixiao
  * @date 16/10/19
@@ -31,14 +39,106 @@ public abstract class ClusterClient implements Cluster<RpcCommand, Address, RpcC
 
     private int defaultRetryTimes = 1;
 
+    /********************** 熔断 ***********************/
+
+    private final ConcurrentMap<Address, CircuitBreaker> breakerTable = new ConcurrentHashMap<Address, CircuitBreaker>();
+
+    /**
+     * 熔断统计的滑动窗口
+     */
+    private long breakerWindowMillis = 1000 * 10;
+
+    /**
+     * 窗口内请求数达到该值才判断是否熔断
+     */
+    private int breakerMinRequests = 20;
+
+    /**
+     * 熔断的失败率
+     */
+    private double breakerFailureRate = 0.5;
+
+    /**
+     * 熔断的耗时p99，窗口内超过1%的成功调用耗时不低于该值时熔断
+     */
+    private long breakerSlowCallMillis = 1000;
+
+    /**
+     * 熔断持续时间，之后进入半开状态
+     */
+    private long breakerOpenMillis = 1000 * 5;
+
+    /**
+     * 半开状态的探测请求数
+     */
+    private int breakerHalfOpenProbes = 3;
+
     public ClusterClient(ThreadLocal<LoadBalance<Address>> loadBalance, RpcClient rpcClient, Registry registry){
         this.loadBalance = loadBalance;
         this.rpcClient = rpcClient;
         this.registry = registry;
     }
 
+    /**
+     * 在未熔断的服务端中选择，全部熔断时返回null
+     */
     protected Address select(List<Address> addressList){
-        return loadBalance.get().select(addressList);
+        List<Address> candidates = availableAddresses(addressList);
+        while (candidates != null && !candidates.isEmpty()) {
+            Address address = loadBalance.get().select(candidates);
+            if (address == null || getCircuitBreaker(address).tryAcquire()) {
+                return address;
+            }
+            //半开状态的探测名额已被占用
+            if (candidates == addressList) {
+                candidates = new ArrayList<Address>(addressList);
+            }
+            candidates.remove(address);
+        }
+        return null;
+    }
+
+    private List<Address> availableAddresses(List<Address> addressList) {
+        if (addressList == null) {
+            return null;
+        }
+        List<Address> available = addressList;
+        for (int i = 0; i < addressList.size(); i++) {
+            Address address = addressList.get(i);
+            if (!getCircuitBreaker(address).isAvailable()) {
+                if (available == addressList) {
+                    available = new ArrayList<Address>(addressList.subList(0, i));
+                }
+            } else if (available != addressList) {
+                available.add(address);
+            }
+        }
+        return available;
+    }
+
+    public CircuitBreaker getCircuitBreaker(Address address) {
+        CircuitBreaker breaker = breakerTable.get(address);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(address, breakerWindowMillis, breakerMinRequests, breakerFailureRate,
+                    breakerSlowCallMillis, breakerOpenMillis, breakerHalfOpenProbes);
+            CircuitBreaker exist = breakerTable.putIfAbsent(address, breaker);
+            if (exist != null) {
+                breaker = exist;
+            }
+        }
+        return breaker;
+    }
+
+    public Collection<CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableCollection(breakerTable.values());
+    }
+
+    protected Registry getRegistry() {
+        return registry;
+    }
+
+    protected int getDefaultRetryTimes() {
+        return defaultRetryTimes;
     }
 
     /**
@@ -211,9 +311,34 @@ public abstract class ClusterClient implements Cluster<RpcCommand, Address, RpcC
             RpcTimeoutException, RpcSendRequestException
     {
         if(address == null){
-            throw new RpcConnectException("Invoke failed, address is null.");
+            throw new RpcConnectException("Invoke failed, no available server or all servers are circuit broken.");
+        }
+        CircuitBreaker breaker = getCircuitBreaker(address);
+        long begin = System.currentTimeMillis();
+        boolean settled = false;
+        try {
+            RpcCommand response = this.rpcClient.invokeSync(address.getAddress(), request, timeoutMillis);
+            settled = true;
+            onResponse(breaker, response, System.currentTimeMillis() - begin);
+            return response;
+        } catch (RpcConnectException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } catch (RpcTimeoutException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } catch (RpcSendRequestException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } finally {
+            if (!settled) {
+                //本地限流、中断或其他异常，与服务端无关，只归还探测名额
+                breaker.release();
+            }
         }
-        return this.rpcClient.invokeSync(address.getAddress(), request, timeoutMillis);
     }
 
     protected void doInvokeAsync(long timeoutMillis, Address address, RpcCommand request, InvokeCallback invokeCallback)
@@ -221,12 +346,119 @@ public abstract class ClusterClient implements Cluster<RpcCommand, Address, RpcC
             RpcTimeoutException, RpcSendRequestException
     {
         if(address == null){
-            throw new RpcConnectException("Invoke failed, address is null.");
+            throw new RpcConnectException("Invoke failed, no available server or all servers are circuit broken.");
         }
-        if(invokeCallback != null){
-            this.rpcClient.invokeAsync(address.getAddress(), request, timeoutMillis, invokeCallback);
-        }else {
-            this.rpcClient.invokeOneway(address.getAddress(), request, timeoutMillis);
+        CircuitBreaker breaker = getCircuitBreaker(address);
+        boolean settled = false;
+        try {
+            if(invokeCallback != null){
+                this.rpcClient.invokeAsync(address.getAddress(), request, timeoutMillis,
+                        new BreakerCallback(breaker, invokeCallback));
+                //由回调更新熔断器
+                settled = true;
+            }else {
+                //oneway无法得知调用结果，只归还探测名额
+                this.rpcClient.invokeOneway(address.getAddress(), request, timeoutMillis);
+            }
+        } catch (RpcConnectException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } catch (RpcTimeoutException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } catch (RpcSendRequestException e) {
+            settled = true;
+            breaker.onFailure();
+            throw e;
+        } finally {
+            if (!settled) {
+                //本地限流、中断或其他异常，与服务端无关，只归还探测名额
+                breaker.release();
+            }
+        }
+    }
+
+    /**
+     * 服务端繁忙视为失败，其他响应视为服务端可用
+     */
+    private static void onResponse(CircuitBreaker breaker, RpcCommand response, long costMillis) {
+        if (response == null || response.getCmdCode() == ResponseCode.SYSTEM_BUSY) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess(costMillis);
+        }
+    }
+
+    public long getBreakerWindowMillis() {
+        return breakerWindowMillis;
+    }
+
+    public void setBreakerWindowMillis(long breakerWindowMillis) {
+        this.breakerWindowMillis = breakerWindowMillis;
+    }
+
+    public int getBreakerMinRequests() {
+        return breakerMinRequests;
+    }
+
+    public void setBreakerMinRequests(int breakerMinRequests) {
+        this.breakerMinRequests = breakerMinRequests;
+    }
+
+    public double getBreakerFailureRate() {
+        return breakerFailureRate;
+    }
+
+    public void setBreakerFailureRate(double breakerFailureRate) {
+        this.breakerFailureRate = breakerFailureRate;
+    }
+
+    public long getBreakerSlowCallMillis() {
+        return breakerSlowCallMillis;
+    }
+
+    public void setBreakerSlowCallMillis(long breakerSlowCallMillis) {
+        this.breakerSlowCallMillis = breakerSlowCallMillis;
+    }
+
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    public void setBreakerOpenMillis(long breakerOpenMillis) {
+        this.breakerOpenMillis = breakerOpenMillis;
+    }
+
+    public int getBreakerHalfOpenProbes() {
+        return breakerHalfOpenProbes;
+    }
+
+    public void setBreakerHalfOpenProbes(int breakerHalfOpenProbes) {
+        this.breakerHalfOpenProbes = breakerHalfOpenProbes;
+    }
+
+    /**
+     * 异步调用完成后更新熔断器
+     */
+    private static class BreakerCallback implements InvokeCallback {
+
+        private final CircuitBreaker breaker;
+
+        private final InvokeCallback callback;
+
+        private final long sendTime = System.currentTimeMillis();
+
+        BreakerCallback(CircuitBreaker breaker, InvokeCallback callback) {
+            this.breaker = breaker;
+            this.callback = callback;
+        }
+
+        @Override
+        public void operationComplete(ResponseFuture responseFuture) {
+            onResponse(breaker, responseFuture.getResponseCommand(), System.currentTimeMillis() - sendTime);
+            callback.operationComplete(responseFuture);
         }
     }
 
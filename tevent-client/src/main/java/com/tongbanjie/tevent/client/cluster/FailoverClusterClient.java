@@ -5,24 +5,57 @@ import com.tongbanjie.tevent.registry.Address;
 import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
 import com.tongbanjie.tevent.registry.Registry;
 import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
 import com.tongbanjie.tevent.rpc.RpcClient;
 import com.tongbanjie.tevent.rpc.exception.RpcConnectException;
+import com.tongbanjie.tevent.rpc.exception.RpcException;
 import com.tongbanjie.tevent.rpc.exception.RpcSendRequestException;
 import com.tongbanjie.tevent.rpc.exception.RpcTimeoutException;
 import com.tongbanjie.tevent.rpc.exception.RpcTooMuchRequestException;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Failover策略 <p>
- * 失败转移，当出现失败，重试其它服务
+ * 失败转移，当出现失败，重试其它服务；
+ * 失败的服务端在failureExcludeMillis内不参与重选，重试受重试预算限制；
+ * 幂等请求可使用对冲调用invokeSyncHedged降低长尾耗时
  *
  * @author zixiao
  * @date 16/10/19
  */
 public class FailoverClusterClient extends ClusterClient {
 
+    //对冲延时取最近调用耗时的分位数
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * 失败的服务端不参与重选的时间
+     */
+    private long failureExcludeMillis = 1000 * 5;
+
+    /**
+     * 对冲的最小延时
+     */
+    private long hedgeMinDelayMillis = 5;
+
+    private final ConcurrentMap<Address, Long/* 排除截止时间 */> excludedTable = new ConcurrentHashMap<Address, Long>();
+
+    //重试不超过请求数的10%，另外每秒至少允许10次
+    private final RetryBudget retryBudget = new RetryBudget(0.1, 10, 20);
+
+    private final LatencyWindow latencyWindow = new LatencyWindow(1024);
+
     public FailoverClusterClient(ThreadLocal<LoadBalance<Address>> loadBalance, RpcClient rpcClient, Registry registry) {
         super(loadBalance, rpcClient, registry);
     }
@@ -35,27 +68,40 @@ public class FailoverClusterClient extends ClusterClient {
         if(retryTimes < 0){
             retryTimes = 0;
         }
+        retryBudget.onRequest();
 
+        List<Address> tried = new ArrayList<Address>(retryTimes + 1);
         long start = System.currentTimeMillis();
         while ((System.currentTimeMillis() - start) <= timeoutMillis){
+            Address address = select(targetList, tried);
             try {
-                Address address = select(targetList);
+                long begin = System.currentTimeMillis();
                 RpcCommand result = doInvokeSync(timeoutMillis, address, arg);
+                onSuccess(address, System.currentTimeMillis() - begin);
                 return result;
             } catch (RpcConnectException e) {
                 //连接超时异常 failover
-                if(retryTimes > 0){
+                onFailure(address, tried);
+                if(retryTimes > 0 && retryBudget.tryRetry()){
                     retryTimes--;
                 }else {
                     throw e;
                 }
             } catch (RpcTooMuchRequestException e) {
                 //连接超时异常 failover
-                if(retryTimes > 0){
+                onFailure(address, tried);
+                if(retryTimes > 0 && retryBudget.tryRetry()){
                     retryTimes--;
                 }else {
                     throw e;
                 }
+            } catch (RpcTimeoutException e) {
+                //请求可能已被处理，不重试
+                onFailure(address, tried);
+                throw e;
+            } catch (RpcSendRequestException e) {
+                onFailure(address, tried);
+                throw e;
             }
 
         }
@@ -69,23 +115,27 @@ public class FailoverClusterClient extends ClusterClient {
         if(retryTimes < 0){
             retryTimes = 0;
         }
+        retryBudget.onRequest();
 
+        List<Address> tried = new ArrayList<Address>(retryTimes + 1);
         long start = System.currentTimeMillis();
         while ((System.currentTimeMillis() - start) <= timeoutMillis){
+            Address address = select(targetList, tried);
             try {
-                Address address = select(targetList);
-                doInvokeAsync(timeoutMillis, address, arg, callback);
+                doInvokeAsync(timeoutMillis, address, arg, callback == null ? null : new StatsCallback(address, callback));
                 return;
             } catch (RpcConnectException e) {
                 //连接超时异常 failover
-                if(retryTimes > 0){
+                onFailure(address, tried);
+                if(retryTimes > 0 && retryBudget.tryRetry()){
                     retryTimes--;
                 }else {
                     throw e;
                 }
             } catch (RpcTooMuchRequestException e) {
                 //连接超时异常 failover
-                if(retryTimes > 0){
+                onFailure(address, tried);
+                if(retryTimes > 0 && retryBudget.tryRetry()){
                     retryTimes--;
                 }else {
                     throw e;
@@ -95,4 +145,284 @@ public class FailoverClusterClient extends ClusterClient {
         throw new RpcTimeoutException("Invoke timeout, costs "+(System.currentTimeMillis() - start)+"ms");
     }
 
+    /**
+     * 对冲调用，只能用于幂等请求
+     * @param timeoutMillis
+     * @param arg
+     * @return
+     * @see #invokeSyncHedged(long, int, List, RpcCommand)
+     */
+    public RpcCommand invokeSyncHedged(long timeoutMillis, RpcCommand arg)
+            throws InterruptedException, RpcConnectException, RpcTooMuchRequestException,
+            RpcTimeoutException, RpcSendRequestException {
+        return invokeSyncHedged(timeoutMillis, getDefaultRetryTimes(), getRegistry().getDiscovered(), arg);
+    }
+
+    /**
+     * 对冲调用，只能用于幂等请求<p>
+     * 先发往一个服务端，超过最近调用耗时的p95仍未响应时向另一个服务端发送副本，返回最先成功的响应；
+     * 发送失败或返回失败(非SUCCESS，如SYSTEM_BUSY)时立即转移；超时也会转移，对冲和重试共用重试预算；
+     * 全部失败时返回最后一个失败响应，没有失败响应时抛出最后的异常
+     * @param timeoutMillis
+     * @param retryTimes 最多额外发送的副本数
+     * @param targetList
+     * @param arg
+     * @return
+     * @throws InterruptedException
+     * @throws RpcConnectException
+     * @throws RpcTooMuchRequestException
+     * @throws RpcTimeoutException
+     * @throws RpcSendRequestException
+     */
+    public RpcCommand invokeSyncHedged(long timeoutMillis, int retryTimes, List<Address> targetList, RpcCommand arg)
+            throws InterruptedException, RpcConnectException, RpcTooMuchRequestException,
+            RpcTimeoutException, RpcSendRequestException {
+        if(retryTimes < 0){
+            retryTimes = 0;
+        }
+        retryBudget.onRequest();
+
+        BlockingQueue<HedgedAttempt> completed = new LinkedBlockingQueue<HedgedAttempt>();
+        List<Address> tried = new ArrayList<Address>(retryTimes + 1);
+        long hedgeDelay = hedgeDelay(timeoutMillis);
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        long nextSendTime = start;
+        int sent = 0;
+        int inFlight = 0;
+        RpcException lastException = null;
+        RpcCommand lastResponse = null;
+
+        long now;
+        while ((now = System.currentTimeMillis()) < deadline) {
+            boolean canSend = sent <= retryTimes;
+            if (canSend && (inFlight == 0 || now >= nextSendTime)) {
+                if (sent > 0 && !retryBudget.tryRetry()) {
+                    //预算不足，不再发送副本
+                    retryTimes = sent - 1;
+                    if (inFlight == 0) {
+                        break;
+                    }
+                    continue;
+                }
+                //先复制请求，select占用的探测名额由doInvokeAsync归还
+                RpcCommand request = sent == 0 ? arg : copyRequest(arg);
+                Address address = select(targetList, tried);
+                sent++;
+                try {
+                    HedgedAttempt attempt = new HedgedAttempt(address, now, completed);
+                    doInvokeAsync(deadline - now, address, request, attempt);
+                    inFlight++;
+                    nextSendTime = now + hedgeDelay;
+                    if (address != null) {
+                        tried.add(address);
+                    }
+                } catch (RpcException e) {
+                    onFailure(address, tried);
+                    lastException = e;
+                }
+                continue;
+            }
+            if (inFlight == 0) {
+                break;
+            }
+
+            long waitUntil = canSend ? Math.min(nextSendTime, deadline) : deadline;
+            HedgedAttempt attempt = completed.poll(Math.max(waitUntil - now, 1), TimeUnit.MILLISECONDS);
+            if (attempt == null) {
+                continue;
+            }
+            inFlight--;
+            RpcCommand response = attempt.responseFuture.getResponseCommand();
+            if (response != null && response.getCmdCode() == ResponseCode.SUCCESS) {
+                onSuccess(attempt.address, System.currentTimeMillis() - attempt.sendTime);
+                return response;
+            }
+            onFailure(attempt.address, null);
+            if (response != null) {
+                //服务端繁忙或处理失败，等待其他副本或转移
+                lastResponse = response;
+            } else {
+                lastException = attempt.responseFuture.isSendRequestOK()
+                        ? new RpcTimeoutException(attempt.address.getAddress(), deadline - attempt.sendTime)
+                        : new RpcSendRequestException(attempt.address.getAddress(), attempt.responseFuture.getCause());
+            }
+            //失败立即转移
+            nextSendTime = System.currentTimeMillis();
+        }
+
+        if (lastResponse != null) {
+            return lastResponse;
+        }
+        if (inFlight == 0 && lastException != null) {
+            throwException(lastException);
+        }
+        throw new RpcTimeoutException("Invoke timeout, costs "+(System.currentTimeMillis() - start)+"ms");
+    }
+
+    /**
+     * 从未尝试过且未被排除的服务端中选择，全部被排除时忽略排除
+     */
+    private Address select(List<Address> targetList, List<Address> tried) {
+        if (tried.isEmpty() && excludedTable.isEmpty()) {
+            return select(targetList);
+        }
+        if (targetList == null || targetList.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<Address> candidates = new ArrayList<Address>(targetList.size());
+        for (Address address : targetList) {
+            if (!tried.contains(address) && !isExcluded(address, now)) {
+                candidates.add(address);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (Address address : targetList) {
+                if (!tried.contains(address)) {
+                    candidates.add(address);
+                }
+            }
+        }
+        return select(candidates.isEmpty() ? targetList : candidates);
+    }
+
+    private boolean isExcluded(Address address, long now) {
+        Long excludeUntil = excludedTable.get(address);
+        if (excludeUntil == null) {
+            return false;
+        }
+        if (excludeUntil <= now) {
+            excludedTable.remove(address, excludeUntil);
+            return false;
+        }
+        return true;
+    }
+
+    private void onSuccess(Address address, long latencyMillis) {
+        latencyWindow.record(latencyMillis);
+        if (address != null && !excludedTable.isEmpty()) {
+            excludedTable.remove(address);
+        }
+    }
+
+    private void onFailure(Address address, List<Address> tried) {
+        if (address == null) {
+            return;
+        }
+        if (tried != null) {
+            tried.add(address);
+        }
+        excludedTable.put(address, System.currentTimeMillis() + failureExcludeMillis);
+    }
+
+    private long hedgeDelay(long timeoutMillis) {
+        long p95 = latencyWindow.percentile(HEDGE_PERCENTILE);
+        if (p95 < 0) {
+            //样本不足，只在失败时转移
+            return timeoutMillis;
+        }
+        return Math.min(Math.max(p95, hedgeMinDelayMillis), timeoutMillis);
+    }
+
+    /**
+     * 副本使用新的opaque，避免与在途的原请求冲突
+     */
+    private static RpcCommand copyRequest(RpcCommand request) {
+        RpcCommand copy = RpcCommandBuilder.buildRequest(request.getCmdCode(), request.getCustomHeader(),
+                request.getSerializeType(), null/* body */, request.getRemark());
+        copy.setBody(request.getBody());
+        copy.setOneWayRpc(request.isOneWayRpc());
+        if (request.getCustomFields() != null) {
+            copy.setCustomFields(new HashMap<String, String>(request.getCustomFields()));
+        }
+        return copy;
+    }
+
+    private static void throwException(RpcException e) throws RpcConnectException, RpcTooMuchRequestException,
+            RpcTimeoutException, RpcSendRequestException {
+        if (e instanceof RpcConnectException) {
+            throw (RpcConnectException) e;
+        }
+        if (e instanceof RpcTooMuchRequestException) {
+            throw (RpcTooMuchRequestException) e;
+        }
+        if (e instanceof RpcTimeoutException) {
+            throw (RpcTimeoutException) e;
+        }
+        if (e instanceof RpcSendRequestException) {
+            throw (RpcSendRequestException) e;
+        }
+        throw new RpcSendRequestException("unknown", e);
+    }
+
+    public long getFailureExcludeMillis() {
+        return failureExcludeMillis;
+    }
+
+    public void setFailureExcludeMillis(long failureExcludeMillis) {
+        this.failureExcludeMillis = failureExcludeMillis;
+    }
+
+    public long getHedgeMinDelayMillis() {
+        return hedgeMinDelayMillis;
+    }
+
+    public void setHedgeMinDelayMillis(long hedgeMinDelayMillis) {
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+    }
+
+    /**
+     * 异步调用的回调，记录耗时和失败
+     */
+    private class StatsCallback implements InvokeCallback {
+
+        private final Address address;
+
+        private final InvokeCallback callback;
+
+        private final long sendTime = System.currentTimeMillis();
+
+        StatsCallback(Address address, InvokeCallback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        @Override
+        public void operationComplete(ResponseFuture responseFuture) {
+            if (responseFuture.getResponseCommand() != null) {
+                onSuccess(address, System.currentTimeMillis() - sendTime);
+            } else {
+                onFailure(address, null);
+            }
+            callback.operationComplete(responseFuture);
+        }
+    }
+
+    /**
+     * 对冲调用中的一次发送
+     */
+    private static class HedgedAttempt implements InvokeCallback {
+
+        private final Address address;
+
+        private final long sendTime;
+
+        private final BlockingQueue<HedgedAttempt> completed;
+
+        private volatile ResponseFuture responseFuture;
+
+        HedgedAttempt(Address address, long sendTime, BlockingQueue<HedgedAttempt> completed) {
+            this.address = address;
+            this.sendTime = sendTime;
+            this.completed = completed;
+        }
+
+        @Override
+        public void operationComplete(ResponseFuture responseFuture) {
+            this.responseFuture = responseFuture;
+            completed.offer(this);
+        }
+    }
+
 }
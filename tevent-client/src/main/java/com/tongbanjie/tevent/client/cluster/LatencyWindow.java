@@ -0,0 +1,68 @@
+package com.tongbanjie.tevent.client.cluster;
+
+import java.util.Arrays;
+
+/**
+ * 最近调用耗时的滑动窗口<p>
+ * 保留最近size次调用的耗时，分位数最多每秒重新排序计算一次
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class LatencyWindow {
+
+    //样本不足时分位数不可信
+    private static final int MIN_SAMPLES = 20;
+
+    private static final long RECOMPUTE_INTERVAL = 1000;
+
+    private final long[] samples;
+
+    private int count = 0;
+
+    private int index = 0;
+
+    private long[] sorted;
+
+    private long sortedTime = 0;
+
+    LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    synchronized void record(long latencyMillis) {
+        samples[index] = latencyMillis;
+        index = (index + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @param percent 如0.95
+     * @return 分位数耗时，样本不足时返回-1
+     */
+    synchronized long percentile(double percent) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (sorted == null || now - sortedTime >= RECOMPUTE_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sortedTime = now;
+        }
+        int i = (int) Math.ceil(percent * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    synchronized void reset() {
+        count = 0;
+        index = 0;
+        sorted = null;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,58 @@
+package com.tongbanjie.tevent.client.cluster;
+
+/**
+ * 重试预算<p>
+ * 每个请求存入retryRatio个重试额度，另外每秒固定补充minRetriesPerSecond个，额度上限为maxBalance；
+ * 每次重试或对冲消耗一个额度，额度不足时不再重试，避免服务端故障时重试放大流量
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class RetryBudget {
+
+    private final double retryRatio;
+
+    private final int minRetriesPerSecond;
+
+    private final double maxBalance;
+
+    private double balance;
+
+    private long lastRefillTime;
+
+    RetryBudget(double retryRatio, int minRetriesPerSecond, int maxBalance) {
+        this.retryRatio = retryRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+        this.lastRefillTime = System.currentTimeMillis();
+    }
+
+    synchronized void onRequest() {
+        refill();
+        balance = Math.min(maxBalance, balance + retryRatio);
+    }
+
+    synchronized boolean tryRetry() {
+        refill();
+        if (balance >= 1) {
+            balance -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized double getBalance() {
+        refill();
+        return balance;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastRefillTime;
+        if (elapsed > 0) {
+            balance = Math.min(maxBalance, balance + elapsed * minRetriesPerSecond / 1000.0);
+            lastRefillTime = now;
+        }
+    }
+}
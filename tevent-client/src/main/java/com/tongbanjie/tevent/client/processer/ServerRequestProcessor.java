@@ -19,8 +19,12 @@ package com.tongbanjie.tevent.client.processer;
 import com.tongbanjie.tevent.client.ClientController;
 import com.tongbanjie.tevent.client.example.TransactionCheckListenerExample;
 import com.tongbanjie.tevent.client.sender.MQMessageSender;
-import com.tongbanjie.tevent.client.sender.RocketMQMessageSender;
+import com.tongbanjie.tevent.client.sender.TransactionCheckRequest;
+import com.tongbanjie.tevent.common.body.KafkaBody;
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.body.RabbitMQBody;
 import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.rpc.RpcClient;
 import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
 import com.tongbanjie.tevent.rpc.netty.NettyRequestProcessor;
@@ -28,12 +32,18 @@ import com.tongbanjie.tevent.rpc.protocol.RequestCode;
 import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchCheckTransactionData;
+import com.tongbanjie.tevent.rpc.protocol.body.CheckTransactionItem;
+import com.tongbanjie.tevent.rpc.protocol.header.BatchCheckTransactionStateHeader;
 import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
 import com.tongbanjie.tevent.rpc.util.RpcHelper;
+import com.tongbanjie.tevent.rpc.util.RpcSerializeUtils;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -59,6 +69,8 @@ public class ServerRequestProcessor implements NettyRequestProcessor {
         switch (request.getCmdCode()) {
         case RequestCode.CHECK_TRANSACTION_STATE:
             return this.checkTransactionState(ctx, request);
+        case RequestCode.BATCH_CHECK_TRANSACTION_STATE:
+            return this.batchCheckTransactionState(ctx, request);
         default:
             LOGGER.warn("Invalid request，requestCode：" + request.getCmdCode());
             break;
@@ -74,13 +86,14 @@ public class ServerRequestProcessor implements NettyRequestProcessor {
 
         validateCheckTransactionRequest(requestHeader);
 
-        switch (requestHeader.getMqType()){
-            case ROCKET_MQ:
-                return checkTransactionStateForRocketMQ(ctx, request, requestHeader);
-            default:
-                break;
+        Class<? extends MQBody> bodyClass = getBodyClass(requestHeader.getMqType());
+        if(bodyClass == null){
+            //服务端只对支持回查的MQ类型发起回查
+            LOGGER.warn("checkTransactionState, unsupported mqType: " + requestHeader.getMqType()
+                    + ", transactionId: " + requestHeader.getTransactionId());
+            return null;
         }
-        return null;
+        return checkTransactionState(ctx, request, requestHeader, bodyClass);
     }
 
     private void validateCheckTransactionRequest(CheckTransactionStateHeader requestHeader) throws RpcCommandException{
@@ -91,26 +104,49 @@ public class ServerRequestProcessor implements NettyRequestProcessor {
             throw new RpcCommandException("Param error: mqType can not be null");
         }
     }
-    private RpcCommand checkTransactionStateForRocketMQ(ChannelHandlerContext ctx, RpcCommand request,
-                                                        CheckTransactionStateHeader requestHeader) throws RpcCommandException {
-        final RocketMQBody requestBody = request.getBody(RocketMQBody.class);
+
+    /**
+     * MQ类型对应的协议体类型，客户端不能应答的MQ类型返回null
+     */
+    private static Class<? extends MQBody> getBodyClass(MQType mqType){
+        switch (mqType){
+            case ROCKET_MQ:
+                return RocketMQBody.class;
+            case RABBIT_MQ:
+                return RabbitMQBody.class;
+            case KAFKA:
+                return KafkaBody.class;
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RpcCommand checkTransactionState(ChannelHandlerContext ctx, RpcCommand request,
+                                             CheckTransactionStateHeader requestHeader,
+                                             Class<? extends MQBody> bodyClass) throws RpcCommandException {
+        final MQBody requestBody = request.getBody(bodyClass);
         if(requestBody == null){
             throw new RpcCommandException("Param error: request can not be null");
         }
         if(LOGGER.isDebugEnabled()){
-            LOGGER.debug("Received a checkTransactionState request, messageKey:{}, topic:{}, transactionId:{}",
-                    requestHeader.getMessageKey(), requestBody.getTopic(), requestHeader.getTransactionId() );
+            LOGGER.debug("Received a checkTransactionState request, messageKey:{}, mqType:{}, transactionId:{}",
+                    requestHeader.getMessageKey(), requestHeader.getMqType(), requestHeader.getTransactionId() );
         }
         String group = requestBody.getProducerGroup();
         if (group != null) {
             //按group查询生产者
             MQMessageSender mqMessageSender = this.messageSenderTable.get(group);
-            if (mqMessageSender != null) {
-                final String addr = RpcHelper.parseChannelRemoteAddr(ctx.channel());
-                mqMessageSender.checkTransactionState(addr, requestBody, requestHeader, this.rpcClient);
+            if (mqMessageSender == null) {
+                LOGGER.debug("checkTransactionState, pick producer by group[{}] failed", group);
+            }
+            else if (mqMessageSender.getMQType() != requestHeader.getMqType()) {
+                LOGGER.warn("checkTransactionState, producer of group[{}] is {}, but request is {}",
+                        group, mqMessageSender.getMQType(), requestHeader.getMqType());
             }
             else {
-                LOGGER.debug("checkTransactionState, pick producer by group[{}] failed", group);
+                final String addr = RpcHelper.parseChannelRemoteAddr(ctx.channel());
+                mqMessageSender.checkTransactionState(addr, requestBody, requestHeader, this.rpcClient);
             }
         }
         else {
@@ -120,5 +156,53 @@ public class ServerRequestProcessor implements NettyRequestProcessor {
 
     }
 
+    /**
+     * 批量回查，整批交给生产者检查，结果通过BATCH_TRANSACTION_MESSAGE请求返回
+     */
+    @SuppressWarnings("unchecked")
+    public RpcCommand batchCheckTransactionState(ChannelHandlerContext ctx, RpcCommand request) throws RpcCommandException {
+        final BatchCheckTransactionStateHeader requestHeader =
+                (BatchCheckTransactionStateHeader) request.decodeCustomHeader(BatchCheckTransactionStateHeader.class);
+        if(requestHeader == null || requestHeader.getMqType() == null){
+            throw new RpcCommandException("Param error: mqType can not be null");
+        }
+        final BatchCheckTransactionData checkData = request.getBody(BatchCheckTransactionData.class);
+        if(checkData == null || checkData.getItems() == null){
+            throw new RpcCommandException("Param error: request can not be null");
+        }
+        String group = requestHeader.getProducerGroup();
+        if(group == null){
+            throw new RpcCommandException("checkTransactionState failed, producer group can not be null");
+        }
+        MQMessageSender mqMessageSender = this.messageSenderTable.get(group);
+        if (mqMessageSender == null) {
+            LOGGER.debug("batchCheckTransactionState, pick producer by group[{}] failed", group);
+            return null;
+        }
+        if(LOGGER.isDebugEnabled()){
+            LOGGER.debug("Received a batchCheckTransactionState request, group:{}, count:{}",
+                    group, checkData.getItems().size());
+        }
+
+        if (mqMessageSender.getMQType() != requestHeader.getMqType()) {
+            LOGGER.warn("batchCheckTransactionState, producer of group[{}] is {}, but request is {}",
+                    group, mqMessageSender.getMQType(), requestHeader.getMqType());
+            return null;
+        }
+
+        final String addr = RpcHelper.parseChannelRemoteAddr(ctx.channel());
+        List<TransactionCheckRequest> checkRequests = new ArrayList<TransactionCheckRequest>(checkData.getItems().size());
+        for(CheckTransactionItem item : checkData.getItems()){
+            CheckTransactionStateHeader checkHeader = new CheckTransactionStateHeader();
+            checkHeader.setMqType(requestHeader.getMqType());
+            checkHeader.setTransactionId(item.getTransactionId());
+            checkHeader.setMessageKey(item.getMessageKey());
+            MQBody mqBody = (MQBody) RpcSerializeUtils.deserialize(item.getMqBody(), mqMessageSender.getBodyClass(),
+                    request.getSerializeType());
+            checkRequests.add(new TransactionCheckRequest<MQBody>(checkHeader, mqBody));
+        }
+        mqMessageSender.checkTransactionStates(addr, checkRequests, this.rpcClient);
+        return null;
+    }
 
 }
@@ -0,0 +1,409 @@
+package com.tongbanjie.tevent.client.sender;
+
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.rpc.RpcClient;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchTransactionStateData;
+import com.tongbanjie.tevent.rpc.protocol.body.TransactionStateItem;
+import com.tongbanjie.tevent.rpc.protocol.header.BatchTransactionMessageHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+import com.tongbanjie.tevent.rpc.util.RpcHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 消息发送者基类<p>
+ * 各MQ类型的发送者只声明协议体类型，回查处理共用；
+ * 服务端的回查在回查线程池中执行，线程数、队列长度及拒绝策略可按发送者配置；
+ * 批量回查时，设置了 BatchTransactionCheckListener 则一次检查全部事务，结果合并为一个 BATCH_TRANSACTION_MESSAGE 请求返回；
+ * 设置了 BatchTransactionCheckListener 时，短时间窗口内陆续到达的回查(单条或多批)先聚合，再一次检查
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public abstract class AbstractMQMessageSender<T extends MQBody> implements MQMessageSender<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractMQMessageSender.class);
+
+    private static final long RESPONSE_TIMEOUT_MILLIS = 3000;
+
+    /**
+     * 回查聚合窗口(毫秒)
+     */
+    public static final long DEFAULT_CHECK_BATCH_WINDOW_MILLIS = 10;
+
+    /**
+     * 一次批量检查的最大事务数
+     */
+    public static final int DEFAULT_CHECK_BATCH_MAX_SIZE = 500;
+
+    private TransactionCheckListener transactionCheckListener;
+
+    protected BlockingQueue<Runnable> checkRequestQueue;
+
+    protected ExecutorService checkExecutor;
+
+    //批量检查时的回查聚合，未设置BatchTransactionCheckListener时为null
+    private final CheckAggregator checkAggregator;
+
+    /**
+     * @param checkThreadPoolCoreSize 回查线程数
+     * @param checkThreadPoolMaxSize 回查最大线程数，队列满时才会超过核心线程数
+     * @param checkRequestHoldMax 回查队列长度
+     * @param rejectedHandler 回查队列满时的拒绝策略
+     * @param checkBatchWindowMillis 回查聚合窗口，仅对BatchTransactionCheckListener生效，0表示不聚合
+     * @param checkBatchMaxSize 一次批量检查的最大事务数
+     */
+    protected AbstractMQMessageSender(TransactionCheckListener transactionCheckListener,
+                                      int checkThreadPoolCoreSize,
+                                      int checkThreadPoolMaxSize,
+                                      int checkRequestHoldMax,
+                                      RejectedExecutionHandler rejectedHandler,
+                                      long checkBatchWindowMillis,
+                                      int checkBatchMaxSize){
+        this.transactionCheckListener = transactionCheckListener;
+        this.checkRequestQueue = new LinkedBlockingQueue<Runnable>(checkRequestHoldMax);
+        this.checkExecutor = new ThreadPoolExecutor(//
+                checkThreadPoolCoreSize, //
+                Math.max(checkThreadPoolCoreSize, checkThreadPoolMaxSize), //
+                1000 * 60, //
+                TimeUnit.MILLISECONDS, //
+                this.checkRequestQueue, //
+                rejectedHandler);
+        if (transactionCheckListener instanceof BatchTransactionCheckListener && checkBatchWindowMillis > 0) {
+            this.checkAggregator = new CheckAggregator(checkBatchWindowMillis, Math.max(checkBatchMaxSize, 1),
+                    checkRequestHoldMax);
+            this.checkAggregator.start();
+        } else {
+            this.checkAggregator = null;
+        }
+    }
+
+    @Override
+    public TransactionCheckListener transactionCheckListener() {
+        return this.transactionCheckListener;
+    }
+
+    @Override
+    public void checkTransactionState(final String serverAddr, final T mqBody,
+                                      final CheckTransactionStateHeader requestHeader,
+                                      final RpcClient rpcClient) {
+        checkTransactionStates(serverAddr,
+                Collections.singletonList(new TransactionCheckRequest<T>(requestHeader, mqBody)),
+                rpcClient);
+    }
+
+    @Override
+    public void checkTransactionStates(final String serverAddr,
+                                       final List<TransactionCheckRequest<T>> checkRequests,
+                                       final RpcClient rpcClient) {
+        if (checkRequests.isEmpty()) {
+            return;
+        }
+        if (this.checkAggregator != null) {
+            for (TransactionCheckRequest<T> checkRequest : checkRequests) {
+                this.checkAggregator.add(new PendingCheck(serverAddr, rpcClient, checkRequest));
+            }
+            return;
+        }
+        this.checkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<TransactionStateItem> items = checkLocalTransactionStates(checkRequests);
+                sendTransactionStates(serverAddr, checkRequests, items, rpcClient);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        if (this.checkAggregator != null) {
+            this.checkAggregator.shutdown();
+        }
+        this.checkExecutor.shutdown();
+    }
+
+    /**
+     * 一次检查窗口内聚合的回查，结果按服务端分别返回<p>
+     * 同一服务端对同一事务的重复回查只检查一次，不同事务即使messageKey相同也分别检查
+     */
+    private void checkAggregated(List<PendingCheck> aggregated) {
+        final List<PendingCheck> pendingChecks = new ArrayList<PendingCheck>(aggregated.size());
+        Set<String> checkKeys = new HashSet<String>();
+        for (PendingCheck pendingCheck : aggregated) {
+            String checkKey = pendingCheck.serverAddr + "@"
+                    + pendingCheck.checkRequest.getRequestHeader().getTransactionId();
+            if (checkKeys.add(checkKey)) {
+                pendingChecks.add(pendingCheck);
+            }
+        }
+        this.checkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<TransactionCheckRequest<T>> checkRequests =
+                        new ArrayList<TransactionCheckRequest<T>>(pendingChecks.size());
+                for (PendingCheck pendingCheck : pendingChecks) {
+                    checkRequests.add(pendingCheck.checkRequest);
+                }
+                List<TransactionStateItem> items = checkLocalTransactionStates(checkRequests);
+
+                Map<String, List<Integer>> serverTable = new LinkedHashMap<String, List<Integer>>();
+                for (int i = 0; i < pendingChecks.size(); i++) {
+                    List<Integer> indexes = serverTable.get(pendingChecks.get(i).serverAddr);
+                    if (indexes == null) {
+                        indexes = new ArrayList<Integer>();
+                        serverTable.put(pendingChecks.get(i).serverAddr, indexes);
+                    }
+                    indexes.add(i);
+                }
+                for (Map.Entry<String, List<Integer>> entry : serverTable.entrySet()) {
+                    List<TransactionCheckRequest<T>> serverRequests =
+                            new ArrayList<TransactionCheckRequest<T>>(entry.getValue().size());
+                    List<TransactionStateItem> serverItems = new ArrayList<TransactionStateItem>(entry.getValue().size());
+                    for (Integer index : entry.getValue()) {
+                        serverRequests.add(checkRequests.get(index));
+                        serverItems.add(items.get(index));
+                    }
+                    RpcClient rpcClient = pendingChecks.get(entry.getValue().get(0)).rpcClient;
+                    sendTransactionStates(entry.getKey(), serverRequests, serverItems, rpcClient);
+                }
+            }
+        });
+    }
+
+    /**
+     * 检查本地事务状态
+     * @return 与checkRequests一一对应的事务状态
+     */
+    @SuppressWarnings("unchecked")
+    private List<TransactionStateItem> checkLocalTransactionStates(List<TransactionCheckRequest<T>> checkRequests) {
+        List<TransactionStateItem> items = new ArrayList<TransactionStateItem>(checkRequests.size());
+        TransactionCheckListener transactionCheckListener = this.transactionCheckListener();
+        if (transactionCheckListener == null) {
+            String group = checkRequests.get(0).getMqBody().getProducerGroup();
+            LOGGER.error("CheckTransactionState failed: MQMessageSender of group '{}', has not been set a transactionCheckListener.", group);
+            String remark = "checkLocalTransactionState Exception: " + RpcHelper.exceptionToString(
+                    new RuntimeException("CheckTransactionState failed: MQMessageSender of group '" + group
+                            + "', has not been set a transactionCheckListener."));
+            for (TransactionCheckRequest<T> checkRequest : checkRequests) {
+                items.add(buildItem(checkRequest, LocalTransactionState.UNKNOWN, remark));
+            }
+            return items;
+        }
+
+        if (checkRequests.size() > 1 && transactionCheckListener instanceof BatchTransactionCheckListener) {
+            List<T> mqBodies = new ArrayList<T>(checkRequests.size());
+            for (TransactionCheckRequest<T> checkRequest : checkRequests) {
+                mqBodies.add(checkRequest.getMqBody());
+            }
+            List<LocalTransactionState> states = null;
+            String remark = null;
+            try {
+                states = ((BatchTransactionCheckListener<T>) transactionCheckListener)
+                        .checkTransactionStates(mqBodies);
+            } catch (Throwable e) {
+                LOGGER.error("Server call checkTransactionState, but checkLocalTransactionStates exception.", e);
+                remark = "checkLocalTransactionState Exception: " + RpcHelper.exceptionToString(e);
+            }
+            if (states != null && states.size() != checkRequests.size()) {
+                LOGGER.warn("checkLocalTransactionStates returned {} states, expect {}, missing states are UNKNOWN.",
+                        states.size(), checkRequests.size());
+            }
+            //按下标对应，messageKey不唯一且可能为空
+            for (int i = 0; i < checkRequests.size(); i++) {
+                LocalTransactionState localTransactionState = states == null || i >= states.size() ? null
+                        : states.get(i);
+                items.add(buildItem(checkRequests.get(i), localTransactionState, remark));
+            }
+            return items;
+        }
+
+        for (TransactionCheckRequest<T> checkRequest : checkRequests) {
+            LOGGER.debug("Start tp  check localTransactionState, messageKey:{}, mqType:{}, transactionId:{}",
+                    checkRequest.getMqBody().getMessageKey(), checkRequest.getRequestHeader().getMqType(),
+                    checkRequest.getRequestHeader().getTransactionId());
+            LocalTransactionState localTransactionState = LocalTransactionState.UNKNOWN;
+            String remark = null;
+            try {
+                localTransactionState = transactionCheckListener.checkTransactionState(checkRequest.getMqBody());
+            } catch (Throwable e) {
+                LOGGER.error("Server call checkTransactionState, but checkLocalTransactionState exception.", e);
+                remark = "checkLocalTransactionState Exception: " + RpcHelper.exceptionToString(e);
+            }
+            items.add(buildItem(checkRequest, localTransactionState, remark));
+        }
+        return items;
+    }
+
+    private TransactionStateItem buildItem(TransactionCheckRequest<T> checkRequest,
+                                           LocalTransactionState localTransactionState, String remark) {
+        TransactionStateItem item = new TransactionStateItem();
+        item.setTransactionId(checkRequest.getRequestHeader().getTransactionId());
+        item.setRemark(remark);
+
+        String messageKey = checkRequest.getMqBody().getMessageKey();
+        MQType mqType = checkRequest.getRequestHeader().getMqType();
+        if (localTransactionState == null) {
+            localTransactionState = LocalTransactionState.UNKNOWN;
+        }
+        switch (localTransactionState) {
+            case COMMIT:
+                item.setTransactionState(TransactionState.COMMIT);
+                LOGGER.info("Client commit this transaction, transactionId:{}, messageKey:{}, mqType:{}",
+                        item.getTransactionId(), messageKey, mqType);
+                break;
+            case ROLLBACK:
+                item.setTransactionState(TransactionState.ROLLBACK);
+                LOGGER.info("Client rollback this transaction, transactionId:{}, messageKey:{}, mqType:{}",
+                        item.getTransactionId(), messageKey, mqType);
+                break;
+            default:
+                item.setTransactionState(TransactionState.UNKNOWN);
+                LOGGER.warn("Client do not know this transaction state, transactionId:{}, messageKey:{}, mqType:{}",
+                        item.getTransactionId(), messageKey, mqType);
+                break;
+        }
+        return item;
+    }
+
+    /**
+     * 返回事务状态，单条用TRANSACTION_MESSAGE，多条合并为一个BATCH_TRANSACTION_MESSAGE
+     */
+    private void sendTransactionStates(String serverAddr, List<TransactionCheckRequest<T>> checkRequests,
+                                       List<TransactionStateItem> items, RpcClient rpcClient) {
+        MQType mqType = checkRequests.get(0).getRequestHeader().getMqType();
+        RpcCommand request;
+        if (items.size() == 1) {
+            TransactionStateItem item = items.get(0);
+            final TransactionMessageHeader thisHeader = new TransactionMessageHeader();
+            thisHeader.setMqType(mqType);
+            thisHeader.setTransactionId(item.getTransactionId());
+            thisHeader.setTransactionState(item.getTransactionState());
+            request = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE, thisHeader, item.getRemark());
+        } else {
+            BatchTransactionMessageHeader batchHeader = new BatchTransactionMessageHeader();
+            batchHeader.setMqType(mqType);
+            batchHeader.setProducerGroup(checkRequests.get(0).getMqBody().getProducerGroup());
+            BatchTransactionStateData stateData = new BatchTransactionStateData();
+            stateData.setItems(items);
+            request = RpcCommandBuilder.buildRequest(RequestCode.BATCH_TRANSACTION_MESSAGE, batchHeader, stateData);
+        }
+
+        try {
+            rpcClient.invokeOneway(serverAddr, request, RESPONSE_TIMEOUT_MILLIS);
+        } catch (Exception e) {
+            LOGGER.error("Response checkLocalTransactionState exception, server: " + serverAddr
+                    + ", count: " + items.size(), e);
+        }
+    }
+
+    private class PendingCheck {
+
+        private final String serverAddr;
+
+        private final RpcClient rpcClient;
+
+        private final TransactionCheckRequest<T> checkRequest;
+
+        PendingCheck(String serverAddr, RpcClient rpcClient, TransactionCheckRequest<T> checkRequest) {
+            this.serverAddr = serverAddr;
+            this.rpcClient = rpcClient;
+            this.checkRequest = checkRequest;
+        }
+    }
+
+    /**
+     * 回查聚合<p>
+     * 收到第一条回查后等待一个窗口，期间到达的回查(不超过批量上限)合并为一次批量检查
+     */
+    private class CheckAggregator extends ServiceThread {
+
+        private final long windowMillis;
+
+        private final int maxBatchSize;
+
+        private final BlockingQueue<PendingCheck> pendingQueue;
+
+        CheckAggregator(long windowMillis, int maxBatchSize, int capacity) {
+            this.windowMillis = windowMillis;
+            this.maxBatchSize = maxBatchSize;
+            this.pendingQueue = new LinkedBlockingQueue<PendingCheck>(capacity);
+            this.thread.setDaemon(true);
+        }
+
+        void add(PendingCheck pendingCheck) {
+            if (!pendingQueue.offer(pendingCheck)) {
+                LOGGER.warn("Too many transaction check requests, discard this one, transactionId: {}",
+                        pendingCheck.checkRequest.getRequestHeader().getTransactionId());
+            }
+        }
+
+        @Override
+        public String getServiceName() {
+            return "TransactionCheckAggregator";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    PendingCheck first = pendingQueue.poll(1000, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    List<PendingCheck> pendingChecks = new ArrayList<PendingCheck>();
+                    pendingChecks.add(first);
+                    long deadline = System.currentTimeMillis() + windowMillis;
+                    while (pendingChecks.size() < maxBatchSize) {
+                        long waitMillis = deadline - System.currentTimeMillis();
+                        PendingCheck next = waitMillis > 0 ? pendingQueue.poll(waitMillis, TimeUnit.MILLISECONDS)
+                                : pendingQueue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        pendingChecks.add(next);
+                    }
+                    checkAggregated(pendingChecks);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (RejectedExecutionException e) {
+                    //已由拒绝策略处理
+                } catch (Throwable e) {
+                    LOGGER.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+    }
+
+    /**
+     * 回查队列已满时丢弃，服务端按退避时间重新回查
+     */
+    public static class DiscardCheckPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            LOGGER.warn("Too many transaction check requests, discard this one, queue size: {}, active threads: {}",
+                    executor.getQueue().size(), executor.getActiveCount());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.tongbanjie.tevent.client.sender;
+
+import com.tongbanjie.tevent.common.body.MQBody;
+
+import java.util.List;
+
+/**
+ * 批量事务状态检查<p>
+ * 服务端一次回查多条事务时，一次查询本地事务状态(如 IN (...) 查询)，代替逐条查询
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public interface BatchTransactionCheckListener<T extends MQBody> extends TransactionCheckListener<T> {
+
+    /**
+     * 批量检查本地事务状态
+     * @param mqBodies 待检查的消息，messageKey可能重复或为空
+     * @return 与mqBodies按下标一一对应的本地事务状态，缺少或为null的按UNKNOWN处理
+     */
+    List<LocalTransactionState> checkTransactionStates(final List<T> mqBodies);
+
+}
@@ -0,0 +1,62 @@
+package com.tongbanjie.tevent.client.sender;
+
+import com.tongbanjie.tevent.common.body.KafkaBody;
+import com.tongbanjie.tevent.common.message.MQType;
+
+import java.util.concurrent.RejectedExecutionHandler;
+
+/**
+ * Kafka 消息发送者<p>
+ * 回查处理见 AbstractMQMessageSender
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class KafkaMessageSender extends AbstractMQMessageSender<KafkaBody> {
+
+    public KafkaMessageSender(TransactionCheckListener transactionCheckListener){
+        this(transactionCheckListener, checkThreadPoolCoreSize, checkThreadPoolMaxSize, checkRequestHoldMax,
+                new DiscardCheckPolicy());
+    }
+
+    /**
+     * @param checkThreadPoolCoreSize 回查线程数
+     * @param checkThreadPoolMaxSize 回查最大线程数，队列满时才会超过核心线程数
+     * @param checkRequestHoldMax 回查队列长度
+     * @param rejectedHandler 回查队列满时的拒绝策略，默认丢弃并记录日志，由服务端按退避时间重新回查
+     */
+    public KafkaMessageSender(TransactionCheckListener transactionCheckListener,
+                                 int checkThreadPoolCoreSize,
+                                 int checkThreadPoolMaxSize,
+                                 int checkRequestHoldMax,
+                                 RejectedExecutionHandler rejectedHandler){
+        this(transactionCheckListener, checkThreadPoolCoreSize, checkThreadPoolMaxSize, checkRequestHoldMax,
+                rejectedHandler, DEFAULT_CHECK_BATCH_WINDOW_MILLIS, DEFAULT_CHECK_BATCH_MAX_SIZE);
+    }
+
+    /**
+     * @param checkBatchWindowMillis 回查聚合窗口，仅对BatchTransactionCheckListener生效，0表示不聚合
+     * @param checkBatchMaxSize 一次批量检查的最大事务数
+     */
+    public KafkaMessageSender(TransactionCheckListener transactionCheckListener,
+                                 int checkThreadPoolCoreSize,
+                                 int checkThreadPoolMaxSize,
+                                 int checkRequestHoldMax,
+                                 RejectedExecutionHandler rejectedHandler,
+                                 long checkBatchWindowMillis,
+                                 int checkBatchMaxSize){
+        super(transactionCheckListener, checkThreadPoolCoreSize, checkThreadPoolMaxSize, checkRequestHoldMax,
+                rejectedHandler, checkBatchWindowMillis, checkBatchMaxSize);
+    }
+
+    @Override
+    public MQType getMQType() {
+        return MQType.KAFKA;
+    }
+
+    @Override
+    public Class<KafkaBody> getBodyClass() {
+        return KafkaBody.class;
+    }
+
+}
@@ -1,9 +1,12 @@
 package com.tongbanjie.tevent.client.sender;
 
 import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.rpc.RpcClient;
 import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
 
+import java.util.List;
+
 /**
  * 〈一句话功能简述〉<p>
  * 〈功能详细描述〉
@@ -19,11 +22,29 @@ public interface MQMessageSender<T extends MQBody> {
 
     int checkRequestHoldMax = 1000;
 
+    /**
+     * 应答回查的MQ类型
+     */
+    MQType getMQType();
+
+    /**
+     * 协议体类型，回查请求按此反序列化
+     */
+    Class<T> getBodyClass();
+
     TransactionCheckListener transactionCheckListener();
 
     void checkTransactionState(final String addr, final T mqBody,
                                final CheckTransactionStateHeader requestHeader,
                                final RpcClient rpcClient);
 
+    /**
+     * 批量回查，结果合并返回服务端
+     */
+    void checkTransactionStates(final String addr, final List<TransactionCheckRequest<T>> checkRequests,
+                                final RpcClient rpcClient);
+
+    void shutdown();
+
 
 }
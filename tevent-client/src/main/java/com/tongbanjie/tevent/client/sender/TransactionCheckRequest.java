@@ -0,0 +1,31 @@
+package com.tongbanjie.tevent.client.sender;
+
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
+
+/**
+ * 服务端的单条事务回查<p>
+ * 〈功能详细描述〉
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class TransactionCheckRequest<T extends MQBody> {
+
+    private final CheckTransactionStateHeader requestHeader;
+
+    private final T mqBody;
+
+    public TransactionCheckRequest(CheckTransactionStateHeader requestHeader, T mqBody) {
+        this.requestHeader = requestHeader;
+        this.mqBody = mqBody;
+    }
+
+    public CheckTransactionStateHeader getRequestHeader() {
+        return requestHeader;
+    }
+
+    public T getMqBody() {
+        return mqBody;
+    }
+}
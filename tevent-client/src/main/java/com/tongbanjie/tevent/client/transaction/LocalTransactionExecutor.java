@@ -0,0 +1,17 @@
+package com.tongbanjie.tevent.client.transaction;
+
+import com.tongbanjie.tevent.client.sender.LocalTransactionState;
+import com.tongbanjie.tevent.common.body.MQBody;
+
+/**
+ * 本地事务执行者<p>
+ * 在事务消息PREPARE的同时执行本地事务，返回本地事务状态；抛出异常按UNKNOWN处理，由服务端回查
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public interface LocalTransactionExecutor<T extends MQBody> {
+
+    LocalTransactionState executeLocalTransaction(final T mqBody, final Object arg);
+
+}
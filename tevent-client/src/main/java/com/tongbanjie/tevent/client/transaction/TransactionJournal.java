@@ -0,0 +1,587 @@
+package com.tongbanjie.tevent.client.transaction;
+
+import com.tongbanjie.tevent.client.sender.LocalTransactionState;
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.rpc.protocol.SerializeType;
+import com.tongbanjie.tevent.rpc.util.RpcSerializeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * 事务消息本地日志<p>
+ * 追加写，每条记录为 [长度][crc32][类型][journalId][数据]，记录类型：
+ * PREPARE(消息体)、PREPARED(服务端事务id)、STATE(本地事务状态)、DONE(已完结)；
+ * 未完结的事务保存在内存中，文件超过上限(且超过未完结事务大小的2倍)时将未完结的事务写入新文件并删除旧文件；
+ * 启动时独占锁定日志目录，已被其他进程锁定时失败；加载全部文件，末尾不完整或校验失败的记录丢弃；
+ * 同步刷盘时由刷盘线程合并刷盘(group commit)，PREPARE、STATE的写入线程等待刷盘完成，
+ * PREPARED在RPC回调线程中写入，不等待刷盘，丢失时按PREPARE无响应恢复
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class TransactionJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionJournal.class);
+
+    private static final String FILE_PREFIX = "journal.";
+
+    private static final String LOCK_FILE = "lock";
+
+    //刷盘线程没有新写入时的等待时间
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    private static final byte TYPE_PREPARE = 1;
+
+    private static final byte TYPE_PREPARED = 2;
+
+    private static final byte TYPE_STATE = 3;
+
+    private static final byte TYPE_DONE = 4;
+
+    private final File dir;
+
+    private final long fileSize;
+
+    private final boolean syncFlush;
+
+    private final ConcurrentMap<Long/* journalId */, JournalEntry> pendingTable = new ConcurrentHashMap<Long, JournalEntry>();
+
+    private long nextJournalId = 1;
+
+    private long fileIndex = 0;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    //文件超过该大小时切换，不小于fileSize，且至少为切换后未完结事务大小的2倍，避免未完结事务较多时频繁切换
+    private long rollThreshold;
+
+    private RandomAccessFile lockFile;
+
+    private FileLock lock;
+
+    //已写入的字节数，跨文件累计，由this保护
+    private long writtenOffset = 0;
+
+    /********************** 刷盘，由flushLock保护 ***********************/
+
+    private final Object flushLock = new Object();
+
+    private long flushedOffset = 0;
+
+    //最近一次刷盘失败时的写入位置及异常
+    private long failedOffset = 0;
+
+    private IOException flushException;
+
+    private boolean closed = false;
+
+    private final FlushService flushService;
+
+    /**
+     * @param fileSize 单个文件大小上限
+     * @param syncFlush 是否在PREPARE、STATE写入后等待刷盘
+     */
+    TransactionJournal(File dir, long fileSize, boolean syncFlush) {
+        this.dir = dir;
+        this.fileSize = fileSize;
+        this.syncFlush = syncFlush;
+        this.flushService = syncFlush ? new FlushService() : null;
+    }
+
+    /**
+     * 加载日志文件，返回上次未完结的事务
+     */
+    synchronized List<JournalEntry> load() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can not create journal dir: " + dir.getAbsolutePath());
+        }
+        lock();
+        File[] files = listFiles();
+        Map<Long, JournalEntry> entries = new LinkedHashMap<Long, JournalEntry>();
+        for (File f : files) {
+            fileIndex = Math.max(fileIndex, parseIndex(f));
+            replay(f, entries);
+        }
+        for (JournalEntry entry : entries.values()) {
+            entry.recovered = true;
+            pendingTable.put(entry.journalId, entry);
+            nextJournalId = Math.max(nextJournalId, entry.journalId + 1);
+        }
+        //未完结的事务写入新文件，删除旧文件
+        roll(files);
+        if (flushService != null) {
+            flushService.start();
+        }
+        LOGGER.info("Load transaction journal from {}, files: {}, pending transactions: {}",
+                dir.getAbsolutePath(), files.length, entries.size());
+        return new ArrayList<JournalEntry>(entries.values());
+    }
+
+    /**
+     * 日志目录中是否有日志文件，用于启动时判断是否需要恢复上次未完结的事务
+     */
+    static boolean exists(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(FILE_PREFIX) && parseIndex(new File(d, name)) >= 0;
+            }
+        });
+        return files != null && files.length > 0;
+    }
+
+    void close() {
+        //先刷盘，再关闭文件
+        if (flushService != null) {
+            flushService.shutdown();
+        }
+        synchronized (flushLock) {
+            closed = true;
+            flushLock.notifyAll();
+        }
+        synchronized (this) {
+            closeFile();
+            unlock();
+        }
+    }
+
+    /**
+     * 记录待发送的事务消息，同步刷盘时等待刷盘完成
+     */
+    JournalEntry prepare(RocketMQBody mqBody) throws IOException {
+        JournalEntry entry;
+        long offset;
+        synchronized (this) {
+            entry = new JournalEntry(nextJournalId++, mqBody, System.currentTimeMillis());
+            offset = append(encodePrepare(entry));
+            pendingTable.put(entry.journalId, entry);
+        }
+        waitFlushed(offset);
+        return entry;
+    }
+
+    /**
+     * 在RPC回调线程中调用，只写入不等待刷盘
+     */
+    synchronized void prepared(JournalEntry entry, Long transactionId) throws IOException {
+        entry.transactionId = transactionId;
+        if (pendingTable.containsKey(entry.journalId)) {
+            append(encodeLong(TYPE_PREPARED, entry.journalId, transactionId));
+        }
+    }
+
+    /**
+     * 记录本地事务状态，同步刷盘时等待刷盘完成
+     */
+    void localState(JournalEntry entry, LocalTransactionState state) throws IOException {
+        long offset = 0;
+        synchronized (this) {
+            entry.localState = state;
+            if (pendingTable.containsKey(entry.journalId)) {
+                offset = append(encodeLong(TYPE_STATE, entry.journalId, state.ordinal()));
+            }
+        }
+        waitFlushed(offset);
+    }
+
+    synchronized void done(JournalEntry entry) throws IOException {
+        if (pendingTable.remove(entry.journalId) != null) {
+            append(encodeLong(TYPE_DONE, entry.journalId, 0));
+        }
+    }
+
+    Collection<JournalEntry> getPendingEntries() {
+        return pendingTable.values();
+    }
+
+    int getPendingCount() {
+        return pendingTable.size();
+    }
+
+    /**
+     * 写入文件，不刷盘
+     * @return 写入后的位置，用于等待刷盘
+     */
+    private long append(ByteBuffer record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Transaction journal is not opened");
+        }
+        if (channel.size() >= rollThreshold) {
+            roll(new File[]{currentFile()});
+        }
+        write(record);
+        return writtenOffset;
+    }
+
+    /**
+     * 等待刷盘线程将offset之前的写入刷盘
+     */
+    private void waitFlushed(long offset) throws IOException {
+        if (flushService == null || offset <= 0) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedOffset >= offset) {
+                return;
+            }
+        }
+        flushService.wakeup();
+        synchronized (flushLock) {
+            while (flushedOffset < offset) {
+                if (flushException != null && failedOffset >= offset) {
+                    throw new IOException("Flush transaction journal failed", flushException);
+                }
+                if (closed) {
+                    throw new IOException("Transaction journal is closed");
+                }
+                try {
+                    flushLock.wait(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Wait for transaction journal flush interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * 刷盘到当前写入位置，在刷盘线程中执行，不持有this
+     */
+    private void flush() {
+        long offset;
+        FileChannel flushChannel;
+        synchronized (this) {
+            offset = writtenOffset;
+            flushChannel = channel;
+        }
+        synchronized (flushLock) {
+            if (flushedOffset >= offset || flushChannel == null) {
+                return;
+            }
+        }
+        try {
+            flushChannel.force(false);
+            onFlushed(offset);
+        } catch (ClosedChannelException e) {
+            //文件已切换，切换时已刷盘
+        } catch (IOException e) {
+            LOGGER.error("Flush transaction journal failed", e);
+            synchronized (flushLock) {
+                failedOffset = Math.max(failedOffset, offset);
+                flushException = e;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private void onFlushed(long offset) {
+        synchronized (flushLock) {
+            if (offset > flushedOffset) {
+                flushedOffset = offset;
+            }
+            flushException = null;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * 独占锁定日志目录，避免同一台机器上的多个进程共用日志文件
+     */
+    private void lock() throws IOException {
+        File f = new File(dir, LOCK_FILE);
+        lockFile = new RandomAccessFile(f, "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            //本进程内已锁定
+            lock = null;
+        }
+        if (lock == null) {
+            unlock();
+            throw new IOException("Transaction journal dir is locked by another producer: " + dir.getAbsolutePath()
+                    + ", set a different transactionJournalDir for each process");
+        }
+    }
+
+    private void unlock() {
+        if (lockFile != null) {
+            try {
+                //关闭文件同时释放锁
+                lockFile.close();
+            } catch (IOException e) {
+                LOGGER.warn("Release transaction journal lock failed", e);
+            }
+            lockFile = null;
+            lock = null;
+        }
+    }
+
+    /**
+     * 切换到新文件，写入全部未完结的事务后删除旧文件
+     */
+    private void roll(File[] oldFiles) throws IOException {
+        closeFile();
+        fileIndex++;
+        file = new RandomAccessFile(currentFile(), "rw");
+        channel = file.getChannel();
+        channel.position(channel.size());
+        for (JournalEntry entry : pendingTable.values()) {
+            write(encodePrepare(entry));
+            if (entry.transactionId != null) {
+                write(encodeLong(TYPE_PREPARED, entry.journalId, entry.transactionId));
+            }
+            if (entry.localState != null) {
+                write(encodeLong(TYPE_STATE, entry.journalId, entry.localState.ordinal()));
+            }
+        }
+        channel.force(true);
+        rollThreshold = Math.max(fileSize, 2 * channel.size());
+        //未完结的事务已在新文件中刷盘
+        onFlushed(writtenOffset);
+        for (File old : oldFiles) {
+            if (!old.equals(currentFile()) && old.exists() && !old.delete()) {
+                LOGGER.warn("Delete transaction journal file failed: {}", old.getAbsolutePath());
+            }
+        }
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        writtenOffset += record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOGGER.warn("Close transaction journal file failed", e);
+            }
+            file = null;
+            channel = null;
+        }
+    }
+
+    private File currentFile() {
+        return new File(dir, FILE_PREFIX + fileIndex);
+    }
+
+    private File[] listFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(FILE_PREFIX) && parseIndex(new File(d, name)) >= 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long i1 = parseIndex(o1);
+                long i2 = parseIndex(o2);
+                return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    private static long parseIndex(File f) {
+        try {
+            return Long.parseLong(f.getName().substring(FILE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void replay(File f, Map<Long, JournalEntry> entries) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            while (true) {
+                long position = in.getFilePointer();
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length <= 0 || length > in.length() - in.getFilePointer()) {
+                        throw new EOFException();
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc != crc32(payload)) {
+                        throw new EOFException();
+                    }
+                } catch (EOFException e) {
+                    if (position < in.length()) {
+                        LOGGER.warn("Transaction journal {} is truncated at {}, discard the tail", f.getName(), position);
+                    }
+                    return;
+                }
+                apply(ByteBuffer.wrap(payload), entries);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(ByteBuffer payload, Map<Long, JournalEntry> entries) {
+        byte type = payload.get();
+        long journalId = payload.getLong();
+        JournalEntry entry = entries.get(journalId);
+        switch (type) {
+            case TYPE_PREPARE:
+                long createTime = payload.getLong();
+                byte[] bodyBytes = new byte[payload.remaining()];
+                payload.get(bodyBytes);
+                entries.put(journalId, new JournalEntry(journalId,
+                        RpcSerializeUtils.deserialize(bodyBytes, RocketMQBody.class, SerializeType.JSON), createTime));
+                break;
+            case TYPE_PREPARED:
+                if (entry != null) {
+                    entry.transactionId = payload.getLong();
+                }
+                break;
+            case TYPE_STATE:
+                if (entry != null) {
+                    entry.localState = LocalTransactionState.values()[(int) payload.getLong()];
+                }
+                break;
+            case TYPE_DONE:
+                entries.remove(journalId);
+                break;
+            default:
+                LOGGER.warn("Unknown transaction journal record type: {}", type);
+                break;
+        }
+    }
+
+    private static ByteBuffer encodePrepare(JournalEntry entry) {
+        byte[] bodyBytes = RpcSerializeUtils.serialize(entry.mqBody, SerializeType.JSON);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + bodyBytes.length);
+        payload.put(TYPE_PREPARE).putLong(entry.journalId).putLong(entry.createTime).put(bodyBytes);
+        return frame(payload.array());
+    }
+
+    private static ByteBuffer encodeLong(byte type, long journalId, long value) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8);
+        payload.put(type).putLong(journalId).putLong(value);
+        return frame(payload.array());
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(4 + 4 + payload.length);
+        record.putInt(payload.length).putInt(crc32(payload)).put(payload);
+        record.flip();
+        return record;
+    }
+
+    private static int crc32(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * 刷盘线程，合并多个写入线程的刷盘请求
+     */
+    private class FlushService extends ServiceThread {
+
+        FlushService() {
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public String getServiceName() {
+            return "TransactionJournalFlushService";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(FLUSH_INTERVAL_MILLIS);
+                    TransactionJournal.this.flush();
+                } catch (Throwable e) {
+                    LOGGER.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            //关闭前刷盘
+            TransactionJournal.this.flush();
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+    }
+
+    /**
+     * 日志中的一条事务消息
+     */
+    static class JournalEntry {
+
+        final long journalId;
+
+        final RocketMQBody mqBody;
+
+        final long createTime;
+
+        //PREPARE成功后服务端返回的事务id
+        volatile Long transactionId;
+
+        volatile LocalTransactionState localState;
+
+        //PREPARE请求已失败
+        volatile boolean prepareFailed = false;
+
+        //从日志文件恢复，本进程未执行本地事务
+        volatile boolean recovered = false;
+
+        //COMMIT/ROLLBACK已发出
+        boolean finished = false;
+
+        JournalEntry(long journalId, RocketMQBody mqBody, long createTime) {
+            this.journalId = journalId;
+            this.mqBody = mqBody;
+            this.createTime = createTime;
+        }
+
+        @Override
+        public String toString() {
+            return "JournalEntry{" +
+                    "journalId=" + journalId +
+                    ", messageKey=" + mqBody.getMessageKey() +
+                    ", transactionId=" + transactionId +
+                    ", localState=" + localState +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.tongbanjie.tevent.client.transaction;
+
+import com.tongbanjie.tevent.client.ClientConfig;
+import com.tongbanjie.tevent.client.cluster.ClusterClient;
+import com.tongbanjie.tevent.client.sender.LocalTransactionState;
+import com.tongbanjie.tevent.client.sender.MQMessageSender;
+import com.tongbanjie.tevent.client.sender.TransactionCheckListener;
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
+import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+import com.tongbanjie.tevent.rpc.exception.RpcException;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.header.SendMessageHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 事务消息生产者<p>
+ * 1、消息先写入本地日志(刷盘)，再异步发送PREPARE，同时执行本地事务；
+ * 2、本地事务状态写入本地日志后即返回，业务线程不等待PREPARE响应及COMMIT/ROLLBACK；
+ * 3、PREPARE响应与本地事务状态都到达后，单向发送COMMIT/ROLLBACK，本地事务状态为UNKNOWN时由服务端回查；
+ * 4、恢复线程定期处理未完结的事务：PREPARE失败而本地事务已提交的消息改为普通消息重发，
+ * 上次进程退出前未执行完本地事务的消息，以及PREPARE失败且本地事务状态为UNKNOWN的消息(服务端没有记录，不会回查)，
+ * 通过该group的TransactionCheckListener确定状态，直到返回COMMIT或ROLLBACK；
+ * 投递语义为至少一次，PREPARE超时但服务端已记录时可能重复，消费方按messageKey去重
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class TransactionProducer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionProducer.class);
+
+    private static final long PREPARE_TIMEOUT_MILLIS = 3000;
+
+    private static final long SEND_TIMEOUT_MILLIS = 3000;
+
+    private final ClusterClient clusterClient;
+
+    private final ConcurrentHashMap<String/* group */, MQMessageSender> messageSenderTable;
+
+    private final TransactionJournal journal;
+
+    private final RecoverService recoverService;
+
+    public TransactionProducer(ClientConfig clientConfig, ClusterClient clusterClient,
+                               ConcurrentHashMap<String, MQMessageSender> messageSenderTable) {
+        this.clusterClient = clusterClient;
+        this.messageSenderTable = messageSenderTable;
+        this.journal = new TransactionJournal(new File(clientConfig.getTransactionJournalDir()),
+                clientConfig.getTransactionJournalFileSize(), clientConfig.getTransactionJournalSyncFlush());
+        this.recoverService = new RecoverService(clientConfig.getTransactionRecoverInterval());
+    }
+
+    /**
+     * 加载本地日志，日志目录已被其他进程锁定时抛出IOException
+     */
+    public void start() throws IOException {
+        List<TransactionJournal.JournalEntry> entries;
+        try {
+            entries = this.journal.load();
+        } catch (IOException e) {
+            //释放目录锁
+            this.journal.close();
+            throw e;
+        }
+        if (!entries.isEmpty()) {
+            LOGGER.warn("There are {} unfinished transaction messages, recover them later", entries.size());
+        }
+        this.recoverService.start();
+    }
+
+    /**
+     * 本地日志目录中是否有上次遗留的日志文件
+     */
+    public static boolean hasJournal(ClientConfig clientConfig) {
+        return TransactionJournal.exists(new File(clientConfig.getTransactionJournalDir()));
+    }
+
+    public void shutdown() {
+        this.recoverService.shutdown();
+        this.journal.close();
+    }
+
+    /**
+     * 发送事务消息并执行本地事务
+     * @param mqBody 消息
+     * @param executor 本地事务
+     * @param arg 本地事务参数
+     * @return 本地事务执行结果
+     * @throws IOException 写本地日志失败，此时未执行本地事务
+     */
+    public TransactionSendResult sendMessageInTransaction(final RocketMQBody mqBody,
+                                                          final LocalTransactionExecutor<RocketMQBody> executor,
+                                                          final Object arg) throws IOException {
+        if (mqBody == null || mqBody.getTopic() == null || mqBody.getProducerGroup() == null) {
+            throw new IllegalArgumentException("topic and producerGroup can not be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("localTransactionExecutor can not be null");
+        }
+
+        //1、写入本地日志
+        final TransactionJournal.JournalEntry entry = this.journal.prepare(mqBody);
+
+        //2、异步PREPARE
+        this.prepareAsync(entry);
+
+        //3、执行本地事务
+        LocalTransactionState localState;
+        try {
+            localState = executor.executeLocalTransaction(mqBody, arg);
+        } catch (Throwable e) {
+            LOGGER.error("Execute local transaction exception, messageKey: " + mqBody.getMessageKey(), e);
+            localState = null;
+        }
+        if (localState == null) {
+            localState = LocalTransactionState.UNKNOWN;
+        }
+        try {
+            this.journal.localState(entry, localState);
+        } catch (IOException e) {
+            LOGGER.error("Write local transaction state to journal failed, " + entry, e);
+        }
+
+        //4、PREPARE已响应时发送COMMIT/ROLLBACK，否则在PREPARE响应时发送
+        this.finish(entry);
+        return new TransactionSendResult(entry.journalId, localState);
+    }
+
+    public int getPendingCount() {
+        return this.journal.getPendingCount();
+    }
+
+    private void prepareAsync(final TransactionJournal.JournalEntry entry) {
+        TransactionMessageHeader requestHeader = new TransactionMessageHeader();
+        requestHeader.setMqType(MQType.ROCKET_MQ);
+        requestHeader.setTransactionState(TransactionState.PREPARE);
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE, requestHeader, entry.mqBody);
+
+        try {
+            this.clusterClient.invokeAsync(PREPARE_TIMEOUT_MILLIS, request, new InvokeCallback() {
+                @Override
+                public void operationComplete(ResponseFuture responseFuture) {
+                    RpcCommand response = responseFuture.getResponseCommand();
+                    if (response != null && response.getCmdCode() == ResponseCode.SUCCESS) {
+                        try {
+                            TransactionMessageHeader responseHeader =
+                                    (TransactionMessageHeader) response.decodeCustomHeader(TransactionMessageHeader.class);
+                            onPrepared(entry, responseHeader.getTransactionId());
+                            return;
+                        } catch (RpcCommandException e) {
+                            LOGGER.error("Decode prepare response failed, " + entry, e);
+                        }
+                    } else if (response != null) {
+                        LOGGER.warn("Prepare transaction message failed, {}, errorCode: {}, error: {}",
+                                entry, response.getCmdCode(), response.getRemark());
+                    } else {
+                        LOGGER.warn("Prepare transaction message failed, " + entry, responseFuture.getCause());
+                    }
+                    onPrepareFailed(entry);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Prepare transaction message interrupted, {}", entry);
+            onPrepareFailed(entry);
+        } catch (RpcException e) {
+            LOGGER.warn("Prepare transaction message failed, " + entry, e);
+            onPrepareFailed(entry);
+        }
+    }
+
+    private void onPrepared(TransactionJournal.JournalEntry entry, Long transactionId) {
+        if (transactionId == null) {
+            onPrepareFailed(entry);
+            return;
+        }
+        try {
+            this.journal.prepared(entry, transactionId);
+        } catch (IOException e) {
+            LOGGER.error("Write transactionId to journal failed, " + entry, e);
+        }
+        this.finish(entry);
+    }
+
+    private void onPrepareFailed(TransactionJournal.JournalEntry entry) {
+        entry.prepareFailed = true;
+        this.finish(entry);
+    }
+
+    /**
+     * PREPARE结果和本地事务状态都已知时完结该事务，发送失败时留给恢复线程
+     */
+    private void finish(TransactionJournal.JournalEntry entry) {
+        synchronized (entry) {
+            LocalTransactionState localState = entry.localState;
+            if (entry.finished || localState == null) {
+                return;
+            }
+            Long transactionId = entry.transactionId;
+            if (transactionId != null) {
+                if (localState != LocalTransactionState.UNKNOWN && !this.endTransaction(entry, transactionId, localState)) {
+                    return;
+                }
+            } else if (!entry.prepareFailed || localState != LocalTransactionState.ROLLBACK) {
+                //等待PREPARE响应；PREPARE失败后由恢复线程重发或确定本地事务状态
+                return;
+            }
+            entry.finished = true;
+        }
+        try {
+            this.journal.done(entry);
+        } catch (IOException e) {
+            LOGGER.error("Write done to journal failed, " + entry, e);
+        }
+    }
+
+    /**
+     * 单向发送COMMIT/ROLLBACK，丢失时由服务端回查
+     */
+    private boolean endTransaction(TransactionJournal.JournalEntry entry, Long transactionId,
+                                   LocalTransactionState localState) {
+        TransactionMessageHeader requestHeader = new TransactionMessageHeader();
+        requestHeader.setMqType(MQType.ROCKET_MQ);
+        requestHeader.setTransactionId(transactionId);
+        requestHeader.setTransactionState(localState == LocalTransactionState.COMMIT
+                ? TransactionState.COMMIT : TransactionState.ROLLBACK);
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE, requestHeader);
+        try {
+            this.clusterClient.invokeOneway(SEND_TIMEOUT_MILLIS, request);
+            LOGGER.debug("End transaction {}, {}", localState, entry);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("End transaction interrupted, {}", entry);
+        } catch (RpcException e) {
+            LOGGER.warn("End transaction failed, " + entry, e);
+        }
+        return false;
+    }
+
+    /**
+     * PREPARE失败而本地事务已提交，按普通消息重发
+     */
+    private boolean resend(TransactionJournal.JournalEntry entry) {
+        SendMessageHeader requestHeader = new SendMessageHeader();
+        requestHeader.setMqType(MQType.ROCKET_MQ);
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.SEND_MESSAGE, requestHeader, entry.mqBody);
+        try {
+            RpcCommand response = this.clusterClient.invokeSync(SEND_TIMEOUT_MILLIS, request);
+            if (response != null && response.getCmdCode() == ResponseCode.SUCCESS) {
+                LOGGER.info("Resend committed transaction message success, {}", entry);
+                return true;
+            }
+            LOGGER.warn("Resend committed transaction message failed, {}, error: {}",
+                    entry, response == null ? null : response.getRemark());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RpcException e) {
+            LOGGER.warn("Resend committed transaction message failed, " + entry, e);
+        }
+        return false;
+    }
+
+    /**
+     * 上次进程退出前未执行完本地事务，通过TransactionCheckListener确定状态
+     */
+    @SuppressWarnings("unchecked")
+    private LocalTransactionState checkLocalTransaction(TransactionJournal.JournalEntry entry) {
+        MQMessageSender mqMessageSender = this.messageSenderTable.get(entry.mqBody.getProducerGroup());
+        TransactionCheckListener listener = mqMessageSender == null ? null : mqMessageSender.transactionCheckListener();
+        if (listener == null) {
+            LOGGER.warn("Can not recover transaction message, group '{}' has not been set a transactionCheckListener, {}",
+                    entry.mqBody.getProducerGroup(), entry);
+            return null;
+        }
+        try {
+            return listener.checkTransactionState(entry.mqBody);
+        } catch (Throwable e) {
+            LOGGER.error("Check local transaction state exception, " + entry, e);
+            return null;
+        }
+    }
+
+    private void recover() {
+        long now = System.currentTimeMillis();
+        List<TransactionJournal.JournalEntry> entries =
+                new ArrayList<TransactionJournal.JournalEntry>(this.journal.getPendingEntries());
+        for (TransactionJournal.JournalEntry entry : entries) {
+            if (!entry.recovered && now - entry.createTime < PREPARE_TIMEOUT_MILLIS * 2) {
+                //进行中
+                continue;
+            }
+            if (entry.localState == null && !entry.recovered) {
+                //本地事务执行中
+                continue;
+            }
+            if (entry.localState == null
+                    || (entry.localState == LocalTransactionState.UNKNOWN && entry.transactionId == null)) {
+                //服务端没有该事务，不会回查，由TransactionCheckListener确定状态
+                LocalTransactionState localState = this.checkLocalTransaction(entry);
+                if (localState == null) {
+                    continue;
+                }
+                if (localState != entry.localState) {
+                    try {
+                        this.journal.localState(entry, localState);
+                    } catch (IOException e) {
+                        LOGGER.error("Write local transaction state to journal failed, " + entry, e);
+                    }
+                }
+            }
+
+            if (entry.transactionId == null) {
+                //PREPARE无响应或上次进程退出前未收到响应
+                entry.prepareFailed = true;
+                if (entry.localState == LocalTransactionState.COMMIT) {
+                    if (!this.resend(entry)) {
+                        continue;
+                    }
+                    synchronized (entry) {
+                        entry.finished = true;
+                    }
+                    try {
+                        this.journal.done(entry);
+                    } catch (IOException e) {
+                        LOGGER.error("Write done to journal failed, " + entry, e);
+                    }
+                    continue;
+                }
+            }
+            this.finish(entry);
+        }
+    }
+
+    /**
+     * 未完结事务的恢复线程
+     */
+    private class RecoverService extends ServiceThread {
+
+        private final long interval;
+
+        RecoverService(long interval) {
+            this.interval = interval;
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public String getServiceName() {
+            return "TransactionRecoverService";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(interval);
+                    if (!this.isStopped()) {
+                        TransactionProducer.this.recover();
+                    }
+                } catch (Throwable e) {
+                    LOGGER.error(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.tongbanjie.tevent.client.transaction;
+
+import com.tongbanjie.tevent.client.sender.LocalTransactionState;
+
+/**
+ * 事务消息发送结果<p>
+ * 返回时本地事务已执行、事务消息已记录到本地日志，COMMIT/ROLLBACK异步发送
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class TransactionSendResult {
+
+    private final long journalId;
+
+    private final LocalTransactionState localTransactionState;
+
+    public TransactionSendResult(long journalId, LocalTransactionState localTransactionState) {
+        this.journalId = journalId;
+        this.localTransactionState = localTransactionState;
+    }
+
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public LocalTransactionState getLocalTransactionState() {
+        return localTransactionState;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionSendResult{" +
+                "journalId=" + journalId +
+                ", localTransactionState=" + localTransactionState +
+                '}';
+    }
+}
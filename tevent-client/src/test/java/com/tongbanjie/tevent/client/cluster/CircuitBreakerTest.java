@@ -0,0 +1,164 @@
+package com.tongbanjie.tevent.client.cluster;
+
+import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
+import com.tongbanjie.tevent.registry.Address;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 熔断器测试<p>
+ * 验证按失败率和慢调用p99熔断、半开状态的探测名额，以及ClusterClient.select跳过熔断的服务端
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class CircuitBreakerTest {
+
+    private static final Address SERVER_A = new Address("127.0.0.1", 7001);
+
+    private static final Address SERVER_B = new Address("127.0.0.1", 7002);
+
+    public static void main(String[] args) throws Exception {
+        testFailureRate();
+        testSlowCall();
+        testHalfOpen();
+        testSelect();
+    }
+
+    /**
+     * 1、请求数不足时不熔断，失败率达到阈值后熔断
+     */
+    private static void testFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker(SERVER_A, 10000, 10, 0.5, 1000, 10000, 1);
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        System.out.println("9 failures, less than minRequests, state(expect CLOSED): " + breaker.getState());
+
+        breaker = new CircuitBreaker(SERVER_A, 10000, 10, 0.5, 1000, 10000, 1);
+        for (int i = 0; i < 6; i++) {
+            breaker.onSuccess(1);
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        System.out.println("Failure rate 0.4, state(expect CLOSED): " + breaker.getState());
+        breaker.onFailure();
+        breaker.onFailure();
+        System.out.println("Failure rate 0.5, state(expect OPEN): " + breaker.getState()
+                + ", available(expect false): " + breaker.isAvailable()
+                + ", acquire(expect false): " + breaker.tryAcquire());
+    }
+
+    /**
+     * 2、成功调用中超过1%耗时不低于slowCallMillis，即p99过慢时熔断
+     */
+    private static void testSlowCall() {
+        CircuitBreaker breaker = new CircuitBreaker(SERVER_A, 10000, 10, 0.5, 100, 10000, 1);
+        for (int i = 0; i < 99; i++) {
+            breaker.onSuccess(5);
+        }
+        breaker.onSuccess(500);
+        System.out.println("1 slow call in 100, state(expect CLOSED): " + breaker.getState());
+        breaker.onSuccess(500);
+        System.out.println("2 slow calls in 101, state(expect OPEN): " + breaker.getState()
+                + ", slowCallCount(expect 2): " + breaker.getSlowCallCount());
+    }
+
+    /**
+     * 3、openMillis后进入半开，只放行halfOpenProbes个探测请求；
+     * 无结果的探测归还名额，探测全部成功后恢复，任一失败重新熔断
+     */
+    private static void testHalfOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(SERVER_A, 10000, 2, 0.5, 1000, 100, 2);
+        breaker.onFailure();
+        breaker.onFailure();
+        System.out.println("State(expect OPEN): " + breaker.getState());
+        Thread.sleep(150);
+
+        System.out.println("Available after openMillis(expect true): " + breaker.isAvailable());
+        boolean probe1 = breaker.tryAcquire();
+        boolean probe2 = breaker.tryAcquire();
+        boolean probe3 = breaker.tryAcquire();
+        System.out.println("Probes(expect true, true, false): " + probe1 + ", " + probe2 + ", " + probe3
+                + ", state(expect HALF_OPEN): " + breaker.getState());
+        breaker.release();
+        System.out.println("Acquire after release(expect true): " + breaker.tryAcquire());
+        breaker.onSuccess(1);
+        System.out.println("1 probe succeeded, state(expect HALF_OPEN): " + breaker.getState());
+        breaker.onSuccess(1);
+        System.out.println("2 probes succeeded, state(expect CLOSED): " + breaker.getState());
+
+        breaker.onFailure();
+        breaker.onFailure();
+        Thread.sleep(150);
+        breaker.tryAcquire();
+        breaker.onFailure();
+        System.out.println("Probe failed, state(expect OPEN): " + breaker.getState()
+                + ", openCount(expect 3): " + breaker.getOpenCount());
+    }
+
+    /**
+     * 4、select跳过熔断的服务端，全部熔断时返回null，半开后按探测名额放行
+     */
+    private static void testSelect() throws Exception {
+        ClusterClient clusterClient = new FailfastClusterClient(new ThreadLocal<LoadBalance<Address>>() {
+            @Override
+            protected LoadBalance<Address> initialValue() {
+                return new FirstLoadBalance();
+            }
+        }, null, null);
+        clusterClient.setBreakerMinRequests(2);
+        clusterClient.setBreakerOpenMillis(100);
+        clusterClient.setBreakerHalfOpenProbes(1);
+        List<Address> addressList = Arrays.asList(SERVER_A, SERVER_B);
+
+        System.out.println("Select(expect A): " + name(clusterClient.select(addressList)));
+        clusterClient.getCircuitBreaker(SERVER_A).onFailure();
+        clusterClient.getCircuitBreaker(SERVER_A).onFailure();
+        List<String> selected = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            selected.add(name(clusterClient.select(addressList)));
+        }
+        System.out.println("A is open, select(expect [B, B, B]): " + selected);
+
+        clusterClient.getCircuitBreaker(SERVER_B).onFailure();
+        clusterClient.getCircuitBreaker(SERVER_B).onFailure();
+        System.out.println("All open, select(expect null): " + name(clusterClient.select(addressList)));
+
+        Thread.sleep(150);
+        selected.clear();
+        for (int i = 0; i < 3; i++) {
+            selected.add(name(clusterClient.select(addressList)));
+        }
+        System.out.println("Half open with 1 probe each, select(expect [A, B, null]): " + selected);
+    }
+
+    private static String name(Address address) {
+        if (address == null) {
+            return null;
+        }
+        return address.equals(SERVER_A) ? "A" : "B";
+    }
+
+    /**
+     * 总是选择第一个，便于验证select的过滤
+     */
+    private static class FirstLoadBalance implements LoadBalance<Address> {
+
+        private Address lastSelected;
+
+        @Override
+        public Address select(List<Address> list) {
+            lastSelected = list == null || list.isEmpty() ? null : list.get(0);
+            return lastSelected;
+        }
+
+        @Override
+        public Address getLastSelected() {
+            return lastSelected;
+        }
+    }
+}
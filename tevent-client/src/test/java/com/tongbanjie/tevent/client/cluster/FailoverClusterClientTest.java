@@ -0,0 +1,301 @@
+package com.tongbanjie.tevent.client.cluster;
+
+import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
+import com.tongbanjie.tevent.registry.Address;
+import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.ResponseFuture;
+import com.tongbanjie.tevent.rpc.RpcClient;
+import com.tongbanjie.tevent.rpc.RpcHook;
+import com.tongbanjie.tevent.rpc.exception.RpcConnectException;
+import com.tongbanjie.tevent.rpc.netty.NettyRequestProcessor;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Failover集群客户端测试<p>
+ * 验证耗时窗口的分位数、重试预算的消耗和补充，
+ * 对冲调用在p95后向另一个服务端发送副本并返回最先成功的响应，以及预算耗尽后不再重试
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class FailoverClusterClientTest {
+
+    private static final Address SERVER_A = new Address("127.0.0.1", 7001);
+
+    private static final Address SERVER_B = new Address("127.0.0.1", 7002);
+
+    public static void main(String[] args) throws Exception {
+        testLatencyWindow();
+        testRetryBudget();
+
+        MockRpcClient rpcClient = new MockRpcClient();
+        try {
+            testHedge(rpcClient);
+            testHedgeFirstSuccess(rpcClient);
+            testRetryBudgetExhausted(rpcClient);
+        } finally {
+            rpcClient.shutdown();
+        }
+    }
+
+    /**
+     * 1、样本不足时分位数为-1，样本足够后按排序取分位数
+     */
+    private static void testLatencyWindow() {
+        LatencyWindow window = new LatencyWindow(100);
+        for (int i = 1; i < 20; i++) {
+            window.record(i);
+        }
+        System.out.println("p95 of 19 samples(expect -1): " + window.percentile(0.95));
+        window = new LatencyWindow(100);
+        for (int i = 100; i >= 1; i--) {
+            window.record(i);
+        }
+        System.out.println("p95 of 1..100(expect 95): " + window.percentile(0.95)
+                + ", p50(expect 50): " + window.percentile(0.5));
+    }
+
+    /**
+     * 2、额度用完后不能重试，请求按比例补充额度
+     */
+    private static void testRetryBudget() {
+        //不按时间补充
+        RetryBudget budget = new RetryBudget(0.5, 0, 2);
+        boolean retry1 = budget.tryRetry();
+        boolean retry2 = budget.tryRetry();
+        boolean retry3 = budget.tryRetry();
+        System.out.println("Retries with balance 2(expect true, true, false): " + retry1 + ", " + retry2 + ", " + retry3);
+        budget.onRequest();
+        budget.onRequest();
+        System.out.println("Retry after 2 requests at ratio 0.5(expect true): " + budget.tryRetry()
+                + ", then(expect false): " + budget.tryRetry());
+        for (int i = 0; i < 10; i++) {
+            budget.onRequest();
+        }
+        System.out.println("Balance is capped(expect 2.0): " + budget.getBalance());
+    }
+
+    /**
+     * 3、首个服务端超过p95仍未响应时向另一个服务端发送副本，返回最先成功的响应
+     */
+    private static void testHedge(MockRpcClient rpcClient) throws Exception {
+        FailoverClusterClient clusterClient = newClusterClient(rpcClient);
+        rpcClient.delay(SERVER_A, 10);
+        //积累耗时样本，p95约10ms
+        for (int i = 0; i < 30; i++) {
+            clusterClient.invokeSyncHedged(1000, 1, Collections.singletonList(SERVER_A), request());
+        }
+
+        rpcClient.delay(SERVER_A, 500);
+        rpcClient.delay(SERVER_B, 10);
+        rpcClient.resetCount();
+        long begin = System.currentTimeMillis();
+        RpcCommand response = clusterClient.invokeSyncHedged(1000, 1, Arrays.asList(SERVER_A, SERVER_B), request());
+        long cost = System.currentTimeMillis() - begin;
+        System.out.println("Hedged response from(expect " + SERVER_B.getAddress() + "): " + response.getRemark()
+                + ", cost(expect < 200ms): " + cost + "ms, sent(expect A=1, B=1): "
+                + "A=" + rpcClient.count(SERVER_A) + ", B=" + rpcClient.count(SERVER_B));
+    }
+
+    /**
+     * 4、副本返回失败(SYSTEM_BUSY)时继续等待原请求，返回成功的响应
+     */
+    private static void testHedgeFirstSuccess(MockRpcClient rpcClient) throws Exception {
+        FailoverClusterClient clusterClient = newClusterClient(rpcClient);
+        rpcClient.delay(SERVER_A, 10);
+        for (int i = 0; i < 30; i++) {
+            clusterClient.invokeSyncHedged(1000, 1, Collections.singletonList(SERVER_A), request());
+        }
+
+        rpcClient.delay(SERVER_A, 100);
+        rpcClient.busy(SERVER_B);
+        RpcCommand response = clusterClient.invokeSyncHedged(1000, 1, Arrays.asList(SERVER_A, SERVER_B), request());
+        System.out.println("Hedge busy, response code(expect " + ResponseCode.SUCCESS + "): " + response.getCmdCode()
+                + ", from(expect " + SERVER_A.getAddress() + "): " + response.getRemark());
+    }
+
+    /**
+     * 5、连接失败时转移到其他服务端，重试预算(初始20)耗尽后只尝试一次
+     */
+    private static void testRetryBudgetExhausted(MockRpcClient rpcClient) throws Exception {
+        FailoverClusterClient clusterClient = newClusterClient(rpcClient);
+        //不因连接失败熔断，只验证预算
+        clusterClient.setBreakerMinRequests(Integer.MAX_VALUE);
+        rpcClient.refuse(SERVER_A);
+        rpcClient.refuse(SERVER_B);
+        rpcClient.resetCount();
+
+        int calls = 40;
+        for (int i = 0; i < calls; i++) {
+            try {
+                clusterClient.invokeSync(1000, 1, Arrays.asList(SERVER_A, SERVER_B), request());
+            } catch (RpcConnectException e) {
+                //预期
+            }
+        }
+        int attempts = rpcClient.count(SERVER_A) + rpcClient.count(SERVER_B);
+        System.out.println("Calls: " + calls + ", retried calls(expect 20~25, not 40): " + (attempts - calls));
+    }
+
+    private static FailoverClusterClient newClusterClient(RpcClient rpcClient) {
+        return new FailoverClusterClient(new ThreadLocal<LoadBalance<Address>>() {
+            @Override
+            protected LoadBalance<Address> initialValue() {
+                return new FirstLoadBalance();
+            }
+        }, rpcClient, null);
+    }
+
+    private static RpcCommand request() {
+        return RpcCommandBuilder.buildRequest(RequestCode.SEND_MESSAGE, null);
+    }
+
+    /**
+     * 总是选择第一个，便于控制首次发送和副本的服务端
+     */
+    private static class FirstLoadBalance implements LoadBalance<Address> {
+
+        private Address lastSelected;
+
+        @Override
+        public Address select(List<Address> list) {
+            lastSelected = list == null || list.isEmpty() ? null : list.get(0);
+            return lastSelected;
+        }
+
+        @Override
+        public Address getLastSelected() {
+            return lastSelected;
+        }
+    }
+
+    /**
+     * 按服务端延时返回成功，或返回SYSTEM_BUSY，或拒绝连接；响应的remark为服务端地址
+     */
+    private static class MockRpcClient implements RpcClient {
+
+        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+        private final Map<String, Long> delayTable = new ConcurrentHashMap<String, Long>();
+
+        private final Map<String, Integer> codeTable = new ConcurrentHashMap<String, Integer>();
+
+        private final Map<String, Boolean> refuseTable = new ConcurrentHashMap<String, Boolean>();
+
+        private final ConcurrentMap<String, AtomicInteger> countTable = new ConcurrentHashMap<String, AtomicInteger>();
+
+        void delay(Address address, long delayMillis) {
+            delayTable.put(address.getAddress(), delayMillis);
+            codeTable.remove(address.getAddress());
+            refuseTable.remove(address.getAddress());
+        }
+
+        void busy(Address address) {
+            delayTable.put(address.getAddress(), 0L);
+            codeTable.put(address.getAddress(), ResponseCode.SYSTEM_BUSY);
+        }
+
+        void refuse(Address address) {
+            refuseTable.put(address.getAddress(), true);
+        }
+
+        void resetCount() {
+            countTable.clear();
+        }
+
+        int count(Address address) {
+            AtomicInteger count = countTable.get(address.getAddress());
+            return count == null ? 0 : count.get();
+        }
+
+        private void onInvoke(String addr) throws RpcConnectException {
+            AtomicInteger count = countTable.get(addr);
+            if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger exist = countTable.putIfAbsent(addr, count);
+                if (exist != null) {
+                    count = exist;
+                }
+            }
+            count.incrementAndGet();
+            if (refuseTable.containsKey(addr)) {
+                throw new RpcConnectException(addr);
+            }
+        }
+
+        private RpcCommand response(String addr) {
+            Integer code = codeTable.get(addr);
+            return RpcCommandBuilder.buildResponse(code == null ? ResponseCode.SUCCESS : code, addr);
+        }
+
+        @Override
+        public RpcCommand invokeSync(String addr, RpcCommand request, long timeoutMillis)
+                throws InterruptedException, RpcConnectException {
+            onInvoke(addr);
+            Long delay = delayTable.get(addr);
+            Thread.sleep(delay == null ? 0 : delay);
+            return response(addr);
+        }
+
+        @Override
+        public void invokeAsync(final String addr, RpcCommand request, final long timeoutMillis,
+                                final InvokeCallback invokeCallback) throws RpcConnectException {
+            onInvoke(addr);
+            Long delay = delayTable.get(addr);
+            final long delayMillis = delay == null ? 0 : delay;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ResponseFuture responseFuture = new ResponseFuture(0, timeoutMillis, invokeCallback, null);
+                    responseFuture.setSendRequestOK(true);
+                    if (delayMillis < timeoutMillis) {
+                        responseFuture.setResponseCommand(response(addr));
+                    }
+                    invokeCallback.operationComplete(responseFuture);
+                }
+            }, Math.min(delayMillis, timeoutMillis), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void invokeOneway(String addr, RpcCommand request, long timeoutMillis) throws RpcConnectException {
+            onInvoke(addr);
+        }
+
+        @Override
+        public void registerProcessor(int requestCode, NettyRequestProcessor processor, ExecutorService executor) {
+        }
+
+        @Override
+        public boolean isChannelWritable(String addr) {
+            return true;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void shutdown() {
+            scheduler.shutdownNow();
+        }
+
+        @Override
+        public void registerRpcHook(RpcHook rpcHook) {
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.tongbanjie.tevent.client.transaction;
+
+import com.tongbanjie.tevent.client.ClientConfig;
+import com.tongbanjie.tevent.client.cluster.ClusterClient;
+import com.tongbanjie.tevent.client.sender.LocalTransactionState;
+import com.tongbanjie.tevent.client.sender.MQMessageSender;
+import com.tongbanjie.tevent.client.sender.RocketMQMessageSender;
+import com.tongbanjie.tevent.client.sender.TransactionCheckListener;
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.registry.Address;
+import com.tongbanjie.tevent.rpc.InvokeCallback;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 事务消息本地日志测试<p>
+ * 验证重新加载时丢弃末尾不完整的记录、文件切换、日志目录独占锁定，
+ * 以及恢复线程对每种(服务端事务id, 本地事务状态)组合的处理
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class TransactionJournalTest {
+
+    private static final String GROUP = "journal_test_group";
+
+    public static void main(String[] args) throws Exception {
+        testReplayTornTail();
+        testLock();
+        testRoll();
+        testRecover();
+    }
+
+    /**
+     * 1、末尾写入一半的记录在重新加载时丢弃，之前的记录完整恢复
+     */
+    private static void testReplayTornTail() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        TransactionJournal journal = new TransactionJournal(dir, 1024 * 1024, true);
+        journal.load();
+        TransactionJournal.JournalEntry committed = journal.prepare(body("order_1"));
+        journal.prepared(committed, 100L);
+        journal.localState(committed, LocalTransactionState.COMMIT);
+        TransactionJournal.JournalEntry unknown = journal.prepare(body("order_2"));
+        journal.localState(unknown, LocalTransactionState.UNKNOWN);
+        TransactionJournal.JournalEntry done = journal.prepare(body("order_3"));
+        journal.localState(done, LocalTransactionState.ROLLBACK);
+        journal.done(done);
+        journal.close();
+
+        //进程崩溃时最后一条记录只写入了一部分
+        RandomAccessFile tail = new RandomAccessFile(journalFiles(dir)[0], "rw");
+        tail.seek(tail.length());
+        tail.writeInt(200);
+        tail.writeInt(0);
+        tail.write(new byte[10]);
+        tail.close();
+
+        journal = new TransactionJournal(dir, 1024 * 1024, true);
+        List<TransactionJournal.JournalEntry> entries = journal.load();
+        System.out.println("Pending after reload(expect 2): " + entries.size());
+        for (TransactionJournal.JournalEntry entry : entries) {
+            System.out.println("  " + entry + ", recovered(expect true): " + entry.recovered);
+        }
+        //重新加载后可以继续写入，journalId接着未完结事务的最大id
+        TransactionJournal.JournalEntry next = journal.prepare(body("order_4"));
+        System.out.println("Next journalId(expect 3): " + next.journalId);
+        journal.close();
+        delete(dir);
+    }
+
+    /**
+     * 2、日志目录被锁定时加载失败，释放后可以加载
+     */
+    private static void testLock() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        TransactionJournal journal = new TransactionJournal(dir, 1024 * 1024, false);
+        journal.load();
+
+        TransactionJournal another = new TransactionJournal(dir, 1024 * 1024, false);
+        try {
+            another.load();
+            System.out.println("Load locked dir(expect IOException): loaded");
+        } catch (IOException e) {
+            System.out.println("Load locked dir(expect IOException): " + e.getMessage());
+        } finally {
+            another.close();
+        }
+
+        journal.close();
+        another = new TransactionJournal(dir, 1024 * 1024, false);
+        another.load();
+        System.out.println("Load released dir(expect ok): ok");
+        another.close();
+        delete(dir);
+    }
+
+    /**
+     * 3、超过文件上限时切换并删除旧文件；未完结事务较多时切换后的阈值随之增大，不会每次写入都切换
+     */
+    private static void testRoll() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        TransactionJournal journal = new TransactionJournal(dir, 1024, false);
+        journal.load();
+        String firstFile = journalFiles(dir)[0].getName();
+        for (int i = 0; i < 50; i++) {
+            TransactionJournal.JournalEntry entry = journal.prepare(body("done_" + i));
+            journal.localState(entry, LocalTransactionState.ROLLBACK);
+            journal.done(entry);
+        }
+        File[] files = journalFiles(dir);
+        System.out.println("Journal files after roll(expect 1): " + files.length
+                + ", rolled(expect true): " + !files[0].getName().equals(firstFile));
+
+        //未完结事务的大小超过文件上限
+        for (int i = 0; i < 20; i++) {
+            TransactionJournal.JournalEntry entry = journal.prepare(body("pending_" + i));
+            journal.localState(entry, LocalTransactionState.UNKNOWN);
+        }
+        int rolls = 0;
+        String currentFile = journalFiles(dir)[0].getName();
+        for (int i = 0; i < 20; i++) {
+            TransactionJournal.JournalEntry entry = journal.prepare(body("more_" + i));
+            journal.done(entry);
+            String name = journalFiles(dir)[0].getName();
+            if (!name.equals(currentFile)) {
+                rolls++;
+                currentFile = name;
+            }
+        }
+        System.out.println("Rolls with 20 pending transactions(expect <= 1): " + rolls);
+        journal.close();
+
+        journal = new TransactionJournal(dir, 1024, false);
+        System.out.println("Pending after reload(expect 20): " + journal.load().size());
+        journal.close();
+        delete(dir);
+    }
+
+    /**
+     * 4、恢复线程：
+     * 已PREPARE的按本地事务状态发送COMMIT/ROLLBACK，UNKNOWN等待服务端回查；
+     * 未PREPARE的COMMIT按普通消息重发，ROLLBACK直接完结；
+     * 本地事务状态未知(未记录或未PREPARE的UNKNOWN)时通过TransactionCheckListener确定，仍为UNKNOWN时保留
+     */
+    private static void testRecover() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        TransactionJournal journal = new TransactionJournal(dir, 1024 * 1024, false);
+        journal.load();
+        journalEntry(journal, "prepared_commit", 1L, LocalTransactionState.COMMIT);
+        journalEntry(journal, "prepared_rollback", 2L, LocalTransactionState.ROLLBACK);
+        journalEntry(journal, "prepared_unknown", 3L, LocalTransactionState.UNKNOWN);
+        journalEntry(journal, "prepared_running", 4L, null);
+        journalEntry(journal, "unprepared_commit", null, LocalTransactionState.COMMIT);
+        journalEntry(journal, "unprepared_rollback", null, LocalTransactionState.ROLLBACK);
+        journalEntry(journal, "unprepared_unknown", null, LocalTransactionState.UNKNOWN);
+        journalEntry(journal, "unprepared_unknown_commit", null, LocalTransactionState.UNKNOWN);
+        journalEntry(journal, "unprepared_running", null, null);
+        journal.close();
+
+        //TransactionCheckListener的返回，未列出的返回UNKNOWN
+        final Map<String, LocalTransactionState> checkStates = new HashMap<String, LocalTransactionState>();
+        checkStates.put("prepared_running", LocalTransactionState.ROLLBACK);
+        checkStates.put("unprepared_unknown_commit", LocalTransactionState.COMMIT);
+        checkStates.put("unprepared_running", LocalTransactionState.ROLLBACK);
+        final List<String> checked = new CopyOnWriteArrayList<String>();
+        MQMessageSender mqMessageSender = new RocketMQMessageSender(new TransactionCheckListener<RocketMQBody>() {
+            @Override
+            public LocalTransactionState checkTransactionState(RocketMQBody mqBody) {
+                checked.add(mqBody.getMessageKey());
+                LocalTransactionState state = checkStates.get(mqBody.getMessageKey());
+                return state == null ? LocalTransactionState.UNKNOWN : state;
+            }
+        });
+        ConcurrentHashMap<String, MQMessageSender> messageSenderTable = new ConcurrentHashMap<String, MQMessageSender>();
+        messageSenderTable.put(GROUP, mqMessageSender);
+
+        ClientConfig clientConfig = new ClientConfig();
+        clientConfig.setTransactionJournalDir(dir.getAbsolutePath());
+        clientConfig.setTransactionJournalSyncFlush(false);
+        clientConfig.setTransactionRecoverInterval(100);
+        RecordingClusterClient clusterClient = new RecordingClusterClient();
+        TransactionProducer producer = new TransactionProducer(clientConfig, clusterClient, messageSenderTable);
+        System.out.println("Has journal(expect true): " + TransactionProducer.hasJournal(clientConfig));
+        producer.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.getPendingCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        //再等待一轮，确认保留的事务不会被误完结
+        Thread.sleep(300);
+
+        System.out.println("Pending after recover(expect 1, unprepared_unknown): " + producer.getPendingCount());
+        Collections.sort(clusterClient.requests);
+        System.out.println("Requests(expect COMMIT 1, RESEND unprepared_commit, RESEND unprepared_unknown_commit, ROLLBACK 2, ROLLBACK 4):");
+        for (String request : clusterClient.requests) {
+            System.out.println("  " + request);
+        }
+        System.out.println("Checked(expect prepared_running, unprepared_running, unprepared_unknown, unprepared_unknown_commit): "
+                + distinctSorted(checked));
+
+        producer.shutdown();
+        mqMessageSender.shutdown();
+        delete(dir);
+    }
+
+    private static void journalEntry(TransactionJournal journal, String messageKey, Long transactionId,
+                                     LocalTransactionState localState) throws IOException {
+        TransactionJournal.JournalEntry entry = journal.prepare(body(messageKey));
+        if (transactionId != null) {
+            journal.prepared(entry, transactionId);
+        }
+        if (localState != null) {
+            journal.localState(entry, localState);
+        }
+    }
+
+    private static RocketMQBody body(String messageKey) {
+        RocketMQBody body = new RocketMQBody();
+        body.setTopic("journal_test_topic");
+        body.setProducerGroup(GROUP);
+        body.setMessageKey(messageKey);
+        body.setMessageBody(("message " + messageKey).getBytes());
+        return body;
+    }
+
+    private static File[] journalFiles(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("journal.");
+            }
+        });
+    }
+
+    private static List<String> distinctSorted(List<String> list) {
+        return new ArrayList<String>(new TreeSet<String>(list));
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 记录发往服务端的请求，COMMIT/ROLLBACK记为"状态 事务id"，重发记为"RESEND messageKey"
+     */
+    private static class RecordingClusterClient extends ClusterClient {
+
+        private final List<String> requests = new CopyOnWriteArrayList<String>();
+
+        RecordingClusterClient() {
+            super(null, null, null);
+        }
+
+        @Override
+        public RpcCommand invokeSync(long timeoutMillis, int retryTimes, RpcCommand arg) {
+            return invokeSync(timeoutMillis, retryTimes, Collections.<Address>emptyList(), arg);
+        }
+
+        @Override
+        public void invokeOneway(long timeoutMillis, int retryTimes, RpcCommand arg) {
+            invokeAsync(timeoutMillis, retryTimes, Collections.<Address>emptyList(), arg, null);
+        }
+
+        @Override
+        public RpcCommand invokeSync(long timeoutMillis, int retryTimes, List<Address> targetList, RpcCommand arg) {
+            if (arg.getCmdCode() == RequestCode.SEND_MESSAGE) {
+                requests.add("RESEND " + arg.getBody(RocketMQBody.class).getMessageKey());
+            }
+            return RpcCommandBuilder.buildSuccess();
+        }
+
+        @Override
+        public void invokeAsync(long timeoutMillis, int retryTimes, List<Address> targetList, RpcCommand arg,
+                                InvokeCallback callback) {
+            TransactionMessageHeader header = (TransactionMessageHeader) arg.getCustomHeader();
+            requests.add(header.getTransactionState() + " " + header.getTransactionId());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.tongbanjie.tevent.cluster.loadbalance;
+
+import com.tongbanjie.tevent.common.Weighable;
+
+/**
+ * 可感知负载的节点<p>
+ * 供按负载选择的负载均衡使用
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public interface LoadAware extends Weighable {
+
+    /**
+     * 是否可用(连接存活且可写)
+     */
+    boolean isAvailable();
+
+    /**
+     * 进行中的请求数
+     */
+    int getActiveCount();
+
+    /**
+     * 最近的平均响应时间(毫秒)
+     */
+    long getAverageLatency();
+
+}
@@ -0,0 +1,78 @@
+package com.tongbanjie.tevent.cluster.loadbalance;
+
+import org.apache.commons.collections4.CollectionUtils;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 二选一 负载均衡<p>
+ * Power of two choices：从可用节点中随机取两个，选择负载较低的一个；
+ * 负载 = (进行中的请求数 + 1) * 平均响应时间 / 权重，
+ * 避免请求堆积到慢节点，又不会像最小负载那样让所有请求同时涌向同一节点；
+ * 没有可用节点时退化为随机
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class PowerOfTwoChoicesLoadBalance<T extends LoadAware> extends AbstractLoadBalance<T> {
+
+    private final Random random = new Random();
+
+    @Override
+    public T select(List<T> list) {
+        if(CollectionUtils.isEmpty(list)){
+            return null;
+        }
+        int size = list.size();
+        if(size == 1){
+            lastSelected = list.get(0);
+            return lastSelected;
+        }
+
+        T first = null;
+        T second = null;
+        int availableCount = 0;
+        //蓄水池抽样，一次遍历从可用节点中随机取两个
+        for(T node : list){
+            if(!node.isAvailable()){
+                continue;
+            }
+            availableCount++;
+            if(availableCount == 1){
+                first = node;
+            }else if(availableCount == 2){
+                second = node;
+            }else {
+                int index = random.nextInt(availableCount);
+                if(index == 0){
+                    first = node;
+                }else if(index == 1){
+                    second = node;
+                }
+            }
+        }
+
+        if(first == null){
+            lastSelected = list.get(random.nextInt(size));
+        }else if(second == null){
+            lastSelected = first;
+        }else {
+            double firstLoad = load(first);
+            double secondLoad = load(second);
+            if(firstLoad == secondLoad){
+                lastSelected = random.nextBoolean() ? first : second;
+            }else{
+                lastSelected = firstLoad < secondLoad ? first : second;
+            }
+        }
+        return lastSelected;
+    }
+
+    private static double load(LoadAware node) {
+        long latency = Math.max(node.getAverageLatency(), 1L);
+        short weight = node.getWeight() > 0 ? node.getWeight() : LoadAware.DEFAULT_WEIGHT;
+        return (node.getActiveCount() + 1.0d) * latency / weight;
+    }
+
+}
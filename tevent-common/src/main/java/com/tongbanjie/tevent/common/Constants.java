@@ -13,6 +13,10 @@ public abstract class Constants {
 
     public static final String TEVENT_ROCKETMQ_NAMESRV = "tevent.rocketmq.namesrv";
 
+    public static final String TEVENT_RABBITMQ_HOST = "tevent.rabbitmq.host";
+
+    public static final String TEVENT_KAFKA_BOOTSTRAP_SERVERS = "tevent.kafka.bootstrap.servers";
+
     public static final String TEVENT_TEST_P_GROUP = "%TEVENT_TEST_P_GROUP%";
 
     public static final String TEVENT_TEST_TOPIC = "%TEVENT_TEST_TOPIC%";
@@ -0,0 +1,63 @@
+package com.tongbanjie.tevent.common.body;
+
+import java.util.Arrays;
+
+/**
+ * Kafka 协议体 <p>
+ * messageKey 作为Kafka消息的key，相同key的消息发送到同一分区
+ *
+ * @author zixiao
+ * @date 16/10/31
+ */
+public class KafkaBody implements MQBody {
+
+    private String topic;
+
+    private String producerGroup;
+
+    private String messageKey;
+
+    private byte[] messageBody;
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    public String getProducerGroup() {
+        return producerGroup;
+    }
+
+    public void setProducerGroup(String producerGroup) {
+        this.producerGroup = producerGroup;
+    }
+
+    public String getMessageKey() {
+        return messageKey;
+    }
+
+    public void setMessageKey(String messageKey) {
+        this.messageKey = messageKey;
+    }
+
+    public byte[] getMessageBody() {
+        return messageBody;
+    }
+
+    public void setMessageBody(byte[] messageBody) {
+        this.messageBody = messageBody;
+    }
+
+    @Override
+    public String toString() {
+        return "KafkaBody{" +
+                "topic='" + topic + '\'' +
+                ", producerGroup='" + producerGroup + '\'' +
+                ", messageKey='" + messageKey + '\'' +
+                ", messageBody=" + Arrays.toString(messageBody) +
+                '}';
+    }
+}
@@ -5,4 +5,8 @@ package com.tongbanjie.tevent.common.body;
  */
 public interface MQBody extends CustomBody {
 
+    String getProducerGroup();
+
+    String getMessageKey();
+
 }
@@ -1,5 +1,7 @@
 package com.tongbanjie.tevent.common.body;
 
+import java.util.Arrays;
+
 /**
  * RabbitMQ 协议体 <p>
  * 〈功能详细描述〉
@@ -7,6 +9,66 @@ package com.tongbanjie.tevent.common.body;
  * @author zixiao
  * @date 16/10/9
  */
-public class RabbitMQBody implements CustomBody {
+public class RabbitMQBody implements MQBody {
+
+    private String exchange;
+
+    private String routingKey;
+
+    private String producerGroup;
+
+    private String messageKey;
+
+    private byte[] messageBody;
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public void setExchange(String exchange) {
+        this.exchange = exchange;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public void setRoutingKey(String routingKey) {
+        this.routingKey = routingKey;
+    }
+
+    public String getProducerGroup() {
+        return producerGroup;
+    }
+
+    public void setProducerGroup(String producerGroup) {
+        this.producerGroup = producerGroup;
+    }
+
+    public String getMessageKey() {
+        return messageKey;
+    }
+
+    public void setMessageKey(String messageKey) {
+        this.messageKey = messageKey;
+    }
+
+    public byte[] getMessageBody() {
+        return messageBody;
+    }
+
+    public void setMessageBody(byte[] messageBody) {
+        this.messageBody = messageBody;
+    }
 
+    @Override
+    public String toString() {
+        return "RabbitMQBody{" +
+                "exchange='" + exchange + '\'' +
+                ", routingKey='" + routingKey + '\'' +
+                ", producerGroup='" + producerGroup + '\'' +
+                ", messageKey='" + messageKey + '\'' +
+                ", messageBody=" + Arrays.toString(messageBody) +
+                '}';
+    }
 }
@@ -10,7 +10,8 @@ package com.tongbanjie.tevent.common.message;
 public enum MQType {
 
     ROCKET_MQ((byte) 0),
-    RABBIT_MQ((byte) 1);
+    RABBIT_MQ((byte) 1),
+    KAFKA((byte) 2);
 
     MQType(byte code) {
         this.code = code;
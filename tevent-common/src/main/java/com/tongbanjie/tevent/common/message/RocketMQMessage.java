@@ -31,6 +31,9 @@ public class RocketMQMessage implements MQMessage{
 
     private Short retryTimes;
 
+    //事务回查返回UNKNOWN的次数
+    private Short checkTimes;
+
     private Date createTime;
 
     public static RocketMQMessage build(RocketMQBody mqBody){
@@ -123,6 +126,14 @@ public class RocketMQMessage implements MQMessage{
         this.retryTimes = retryTimes;
     }
 
+    public Short getCheckTimes() {
+        return checkTimes;
+    }
+
+    public void setCheckTimes(Short checkTimes) {
+        this.checkTimes = checkTimes;
+    }
+
     public Date getCreateTime() {
         return createTime;
     }
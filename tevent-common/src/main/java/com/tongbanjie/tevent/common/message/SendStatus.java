@@ -0,0 +1,35 @@
+package com.tongbanjie.tevent.common.message;
+
+/**
+ * 消息转发到MQ的发送状态 <p>
+ * 对应 {@link RocketMQMessage#getSendStatus()}
+ *
+ * @author zixiao
+ * @date 16/10/26
+ */
+public enum SendStatus {
+
+    NOT_SEND((short) 0),
+    SUCCESS((short) 1),
+    FAILED((short) 2);
+
+    SendStatus(short code) {
+        this.code = code;
+    }
+
+    private short code;
+
+    public short getCode() {
+        return code;
+    }
+
+    public static SendStatus valueOf(short code) {
+        for (SendStatus item : SendStatus.values()) {
+            if (item.getCode() == code) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+}
@@ -12,7 +12,9 @@ public enum TransactionState {
     PREPARE((byte) 0),
     COMMIT((byte) 1),
     ROLLBACK((byte) 2),
-    UNKNOWN((byte) 3);
+    UNKNOWN((byte) 3),
+    //超过最大回查次数仍未确认，不再回查，之后仍允许提交或回滚
+    DEAD_LETTER((byte) 4);
 
     TransactionState(byte code) {
         this.code = code;
@@ -0,0 +1,47 @@
+package com.tongbanjie.tevent.common.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 粗粒度时钟<p>
+ * 由后台线程每10毫秒刷新一次当前时间，适用于心跳、过期判断等高频且对精度要求不高的场景，
+ * 避免频繁调用 System.currentTimeMillis()
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class SystemClock {
+
+    private static final long PRECISION_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SystemClock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                now = System.currentTimeMillis();
+            }
+        }, PRECISION_MILLIS, PRECISION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private SystemClock(){}
+
+    /**
+     * 当前时间(毫秒)，误差在10毫秒左右
+     */
+    public static long now() {
+        return now;
+    }
+}
@@ -0,0 +1,20 @@
+package com.tongbanjie.tevent.registry;
+
+import java.util.List;
+
+/**
+ * 服务端列表变化监听器 <p>
+ * 服务端之间按存活的服务端列表分配任务(如事务回查)时使用
+ *
+ * @author zixiao
+ * @date 16/11/3
+ */
+public interface ServerChangeListener {
+
+    /**
+     * 服务端列表变化时(含重连后重新发现)
+     * @param servers 当前存活的服务端，不可变List
+     */
+    void onServerChanged(List<Address> servers);
+
+}
@@ -2,11 +2,14 @@ package com.tongbanjie.tevent.registry.zookeeper;
 
 import com.tongbanjie.tevent.registry.Address;
 import com.tongbanjie.tevent.registry.RegistryType;
+import com.tongbanjie.tevent.registry.ServerChangeListener;
+import org.I0Itec.zkclient.IZkChildListener;
 import org.apache.commons.collections4.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 服务端zk注册服务 <p>
@@ -20,6 +23,11 @@ public class ServerZooKeeperRegistry extends AbstractZooKeeperRegistry{
     //已发现的地址
     protected List<Address> discovered = new ArrayList<Address>();
 
+    //存活的服务端(含本机)，不可变List
+    protected volatile List<Address> servers = Collections.EMPTY_LIST;
+
+    private final List<ServerChangeListener> serverChangeListeners = new CopyOnWriteArrayList<ServerChangeListener>();
+
     public ServerZooKeeperRegistry(String zkAddress){
         super(RegistryType.SERVER, zkAddress);
         setAsServer();
@@ -57,4 +65,67 @@ public class ServerZooKeeperRegistry extends AbstractZooKeeperRegistry{
         return this.discovered;
     }
 
+    @Override
+    protected void discoverAll() {
+        super.discoverAll();
+        discoverServers();
+    }
+
+    @Override
+    protected void addZkListeners(){
+        super.addZkListeners();
+
+        //订阅服务端节点变化
+        zkClient.subscribeChildChanges(this.getRegisterRootPath(), new IZkChildListener() {
+            @Override
+            public void handleChildChange(String parentPath, List<String> currentChildren) throws Exception {
+                LOGGER.info("Servers changed in path {}, children: {}", parentPath, currentChildren);
+                onServerChanged(currentChildren);
+            }
+        });
+    }
+
+    private void discoverServers() {
+        String serverPath = this.getRegisterRootPath();
+        if (!zkClient.exists(serverPath)) {
+            return;
+        }
+        onServerChanged(zkClient.getChildren(serverPath));
+    }
+
+    private void onServerChanged(List<String> childrenPathList){
+        List<Address> addressOnZk;
+        if (CollectionUtils.isEmpty(childrenPathList)) {
+            addressOnZk = Collections.EMPTY_LIST;
+        }else{
+            addressOnZk = new ArrayList<Address>();
+            for(String childPath : childrenPathList){
+                Address address = zkClient.readData(this.getRegisterRootPath() + ZkConstants.PATH_SEPARATOR + childPath, true);
+                if(address != null){
+                    addressOnZk.add(address);
+                }
+            }
+            addressOnZk = Collections.unmodifiableList(addressOnZk);
+        }
+        this.servers = addressOnZk;
+        for(ServerChangeListener listener : serverChangeListeners){
+            try {
+                listener.onServerChanged(addressOnZk);
+            } catch (Exception e) {
+                LOGGER.error("Notify server changed failed, listener: " + listener, e);
+            }
+        }
+    }
+
+    public void addServerChangeListener(ServerChangeListener listener) {
+        this.serverChangeListeners.add(listener);
+    }
+
+    /**
+     * 存活的服务端(含本机)
+     */
+    public List<Address> getServers() {
+        return this.servers;
+    }
+
 }
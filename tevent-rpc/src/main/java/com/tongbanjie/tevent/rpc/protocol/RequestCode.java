@@ -39,5 +39,20 @@ public abstract class RequestCode {
      */
     public static final int CHECK_TRANSACTION_STATE = 6;
 
+    /**
+     * 服务端批量检查事务状态
+     */
+    public static final int BATCH_CHECK_TRANSACTION_STATE = 7;
+
+    /**
+     * 批量返回事务状态(回查结果)
+     */
+    public static final int BATCH_TRANSACTION_MESSAGE = 8;
+
+    /**
+     * 批量发送消息
+     */
+    public static final int BATCH_SEND_MESSAGE = 9;
+
 
 }
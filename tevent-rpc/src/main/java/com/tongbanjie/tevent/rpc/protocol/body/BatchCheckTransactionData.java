@@ -0,0 +1,26 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量检查事务状态请求 协议体<p>
+ * 〈功能详细描述〉
+ *
+ * @author zixiao
+ * @date 16/11/1
+ */
+public class BatchCheckTransactionData implements CustomBody {
+
+    private List<CheckTransactionItem> items = new ArrayList<CheckTransactionItem>();
+
+    public List<CheckTransactionItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<CheckTransactionItem> items) {
+        this.items = items;
+    }
+}
@@ -0,0 +1,26 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量发送消息 协议体<p>
+ * messages 为按请求的序列化方式序列化后的MQ协议体(如RocketMQBody)
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class BatchSendMessageData implements CustomBody {
+
+    private List<byte[]> messages = new ArrayList<byte[]>();
+
+    public List<byte[]> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<byte[]> messages) {
+        this.messages = messages;
+    }
+}
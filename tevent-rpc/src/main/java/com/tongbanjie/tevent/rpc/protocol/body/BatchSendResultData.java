@@ -0,0 +1,26 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量发送消息 响应体<p>
+ * 只包含发送失败的消息，未列出的消息均发送成功
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class BatchSendResultData implements CustomBody {
+
+    private List<SendFailedItem> failedItems = new ArrayList<SendFailedItem>();
+
+    public List<SendFailedItem> getFailedItems() {
+        return failedItems;
+    }
+
+    public void setFailedItems(List<SendFailedItem> failedItems) {
+        this.failedItems = failedItems;
+    }
+}
@@ -0,0 +1,26 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量返回事务状态 协议体<p>
+ * 〈功能详细描述〉
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class BatchTransactionStateData implements CustomBody {
+
+    private List<TransactionStateItem> items = new ArrayList<TransactionStateItem>();
+
+    public List<TransactionStateItem> getItems() {
+        return items;
+    }
+
+    public void setItems(List<TransactionStateItem> items) {
+        this.items = items;
+    }
+}
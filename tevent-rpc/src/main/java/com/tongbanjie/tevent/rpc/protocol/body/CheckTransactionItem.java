@@ -0,0 +1,43 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+/**
+ * 批量检查事务状态中的单条事务<p>
+ * mqBody 为按请求的序列化方式序列化后的MQ协议体(如RocketMQBody)
+ *
+ * @author zixiao
+ * @date 16/11/1
+ */
+public class CheckTransactionItem implements CustomBody {
+
+    private Long transactionId;
+
+    private String messageKey;
+
+    private byte[] mqBody;
+
+    public Long getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(Long transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public String getMessageKey() {
+        return messageKey;
+    }
+
+    public void setMessageKey(String messageKey) {
+        this.messageKey = messageKey;
+    }
+
+    public byte[] getMqBody() {
+        return mqBody;
+    }
+
+    public void setMqBody(byte[] mqBody) {
+        this.mqBody = mqBody;
+    }
+}
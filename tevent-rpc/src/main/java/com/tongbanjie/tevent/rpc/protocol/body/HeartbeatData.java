@@ -2,9 +2,12 @@ package com.tongbanjie.tevent.rpc.protocol.body;
 
 import com.tongbanjie.tevent.common.body.CustomBody;
 
+import java.util.List;
+
 /**
- * 〈一句话功能简述〉<p>
- * 〈功能详细描述〉
+ * 心跳数据<p>
+ * groups 为客户端的所有group，一个心跳注册全部group；
+ * 只有 group 时为单个group的心跳
  *
  * @author zixiao
  * @date 16/9/29
@@ -15,6 +18,8 @@ public class HeartbeatData implements CustomBody {
 
     private String group;
 
+    private List<String> groups;
+
     public String getGroup() {
         return group;
     }
@@ -30,4 +35,12 @@ public class HeartbeatData implements CustomBody {
     public void setClientId(String clientId) {
         this.clientId = clientId;
     }
+
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(List<String> groups) {
+        this.groups = groups;
+    }
 }
@@ -0,0 +1,35 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+
+/**
+ * 批量发送中失败的单条消息
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class SendFailedItem implements CustomBody {
+
+    /**
+     * 消息在批量请求中的下标
+     */
+    private int index;
+
+    private String remark;
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getRemark() {
+        return remark;
+    }
+
+    public void setRemark(String remark) {
+        this.remark = remark;
+    }
+}
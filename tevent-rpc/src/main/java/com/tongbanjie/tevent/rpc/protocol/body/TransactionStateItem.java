@@ -0,0 +1,44 @@
+package com.tongbanjie.tevent.rpc.protocol.body;
+
+import com.tongbanjie.tevent.common.body.CustomBody;
+import com.tongbanjie.tevent.common.message.TransactionState;
+
+/**
+ * 批量返回事务状态中的单条事务<p>
+ * transactionState 取值 COMMIT、ROLLBACK、UNKNOWN
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class TransactionStateItem implements CustomBody {
+
+    private Long transactionId;
+
+    private TransactionState transactionState;
+
+    private String remark;
+
+    public Long getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(Long transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public TransactionState getTransactionState() {
+        return transactionState;
+    }
+
+    public void setTransactionState(TransactionState transactionState) {
+        this.transactionState = transactionState;
+    }
+
+    public String getRemark() {
+        return remark;
+    }
+
+    public void setRemark(String remark) {
+        this.remark = remark;
+    }
+}
@@ -0,0 +1,49 @@
+package com.tongbanjie.tevent.rpc.protocol.header;
+
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+
+/**
+ * 批量检查事务状态请求 协议头<p>
+ * 同一批次的事务消息属于同一个MQ类型和producerGroup
+ *
+ * @author zixiao
+ * @date 16/11/1
+ */
+public class BatchCheckTransactionStateHeader implements CustomHeader {
+
+    private MQType mqType;
+
+    private String producerGroup;
+
+    @Override
+    public void checkFields() throws RpcCommandException {
+        if(mqType == null){
+            throw new RpcCommandException("mqType can not be null!");
+        }
+    }
+
+    public MQType getMqType() {
+        return mqType;
+    }
+
+    public void setMqType(MQType mqType) {
+        this.mqType = mqType;
+    }
+
+    public String getProducerGroup() {
+        return producerGroup;
+    }
+
+    public void setProducerGroup(String producerGroup) {
+        this.producerGroup = producerGroup;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCheckTransactionStateHeader{" +
+                "mqType=" + mqType +
+                ", producerGroup='" + producerGroup + '\'' +
+                '}';
+    }
+}
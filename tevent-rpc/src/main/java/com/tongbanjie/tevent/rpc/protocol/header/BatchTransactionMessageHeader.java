@@ -0,0 +1,49 @@
+package com.tongbanjie.tevent.rpc.protocol.header;
+
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+
+/**
+ * 批量返回事务状态 协议头<p>
+ * 同一MQ类型的多条回查结果合并为一个请求
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class BatchTransactionMessageHeader implements CustomHeader {
+
+    private MQType mqType;
+
+    private String producerGroup;
+
+    @Override
+    public void checkFields() throws RpcCommandException {
+        if (mqType == null) {
+            throw new RpcCommandException("mqType can not be null");
+        }
+    }
+
+    public MQType getMqType() {
+        return mqType;
+    }
+
+    public void setMqType(MQType mqType) {
+        this.mqType = mqType;
+    }
+
+    public String getProducerGroup() {
+        return producerGroup;
+    }
+
+    public void setProducerGroup(String producerGroup) {
+        this.producerGroup = producerGroup;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchTransactionMessageHeader{" +
+                "mqType=" + mqType +
+                ", producerGroup='" + producerGroup + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,32 @@
+package com.tongbanjie.tevent.rpc.protocol.header;
+
+import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+
+/**
+ * 心跳 协议头<p>
+ * groupsDigest 为客户端所有group的摘要，服务端已记录相同摘要时只刷新心跳时间，不解析心跳数据
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class HeartbeatHeader implements CustomHeader {
+
+    /**
+     * 摘要字段名，服务端直接从自定义字段读取
+     */
+    public static final String GROUPS_DIGEST = "groupsDigest";
+
+    private String groupsDigest;
+
+    @Override
+    public void checkFields() throws RpcCommandException {
+    }
+
+    public String getGroupsDigest() {
+        return groupsDigest;
+    }
+
+    public void setGroupsDigest(String groupsDigest) {
+        this.groupsDigest = groupsDigest;
+    }
+}
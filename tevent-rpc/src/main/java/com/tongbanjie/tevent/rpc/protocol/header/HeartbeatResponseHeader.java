@@ -0,0 +1,33 @@
+package com.tongbanjie.tevent.rpc.protocol.header;
+
+import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+
+/**
+ * 心跳响应 协议头<p>
+ * combinedSupported 表示服务端支持合并心跳(HeartbeatData.groups)，
+ * 旧版本服务端的响应没有该字段，客户端继续按group逐个发送心跳
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class HeartbeatResponseHeader implements CustomHeader {
+
+    /**
+     * 字段名，客户端直接从自定义字段读取
+     */
+    public static final String COMBINED_SUPPORTED = "combinedSupported";
+
+    private Boolean combinedSupported;
+
+    @Override
+    public void checkFields() throws RpcCommandException {
+    }
+
+    public Boolean getCombinedSupported() {
+        return combinedSupported;
+    }
+
+    public void setCombinedSupported(Boolean combinedSupported) {
+        this.combinedSupported = combinedSupported;
+    }
+}
@@ -35,6 +35,16 @@ public class ServerConfig{
      */
     private int sendThreadPoolQueueCapacity = 100000;
 
+    /**
+     * 每个MQ连接器的消息处理线程池大小，各连接器线程池相互隔离
+     */
+    private int connectorThreadPoolNums = 8 + Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * 每个MQ连接器的消息处理线程池队列容量
+     */
+    private int connectorThreadPoolQueueCapacity = 10000;
+
     /**
      * serverId，每个server必须唯一
      */
@@ -50,6 +60,205 @@ public class ServerConfig{
      */
     private String rocketMQNamesrv =  System.getProperty(Constants.TEVENT_ROCKETMQ_NAMESRV, "192.168.1.42:9876");
 
+    /**
+     * 启动时预热的RocketMQ producerGroup，多个以逗号分隔
+     */
+    private String rocketMQWarmUpGroups;
+
+    /**
+     * 是否异步转发消息到RocketMQ，
+     * 开启后发送线程不等待broker响应，broker回调时更新发送状态并响应客户端
+     */
+    private boolean rocketMQSendAsync = false;
+
+    /**
+     * 异步转发时每个producerGroup最大在途消息数
+     */
+    private int rocketMQSendMaxInFlight = 2000;
+
+    /**
+     * 转发到RocketMQ超时时间(毫秒)，异步转发时也是等待在途窗口的最长时间
+     */
+    private long rocketMQSendTimeoutMillis = 3000;
+
+    /**
+     * 是否通过转发中继发送已提交的事务消息，开启后提交持久化即响应客户端，
+     * 由中继转发并在失败时按指数退避重试；
+     * RabbitMQ发布失败的消息总是交给中继重试
+     */
+    private boolean rocketMQRelayEnable = false;
+
+    /**
+     * 转发中继线程数，消息按topic分配到线程；
+     * outboxRelay*配置对各MQ类型的转发中继生效，每种MQ类型各自一个中继
+     */
+    private int outboxRelayThreadNums = 4;
+
+    /**
+     * 转发中继每个线程的队列容量，队列满时由扫描补发
+     */
+    private int outboxRelayQueueCapacity = 10000;
+
+    /**
+     * 转发中继扫描已提交未发送消息的间隔(毫秒)
+     */
+    private long outboxRelayScanIntervalMillis = 1000;
+
+    /**
+     * 转发中继扫描每页条数
+     */
+    private int outboxRelayScanPageSize = 500;
+
+    /**
+     * 转发失败重试的初始退避时间(毫秒)，每次失败翻倍
+     */
+    private long outboxRelayRetryBaseMillis = 1000;
+
+    /**
+     * 转发失败重试的最大退避时间(毫秒)
+     */
+    private long outboxRelayRetryMaxMillis = 60000;
+
+    /**
+     * 转发最大重试次数，超过后不再重试
+     */
+    private int outboxRelayMaxRetryTimes = 16;
+
+    /**
+     * RabbitMQ 地址
+     */
+    private String rabbitMQHost = System.getProperty(Constants.TEVENT_RABBITMQ_HOST, "127.0.0.1");
+
+    /**
+     * RabbitMQ 端口
+     */
+    private int rabbitMQPort = 5672;
+
+    /**
+     * RabbitMQ 用户名
+     */
+    private String rabbitMQUsername = "guest";
+
+    /**
+     * RabbitMQ 密码
+     */
+    private String rabbitMQPassword = "guest";
+
+    /**
+     * RabbitMQ virtual host
+     */
+    private String rabbitMQVirtualHost = "/";
+
+    /**
+     * RabbitMQ 发布channel数，每个channel开启publisher confirm
+     */
+    private int rabbitMQChannelPoolSize = 8;
+
+    /**
+     * RabbitMQ 每个channel最大未确认消息数
+     */
+    private int rabbitMQMaxOutstandingConfirms = 1000;
+
+    /**
+     * RabbitMQ 等待publisher confirm超时时间(毫秒)，也是等待未确认窗口的最长时间
+     */
+    private long rabbitMQConfirmTimeoutMillis = 3000;
+
+    /**
+     * 是否使用本地桩Producer(不连接RocketMQ)，仅用于压测
+     */
+    private boolean rocketMQStubEnable = false;
+
+    /**
+     * 本地桩Producer模拟的broker往返延迟(毫秒)
+     */
+    private long rocketMQStubLatencyMillis = 2;
+
+    /**
+     * Kafka bootstrap.servers 地址，多个以逗号分隔
+     */
+    private String kafkaBootstrapServers = System.getProperty(Constants.TEVENT_KAFKA_BOOTSTRAP_SERVERS, "127.0.0.1:9092");
+
+    /**
+     * 是否开启Kafka幂等生产者，开启后broker对重试的消息去重，acks固定为all
+     */
+    private boolean kafkaIdempotenceEnable = true;
+
+    /**
+     * Kafka 每个分区批量发送的最大字节数
+     */
+    private int kafkaBatchSize = 64 * 1024;
+
+    /**
+     * Kafka 批量发送等待时间(毫秒)，等待更多消息合并为一批
+     */
+    private int kafkaLingerMillis = 5;
+
+    /**
+     * Kafka 消息压缩方式：none, gzip, snappy, lz4
+     */
+    private String kafkaCompressionType = "lz4";
+
+    /**
+     * Kafka 发送缓冲区大小(字节)
+     */
+    private long kafkaBufferMemory = 32 * 1024 * 1024L;
+
+    /**
+     * Kafka 发送缓冲区满或等待元数据时的最长阻塞时间(毫秒)
+     */
+    private long kafkaMaxBlockMillis = 3000;
+
+    /**
+     * 转发中继重发Kafka消息时等待broker确认的最长时间(毫秒)，超时按发送失败退避重试
+     */
+    private long kafkaSendTimeoutMillis = 30000;
+
+    /**
+     * 事务消息扫描周期(毫秒)，扫描发现新的未决事务并清理已完结的事务，各事务按自身的下次回查时间回查
+     */
+    private long transactionCheckIntervalMillis = 3 * 60 * 1000;
+
+    /**
+     * 事务消息扫描每页条数，每页只保留本机负责的事务
+     */
+    private int transactionCheckScanPageSize = 500;
+
+    /**
+     * 事务回查线程数，本机负责的事务按id分配到各线程
+     */
+    private int transactionCheckThreadNums = 4;
+
+    /**
+     * 每个批量回查请求包含的最大事务数
+     */
+    private int transactionCheckBatchSize = 32;
+
+    /**
+     * 每个客户端连接每秒最多回查的事务数
+     */
+    private int transactionCheckChannelPermitsPerSecond = 100;
+
+    /**
+     * 事务消息创建后超过该时间(毫秒)才回查，避免回查正在执行本地事务的消息
+     */
+    private long transactionCheckMinAgeMillis = 60 * 1000;
+
+    /**
+     * 事务最大回查次数，超过后转入死信状态，不再回查
+     */
+    private int transactionCheckMaxTimes = 15;
+
+    /**
+     * 回查未决后的初始退避时间(毫秒)，之后每次翻倍
+     */
+    private long transactionCheckBackoffBaseMillis = 60 * 1000;
+
+    /**
+     * 回查未决后的最大退避时间(毫秒)
+     */
+    private long transactionCheckBackoffMaxMillis = 30 * 60 * 1000;
+
 
     public int getSendMessageThreadPoolNums() {
         return sendMessageThreadPoolNums;
@@ -98,4 +307,331 @@ public class ServerConfig{
     public void setRocketMQNamesrv(String rocketMQNamesrv) {
         this.rocketMQNamesrv = rocketMQNamesrv;
     }
+
+    public String getRocketMQWarmUpGroups() {
+        return rocketMQWarmUpGroups;
+    }
+
+    public void setRocketMQWarmUpGroups(String rocketMQWarmUpGroups) {
+        this.rocketMQWarmUpGroups = rocketMQWarmUpGroups;
+    }
+
+    public boolean isRocketMQSendAsync() {
+        return rocketMQSendAsync;
+    }
+
+    public void setRocketMQSendAsync(boolean rocketMQSendAsync) {
+        this.rocketMQSendAsync = rocketMQSendAsync;
+    }
+
+    public int getRocketMQSendMaxInFlight() {
+        return rocketMQSendMaxInFlight;
+    }
+
+    public void setRocketMQSendMaxInFlight(int rocketMQSendMaxInFlight) {
+        this.rocketMQSendMaxInFlight = rocketMQSendMaxInFlight;
+    }
+
+    public long getRocketMQSendTimeoutMillis() {
+        return rocketMQSendTimeoutMillis;
+    }
+
+    public void setRocketMQSendTimeoutMillis(long rocketMQSendTimeoutMillis) {
+        this.rocketMQSendTimeoutMillis = rocketMQSendTimeoutMillis;
+    }
+
+    public boolean isRocketMQRelayEnable() {
+        return rocketMQRelayEnable;
+    }
+
+    public void setRocketMQRelayEnable(boolean rocketMQRelayEnable) {
+        this.rocketMQRelayEnable = rocketMQRelayEnable;
+    }
+
+    public int getOutboxRelayThreadNums() {
+        return outboxRelayThreadNums;
+    }
+
+    public void setOutboxRelayThreadNums(int outboxRelayThreadNums) {
+        this.outboxRelayThreadNums = outboxRelayThreadNums;
+    }
+
+    public int getOutboxRelayQueueCapacity() {
+        return outboxRelayQueueCapacity;
+    }
+
+    public void setOutboxRelayQueueCapacity(int outboxRelayQueueCapacity) {
+        this.outboxRelayQueueCapacity = outboxRelayQueueCapacity;
+    }
+
+    public long getOutboxRelayScanIntervalMillis() {
+        return outboxRelayScanIntervalMillis;
+    }
+
+    public void setOutboxRelayScanIntervalMillis(long outboxRelayScanIntervalMillis) {
+        this.outboxRelayScanIntervalMillis = outboxRelayScanIntervalMillis;
+    }
+
+    public int getOutboxRelayScanPageSize() {
+        return outboxRelayScanPageSize;
+    }
+
+    public void setOutboxRelayScanPageSize(int outboxRelayScanPageSize) {
+        this.outboxRelayScanPageSize = outboxRelayScanPageSize;
+    }
+
+    public long getOutboxRelayRetryBaseMillis() {
+        return outboxRelayRetryBaseMillis;
+    }
+
+    public void setOutboxRelayRetryBaseMillis(long outboxRelayRetryBaseMillis) {
+        this.outboxRelayRetryBaseMillis = outboxRelayRetryBaseMillis;
+    }
+
+    public long getOutboxRelayRetryMaxMillis() {
+        return outboxRelayRetryMaxMillis;
+    }
+
+    public void setOutboxRelayRetryMaxMillis(long outboxRelayRetryMaxMillis) {
+        this.outboxRelayRetryMaxMillis = outboxRelayRetryMaxMillis;
+    }
+
+    public int getOutboxRelayMaxRetryTimes() {
+        return outboxRelayMaxRetryTimes;
+    }
+
+    public void setOutboxRelayMaxRetryTimes(int outboxRelayMaxRetryTimes) {
+        this.outboxRelayMaxRetryTimes = outboxRelayMaxRetryTimes;
+    }
+
+    public boolean isRocketMQStubEnable() {
+        return rocketMQStubEnable;
+    }
+
+    public void setRocketMQStubEnable(boolean rocketMQStubEnable) {
+        this.rocketMQStubEnable = rocketMQStubEnable;
+    }
+
+    public long getRocketMQStubLatencyMillis() {
+        return rocketMQStubLatencyMillis;
+    }
+
+    public void setRocketMQStubLatencyMillis(long rocketMQStubLatencyMillis) {
+        this.rocketMQStubLatencyMillis = rocketMQStubLatencyMillis;
+    }
+
+    public String getRabbitMQHost() {
+        return rabbitMQHost;
+    }
+
+    public void setRabbitMQHost(String rabbitMQHost) {
+        this.rabbitMQHost = rabbitMQHost;
+    }
+
+    public int getRabbitMQPort() {
+        return rabbitMQPort;
+    }
+
+    public void setRabbitMQPort(int rabbitMQPort) {
+        this.rabbitMQPort = rabbitMQPort;
+    }
+
+    public String getRabbitMQUsername() {
+        return rabbitMQUsername;
+    }
+
+    public void setRabbitMQUsername(String rabbitMQUsername) {
+        this.rabbitMQUsername = rabbitMQUsername;
+    }
+
+    public String getRabbitMQPassword() {
+        return rabbitMQPassword;
+    }
+
+    public void setRabbitMQPassword(String rabbitMQPassword) {
+        this.rabbitMQPassword = rabbitMQPassword;
+    }
+
+    public String getRabbitMQVirtualHost() {
+        return rabbitMQVirtualHost;
+    }
+
+    public void setRabbitMQVirtualHost(String rabbitMQVirtualHost) {
+        this.rabbitMQVirtualHost = rabbitMQVirtualHost;
+    }
+
+    public int getRabbitMQChannelPoolSize() {
+        return rabbitMQChannelPoolSize;
+    }
+
+    public void setRabbitMQChannelPoolSize(int rabbitMQChannelPoolSize) {
+        this.rabbitMQChannelPoolSize = rabbitMQChannelPoolSize;
+    }
+
+    public int getRabbitMQMaxOutstandingConfirms() {
+        return rabbitMQMaxOutstandingConfirms;
+    }
+
+    public void setRabbitMQMaxOutstandingConfirms(int rabbitMQMaxOutstandingConfirms) {
+        this.rabbitMQMaxOutstandingConfirms = rabbitMQMaxOutstandingConfirms;
+    }
+
+    public long getRabbitMQConfirmTimeoutMillis() {
+        return rabbitMQConfirmTimeoutMillis;
+    }
+
+    public void setRabbitMQConfirmTimeoutMillis(long rabbitMQConfirmTimeoutMillis) {
+        this.rabbitMQConfirmTimeoutMillis = rabbitMQConfirmTimeoutMillis;
+    }
+
+    public int getConnectorThreadPoolNums() {
+        return connectorThreadPoolNums;
+    }
+
+    public void setConnectorThreadPoolNums(int connectorThreadPoolNums) {
+        this.connectorThreadPoolNums = connectorThreadPoolNums;
+    }
+
+    public int getConnectorThreadPoolQueueCapacity() {
+        return connectorThreadPoolQueueCapacity;
+    }
+
+    public void setConnectorThreadPoolQueueCapacity(int connectorThreadPoolQueueCapacity) {
+        this.connectorThreadPoolQueueCapacity = connectorThreadPoolQueueCapacity;
+    }
+    public String getKafkaBootstrapServers() {
+        return kafkaBootstrapServers;
+    }
+
+    public void setKafkaBootstrapServers(String kafkaBootstrapServers) {
+        this.kafkaBootstrapServers = kafkaBootstrapServers;
+    }
+
+    public boolean isKafkaIdempotenceEnable() {
+        return kafkaIdempotenceEnable;
+    }
+
+    public void setKafkaIdempotenceEnable(boolean kafkaIdempotenceEnable) {
+        this.kafkaIdempotenceEnable = kafkaIdempotenceEnable;
+    }
+
+    public int getKafkaBatchSize() {
+        return kafkaBatchSize;
+    }
+
+    public void setKafkaBatchSize(int kafkaBatchSize) {
+        this.kafkaBatchSize = kafkaBatchSize;
+    }
+
+    public int getKafkaLingerMillis() {
+        return kafkaLingerMillis;
+    }
+
+    public void setKafkaLingerMillis(int kafkaLingerMillis) {
+        this.kafkaLingerMillis = kafkaLingerMillis;
+    }
+
+    public String getKafkaCompressionType() {
+        return kafkaCompressionType;
+    }
+
+    public void setKafkaCompressionType(String kafkaCompressionType) {
+        this.kafkaCompressionType = kafkaCompressionType;
+    }
+
+    public long getKafkaBufferMemory() {
+        return kafkaBufferMemory;
+    }
+
+    public void setKafkaBufferMemory(long kafkaBufferMemory) {
+        this.kafkaBufferMemory = kafkaBufferMemory;
+    }
+
+    public long getKafkaMaxBlockMillis() {
+        return kafkaMaxBlockMillis;
+    }
+
+    public void setKafkaMaxBlockMillis(long kafkaMaxBlockMillis) {
+        this.kafkaMaxBlockMillis = kafkaMaxBlockMillis;
+    }
+
+    public long getKafkaSendTimeoutMillis() {
+        return kafkaSendTimeoutMillis;
+    }
+
+    public void setKafkaSendTimeoutMillis(long kafkaSendTimeoutMillis) {
+        this.kafkaSendTimeoutMillis = kafkaSendTimeoutMillis;
+    }
+
+    public long getTransactionCheckIntervalMillis() {
+        return transactionCheckIntervalMillis;
+    }
+
+    public void setTransactionCheckIntervalMillis(long transactionCheckIntervalMillis) {
+        this.transactionCheckIntervalMillis = transactionCheckIntervalMillis;
+    }
+
+    public int getTransactionCheckScanPageSize() {
+        return transactionCheckScanPageSize;
+    }
+
+    public void setTransactionCheckScanPageSize(int transactionCheckScanPageSize) {
+        this.transactionCheckScanPageSize = transactionCheckScanPageSize;
+    }
+
+    public int getTransactionCheckBatchSize() {
+        return transactionCheckBatchSize;
+    }
+
+    public void setTransactionCheckBatchSize(int transactionCheckBatchSize) {
+        this.transactionCheckBatchSize = transactionCheckBatchSize;
+    }
+
+    public int getTransactionCheckChannelPermitsPerSecond() {
+        return transactionCheckChannelPermitsPerSecond;
+    }
+
+    public void setTransactionCheckChannelPermitsPerSecond(int transactionCheckChannelPermitsPerSecond) {
+        this.transactionCheckChannelPermitsPerSecond = transactionCheckChannelPermitsPerSecond;
+    }
+
+    public long getTransactionCheckMinAgeMillis() {
+        return transactionCheckMinAgeMillis;
+    }
+
+    public void setTransactionCheckMinAgeMillis(long transactionCheckMinAgeMillis) {
+        this.transactionCheckMinAgeMillis = transactionCheckMinAgeMillis;
+    }
+
+    public int getTransactionCheckMaxTimes() {
+        return transactionCheckMaxTimes;
+    }
+
+    public void setTransactionCheckMaxTimes(int transactionCheckMaxTimes) {
+        this.transactionCheckMaxTimes = transactionCheckMaxTimes;
+    }
+
+    public long getTransactionCheckBackoffBaseMillis() {
+        return transactionCheckBackoffBaseMillis;
+    }
+
+    public void setTransactionCheckBackoffBaseMillis(long transactionCheckBackoffBaseMillis) {
+        this.transactionCheckBackoffBaseMillis = transactionCheckBackoffBaseMillis;
+    }
+
+    public long getTransactionCheckBackoffMaxMillis() {
+        return transactionCheckBackoffMaxMillis;
+    }
+
+    public void setTransactionCheckBackoffMaxMillis(long transactionCheckBackoffMaxMillis) {
+        this.transactionCheckBackoffMaxMillis = transactionCheckBackoffMaxMillis;
+    }
+
+    public int getTransactionCheckThreadNums() {
+        return transactionCheckThreadNums;
+    }
+
+    public void setTransactionCheckThreadNums(int transactionCheckThreadNums) {
+        this.transactionCheckThreadNums = transactionCheckThreadNums;
+    }
 }
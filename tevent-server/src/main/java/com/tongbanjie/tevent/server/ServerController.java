@@ -17,9 +17,9 @@
 package com.tongbanjie.tevent.server;
 
 
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.common.util.NamedThreadFactory;
 import com.tongbanjie.tevent.registry.Address;
-import com.tongbanjie.tevent.registry.RecoverableRegistry;
 import com.tongbanjie.tevent.registry.zookeeper.ServerZooKeeperRegistry;
 import com.tongbanjie.tevent.rpc.RpcServer;
 import com.tongbanjie.tevent.rpc.protocol.RequestCode;
@@ -27,6 +27,10 @@ import com.tongbanjie.tevent.rpc.netty.NettyRpcServer;
 import com.tongbanjie.tevent.rpc.netty.NettyServerConfig;
 import com.tongbanjie.tevent.server.client.ClientChannelManageService;
 import com.tongbanjie.tevent.server.client.ClientManager;
+import com.tongbanjie.tevent.server.mq.EventProducer;
+import com.tongbanjie.tevent.server.mq.EventProducerFactory;
+import com.tongbanjie.tevent.server.mq.MQConnectorManager;
+import com.tongbanjie.tevent.server.mq.RocketMQProducer;
 import com.tongbanjie.tevent.server.processer.ClientManageProcessor;
 import com.tongbanjie.tevent.server.processer.SendMessageProcessor;
 import com.tongbanjie.tevent.common.util.RemotingUtils;
@@ -39,6 +43,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
@@ -71,11 +77,14 @@ public class ServerController {
 
     /********************** 服务 ***********************/
     //服务注册
-    private final RecoverableRegistry serverRegistry;
+    private final ServerZooKeeperRegistry serverRegistry;
 
     //事件存储
     private StoreManager storeManager;
 
+    //MQ连接器
+    private MQConnectorManager connectorManager;
+
     //远程通信层对象
     private RpcServer rpcServer;
 
@@ -128,6 +137,11 @@ public class ServerController {
 
         result = result && this.storeManager.load();
 
+        if (result) {
+            this.connectorManager = new MQConnectorManager(this);
+            result = this.connectorManager.load();
+        }
+
         if (result) {
             this.rpcServer = new NettyRpcServer(this.nettyServerConfig, this.clientChannelManageService);
 
@@ -161,6 +175,8 @@ public class ServerController {
 
         this.rpcServer.registerProcessor(RequestCode.SEND_MESSAGE, sendProcessor, this.sendMessageExecutor);
         this.rpcServer.registerProcessor(RequestCode.TRANSACTION_MESSAGE, sendProcessor, this.sendMessageExecutor);
+        this.rpcServer.registerProcessor(RequestCode.BATCH_TRANSACTION_MESSAGE, sendProcessor, this.sendMessageExecutor);
+        this.rpcServer.registerProcessor(RequestCode.BATCH_SEND_MESSAGE, sendProcessor, this.sendMessageExecutor);
 
         ClientManageProcessor clientProcessor = new ClientManageProcessor(this);
 
@@ -175,6 +191,12 @@ public class ServerController {
             this.rpcServer.shutdown();
         }
 
+        if (this.connectorManager != null) {
+            this.connectorManager.shutdown();
+        }
+
+        EventProducerFactory.getInstance().shutdown();
+
         if (this.storeManager != null) {
             this.storeManager.shutdown();
         }
@@ -231,6 +253,38 @@ public class ServerController {
             this.transactionCheckService.start();
         }
 
+        //转发中继随生产者启动，需补发重启前未发送的消息
+        if(this.serverConfig.isRocketMQRelayEnable()){
+            EventProducerFactory.getInstance().getAndCreate(MQType.ROCKET_MQ, this);
+        }
+        //RabbitMQ、Kafka发送失败总是由中继重试
+        for(MQType mqType : new MQType[]{MQType.RABBIT_MQ, MQType.KAFKA}){
+            if(this.connectorManager.getConnector(mqType) != null){
+                EventProducerFactory.getInstance().getAndCreate(mqType, this);
+            }
+        }
+
+        this.warmUpProducers();
+    }
+
+    /**
+     * 预热配置的producerGroup，避免首条消息等待broker连接
+     */
+    private void warmUpProducers() {
+        String warmUpGroups = this.serverConfig.getRocketMQWarmUpGroups();
+        if (warmUpGroups == null || warmUpGroups.trim().length() == 0) {
+            return;
+        }
+        List<String> groups = new ArrayList<String>();
+        for (String group : warmUpGroups.split(",")) {
+            if (group.trim().length() > 0) {
+                groups.add(group.trim());
+            }
+        }
+        EventProducer producer = EventProducerFactory.getInstance().getAndCreate(MQType.ROCKET_MQ, this);
+        if (producer instanceof RocketMQProducer) {
+            ((RocketMQProducer) producer).warmUp(groups);
+        }
     }
 
     public ServerConfig getServerConfig() {
@@ -249,7 +303,7 @@ public class ServerController {
         return clientManager;
     }
 
-    public RecoverableRegistry getServerRegistry() {
+    public ServerZooKeeperRegistry getServerRegistry() {
         return serverRegistry;
     }
 
@@ -257,6 +311,10 @@ public class ServerController {
         return storeManager;
     }
 
+    public MQConnectorManager getConnectorManager() {
+        return connectorManager;
+    }
+
     public RpcServer getRpcServer() {
         return rpcServer;
     }
@@ -16,11 +16,18 @@
  */
 package com.tongbanjie.tevent.server.client;
 
+import com.tongbanjie.tevent.cluster.loadbalance.LoadAware;
 import com.tongbanjie.tevent.common.TEventVersion;
 import com.tongbanjie.tevent.common.Weighable;
+import com.tongbanjie.tevent.common.util.SystemClock;
 import io.netty.channel.Channel;
 
-public class ClientChannelInfo implements Weighable{
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientChannelInfo implements LoadAware {
+
+    //回查响应时间的平滑系数
+    private static final double LATENCY_ALPHA = 0.2d;
 
     private final Channel channel;
 
@@ -30,7 +37,13 @@ public class ClientChannelInfo implements Weighable{
 
     private short weight;
 
-    private volatile long lastUpdateTimestamp = System.currentTimeMillis();
+    private volatile long lastUpdateTimestamp = SystemClock.now();
+
+    //已发出、尚未收到事务状态的回查数
+    private final AtomicInteger activeChecks = new AtomicInteger();
+
+    //回查响应时间(毫秒)的指数移动平均
+    private volatile long averageLatency = 0;
 
 
     public ClientChannelInfo(Channel channel) {
@@ -75,6 +88,39 @@ public class ClientChannelInfo implements Weighable{
         this.lastUpdateTimestamp = lastUpdateTimestamp;
     }
 
+    @Override
+    public boolean isAvailable() {
+        return channel.isActive() && channel.isWritable();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return activeChecks.get();
+    }
+
+    @Override
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    /**
+     * 发出回查
+     */
+    void checkSent(int count) {
+        activeChecks.addAndGet(count);
+    }
+
+    /**
+     * 收到回查结果或回查超时
+     */
+    void checkDone(long latencyMillis) {
+        activeChecks.decrementAndGet();
+        long average = this.averageLatency;
+        //并发更新时丢失个别样本不影响均值
+        this.averageLatency = average == 0 ? latencyMillis
+                : (long) (average + LATENCY_ALPHA * (latencyMillis - average));
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -45,13 +45,14 @@ public class ClientChannelManageService implements ChannelEventListener {
             @Override
             public void run() {
                 try {
-                    ClientChannelManageService.this.scanExceptionChannel();
+                    ClientChannelManageService.this.serverController.getClientManager().expireChannels();
+                    ClientChannelManageService.this.serverController.getClientManager().expireChecks();
                 }
                 catch (Exception e) {
-                    LOGGER.error("ClientChannelManageService scanExceptionChannel exception ", e);
+                    LOGGER.error("ClientChannelManageService expireChannels exception ", e);
                 }
             }
-        }, 1000 * 10, 1000 * 10, TimeUnit.MILLISECONDS);
+        }, 1000, 1000, TimeUnit.MILLISECONDS);
     }
 
 
@@ -60,11 +61,6 @@ public class ClientChannelManageService implements ChannelEventListener {
     }
 
 
-    private void scanExceptionChannel() {
-        this.serverController.getClientManager().scanNotActiveChannel();
-    }
-
-
     @Override
     public void onChannelConnect(String remoteAddr, Channel channel) {
 
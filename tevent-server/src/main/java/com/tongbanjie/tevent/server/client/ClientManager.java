@@ -17,22 +17,35 @@
 package com.tongbanjie.tevent.server.client;
 
 
+import com.tongbanjie.tevent.cluster.loadbalance.LoadBalance;
+import com.tongbanjie.tevent.cluster.loadbalance.PowerOfTwoChoicesLoadBalance;
+import com.tongbanjie.tevent.common.ConcurrentHashSet;
+import com.tongbanjie.tevent.common.util.SystemClock;
 import com.tongbanjie.tevent.rpc.util.RpcHelper;
 import com.tongbanjie.tevent.server.ServerConfig;
 import io.netty.channel.Channel;
-import org.apache.commons.collections4.MapUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * 客户端 管理者<p>
- * 〈功能详细描述〉
+ * 按group管理客户端连接，无全局锁：
+ * 心跳只更新已注册连接的时间戳，新连接加入或移除时只锁对应的group并重建该group的连接数组(写时复制)，
+ * 选取客户端直接读取连接数组；
+ * 维护连接到group的反向索引，连接关闭时只处理该连接所在的group；
+ * 合并心跳按连接记录group摘要，摘要不变时只刷新时间戳，不解析心跳数据也不创建对象；
+ * 回查按连接的可写状态、未完成回查数及回查响应时间二选一选择客户端；
+ * 连接过期由时间轮按最后心跳时间检测，只处理到期的连接，不扫描全部连接；
+ * 未应答回查的超时同样由时间轮检测；
+ * 关闭事件之后才完成的注册由注册方检查连接状态并清理，不定期扫描残留记录
  *
  * @author zixiao
  * @date 16/10/15
@@ -40,16 +53,34 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ClientManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientManager.class);
 
-    private static final long LockTimeoutMillis = 3000;
-
     private static final long ChannelExpiredTimeout = 1000 * 120;
 
-    private final Lock groupChannelLock = new ReentrantLock();
+    private static final long ExpiryTickMillis = 1000;
+
+    private static final int ExpiryWheelSize = 256;
+
+    //回查发出后未收到事务状态的超时时间，超时按该时间计入响应时间
+    private static final long CheckAnswerTimeout = 1000 * 30;
+
+    private final ConcurrentMap<String /* group name */, ClientGroup> groupChannelTable =
+            new ConcurrentHashMap<String, ClientGroup>();
+
+    //连接 -> 所在的group
+    private final ConcurrentMap<Channel, Set<String>> channelGroupTable = new ConcurrentHashMap<Channel, Set<String>>();
+
+    //连接 -> 合并心跳记录
+    private final ConcurrentMap<Channel, ClientHeartbeat> heartbeatTable = new ConcurrentHashMap<Channel, ClientHeartbeat>();
 
-    private final HashMap<String /* group name */, HashMap<Channel, ClientChannelInfo>> groupChannelTable =
-            new HashMap<String, HashMap<Channel, ClientChannelInfo>>();
+    //事务id -> 进行中的回查
+    private final ConcurrentMap<Long, CheckInFlight> checkInFlightTable = new ConcurrentHashMap<Long, CheckInFlight>();
 
-    private final Random random = new Random();
+    private final LoadBalance<ClientChannelInfo> checkLoadBalance = new PowerOfTwoChoicesLoadBalance<ClientChannelInfo>();
+
+    private final ExpiryWheel<ChannelExpiry> expiryWheel = new ExpiryWheel<ChannelExpiry>(ExpiryTickMillis,
+            ExpiryWheelSize, SystemClock.now());
+
+    private final ExpiryWheel<CheckInFlight> checkExpiryWheel = new ExpiryWheel<CheckInFlight>(ExpiryTickMillis,
+            ExpiryWheelSize, SystemClock.now());
 
     public ClientManager(ServerConfig serverConfig) {
 
@@ -59,170 +90,341 @@ public class ClientManager {
     public HashMap<String, HashMap<Channel, ClientChannelInfo>> getGroupChannelTable() {
         HashMap<String, HashMap<Channel, ClientChannelInfo>> newGroupChannelTable =
                 new HashMap<String, HashMap<Channel, ClientChannelInfo>>();
-        try {
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)){
-                try {
-                    newGroupChannelTable.putAll(groupChannelTable);
-                } finally {
-                    groupChannelLock.unlock();
-                }
+        for (Entry<String, ClientGroup> entry : this.groupChannelTable.entrySet()) {
+            HashMap<Channel, ClientChannelInfo> channelTable = new HashMap<Channel, ClientChannelInfo>();
+            for (ClientChannelInfo info : entry.getValue().clients) {
+                channelTable.put(info.getChannel(), info);
+            }
+            if (!channelTable.isEmpty()) {
+                newGroupChannelTable.put(entry.getKey(), channelTable);
             }
-        } catch (InterruptedException e) {
-           LOGGER.error("", e);
         }
         return newGroupChannelTable;
     }
 
 
-    public void scanNotActiveChannel() {
-        try {
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                try {
-                    for (final Entry<String, HashMap<Channel, ClientChannelInfo>> entry : this.groupChannelTable
-                        .entrySet()) {
-                        final String group = entry.getKey();
-                        final HashMap<Channel, ClientChannelInfo> chlMap = entry.getValue();
-
-                        Iterator<Entry<Channel, ClientChannelInfo>> it = chlMap.entrySet().iterator();
-                        while (it.hasNext()) {
-                            Entry<Channel, ClientChannelInfo> item = it.next();
-
-                            final ClientChannelInfo info = item.getValue();
-
-                            long diff = System.currentTimeMillis() - info.getLastUpdateTimestamp();
-                            if (diff > ChannelExpiredTimeout) {
-                                it.remove();
-                                LOGGER.warn(
-                                        "SCAN: remove expired channel[{}] from ClientManager groupChannelTable, client group name: {}",
-                                        RpcHelper.parseChannelRemoteAddr(info.getChannel()), group);
-                                RpcHelper.closeChannel(info.getChannel());
-                            }
-                        }
-                    }
-                }
-                finally {
-                    this.groupChannelLock.unlock();
-                }
+    /**
+     * 推进过期时间轮，移除超时未收到心跳的连接，每个tick调用一次
+     */
+    public void expireChannels() {
+        long now = SystemClock.now();
+        for (ChannelExpiry entry : this.expiryWheel.advance(now)) {
+            final ClientChannelInfo info = entry.clientChannelInfo;
+            final Channel channel = info.getChannel();
+            ClientGroup clientGroup = this.groupChannelTable.get(entry.group);
+            if (clientGroup == null || clientGroup.channelTable.get(channel) != info) {
+                //已移除
+                continue;
             }
-            else {
-                LOGGER.warn("ClientManager scanNotActiveChannel lock timeout");
+            long deadline = info.getLastUpdateTimestamp() + ChannelExpiredTimeout;
+            if (deadline > now) {
+                //期间收到过心跳
+                this.expiryWheel.schedule(entry, deadline);
+            } else if (removeChannel(entry.group, channel) != null) {
+                LOGGER.warn("EXPIRE: remove expired channel[{}] from ClientManager groupChannelTable, client group name: {}",
+                        RpcHelper.parseChannelRemoteAddr(channel), entry.group);
+                RpcHelper.closeChannel(channel);
             }
         }
-        catch (InterruptedException e) {
-            LOGGER.error("", e);
+    }
+
+    /**
+     * 推进回查超时时间轮，未收到事务状态的回查按超时计入响应时间，每个tick调用一次
+     */
+    public void expireChecks() {
+        for (CheckInFlight inFlight : this.checkExpiryWheel.advance(SystemClock.now())) {
+            //已应答或被新的回查替换
+            if (this.checkInFlightTable.remove(inFlight.transactionId, inFlight)) {
+                inFlight.client.checkDone(CheckAnswerTimeout);
+            }
         }
     }
 
     public void doChannelCloseEvent(final String remoteAddr, final Channel channel) {
         if (channel != null) {
-            try {
-                if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                    try {
-                        for (final Entry<String, HashMap<Channel, ClientChannelInfo>> entry : this.groupChannelTable
-                            .entrySet()) {
-                            final String group = entry.getKey();
-                            final HashMap<Channel, ClientChannelInfo> clientChannelInfoTable =
-                                    entry.getValue();
-                            final ClientChannelInfo clientChannelInfo =
-                                    clientChannelInfoTable.remove(channel);
-                            if (clientChannelInfo != null) {
-                                LOGGER.info(
-                                        "NETTY EVENT: remove channel[{}][{}] from ClientManager groupChannelTable, client group: {}",
-                                        clientChannelInfo.toString(), remoteAddr, group);
-                            }
-
-                        }
-                    }
-                    finally {
-                        this.groupChannelLock.unlock();
-                    }
+            this.heartbeatTable.remove(channel);
+            final Set<String> groups = this.channelGroupTable.remove(channel);
+            if (groups == null) {
+                return;
+            }
+            for (String group : groups) {
+                final ClientChannelInfo clientChannelInfo = removeChannel(group, channel);
+                if (clientChannelInfo != null) {
+                    LOGGER.info(
+                            "NETTY EVENT: remove channel[{}][{}] from ClientManager groupChannelTable, client group: {}",
+                            clientChannelInfo.toString(), remoteAddr, group);
                 }
-                else {
-                    LOGGER.warn("ClientManager doChannelCloseEvent lock timeout");
+            }
+        }
+    }
+
+    /**
+     * 合并心跳快速路径：该连接已登记相同的group摘要时，只刷新各group连接的时间戳
+     * @return 是否已刷新，未刷新时需解析心跳数据走 registerHeartbeat
+     */
+    public boolean refreshHeartbeat(final Channel channel, final String groupsDigest) {
+        ClientHeartbeat heartbeat = this.heartbeatTable.get(channel);
+        if (heartbeat == null || !heartbeat.groupsDigest.equals(groupsDigest)) {
+            return false;
+        }
+        long now = SystemClock.now();
+        for (ClientChannelInfo info : heartbeat.clients) {
+            info.setLastUpdateTimestamp(now);
+        }
+        return true;
+    }
+
+    /**
+     * 合并心跳：注册心跳中的所有group，注销该连接不再上报的group，并登记group摘要
+     */
+    public void registerHeartbeat(final ClientChannelInfo clientChannelInfo, final Collection<String> groups,
+                                  final String groupsDigest) {
+        final Channel channel = clientChannelInfo.getChannel();
+        this.heartbeatTable.remove(channel);
+
+        Set<String> registeredGroups = this.channelGroupTable.get(channel);
+        if (registeredGroups != null) {
+            for (String group : registeredGroups) {
+                if (!groups.contains(group)) {
+                    unregister(group, clientChannelInfo);
                 }
             }
-            catch (InterruptedException e) {
-                LOGGER.error("", e);
+        }
+
+        ClientChannelInfo[] clients = new ClientChannelInfo[groups.size()];
+        int i = 0;
+        for (String group : groups) {
+            clients[i++] = register(group, new ClientChannelInfo(channel, clientChannelInfo.getClientId(),
+                    clientChannelInfo.getVersion(), clientChannelInfo.getWeight()));
+        }
+        if (groupsDigest == null) {
+            return;
+        }
+
+        this.heartbeatTable.put(channel, new ClientHeartbeat(groupsDigest, clients));
+        //登记期间被移除(注销、过期或关闭)的连接不走快速路径，下次心跳重新注册
+        if (!channel.isActive()) {
+            //关闭事件可能已处理完，不留下残留记录
+            this.heartbeatTable.remove(channel);
+            return;
+        }
+        i = 0;
+        for (String group : groups) {
+            ClientGroup clientGroup = this.groupChannelTable.get(group);
+            if (clientGroup == null || clientGroup.channelTable.get(channel) != clients[i++]) {
+                this.heartbeatTable.remove(channel);
+                break;
             }
         }
     }
 
-    public void register(final String group, final ClientChannelInfo clientChannelInfo) {
-        try {
-            ClientChannelInfo clientChannelInfoFound = null;
+    /**
+     * 注册连接，已注册时只更新时间戳
+     * @return 该group中登记的连接信息
+     */
+    public ClientChannelInfo register(final String group, final ClientChannelInfo clientChannelInfo) {
+        final Channel channel = clientChannelInfo.getChannel();
 
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                try {
-                    HashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
-                    if (null == channelTable) {
-                        channelTable = new HashMap<Channel, ClientChannelInfo>();
-                        this.groupChannelTable.put(group, channelTable);
-                    }
+        //心跳: 已注册的连接只更新时间戳
+        ClientGroup clientGroup = this.groupChannelTable.get(group);
+        if (clientGroup != null) {
+            ClientChannelInfo clientChannelInfoFound = clientGroup.channelTable.get(channel);
+            if (clientChannelInfoFound != null) {
+                LOGGER.debug("Get heartbeat from client, group: {} channel: {}", group, clientChannelInfoFound);
+                clientChannelInfoFound.setLastUpdateTimestamp(SystemClock.now());
+                return clientChannelInfoFound;
+            }
+        }
 
-                    clientChannelInfoFound = channelTable.get(clientChannelInfo.getChannel());
-                    if (null == clientChannelInfoFound) {
-                        channelTable.put(clientChannelInfo.getChannel(), clientChannelInfo);
-                        LOGGER.info("New client connected, group: {} channel: {}", group,
-                                clientChannelInfo.toString());
-                    }
+        while (true) {
+            clientGroup = this.groupChannelTable.get(group);
+            if (clientGroup == null) {
+                ClientGroup newGroup = new ClientGroup();
+                clientGroup = this.groupChannelTable.putIfAbsent(group, newGroup);
+                if (clientGroup == null) {
+                    clientGroup = newGroup;
                 }
-                finally {
-                    this.groupChannelLock.unlock();
+            }
+            synchronized (clientGroup) {
+                if (clientGroup.removed) {
+                    //该group已被移除，重新获取
+                    continue;
                 }
-
+                ClientChannelInfo clientChannelInfoFound = clientGroup.channelTable.get(channel);
                 if (clientChannelInfoFound != null) {
-                    LOGGER.debug("Get heartbeat from client, group: {} channel: {}", group, clientChannelInfoFound);
-                    clientChannelInfoFound.setLastUpdateTimestamp(System.currentTimeMillis());
+                    clientChannelInfoFound.setLastUpdateTimestamp(SystemClock.now());
+                    return clientChannelInfoFound;
                 }
+                clientGroup.channelTable.put(channel, clientChannelInfo);
+                clientGroup.rebuild();
             }
-            else {
-                LOGGER.warn("ClientManager register lock timeout");
-            }
+            break;
         }
-        catch (InterruptedException e) {
-            LOGGER.error("", e);
+        this.expiryWheel.schedule(new ChannelExpiry(group, clientChannelInfo),
+                clientChannelInfo.getLastUpdateTimestamp() + ChannelExpiredTimeout);
+        groupsOf(channel).add(group);
+        LOGGER.info("New client connected, group: {} channel: {}", group, clientChannelInfo.toString());
+
+        if (!channel.isActive()) {
+            //注册期间连接已关闭，关闭事件可能已处理完
+            doChannelCloseEvent(RpcHelper.parseChannelRemoteAddr(channel), channel);
         }
+        return clientChannelInfo;
     }
 
     public void unregister(final String group, final ClientChannelInfo clientChannelInfo) {
-        try {
-            if (this.groupChannelLock.tryLock(LockTimeoutMillis, TimeUnit.MILLISECONDS)) {
-                try {
-                    HashMap<Channel, ClientChannelInfo> channelTable = this.groupChannelTable.get(group);
-                    if (null != channelTable && !channelTable.isEmpty()) {
-                        ClientChannelInfo old = channelTable.remove(clientChannelInfo.getChannel());
-                        if (old != null) {
-                            LOGGER.info("unregister a client[{}] from groupChannelTable {}", group,
-                                    clientChannelInfo.toString());
-                        }
-
-                        if (channelTable.isEmpty()) {
-                            this.groupChannelTable.remove(group);
-                            LOGGER.info("unregister a client group[{}] from groupChannelTable", group);
-                        }
-                    }
-                }
-                finally {
-                    this.groupChannelLock.unlock();
-                }
-            }
-            else {
-                LOGGER.warn("ClientManager unregister client lock timeout");
+        ClientChannelInfo old = removeChannel(group, clientChannelInfo.getChannel());
+        if (old != null) {
+            LOGGER.info("unregister a client[{}] from groupChannelTable {}", group,
+                    clientChannelInfo.toString());
+        }
+    }
+
+    /**
+     * 选择回查的客户端，优先选择可写且负载较低的连接
+     */
+    public ClientChannelInfo pickClient(String group){
+        ClientGroup clientGroup = this.groupChannelTable.get(group);
+        if(clientGroup == null){
+            return null;
+        }
+        ClientChannelInfo[] clients = clientGroup.clients;
+        if(clients.length == 0){
+            return null;
+        }
+        return checkLoadBalance.select(Arrays.asList(clients));
+    }
+
+    /**
+     * 记录向客户端发出的回查
+     */
+    public void checkSent(ClientChannelInfo clientChannelInfo, Collection<Long> transactionIds) {
+        long now = SystemClock.now();
+        clientChannelInfo.checkSent(transactionIds.size());
+        for (Long transactionId : transactionIds) {
+            CheckInFlight inFlight = new CheckInFlight(transactionId, clientChannelInfo, now);
+            CheckInFlight old = this.checkInFlightTable.put(transactionId, inFlight);
+            this.checkExpiryWheel.schedule(inFlight, now + CheckAnswerTimeout);
+            if (old != null) {
+                //上次回查未收到结果
+                old.client.checkDone(now - old.sendTime);
             }
         }
-        catch (InterruptedException e) {
-            LOGGER.error("", e);
+    }
+
+    /**
+     * 收到客户端提交、回滚或未决的事务状态
+     */
+    public void checkAnswered(Long transactionId) {
+        CheckInFlight inFlight = this.checkInFlightTable.remove(transactionId);
+        if (inFlight != null) {
+            inFlight.client.checkDone(SystemClock.now() - inFlight.sendTime);
         }
     }
 
-    public ClientChannelInfo pickClientRandomly(String group){
-        Map<Channel, ClientChannelInfo> map = this.groupChannelTable.get(group);
-        if(MapUtils.isEmpty(map)){
+    /**
+     * 从group中移除连接，group为空时移除该group
+     */
+    private ClientChannelInfo removeChannel(final String group, final Channel channel) {
+        ClientGroup clientGroup = this.groupChannelTable.get(group);
+        if (clientGroup == null) {
             return null;
         }
-        List<ClientChannelInfo> clientChannelInfoList = new ArrayList<ClientChannelInfo>(map.values());
-        int size = clientChannelInfoList.size();
-        //TODO 均衡负载
-        return clientChannelInfoList.get(random.nextInt(size));
+        ClientChannelInfo old;
+        synchronized (clientGroup) {
+            old = clientGroup.channelTable.remove(channel);
+            if (old == null) {
+                return null;
+            }
+            clientGroup.rebuild();
+            if (clientGroup.channelTable.isEmpty()) {
+                clientGroup.removed = true;
+                this.groupChannelTable.remove(group, clientGroup);
+                LOGGER.info("unregister a client group[{}] from groupChannelTable", group);
+            }
+        }
+        Set<String> groups = this.channelGroupTable.get(channel);
+        if (groups != null) {
+            groups.remove(group);
+        }
+        this.heartbeatTable.remove(channel);
+        return old;
+    }
+
+    private Set<String> groupsOf(Channel channel) {
+        Set<String> groups = this.channelGroupTable.get(channel);
+        if (groups == null) {
+            Set<String> newGroups = new ConcurrentHashSet<String>();
+            groups = this.channelGroupTable.putIfAbsent(channel, newGroups);
+            if (groups == null) {
+                groups = newGroups;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * 同一group的客户端连接，修改时锁该group
+     */
+    static class ClientGroup {
+
+        private final ConcurrentMap<Channel, ClientChannelInfo> channelTable =
+                new ConcurrentHashMap<Channel, ClientChannelInfo>();
+
+        //连接数组，修改后整体替换
+        private volatile ClientChannelInfo[] clients = new ClientChannelInfo[0];
+
+        //已从groupChannelTable移除，不再加入连接
+        private boolean removed = false;
+
+        void rebuild() {
+            this.clients = channelTable.values().toArray(new ClientChannelInfo[channelTable.size()]);
+        }
+    }
+
+    /**
+     * 时间轮中的连接，对应一个group中的一个连接
+     */
+    static class ChannelExpiry extends ExpiryWheel.Entry {
+
+        private final String group;
+
+        private final ClientChannelInfo clientChannelInfo;
+
+        ChannelExpiry(String group, ClientChannelInfo clientChannelInfo) {
+            this.group = group;
+            this.clientChannelInfo = clientChannelInfo;
+        }
+    }
+
+    static class CheckInFlight extends ExpiryWheel.Entry {
+
+        private final Long transactionId;
+
+        private final ClientChannelInfo client;
+
+        private final long sendTime;
+
+        CheckInFlight(Long transactionId, ClientChannelInfo client, long sendTime) {
+            this.transactionId = transactionId;
+            this.client = client;
+            this.sendTime = sendTime;
+        }
+    }
+
+    /**
+     * 连接的合并心跳记录，group变化时整体替换
+     */
+    static class ClientHeartbeat {
+
+        private final String groupsDigest;
+
+        //各group中登记的该连接信息
+        private final ClientChannelInfo[] clients;
+
+        ClientHeartbeat(String groupsDigest, ClientChannelInfo[] clients) {
+            this.groupsDigest = groupsDigest;
+            this.clients = clients;
+        }
     }
 }
@@ -0,0 +1,102 @@
+package com.tongbanjie.tevent.server.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 过期时间轮<p>
+ * 哈希时间轮，每个槽位对应一个tick，超过一圈的到期时间记录剩余圈数；
+ * 加入的条目先进入待处理队列，由推进线程放入槽位，槽位只由推进线程访问；
+ * 用于连接过期(心跳只更新连接的时间戳，到期时由调用方根据最新时间戳重新加入或移除)及回查应答超时
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+class ExpiryWheel<E extends ExpiryWheel.Entry> {
+
+    private final long tickMillis;
+
+    private final int mask;
+
+    private final List<E>[] wheel;
+
+    private final Queue<E> pendingEntries = new ConcurrentLinkedQueue<E>();
+
+    private final long startTime;
+
+    //下一个要处理的tick
+    private long currentTick = 0;
+
+    /**
+     * @param wheelSize 槽位数，取2的幂
+     */
+    @SuppressWarnings("unchecked")
+    ExpiryWheel(long tickMillis, int wheelSize, long startTime) {
+        if (tickMillis <= 0 || wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("tickMillis must be positive and wheelSize must be a power of 2");
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new LinkedList<E>();
+        }
+        this.startTime = startTime;
+    }
+
+    /**
+     * 加入时间轮，可由任意线程调用
+     */
+    void schedule(E entry, long deadline) {
+        entry.deadline = deadline;
+        pendingEntries.add(entry);
+    }
+
+    /**
+     * 推进到当前时间，只由单个线程调用
+     * @return 到期的条目
+     */
+    List<E> advance(long now) {
+        List<E> expired = new ArrayList<E>();
+        long targetTick = (now - startTime) / tickMillis;
+        while (currentTick <= targetTick) {
+            transferPending();
+            List<E> slot = wheel[(int) (currentTick & mask)];
+            Iterator<E> it = slot.iterator();
+            while (it.hasNext()) {
+                E entry = it.next();
+                if (entry.remainingRounds > 0) {
+                    entry.remainingRounds--;
+                    continue;
+                }
+                it.remove();
+                expired.add(entry);
+            }
+            currentTick++;
+        }
+        return expired;
+    }
+
+    private void transferPending() {
+        E entry;
+        while ((entry = pendingEntries.poll()) != null) {
+            long ticks = Math.max((entry.deadline - startTime + tickMillis - 1) / tickMillis, currentTick);
+            entry.remainingRounds = (ticks - currentTick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    /**
+     * 时间轮中的条目，一个条目同时只能加入一次
+     */
+    static class Entry {
+
+        long deadline;
+
+        long remainingRounds;
+    }
+}
@@ -0,0 +1,72 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchCheckTransactionData;
+import com.tongbanjie.tevent.rpc.protocol.body.CheckTransactionItem;
+import com.tongbanjie.tevent.rpc.protocol.header.BatchCheckTransactionStateHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
+import com.tongbanjie.tevent.rpc.util.RpcSerializeUtils;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+
+import java.util.List;
+
+/**
+ * MQ 连接器基类<p>
+ * 默认使用默认存储，支持事务回查，回查请求由存储消息解码出的协议体构造
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public abstract class AbstractMQConnector<B extends MQBody> implements MQConnector<B> {
+
+    @Override
+    public String getStoreTableName(StoreConfig storeConfig) {
+        return null;
+    }
+
+    @Override
+    public boolean isTransactionCheckSupported() {
+        return true;
+    }
+
+    @Override
+    public RpcCommand buildCheckRequest(RocketMQMessage mqMessage) {
+        CheckTransactionStateHeader requestHeader = new CheckTransactionStateHeader();
+        requestHeader.setMqType(getMQType());
+        requestHeader.setMessageKey(mqMessage.getMessageKey());
+        requestHeader.setTransactionId(mqMessage.getId());
+
+        return RpcCommandBuilder.buildRequest(RequestCode.CHECK_TRANSACTION_STATE,
+                requestHeader, decode(mqMessage));
+    }
+
+    @Override
+    public RpcCommand buildBatchCheckRequest(String producerGroup, List<RocketMQMessage> mqMessages) {
+        BatchCheckTransactionStateHeader requestHeader = new BatchCheckTransactionStateHeader();
+        requestHeader.setMqType(getMQType());
+        requestHeader.setProducerGroup(producerGroup);
+
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.BATCH_CHECK_TRANSACTION_STATE, requestHeader);
+        BatchCheckTransactionData checkData = new BatchCheckTransactionData();
+        for (RocketMQMessage mqMessage : mqMessages) {
+            CheckTransactionItem item = new CheckTransactionItem();
+            item.setTransactionId(mqMessage.getId());
+            item.setMessageKey(mqMessage.getMessageKey());
+            //协议体按请求的序列化方式单独序列化，客户端按MQ类型反序列化
+            item.setMqBody(RpcSerializeUtils.serialize(decode(mqMessage), request.getSerializeType()));
+            checkData.getItems().add(item);
+        }
+        request.setBody(checkData);
+        return request;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + getMQType() + "]";
+    }
+
+}
@@ -16,6 +16,11 @@ public interface EventProducer {
 
     RpcCommand sendMessage(ChannelHandlerContext ctx, RpcCommand request) throws RpcCommandException, MQClientException;
 
+    /**
+     * 发送消息，同步完成时返回响应；异步完成时返回null，broker确认后通过callback返回响应
+     */
+    RpcCommand sendMessage(RpcCommand request, SendMessageCallback callback) throws RpcCommandException, MQClientException;
+
     RpcCommand prepareMessage(ChannelHandlerContext ctx, RpcCommand request);
 
     RpcCommand commitMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId);
@@ -23,4 +28,6 @@ public interface EventProducer {
     RpcCommand rollbackMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId);
 
     RpcCommand unknownMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId);
+
+    void shutdown();
 }
@@ -5,11 +5,12 @@ import com.tongbanjie.tevent.server.ServerController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 〈一句话功能简述〉<p>
@@ -26,9 +27,8 @@ public class EventProducerFactory {
 
     private final AtomicInteger indexGenerator = new AtomicInteger(0);
 
-    private final ReentrantLock createLock = new ReentrantLock();
-
-    private final ConcurrentHashMap<MQType/* key */, EventProducer> producerTable = new ConcurrentHashMap<MQType, EventProducer>();
+    private final ConcurrentHashMap<MQType/* key */, Future<EventProducer>> producerTable =
+            new ConcurrentHashMap<MQType, Future<EventProducer>>();
 
     private EventProducerFactory(){}
 
@@ -41,52 +41,54 @@ public class EventProducerFactory {
      * @param mqType
      * @return
      */
-    public EventProducer getAndCreate(MQType mqType, ServerController serverController){
-        EventProducer instance = this.producerTable.get(mqType);
-        if (null != instance) {
-            return instance;
+    public EventProducer getAndCreate(final MQType mqType, final ServerController serverController){
+        Future<EventProducer> future = this.producerTable.get(mqType);
+        if (null == future) {
+            FutureTask<EventProducer> task = new FutureTask<EventProducer>(new Callable<EventProducer>() {
+                @Override
+                public EventProducer call() throws Exception {
+                    return createProducer(mqType, serverController);
+                }
+            });
+            future = this.producerTable.putIfAbsent(mqType, task);
+            if (null == future) {
+                future = task;
+                task.run();
+            }
         }
         try {
-            createLock.lock();
+            return future.get();
+        } catch (ExecutionException e) {
+            //创建失败，下次重新创建
+            this.producerTable.remove(mqType, future);
+            LOGGER.error("Create " + mqType + " Producer failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
-            instance = this.producerTable.get(mqType);
-            if (null != instance) {
-                return instance;
+    public void shutdown(){
+        for(Future<EventProducer> future : producerTable.values()){
+            try {
+                EventProducer producer = future.isDone() ? future.get() : null;
+                if(producer != null){
+                    producer.shutdown();
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Shutdown producer failed", e);
             }
-
-            instance = createProducer(mqType, serverController);
-            this.producerTable.put(mqType, instance);
-
-            return instance;
-        }finally {
-            createLock.unlock();
         }
     }
 
     private EventProducer createProducer(MQType mqType, ServerController serverController){
         LOGGER.debug("Create {} Producer, count: {}", mqType, indexGenerator.addAndGet(1));
-        switch (mqType){
-            case ROCKET_MQ:
-                return new RocketMQProducer(serverController);
-            case RABBIT_MQ:
-                return new RabbitMQProducer(serverController);
-            default:
-                break;
-        }
-        return null;
-    }
-
-
-    public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(100);
-        for(int i=0; i<1000;i++){
-            executorService.execute(new Runnable() {
-                @Override
-                public void run() {
-                    EventProducerFactory.getInstance().getAndCreate(MQType.RABBIT_MQ, null);
-                }
-            });
+        MQConnector connector = serverController.getConnectorManager().getConnector(mqType);
+        if(connector == null){
+            LOGGER.warn("Can not find a connector for {}", mqType);
+            return null;
         }
+        return connector.createProducer(serverController);
     }
 
 }
@@ -0,0 +1,63 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.KafkaBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+
+/**
+ * Kafka 连接器<p>
+ * 使用独立的存储表，存储复用RocketMQMessage记录(tags不使用)；
+ * 回查由客户端的KafkaMessageSender应答
+ *
+ * @author zixiao
+ * @date 16/10/31
+ */
+public class KafkaConnector extends AbstractMQConnector<KafkaBody> {
+
+    @Override
+    public MQType getMQType() {
+        return MQType.KAFKA;
+    }
+
+    @Override
+    public Class<KafkaBody> getBodyClass() {
+        return KafkaBody.class;
+    }
+
+    @Override
+    public String getStoreTableName(StoreConfig storeConfig) {
+        return storeConfig.getKafkaJdbcTableName();
+    }
+
+    @Override
+    public EventProducer createProducer(ServerController serverController) {
+        return new KafkaEventProducer(serverController, this);
+    }
+
+    @Override
+    public RocketMQMessage encode(KafkaBody mqBody, TransactionState transactionState) {
+        RocketMQMessage mqMessage = new RocketMQMessage();
+        mqMessage.setTopic(mqBody.getTopic());
+        mqMessage.setProducerGroup(mqBody.getProducerGroup());
+        mqMessage.setMessageKey(mqBody.getMessageKey());
+        mqMessage.setMessageBody(mqBody.getMessageBody());
+        if(transactionState != null){
+            mqMessage.setTransactionState(transactionState.getCode());
+        }
+        return mqMessage;
+    }
+
+    @Override
+    public KafkaBody decode(RocketMQMessage mqMessage) {
+        KafkaBody mqBody = new KafkaBody();
+        mqBody.setTopic(mqMessage.getTopic());
+        mqBody.setProducerGroup(mqMessage.getProducerGroup());
+        mqBody.setMessageKey(mqMessage.getMessageKey());
+        mqBody.setMessageBody(mqMessage.getMessageBody());
+        return mqBody;
+    }
+
+}
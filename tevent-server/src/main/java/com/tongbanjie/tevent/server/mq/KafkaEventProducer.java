@@ -0,0 +1,335 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.KafkaBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.common.util.NamedThreadFactory;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+import com.tongbanjie.tevent.server.ServerConfig;
+import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.service.StoreService;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kafka 事件处理者<p>
+ * 所有消息共用一个Kafka生产者，由Kafka客户端按分区批量、压缩发送，
+ * 默认开启幂等生产者(acks=all)，重试不会产生重复消息；
+ * messageKey作为Kafka消息的key，相同key的消息保持分区内有序；
+ * 事务消息PREPARE持久化，COMMIT后发送，broker确认后更新发送状态并响应客户端，
+ * 发送失败的消息交给转发中继退避重发
+ *
+ * @author zixiao
+ * @date 16/10/31
+ */
+public class KafkaEventProducer implements EventProducer, OutboxRelay.Sender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaEventProducer.class);
+
+    private final KafkaConnector connector;
+
+    private final StoreService<RocketMQMessage> mQStoreService;
+
+    private final Producer<String, byte[]> producer;
+
+    //发送回调线程，避免在Kafka客户端的IO线程中执行存储更新
+    private final ExecutorService callbackExecutor;
+
+    private final ServerConfig serverConfig;
+
+    private final OutboxRelay outboxRelay;
+
+    @SuppressWarnings("unchecked")
+    public KafkaEventProducer(ServerController serverController, KafkaConnector connector) {
+        this(connector, serverController.getStoreManager().getStoreService(MQType.KAFKA),
+                createKafkaProducer(serverController.getServerConfig()), serverController.getServerConfig());
+    }
+
+    public KafkaEventProducer(KafkaConnector connector, StoreService<RocketMQMessage> mQStoreService,
+                              Producer<String, byte[]> producer, ServerConfig serverConfig) {
+        this.connector = connector;
+        this.mQStoreService = mQStoreService;
+        this.producer = producer;
+        this.serverConfig = serverConfig;
+        this.callbackExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new NamedThreadFactory("KafkaSendCallbackThread_"));
+        this.outboxRelay = new OutboxRelay("Kafka", this, this.mQStoreService, serverConfig);
+        this.outboxRelay.start();
+    }
+
+    /**
+     * 按服务端配置创建Kafka生产者
+     */
+    public static Producer<String, byte[]> createKafkaProducer(ServerConfig serverConfig) {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, serverConfig.getKafkaBootstrapServers());
+        properties.put(ProducerConfig.CLIENT_ID_CONFIG, "tevent-server-" + serverConfig.getServerId());
+        properties.put(ProducerConfig.ACKS_CONFIG, "all");
+        if (serverConfig.isKafkaIdempotenceEnable()) {
+            //幂等生产者: broker按producerId+序号去重，可无限重试；
+            //kafka-clients 0.11 开启幂等时在途请求数必须为1，否则创建生产者抛出ConfigException
+            properties.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+            properties.put(ProducerConfig.RETRIES_CONFIG, String.valueOf(Integer.MAX_VALUE));
+            properties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "1");
+        } else {
+            //非幂等时重试可能乱序，限制为单个在途请求
+            properties.put(ProducerConfig.RETRIES_CONFIG, "3");
+            properties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "1");
+        }
+        properties.put(ProducerConfig.BATCH_SIZE_CONFIG, String.valueOf(serverConfig.getKafkaBatchSize()));
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, String.valueOf(serverConfig.getKafkaLingerMillis()));
+        properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, serverConfig.getKafkaCompressionType());
+        properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, String.valueOf(serverConfig.getKafkaBufferMemory()));
+        properties.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, String.valueOf(serverConfig.getKafkaMaxBlockMillis()));
+
+        LOGGER.info("Create Kafka producer, bootstrap.servers: {}, idempotence: {}",
+                serverConfig.getKafkaBootstrapServers(), serverConfig.isKafkaIdempotenceEnable());
+        return new KafkaProducer<String, byte[]>(properties, new StringSerializer(), new ByteArraySerializer());
+    }
+
+    @Override
+    public RpcCommand sendMessage(final ChannelHandlerContext ctx, final RpcCommand request) {
+        return sendMessage(request, new SendMessageCallback() {
+            @Override
+            public void onComplete(RpcCommand response) {
+                writeResponse(ctx, request, response);
+            }
+        });
+    }
+
+    @Override
+    public RpcCommand sendMessage(final RpcCommand request, final SendMessageCallback callback) {
+        final KafkaBody mqBody = request.getBody(KafkaBody.class);
+        try {
+            send(mqBody.getTopic(), mqBody.getMessageKey(), mqBody.getMessageBody(), new Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    if (exception == null) {
+                        LOGGER.debug("发送消息 topic:{}, messageKey:{}, partition:{}, offset:{}",
+                                mqBody.getTopic(), mqBody.getMessageKey(), metadata.partition(), metadata.offset());
+                        callback.onComplete(RpcCommandBuilder.buildSuccess());
+                    } else {
+                        LOGGER.error("发送消息失败, messageKey:" + mqBody.getMessageKey(), exception);
+                        callback.onComplete(RpcCommandBuilder.buildFail("发送消息失败," + exception.getMessage()));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            //缓冲区满或获取元数据超时
+            LOGGER.error("发送消息失败, messageKey:" + mqBody.getMessageKey(), e);
+            return RpcCommandBuilder.buildFail("发送消息失败," + e.getMessage());
+        }
+        //broker确认后响应客户端
+        return null;
+    }
+
+    @Override
+    public RpcCommand prepareMessage(ChannelHandlerContext ctx, RpcCommand request) {
+        final RpcCommand response;
+
+        final KafkaBody mqBody = request.getBody(KafkaBody.class);
+
+        RocketMQMessage mqMessage = connector.encode(mqBody, TransactionState.PREPARE);
+
+        //持久化 消息
+        Result<Long> putResult = mQStoreService.put(mqMessage);
+        if(putResult.isSuccess()){
+            Long transactionId = putResult.getData();
+
+            LOGGER.debug("准备事务消息 topic:{}, messageKey:{}, transactionId:{}" ,
+                    mqBody.getTopic(), mqBody.getMessageKey(), transactionId);
+
+            TransactionMessageHeader responseHeader = new TransactionMessageHeader();
+            responseHeader.setTransactionId(transactionId);
+
+            response = RpcCommandBuilder.buildSuccess(responseHeader);
+        }else{
+            LOGGER.error("准备事务消息失败, topic:{}, messageKey:{}, error:{}",
+                    mqBody.getTopic(), mqBody.getMessageKey(), putResult.getErrorString());
+            response = RpcCommandBuilder.buildFail("准备事务消息失败," + putResult.getErrorString());
+        }
+
+        return response;
+    }
+
+    @Override
+    public RpcCommand commitMessage(final ChannelHandlerContext ctx, final RpcCommand request, final Long transactionId) {
+        final KafkaBody newMqBody = request.getBody(KafkaBody.class);
+
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("提交事务消息失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("提交事务消息失败, 该消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        final RocketMQMessage mqMessage = getResult.getData();
+        mqMessage.setTransactionState(TransactionState.COMMIT.getCode());
+        if(newMqBody !=null && newMqBody.getMessageBody() != null){
+            //更新消息体
+            mqMessage.setMessageBody(newMqBody.getMessageBody());
+        }
+        Result<RocketMQMessage> commitResult = mQStoreService.update(transactionId, mqMessage);
+        if(!commitResult.isSuccess()){
+            LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ commitResult.getErrorString());
+            return RpcCommandBuilder.buildFail("提交事务消息失败," + commitResult.getErrorString());
+        }
+
+        LOGGER.debug("提交事务消息 topic:{}, messageKey:{}, transactionId:{}" ,
+                mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
+        //broker确认后更新发送状态并响应客户端；事务已提交，发送失败也返回成功，由转发中继重发
+        try {
+            send(mqMessage.getTopic(), mqMessage.getMessageKey(), mqMessage.getMessageBody(), new Callback() {
+                @Override
+                public void onCompletion(RecordMetadata metadata, Exception exception) {
+                    if (exception == null) {
+                        updateSendStatus(transactionId, mqMessage, SendStatus.SUCCESS);
+                    } else {
+                        LOGGER.error("发送事务消息失败, transactionId: " + transactionId, exception);
+                        outboxRelay.retryLater(transactionId, mqMessage);
+                    }
+                    writeResponse(ctx, request, RpcCommandBuilder.buildSuccess());
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.error("发送事务消息失败, transactionId: " + transactionId, e);
+            outboxRelay.retryLater(transactionId, mqMessage);
+            return RpcCommandBuilder.buildSuccess();
+        }
+        return null;
+    }
+
+    @Override
+    public RpcCommand rollbackMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId) {
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("事务消息回滚失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息回滚失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("事务消息回滚失败, 消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        RocketMQMessage mqMessage = getResult.getData();
+        mqMessage.setTransactionState(TransactionState.ROLLBACK.getCode());
+        Result<RocketMQMessage> rollbackResult = mQStoreService.update(transactionId, mqMessage);
+        if(!rollbackResult.isSuccess()){
+            LOGGER.error("事务消息回滚失败, transactionId: " + transactionId+", error: "+ rollbackResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息回滚失败," + rollbackResult.getErrorString());
+        }
+        LOGGER.debug("回滚事务消息 topic:{}, messageKey:{}, transactionId:{}" ,
+                mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
+        return RpcCommandBuilder.buildSuccess();
+    }
+
+    @Override
+    public RpcCommand unknownMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId) {
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("事务消息状态更新失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息状态更新失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("事务消息状态更新失败, 消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        //记录回查未决次数，回查服务据此退避及转入死信
+        Result<RocketMQMessage> updateResult = RocketMQProducer.increaseCheckTimes(mQStoreService, transactionId,
+                getResult.getData());
+        if(!updateResult.isSuccess()){
+            LOGGER.error("事务消息状态更新失败, transactionId: " + transactionId+", error: "+ updateResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息状态更新失败," + updateResult.getErrorString());
+        }
+        return RpcCommandBuilder.buildSuccess();
+    }
+
+    @Override
+    public void shutdown() {
+        this.outboxRelay.shutdown();
+        //发送缓冲区中的消息发送完成后关闭
+        this.producer.close(10 * 1000, TimeUnit.MILLISECONDS);
+        this.callbackExecutor.shutdown();
+        try {
+            this.callbackExecutor.awaitTermination(3000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(String topic, String messageKey, byte[] messageBody, final Callback callback) {
+        ProducerRecord<String, byte[]> record = new ProducerRecord<String, byte[]>(topic, messageKey, messageBody);
+        producer.send(record, new Callback() {
+            @Override
+            public void onCompletion(final RecordMetadata metadata, final Exception exception) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCompletion(metadata, exception);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 转发中继重新发送，等待broker确认
+     */
+    @Override
+    public boolean send(RocketMQMessage mqMessage) {
+        ProducerRecord<String, byte[]> record = new ProducerRecord<String, byte[]>(mqMessage.getTopic(),
+                mqMessage.getMessageKey(), mqMessage.getMessageBody());
+        try {
+            producer.send(record).get(serverConfig.getKafkaSendTimeoutMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.warn("重新发送事务消息失败, transactionId: " + mqMessage.getId() + ", " + e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public void updateSendStatus(Long transactionId, RocketMQMessage mqMessage, SendStatus sendStatus){
+        mqMessage.setSendStatus(sendStatus.getCode());
+        Result<RocketMQMessage> updateResult = mQStoreService.update(transactionId, mqMessage);
+        if(!updateResult.isSuccess()){
+            LOGGER.error("更新发送状态失败, transactionId: " + transactionId + ", error: " + updateResult.getErrorString());
+        }
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, RpcCommand request, RpcCommand response){
+        if(request.isOneWayRpc()){
+            return;
+        }
+        response.setOpaque(request.getOpaque());
+        response.setCmdType(RpcCommand.RESPONSE_COMMAND);
+        ctx.writeAndFlush(response);
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.MQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+
+import java.util.List;
+
+/**
+ * MQ 连接器<p>
+ * 每种MQ通过连接器提供事件处理者、协议体类型、存储编解码和事务回查请求，
+ * 实现类在 META-INF/services/com.tongbanjie.tevent.server.mq.MQConnector 中声明，
+ * 由 MQConnectorManager 通过 ServiceLoader 加载
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public interface MQConnector<B extends MQBody> {
+
+    MQType getMQType();
+
+    /**
+     * 协议体类型
+     */
+    Class<B> getBodyClass();
+
+    /**
+     * 存储表名，返回null时使用默认存储
+     */
+    String getStoreTableName(StoreConfig storeConfig);
+
+    EventProducer createProducer(ServerController serverController);
+
+    /**
+     * 协议体转换为存储消息
+     */
+    RocketMQMessage encode(B mqBody, TransactionState transactionState);
+
+    /**
+     * 存储消息转换为协议体
+     */
+    B decode(RocketMQMessage mqMessage);
+
+    /**
+     * 客户端是否能应答该MQ类型的事务回查，
+     * 不支持时服务端不回查，未决事务保持PREPARE状态，等待客户端提交或回滚，不会转入死信
+     */
+    boolean isTransactionCheckSupported();
+
+    /**
+     * 构造事务状态回查请求
+     */
+    RpcCommand buildCheckRequest(RocketMQMessage mqMessage);
+
+    /**
+     * 构造批量事务状态回查请求，消息属于同一个producerGroup
+     */
+    RpcCommand buildBatchCheckRequest(String producerGroup, List<RocketMQMessage> mqMessages);
+
+}
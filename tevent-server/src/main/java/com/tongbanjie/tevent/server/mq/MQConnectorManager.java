@@ -0,0 +1,199 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.util.NamedThreadFactory;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.util.RpcHelper;
+import com.tongbanjie.tevent.server.ServerConfig;
+import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.StoreManager;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQ 连接器管理<p>
+ * 通过 ServiceLoader 加载连接器，为每个连接器注册存储并创建独立的处理线程池，
+ * 某个MQ的broker变慢时只占满自己的线程池，不影响其他MQ的消息处理
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public class MQConnectorManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MQConnectorManager.class);
+
+    private final ServerController serverController;
+
+    private final Map<MQType, ConnectorHolder> connectorTable = new ConcurrentHashMap<MQType, ConnectorHolder>();
+
+    public MQConnectorManager(ServerController serverController) {
+        this.serverController = serverController;
+    }
+
+    /**
+     * 加载连接器，需在存储启动之前调用
+     */
+    public boolean load() {
+        ServerConfig serverConfig = serverController.getServerConfig();
+        StoreConfig storeConfig = serverController.getStoreConfig();
+        StoreManager storeManager = serverController.getStoreManager();
+
+        Iterator<MQConnector> it = ServiceLoader.load(MQConnector.class).iterator();
+        while (true) {
+            MQConnector connector;
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                connector = it.next();
+            } catch (ServiceConfigurationError e) {
+                LOGGER.error("Load MQConnector failed", e);
+                continue;
+            }
+            MQType mqType = connector.getMQType();
+            if (connectorTable.containsKey(mqType)) {
+                LOGGER.warn("Duplicate MQConnector for {}, ignore {}", mqType, connector);
+                continue;
+            }
+            storeManager.registerStoreService(mqType, connector.getStoreTableName(storeConfig));
+
+            ExecutorService executor = new ThreadPoolExecutor(//
+                    serverConfig.getConnectorThreadPoolNums(),//
+                    serverConfig.getConnectorThreadPoolNums(),//
+                    1000 * 60,//
+                    TimeUnit.MILLISECONDS,//
+                    new LinkedBlockingQueue<Runnable>(serverConfig.getConnectorThreadPoolQueueCapacity()),//
+                    new NamedThreadFactory(mqType + "_ConnectorThread_"));
+            connectorTable.put(mqType, new ConnectorHolder(connector, executor, new MQConnectorStats(mqType)));
+            LOGGER.info("Load MQConnector {}", connector);
+        }
+        if (connectorTable.isEmpty()) {
+            LOGGER.error("No MQConnector found, check META-INF/services/" + MQConnector.class.getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 在连接器线程池中调用事件处理者，并写回响应
+     * @return 已提交时返回null，否则返回需立即响应的结果
+     */
+    public RpcCommand execute(final MQType mqType, final ChannelHandlerContext ctx, final RpcCommand request,
+                              final ProducerCall call) {
+        final ConnectorHolder holder = connectorTable.get(mqType);
+        if (holder == null) {
+            return RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_ERROR,
+                    "System error：can not find a connector to handle the message, mqType: " + mqType);
+        }
+        try {
+            holder.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    RpcCommand response;
+                    try {
+                        EventProducer producer = EventProducerFactory.getInstance().getAndCreate(mqType, serverController);
+                        if (producer == null) {
+                            response = RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_ERROR,
+                                    "System error：can not find a producer to handle the message, mqType: " + mqType);
+                        } else {
+                            response = call.call(producer);
+                        }
+                    } catch (Throwable e) {
+                        LOGGER.error("Process request exception, mqType: " + mqType, e);
+                        response = RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_ERROR,
+                                RpcHelper.exceptionToString(e));
+                    }
+                    holder.stats.record(System.currentTimeMillis() - start,
+                            response == null || response.getCmdCode() == ResponseCode.SUCCESS);
+                    //返回null时由事件处理者异步响应
+                    if (response != null && !request.isOneWayRpc()) {
+                        response.setOpaque(request.getOpaque());
+                        response.setCmdType(RpcCommand.RESPONSE_COMMAND);
+                        ctx.writeAndFlush(response);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            holder.stats.reject();
+            return RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_BUSY,
+                    "[OVERLOAD]" + mqType + " connector busy, start flow control for a while");
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        for (ConnectorHolder holder : connectorTable.values()) {
+            holder.executor.shutdown();
+        }
+        for (ConnectorHolder holder : connectorTable.values()) {
+            try {
+                if (!holder.executor.awaitTermination(3000, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("{} connector executor not terminated, {}", holder.connector.getMQType(), holder.stats);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public MQConnector getConnector(MQType mqType) {
+        ConnectorHolder holder = connectorTable.get(mqType);
+        return holder == null ? null : holder.connector;
+    }
+
+    public List<MQConnector> getConnectors() {
+        List<MQConnector> connectors = new ArrayList<MQConnector>();
+        for (ConnectorHolder holder : connectorTable.values()) {
+            connectors.add(holder.connector);
+        }
+        return connectors;
+    }
+
+    public MQConnectorStats getStats(MQType mqType) {
+        ConnectorHolder holder = connectorTable.get(mqType);
+        return holder == null ? null : holder.stats;
+    }
+
+    /**
+     * 调用事件处理者
+     */
+    public interface ProducerCall {
+
+        RpcCommand call(EventProducer producer) throws Exception;
+    }
+
+    static class ConnectorHolder {
+
+        private final MQConnector connector;
+
+        private final ExecutorService executor;
+
+        private final MQConnectorStats stats;
+
+        ConnectorHolder(MQConnector connector, ExecutorService executor, MQConnectorStats stats) {
+            this.connector = connector;
+            this.executor = executor;
+            this.stats = stats;
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.message.MQType;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQ 连接器统计<p>
+ * 异步响应的请求只统计到事件处理者返回为止，不含等待broker的时间
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public class MQConnectorStats {
+
+    private final MQType mqType;
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+
+    //处理异常或返回失败响应
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    //线程池已满被拒绝
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    private final AtomicLong totalCostMillis = new AtomicLong(0);
+
+    public MQConnectorStats(MQType mqType) {
+        this.mqType = mqType;
+    }
+
+    void record(long costMillis, boolean success) {
+        requestCount.incrementAndGet();
+        totalCostMillis.addAndGet(costMillis);
+        if (!success) {
+            failedCount.incrementAndGet();
+        }
+    }
+
+    void reject() {
+        rejectedCount.incrementAndGet();
+    }
+
+    public MQType getMqType() {
+        return mqType;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getTotalCostMillis() {
+        return totalCostMillis.get();
+    }
+
+    public double getAvgCostMillis() {
+        long count = requestCount.get();
+        return count == 0 ? 0 : (double) totalCostMillis.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "MQConnectorStats{" +
+                "mqType=" + mqType +
+                ", requestCount=" + getRequestCount() +
+                ", failedCount=" + getFailedCount() +
+                ", rejectedCount=" + getRejectedCount() +
+                ", avgCostMillis=" + getAvgCostMillis() +
+                '}';
+    }
+}
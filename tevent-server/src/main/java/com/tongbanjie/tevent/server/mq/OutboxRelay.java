@@ -0,0 +1,324 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.ConcurrentHashSet;
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.server.ServerConfig;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.service.StoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事务消息转发中继<p>
+ * 提交事务消息只需持久化COMMIT状态即可响应客户端，由中继负责转发到MQ：
+ * 1、提交后直接投递到转发线程(快速路径)；
+ * 2、扫描线程定期查询已提交未发送成功的消息(服务重启、快速路径队列满、发送失败)；
+ * 3、其他路径发送失败的消息交给中继(retryLater)，退避后由扫描补发；
+ * 转发线程按topic分区，同一topic的消息由同一线程顺序发送，
+ * 发送失败按指数退避重试，发送结果记录到存储的 sendStatus/retryTimes
+ *
+ * @author zixiao
+ * @date 16/10/28
+ */
+public class OutboxRelay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private final String name;
+
+    private final Sender sender;
+
+    private final StoreService<RocketMQMessage> storeService;
+
+    private final ServerConfig serverConfig;
+
+    private final ScanService scanService;
+
+    private final RelayWorker[] workers;
+
+    //已投递到转发线程、尚未处理完的消息id
+    private final ConcurrentHashSet<Long> pendingIds = new ConcurrentHashSet<Long>();
+
+    //发送失败的消息下次重试时间
+    private final ConcurrentMap<Long/* transactionId */, Long/* timestamp */> nextRetryTable = new ConcurrentHashMap<Long, Long>();
+
+    private final AtomicLong sentCount = new AtomicLong(0);
+
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    public OutboxRelay(String name, Sender sender, StoreService<RocketMQMessage> storeService,
+                       ServerConfig serverConfig) {
+        this.name = name;
+        this.sender = sender;
+        this.storeService = storeService;
+        this.serverConfig = serverConfig;
+        this.scanService = new ScanService();
+        this.workers = new RelayWorker[Math.max(serverConfig.getOutboxRelayThreadNums(), 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RelayWorker(i);
+        }
+    }
+
+    public void start() {
+        for (RelayWorker worker : workers) {
+            worker.start();
+        }
+        this.scanService.start();
+    }
+
+    public void shutdown() {
+        this.scanService.shutdown();
+        for (RelayWorker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * 提交后投递待转发消息，转发线程队列已满时返回false，由扫描线程补发
+     */
+    public boolean relay(Long transactionId, RocketMQMessage mqMessage) {
+        return dispatch(new RelayRequest(transactionId, mqMessage.getTopic(), mqMessage));
+    }
+
+    private boolean dispatch(RelayRequest request) {
+        if (!pendingIds.add(request.transactionId)) {
+            return true;
+        }
+        if (!workerFor(request.topic).offer(request)) {
+            pendingIds.remove(request.transactionId);
+            return false;
+        }
+        return true;
+    }
+
+    private RelayWorker workerFor(String topic) {
+        int hash = topic == null ? 0 : topic.hashCode();
+        return workers[(hash & Integer.MAX_VALUE) % workers.length];
+    }
+
+    /**
+     * 记录一次发送失败，未超过最大重试次数时退避后由扫描补发
+     */
+    public void retryLater(Long transactionId, RocketMQMessage mqMessage) {
+        failedCount.incrementAndGet();
+        int retryTimes = (mqMessage.getRetryTimes() == null ? 0 : mqMessage.getRetryTimes()) + 1;
+        mqMessage.setRetryTimes((short) retryTimes);
+        sender.updateSendStatus(transactionId, mqMessage, SendStatus.FAILED);
+        if (retryTimes >= serverConfig.getOutboxRelayMaxRetryTimes()) {
+            nextRetryTable.remove(transactionId);
+            LOGGER.error("Relay message exceeds max retry times, transactionId: {}, retryTimes: {}",
+                    transactionId, retryTimes);
+        } else {
+            nextRetryTable.put(transactionId, System.currentTimeMillis() + backoffMillis(retryTimes));
+        }
+    }
+
+    /**
+     * 第retryTimes次失败后的退避时间
+     */
+    private long backoffMillis(int retryTimes) {
+        long base = serverConfig.getOutboxRelayRetryBaseMillis();
+        long delay = base << Math.min(Math.max(retryTimes - 1, 0), 20);
+        return Math.min(delay, serverConfig.getOutboxRelayRetryMaxMillis());
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public int getPendingCount() {
+        return pendingIds.size();
+    }
+
+    class ScanService extends ServiceThread {
+
+        @Override
+        public String getServiceName() {
+            return name + "OutboxRelayScanService";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(serverConfig.getOutboxRelayScanIntervalMillis());
+                    this.scan();
+                } catch (Exception e) {
+                    LOGGER.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+
+        private void scan() {
+            int pageSize = serverConfig.getOutboxRelayScanPageSize();
+            short maxRetryTimes = (short) serverConfig.getOutboxRelayMaxRetryTimes();
+            long lastId = 0;
+            while (!this.isStopped()) {
+                Result<List<RocketMQMessage>> result = storeService.selectUnsent(lastId, pageSize, maxRetryTimes);
+                if (!result.isSuccess()) {
+                    LOGGER.warn("Select unsent messages failed, error: " + result.getErrorString());
+                    return;
+                }
+                List<RocketMQMessage> mqMessages = result.getData();
+                long now = System.currentTimeMillis();
+                for (RocketMQMessage mqMessage : mqMessages) {
+                    lastId = mqMessage.getId();
+                    Long nextRetryTime = nextRetryTable.get(lastId);
+                    if (nextRetryTime != null && nextRetryTime > now) {
+                        continue;
+                    }
+                    //扫描结果可能已过期，由转发线程重新读取
+                    if (!dispatch(new RelayRequest(lastId, mqMessage.getTopic(), null))) {
+                        //转发线程繁忙，下次扫描再投递
+                        return;
+                    }
+                }
+                if (mqMessages.size() < pageSize) {
+                    return;
+                }
+            }
+        }
+    }
+
+    class RelayWorker extends ServiceThread {
+
+        private final int index;
+
+        private final BlockingQueue<RelayRequest> requestQueue;
+
+        RelayWorker(int index) {
+            this.index = index;
+            this.requestQueue = new LinkedBlockingQueue<RelayRequest>(serverConfig.getOutboxRelayQueueCapacity());
+            //父类构造时index尚未赋值，线程名需重新设置
+            this.thread.setName(this.getServiceName());
+        }
+
+        @Override
+        public String getServiceName() {
+            return name + "OutboxRelayWorker_" + index;
+        }
+
+        boolean offer(RelayRequest request) {
+            if (!requestQueue.offer(request)) {
+                return false;
+            }
+            this.wakeup();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(100);
+                    this.doRelay();
+                } catch (Exception e) {
+                    LOGGER.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            //未发送的消息由重启后的扫描补发
+            LOGGER.info(this.getServiceName() + " service end, remaining: " + requestQueue.size());
+        }
+
+        private void doRelay() {
+            List<RelayRequest> requests = new ArrayList<RelayRequest>();
+            while (!this.isStopped() && requestQueue.drainTo(requests, 64) > 0) {
+                for (RelayRequest request : requests) {
+                    try {
+                        relay(request);
+                    } catch (Exception e) {
+                        LOGGER.error("Relay message failed, transactionId: " + request.transactionId, e);
+                    } finally {
+                        pendingIds.remove(request.transactionId);
+                    }
+                }
+                requests.clear();
+            }
+        }
+
+        private void relay(RelayRequest request) {
+            RocketMQMessage mqMessage = request.mqMessage;
+            if (mqMessage == null) {
+                Result<RocketMQMessage> getResult = storeService.get(request.transactionId);
+                if (!getResult.isSuccess()) {
+                    LOGGER.warn("Get message failed, transactionId: " + request.transactionId
+                            + ", error: " + getResult.getErrorString());
+                    return;
+                }
+                mqMessage = getResult.getData();
+                if (mqMessage == null || mqMessage.getTransactionState() != TransactionState.COMMIT.getCode()
+                        || (mqMessage.getSendStatus() != null && mqMessage.getSendStatus() == SendStatus.SUCCESS.getCode())) {
+                    return;
+                }
+            }
+
+            boolean sent = false;
+            try {
+                sent = sender.send(mqMessage);
+            } catch (RuntimeException e) {
+                LOGGER.error("Send message failed, transactionId: " + request.transactionId, e);
+            }
+
+            if (sent) {
+                sentCount.incrementAndGet();
+                nextRetryTable.remove(request.transactionId);
+                sender.updateSendStatus(request.transactionId, mqMessage, SendStatus.SUCCESS);
+                return;
+            }
+            retryLater(request.transactionId, mqMessage);
+        }
+    }
+
+    /**
+     * 中继的发送方
+     */
+    public interface Sender {
+
+        /**
+         * 同步发送消息
+         * @return broker确认成功返回true
+         */
+        boolean send(RocketMQMessage mqMessage);
+
+        void updateSendStatus(Long transactionId, RocketMQMessage mqMessage, SendStatus sendStatus);
+    }
+
+    static class RelayRequest {
+
+        private final Long transactionId;
+
+        private final String topic;
+
+        //为空时由转发线程从存储读取
+        private final RocketMQMessage mqMessage;
+
+        RelayRequest(Long transactionId, String topic, RocketMQMessage mqMessage) {
+            this.transactionId = transactionId;
+            this.topic = topic;
+            this.mqMessage = mqMessage;
+        }
+    }
+
+}
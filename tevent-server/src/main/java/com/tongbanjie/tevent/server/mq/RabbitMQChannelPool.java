@@ -0,0 +1,362 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.tongbanjie.tevent.common.util.NamedSingleThreadFactory;
+import com.tongbanjie.tevent.common.util.NamedThreadFactory;
+import com.tongbanjie.tevent.server.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RabbitMQ 发布channel池<p>
+ * 共用一个连接，多个开启publisher confirm的channel轮询发布；
+ * 发布不等待broker确认，确认(含批量确认 multiple=true)到达后异步回调，
+ * 每个channel未确认消息数受 rabbitMQMaxOutstandingConfirms 限制，超时未确认按失败处理；
+ * channel或连接断开后，未确认消息按失败处理，下次发布时重建
+ *
+ * @author zixiao
+ * @date 16/10/29
+ */
+public class RabbitMQChannelPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQChannelPool.class);
+
+    private final ServerConfig serverConfig;
+
+    private final ConnectionFactory connectionFactory;
+
+    private final Object connectionLock = new Object();
+
+    private volatile Connection connection;
+
+    private final ConfirmChannel[] channels;
+
+    private final AtomicInteger channelIndex = new AtomicInteger(0);
+
+    //确认回调线程，避免在连接的IO线程中执行存储更新
+    private final ExecutorService callbackExecutor;
+
+    private final ScheduledExecutorService timeoutScanner;
+
+    private volatile boolean closed = false;
+
+    public RabbitMQChannelPool(ServerConfig serverConfig) {
+        this(serverConfig, createConnectionFactory(serverConfig));
+    }
+
+    /**
+     * 指定连接工厂，测试时可替换为不连接broker的实现
+     */
+    public RabbitMQChannelPool(ServerConfig serverConfig, ConnectionFactory connectionFactory) {
+        this.serverConfig = serverConfig;
+        this.connectionFactory = connectionFactory;
+
+        this.channels = new ConfirmChannel[Math.max(serverConfig.getRabbitMQChannelPoolSize(), 1)];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new ConfirmChannel();
+        }
+        this.callbackExecutor = Executors.newFixedThreadPool(channels.length,
+                new NamedThreadFactory("RabbitMQConfirmCallbackThread_"));
+        this.timeoutScanner = Executors.newSingleThreadScheduledExecutor(
+                new NamedSingleThreadFactory("RabbitMQConfirmTimeoutScanThread"));
+        this.timeoutScanner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scanTimeout();
+                } catch (Exception e) {
+                    LOGGER.warn("Scan confirm timeout failed", e);
+                }
+            }
+        }, 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    private static ConnectionFactory createConnectionFactory(ServerConfig serverConfig) {
+        ConnectionFactory connectionFactory = new ConnectionFactory();
+        connectionFactory.setHost(serverConfig.getRabbitMQHost());
+        connectionFactory.setPort(serverConfig.getRabbitMQPort());
+        connectionFactory.setUsername(serverConfig.getRabbitMQUsername());
+        connectionFactory.setPassword(serverConfig.getRabbitMQPassword());
+        connectionFactory.setVirtualHost(serverConfig.getRabbitMQVirtualHost());
+        //断线由连接池重建，未确认消息按失败处理
+        connectionFactory.setAutomaticRecoveryEnabled(false);
+        return connectionFactory;
+    }
+
+    /**
+     * 发布持久化消息，broker确认后回调
+     */
+    public void publish(String exchange, String routingKey, String messageId, byte[] body, PublishCallback callback) {
+        if (closed) {
+            callback.onException(new IllegalStateException("RabbitMQ channel pool is closed."));
+            return;
+        }
+        int index = (channelIndex.getAndIncrement() & Integer.MAX_VALUE) % channels.length;
+        channels[index].publish(exchange, routingKey, messageId, body, callback);
+    }
+
+    public void shutdown() {
+        this.closed = true;
+        this.timeoutScanner.shutdown();
+        for (ConfirmChannel channel : channels) {
+            channel.close();
+        }
+        synchronized (connectionLock) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    LOGGER.warn("Close RabbitMQ connection failed", e);
+                }
+            }
+        }
+        this.callbackExecutor.shutdown();
+    }
+
+    public int getOutstandingConfirms() {
+        int count = 0;
+        for (ConfirmChannel channel : channels) {
+            count += channel.outstanding();
+        }
+        return count;
+    }
+
+    private Connection getConnection() throws IOException {
+        Connection current = this.connection;
+        if (current != null && current.isOpen()) {
+            return current;
+        }
+        synchronized (connectionLock) {
+            if (this.connection == null || !this.connection.isOpen()) {
+                try {
+                    this.connection = connectionFactory.newConnection();
+                } catch (TimeoutException e) {
+                    throw new IOException("Connect RabbitMQ timeout, host: " + serverConfig.getRabbitMQHost(), e);
+                }
+                LOGGER.info("Create RabbitMQ connection, host:{}, port:{}",
+                        serverConfig.getRabbitMQHost(), serverConfig.getRabbitMQPort());
+            }
+            return this.connection;
+        }
+    }
+
+    private void scanTimeout() {
+        long deadline = System.currentTimeMillis() - serverConfig.getRabbitMQConfirmTimeoutMillis();
+        for (ConfirmChannel channel : channels) {
+            channel.failTimeout(deadline);
+        }
+    }
+
+    private void complete(final PendingConfirm pending, final boolean ack, final Throwable cause) {
+        try {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (ack) {
+                        pending.callback.onSuccess();
+                    } else {
+                        pending.callback.onException(cause);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.warn("Execute confirm callback failed, messageId: " + pending.messageId, e);
+        }
+    }
+
+    public interface PublishCallback {
+
+        void onSuccess();
+
+        void onException(Throwable e);
+    }
+
+    /**
+     * 同一个channel的发布串行执行(channel非线程安全)，确认按deliveryTag匹配
+     */
+    class ConfirmChannel {
+
+        private final Semaphore window = new Semaphore(serverConfig.getRabbitMQMaxOutstandingConfirms());
+
+        private volatile ChannelHolder holder;
+
+        void publish(String exchange, String routingKey, String messageId, byte[] body, PublishCallback callback) {
+            try {
+                if (!window.tryAcquire(serverConfig.getRabbitMQConfirmTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                    callback.onException(new IOException("Too many outstanding confirms."));
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onException(e);
+                return;
+            }
+
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                    .messageId(messageId)
+                    .deliveryMode(2)
+                    .build();
+            PendingConfirm pending = new PendingConfirm(messageId, callback);
+            ChannelHolder current = null;
+            long deliveryTag = -1;
+            try {
+                synchronized (this) {
+                    current = getHolder();
+                    deliveryTag = current.channel.getNextPublishSeqNo();
+                    current.pending.put(deliveryTag, pending);
+                    current.channel.basicPublish(exchange == null ? "" : exchange, routingKey, properties, body);
+                }
+            } catch (Exception e) {
+                if (current == null || deliveryTag < 0 || current.pending.remove(deliveryTag) != null) {
+                    window.release();
+                    LOGGER.error("Publish RabbitMQ message failed, messageId: " + messageId, e);
+                    callback.onException(e);
+                }
+            }
+        }
+
+        private ChannelHolder getHolder() throws IOException {
+            ChannelHolder current = this.holder;
+            if (current != null && current.channel.isOpen()) {
+                return current;
+            }
+            final ChannelHolder created = new ChannelHolder(getConnection().createChannel());
+            created.channel.confirmSelect();
+            created.channel.addConfirmListener(new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) {
+                    confirm(created, deliveryTag, multiple, true);
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) {
+                    confirm(created, deliveryTag, multiple, false);
+                }
+            });
+            created.channel.addShutdownListener(new ShutdownListener() {
+                @Override
+                public void shutdownCompleted(ShutdownSignalException cause) {
+                    failAll(created, cause);
+                }
+            });
+            this.holder = created;
+            return created;
+        }
+
+        private void confirm(ChannelHolder holder, long deliveryTag, boolean multiple, boolean ack) {
+            if (multiple) {
+                //批量确认: deliveryTag及之前的消息
+                ConcurrentNavigableMap<Long, PendingConfirm> confirmed = holder.pending.headMap(deliveryTag, true);
+                Iterator<PendingConfirm> it = confirmed.values().iterator();
+                while (it.hasNext()) {
+                    PendingConfirm pending = it.next();
+                    it.remove();
+                    done(pending, ack, null);
+                }
+            } else {
+                PendingConfirm pending = holder.pending.remove(deliveryTag);
+                if (pending != null) {
+                    done(pending, ack, null);
+                }
+            }
+        }
+
+        private void done(PendingConfirm pending, boolean ack, Throwable cause) {
+            window.release();
+            if (!ack && cause == null) {
+                cause = new IOException("Message nacked by broker, messageId: " + pending.messageId);
+            }
+            complete(pending, ack, cause);
+        }
+
+        private void failAll(ChannelHolder holder, Throwable cause) {
+            Iterator<PendingConfirm> it = holder.pending.values().iterator();
+            while (it.hasNext()) {
+                PendingConfirm pending = it.next();
+                it.remove();
+                done(pending, false, cause);
+            }
+        }
+
+        void failTimeout(long deadline) {
+            ChannelHolder current = this.holder;
+            if (current == null) {
+                return;
+            }
+            Iterator<Map.Entry<Long, PendingConfirm>> it = current.pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, PendingConfirm> entry = it.next();
+                PendingConfirm pending = entry.getValue();
+                if (pending.timestamp > deadline) {
+                    //按deliveryTag递增，之后的消息更晚发布
+                    break;
+                }
+                if (current.pending.remove(entry.getKey()) != null) {
+                    done(pending, false, new TimeoutException("Wait confirm timeout, messageId: " + pending.messageId));
+                }
+            }
+        }
+
+        int outstanding() {
+            ChannelHolder current = this.holder;
+            return current == null ? 0 : current.pending.size();
+        }
+
+        synchronized void close() {
+            ChannelHolder current = this.holder;
+            if (current != null && current.channel.isOpen()) {
+                try {
+                    current.channel.close();
+                } catch (Exception e) {
+                    LOGGER.warn("Close RabbitMQ channel failed", e);
+                }
+            }
+        }
+    }
+
+    static class ChannelHolder {
+
+        private final Channel channel;
+
+        //deliveryTag -> 未确认消息
+        private final ConcurrentSkipListMap<Long, PendingConfirm> pending = new ConcurrentSkipListMap<Long, PendingConfirm>();
+
+        ChannelHolder(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    static class PendingConfirm {
+
+        private final String messageId;
+
+        private final PublishCallback callback;
+
+        private final long timestamp = System.currentTimeMillis();
+
+        PendingConfirm(String messageId, PublishCallback callback) {
+            this.messageId = messageId;
+            this.callback = callback;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.RabbitMQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+
+/**
+ * RabbitMQ 连接器<p>
+ * 使用独立的存储表，避免被RocketMQ转发；
+ * 存储复用RocketMQMessage记录：topic存exchange，tags存routingKey；
+ * 回查由客户端的RabbitMQMessageSender应答
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public class RabbitMQConnector extends AbstractMQConnector<RabbitMQBody> {
+
+    @Override
+    public MQType getMQType() {
+        return MQType.RABBIT_MQ;
+    }
+
+    @Override
+    public Class<RabbitMQBody> getBodyClass() {
+        return RabbitMQBody.class;
+    }
+
+    @Override
+    public String getStoreTableName(StoreConfig storeConfig) {
+        return storeConfig.getRabbitMQJdbcTableName();
+    }
+
+    @Override
+    public EventProducer createProducer(ServerController serverController) {
+        return new RabbitMQProducer(serverController, this);
+    }
+
+    @Override
+    public RocketMQMessage encode(RabbitMQBody mqBody, TransactionState transactionState) {
+        RocketMQMessage mqMessage = new RocketMQMessage();
+        mqMessage.setTopic(mqBody.getExchange() == null ? "" : mqBody.getExchange());
+        mqMessage.setTags(mqBody.getRoutingKey());
+        mqMessage.setProducerGroup(mqBody.getProducerGroup());
+        mqMessage.setMessageKey(mqBody.getMessageKey());
+        mqMessage.setMessageBody(mqBody.getMessageBody());
+        if(transactionState != null){
+            mqMessage.setTransactionState(transactionState.getCode());
+        }
+        return mqMessage;
+    }
+
+    @Override
+    public RabbitMQBody decode(RocketMQMessage mqMessage) {
+        RabbitMQBody mqBody = new RabbitMQBody();
+        mqBody.setExchange(mqMessage.getTopic());
+        mqBody.setRoutingKey(mqMessage.getTags());
+        mqBody.setProducerGroup(mqMessage.getProducerGroup());
+        mqBody.setMessageKey(mqMessage.getMessageKey());
+        mqBody.setMessageBody(mqMessage.getMessageBody());
+        return mqBody;
+    }
+
+}
@@ -1,48 +1,268 @@
 package com.tongbanjie.tevent.server.mq;
 
 import com.alibaba.rocketmq.client.exception.MQClientException;
+import com.tongbanjie.tevent.common.body.RabbitMQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
 import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
 import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.service.StoreService;
 import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * 〈一句话功能简述〉<p>
- * 〈功能详细描述〉
+ * RabbitMQ 事件处理者<p>
+ * 消息通过开启publisher confirm的channel池异步发布，broker确认后再响应客户端；
+ * 事务消息的存储语义与RocketMQ一致(PREPARE持久化，COMMIT后发布)，
+ * 存储复用RocketMQMessage记录：topic存exchange，tags存routingKey；
+ * 提交后发布失败的消息交给转发中继，退避后重新发布
  *
  * @author zixiao
  * @date 16/9/30
  */
-public class RabbitMQProducer implements EventProducer {
+public class RabbitMQProducer implements EventProducer, OutboxRelay.Sender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQProducer.class);
 
     private final ServerController serverController;
 
-    public RabbitMQProducer(ServerController serverController) {
+    private final StoreService<RocketMQMessage> mQStoreService;
+
+    private final RabbitMQChannelPool channelPool;
+
+    private final RabbitMQConnector connector;
+
+    private final OutboxRelay outboxRelay;
+
+    @SuppressWarnings("unchecked")
+    public RabbitMQProducer(ServerController serverController, RabbitMQConnector connector) {
         this.serverController = serverController;
+        this.connector = connector;
+        this.mQStoreService = this.serverController.getStoreManager().getStoreService(MQType.RABBIT_MQ);
+        this.channelPool = new RabbitMQChannelPool(this.serverController.getServerConfig());
+        this.outboxRelay = new OutboxRelay("RabbitMQ", this, this.mQStoreService, this.serverController.getServerConfig());
+        this.outboxRelay.start();
     }
 
     @Override
-    public RpcCommand sendMessage(ChannelHandlerContext ctx, RpcCommand request) throws RpcCommandException, MQClientException {
+    public RpcCommand sendMessage(final ChannelHandlerContext ctx, final RpcCommand request) throws RpcCommandException, MQClientException {
+        return sendMessage(request, new SendMessageCallback() {
+            @Override
+            public void onComplete(RpcCommand response) {
+                writeResponse(ctx, request, response);
+            }
+        });
+    }
+
+    @Override
+    public RpcCommand sendMessage(final RpcCommand request, final SendMessageCallback callback) throws RpcCommandException, MQClientException {
+        final RabbitMQBody mqBody = request.getBody(RabbitMQBody.class);
+        channelPool.publish(mqBody.getExchange(), mqBody.getRoutingKey(), mqBody.getMessageKey(), mqBody.getMessageBody(),
+                new RabbitMQChannelPool.PublishCallback() {
+                    @Override
+                    public void onSuccess() {
+                        LOGGER.debug("发送消息 exchange:{}, routingKey:{}, messageKey:{}",
+                                mqBody.getExchange(), mqBody.getRoutingKey(), mqBody.getMessageKey());
+                        callback.onComplete(RpcCommandBuilder.buildSuccess());
+                    }
+
+                    @Override
+                    public void onException(Throwable e) {
+                        LOGGER.error("发送消息失败, messageKey:" + mqBody.getMessageKey(), e);
+                        callback.onComplete(RpcCommandBuilder.buildFail("发送消息失败," + e.getMessage()));
+                    }
+                });
+        //broker确认后响应客户端
         return null;
     }
 
     @Override
     public RpcCommand prepareMessage(ChannelHandlerContext ctx, RpcCommand request) {
-        return null;
+        final RpcCommand response;
+
+        final RabbitMQBody mqBody = request.getBody(RabbitMQBody.class);
+
+        RocketMQMessage mqMessage = connector.encode(mqBody, TransactionState.PREPARE);
+
+        //持久化 消息
+        Result<Long> putResult = mQStoreService.put(mqMessage);
+        if(putResult.isSuccess()){
+            Long transactionId = putResult.getData();
+
+            LOGGER.debug("准备事务消息 exchange:{}, messageKey:{}, transactionId:{}" ,
+                    mqBody.getExchange(), mqBody.getMessageKey(), transactionId);
+
+            TransactionMessageHeader responseHeader = new TransactionMessageHeader();
+            responseHeader.setTransactionId(transactionId);
+
+            response = RpcCommandBuilder.buildSuccess(responseHeader);
+        }else{
+            LOGGER.error("准备事务消息失败, exchange:{}, messageKey:{}, error:{}",
+                    mqBody.getExchange(), mqBody.getMessageKey(), putResult.getErrorString());
+            response = RpcCommandBuilder.buildFail("准备事务消息失败," + putResult.getErrorString());
+        }
+
+        return response;
     }
 
     @Override
-    public RpcCommand commitMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId) {
+    public RpcCommand commitMessage(final ChannelHandlerContext ctx, final RpcCommand request, final Long transactionId) {
+        final RabbitMQBody newMqBody = request.getBody(RabbitMQBody.class);
+
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("提交事务消息失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("提交事务消息失败, 该消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        final RocketMQMessage mqMessage = getResult.getData();
+        mqMessage.setTransactionState(TransactionState.COMMIT.getCode());
+        if(newMqBody !=null && newMqBody.getMessageBody() != null){
+            //更新消息体
+            mqMessage.setMessageBody(newMqBody.getMessageBody());
+        }
+        Result<RocketMQMessage> commitResult = mQStoreService.update(transactionId, mqMessage);
+        if(!commitResult.isSuccess()){
+            LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ commitResult.getErrorString());
+            return RpcCommandBuilder.buildFail("提交事务消息失败," + commitResult.getErrorString());
+        }
+
+        LOGGER.debug("提交事务消息 exchange:{}, messageKey:{}, transactionId:{}" ,
+                mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
+        //发布消息，broker确认后更新发送状态并响应客户端；事务已提交，发布失败也返回成功，由转发中继重试
+        channelPool.publish(mqMessage.getTopic(), mqMessage.getTags(), String.valueOf(transactionId),
+                mqMessage.getMessageBody(), new RabbitMQChannelPool.PublishCallback() {
+                    @Override
+                    public void onSuccess() {
+                        updateSendStatus(transactionId, mqMessage, SendStatus.SUCCESS);
+                        writeResponse(ctx, request, RpcCommandBuilder.buildSuccess());
+                    }
+
+                    @Override
+                    public void onException(Throwable e) {
+                        LOGGER.error("发布事务消息失败, transactionId: " + transactionId, e);
+                        outboxRelay.retryLater(transactionId, mqMessage);
+                        writeResponse(ctx, request, RpcCommandBuilder.buildSuccess());
+                    }
+                });
         return null;
     }
 
     @Override
     public RpcCommand rollbackMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId) {
-        return null;
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("事务消息回滚失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息回滚失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("事务消息回滚失败, 消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        RocketMQMessage mqMessage = getResult.getData();
+        mqMessage.setTransactionState(TransactionState.ROLLBACK.getCode());
+        Result<RocketMQMessage> rollbackResult = mQStoreService.update(transactionId, mqMessage);
+        if(!rollbackResult.isSuccess()){
+            LOGGER.error("事务消息回滚失败, transactionId: " + transactionId+", error: "+ rollbackResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息回滚失败," + rollbackResult.getErrorString());
+        }
+        LOGGER.debug("回滚事务消息 exchange:{}, messageKey:{}, transactionId:{}" ,
+                mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
+        return RpcCommandBuilder.buildSuccess();
     }
 
     @Override
     public RpcCommand unknownMessage(ChannelHandlerContext ctx, RpcCommand request, Long transactionId) {
-        return null;
+        Result<RocketMQMessage> getResult = mQStoreService.get(transactionId);
+        if(!getResult.isSuccess()){
+            LOGGER.error("事务消息状态更新失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息状态更新失败," + getResult.getErrorString());
+        }
+        if(getResult.getData() == null){
+            LOGGER.warn("事务消息状态更新失败, 消息不存在, transactionId:" + transactionId);
+            return RpcCommandBuilder.buildResponse(ResponseCode.NOT_EXIST, "该事务消息不存在");
+        }
+
+        //记录回查未决次数，回查服务据此退避及转入死信
+        Result<RocketMQMessage> updateResult = RocketMQProducer.increaseCheckTimes(mQStoreService, transactionId,
+                getResult.getData());
+        if(!updateResult.isSuccess()){
+            LOGGER.error("事务消息状态更新失败, transactionId: " + transactionId+", error: "+ updateResult.getErrorString());
+            return RpcCommandBuilder.buildFail("事务消息状态更新失败," + updateResult.getErrorString());
+        }
+        return RpcCommandBuilder.buildSuccess();
     }
+
+    @Override
+    public void shutdown() {
+        this.outboxRelay.shutdown();
+        this.channelPool.shutdown();
+    }
+
+    /**
+     * 转发中继重新发布，等待broker确认
+     */
+    @Override
+    public boolean send(final RocketMQMessage mqMessage) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean acked = new AtomicBoolean(false);
+        channelPool.publish(mqMessage.getTopic(), mqMessage.getTags(), String.valueOf(mqMessage.getId()),
+                mqMessage.getMessageBody(), new RabbitMQChannelPool.PublishCallback() {
+                    @Override
+                    public void onSuccess() {
+                        acked.set(true);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onException(Throwable e) {
+                        LOGGER.warn("重新发布事务消息失败, transactionId: " + mqMessage.getId() + ", " + e.getMessage());
+                        latch.countDown();
+                    }
+                });
+        try {
+            //超时未确认的消息由确认超时扫描回调失败，多等一个扫描周期
+            latch.await(serverController.getServerConfig().getRabbitMQConfirmTimeoutMillis() * 2 + 1000,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return acked.get();
+    }
+
+    @Override
+    public void updateSendStatus(Long transactionId, RocketMQMessage mqMessage, SendStatus sendStatus){
+        mqMessage.setSendStatus(sendStatus.getCode());
+        Result<RocketMQMessage> updateResult = mQStoreService.update(transactionId, mqMessage);
+        if(!updateResult.isSuccess()){
+            LOGGER.error("更新发送状态失败, transactionId: " + transactionId + ", error: " + updateResult.getErrorString());
+        }
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, RpcCommand request, RpcCommand response){
+        if(request.isOneWayRpc()){
+            return;
+        }
+        response.setOpaque(request.getOpaque());
+        response.setCmdType(RpcCommand.RESPONSE_COMMAND);
+        ctx.writeAndFlush(response);
+    }
+
 }
@@ -0,0 +1,51 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.server.ServerController;
+
+/**
+ * RocketMQ 连接器<p>
+ * 使用默认存储
+ *
+ * @author zixiao
+ * @date 16/10/30
+ */
+public class RocketMQConnector extends AbstractMQConnector<RocketMQBody> {
+
+    @Override
+    public MQType getMQType() {
+        return MQType.ROCKET_MQ;
+    }
+
+    @Override
+    public Class<RocketMQBody> getBodyClass() {
+        return RocketMQBody.class;
+    }
+
+    @Override
+    public EventProducer createProducer(ServerController serverController) {
+        return new RocketMQProducer(serverController, this);
+    }
+
+    @Override
+    public RocketMQMessage encode(RocketMQBody mqBody, TransactionState transactionState) {
+        RocketMQMessage mqMessage = RocketMQMessage.build(mqBody, transactionState);
+        mqMessage.setTags(mqBody.getTags());
+        return mqMessage;
+    }
+
+    @Override
+    public RocketMQBody decode(RocketMQMessage mqMessage) {
+        RocketMQBody mqBody = new RocketMQBody();
+        mqBody.setTopic(mqMessage.getTopic());
+        mqBody.setTags(mqMessage.getTags());
+        mqBody.setProducerGroup(mqMessage.getProducerGroup());
+        mqBody.setMessageBody(mqMessage.getMessageBody());
+        mqBody.setMessageKey(mqMessage.getMessageKey());
+        return mqBody;
+    }
+
+}
@@ -4,9 +4,11 @@ import com.alibaba.rocketmq.client.exception.MQBrokerException;
 import com.alibaba.rocketmq.client.exception.MQClientException;
 import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
 import com.alibaba.rocketmq.client.producer.MQProducer;
+import com.alibaba.rocketmq.client.producer.SendCallback;
 import com.alibaba.rocketmq.client.producer.SendResult;
 import com.alibaba.rocketmq.common.message.Message;
 import com.alibaba.rocketmq.remoting.exception.RemotingException;
+import com.tongbanjie.tevent.common.message.SendStatus;
 import com.tongbanjie.tevent.common.message.TransactionState;
 import com.tongbanjie.tevent.common.message.RocketMQMessage;
 import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
@@ -15,17 +17,23 @@ import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
 import com.tongbanjie.tevent.common.body.RocketMQBody;
 import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+import com.tongbanjie.tevent.server.ServerConfig;
 import com.tongbanjie.tevent.server.ServerController;
 import com.tongbanjie.tevent.store.Result;
-import com.tongbanjie.tevent.store.service.RocketMQStoreService;
+import com.tongbanjie.tevent.store.service.StoreService;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import java.util.Collection;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 〈一句话功能简述〉<p>
@@ -34,33 +42,95 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author zixiao
  * @date 16/9/30
  */
-public class RocketMQProducer implements EventProducer {
+public class RocketMQProducer implements EventProducer, OutboxRelay.Sender {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RocketMQProducer.class);
 
-    private final Map<String/* Group */, MQProducer> producerTable = new ConcurrentHashMap<String, MQProducer>();
+    //每个producerGroup独立初始化，慢的broker连接不阻塞其他group
+    private final ConcurrentMap<String/* Group */, Future<MQProducer>> producerTable =
+            new ConcurrentHashMap<String, Future<MQProducer>>();
 
-    private final Lock lock = new ReentrantLock();
-
-    private RocketMQStoreService mQStoreService;
+    private StoreService<RocketMQMessage> mQStoreService;
 
     private ServerController serverController;
 
     private String namesrvAddr;
 
-    public RocketMQProducer(ServerController serverController) {
+    private final ServerConfig serverConfig;
+
+    //异步转发时每个producerGroup的在途窗口
+    private final ConcurrentMap<String/* Group */, Semaphore> inFlightTable = new ConcurrentHashMap<String, Semaphore>();
+
+    private OutboxRelay outboxRelay;
+
+    private final RocketMQConnector connector;
+
+    @SuppressWarnings("unchecked")
+    public RocketMQProducer(ServerController serverController, RocketMQConnector connector) {
         this.serverController = serverController;
-        this.mQStoreService = (RocketMQStoreService)this.serverController.getStoreManager().getStoreService();
-        this.namesrvAddr = this.serverController.getServerConfig().getRocketMQNamesrv();
+        this.connector = connector;
+        this.serverConfig = this.serverController.getServerConfig();
+        this.mQStoreService = this.serverController.getStoreManager().getStoreService();
+        this.namesrvAddr = this.serverConfig.getRocketMQNamesrv();
+        if(this.serverConfig.isRocketMQRelayEnable()){
+            this.outboxRelay = new OutboxRelay("RocketMQ", this, this.mQStoreService, this.serverConfig);
+            this.outboxRelay.start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if(this.outboxRelay != null){
+            this.outboxRelay.shutdown();
+        }
+        for(Future<MQProducer> future : producerTable.values()){
+            try {
+                if(future.isDone()){
+                    future.get().shutdown();
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Shutdown producer failed", e);
+            }
+        }
     }
 
     @Override
-    public RpcCommand sendMessage(ChannelHandlerContext ctx, RpcCommand request)
+    public RpcCommand sendMessage(final ChannelHandlerContext ctx, final RpcCommand request)
+            throws RpcCommandException {
+        return sendMessage(request, new SendMessageCallback() {
+            @Override
+            public void onComplete(RpcCommand response) {
+                writeResponse(ctx, request, response);
+            }
+        });
+    }
+
+    @Override
+    public RpcCommand sendMessage(final RpcCommand request, final SendMessageCallback callback)
             throws RpcCommandException {
         RpcCommand response = null;
         final RocketMQBody mqBody = request.getBody(RocketMQBody.class);
 
-        RocketMQMessage mqMessage = RocketMQMessage.build(mqBody, TransactionState.PREPARE);
+        RocketMQMessage mqMessage = connector.encode(mqBody, TransactionState.PREPARE);
+
+        if(serverConfig.isRocketMQSendAsync()){
+            //broker回调时响应客户端
+            sendMessageAsync(mqMessage, new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    LOGGER.info("发送消息 messageKey:" + mqBody.getMessageKey()
+                            + ", result:" + sendResult.getSendStatus()
+                            + ", msgId:"+sendResult.getMsgId());
+                    callback.onComplete(RpcCommandBuilder.buildSuccess());
+                }
+
+                @Override
+                public void onException(Throwable e) {
+                    callback.onComplete(RpcCommandBuilder.buildFail("发送消息失败," + e.getMessage()));
+                }
+            });
+            return null;
+        }
 
         SendResult sendResult = sendMessage(mqMessage);
         if(sendResult != null){
@@ -74,47 +144,170 @@ public class RocketMQProducer implements EventProducer {
         return response;
     }
 
-    private SendResult sendMessage(RocketMQMessage mqMessage){
+    @Override
+    public boolean send(RocketMQMessage mqMessage){
+        return sendMessage(mqMessage) != null;
+    }
+
+    SendResult sendMessage(RocketMQMessage mqMessage){
         MQProducer producer = null;
         try {
             producer = getMQProducer(mqMessage.getProducerGroup());
         } catch (MQClientException e) {
-            e.printStackTrace();
+            LOGGER.error("Get producer failed, group: " + mqMessage.getProducerGroup(), e);
         }
 
         if(producer == null){
-            throw new RuntimeException();
+            throw new RuntimeException("Can not get producer, group: " + mqMessage.getProducerGroup());
         }
 
-        Message msg = new Message(mqMessage.getTopic(),// topic
-                mqMessage.getTags(),       // tag
-                mqMessage.getMessageBody() // body
-        );
-        msg.setKeys(mqMessage.getMessageKey());
+        Message msg = buildMessage(mqMessage);
         try {
             SendResult sendResult = producer.send(msg);
             LOGGER.info("Send status {}, msgId {}", sendResult.getSendStatus(), sendResult.getMsgId());
             return sendResult;
         } catch (MQClientException e) {
-            e.printStackTrace();
+            LOGGER.error("Send message failed, messageKey: " + mqMessage.getMessageKey(), e);
         } catch (RemotingException e) {
-            e.printStackTrace();
+            LOGGER.error("Send message failed, messageKey: " + mqMessage.getMessageKey(), e);
         } catch (MQBrokerException e) {
-            e.printStackTrace();
+            LOGGER.error("Send message failed, messageKey: " + mqMessage.getMessageKey(), e);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            LOGGER.error("Send message interrupted, messageKey: " + mqMessage.getMessageKey(), e);
         }
 
         return null;
     }
 
+    /**
+     * 异步转发消息，发送线程不等待broker响应；
+     * 每个producerGroup的在途消息数受 rocketMQSendMaxInFlight 限制，
+     * 窗口已满时最多等待 rocketMQSendTimeoutMillis，超时直接回调失败
+     */
+    void sendMessageAsync(final RocketMQMessage mqMessage, final SendCallback callback){
+        final Semaphore inFlight = getInFlight(mqMessage.getProducerGroup());
+        try {
+            if(!inFlight.tryAcquire(serverConfig.getRocketMQSendTimeoutMillis(), TimeUnit.MILLISECONDS)){
+                callback.onException(new RuntimeException("Too many in-flight messages, group: "
+                        + mqMessage.getProducerGroup()));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.onException(e);
+            return;
+        }
+
+        try {
+            MQProducer producer = getMQProducer(mqMessage.getProducerGroup());
+            producer.send(buildMessage(mqMessage), new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    inFlight.release();
+                    callback.onSuccess(sendResult);
+                }
+
+                @Override
+                public void onException(Throwable e) {
+                    inFlight.release();
+                    LOGGER.error("Send message failed, messageKey: " + mqMessage.getMessageKey(), e);
+                    callback.onException(e);
+                }
+            }, serverConfig.getRocketMQSendTimeoutMillis());
+        } catch (Exception e) {
+            inFlight.release();
+            LOGGER.error("Send message failed, messageKey: " + mqMessage.getMessageKey(), e);
+            callback.onException(e);
+        }
+    }
+
+    /**
+     * 异步转发已提交的事务消息，broker回调后先更新发送状态，再响应客户端；
+     * 事务已提交，转发失败也返回成功，由发送状态记录失败
+     */
+    private void forwardCommitted(final ChannelHandlerContext ctx, final RpcCommand request,
+                                  final Long transactionId, final RocketMQMessage mqMessage){
+        sendMessageAsync(mqMessage, new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                LOGGER.debug("Send status {}, msgId {}, transactionId {}",
+                        sendResult.getSendStatus(), sendResult.getMsgId(), transactionId);
+                updateSendStatus(transactionId, mqMessage, SendStatus.SUCCESS);
+                writeResponse(ctx, request, RpcCommandBuilder.buildSuccess());
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                updateSendStatus(transactionId, mqMessage, SendStatus.FAILED);
+                writeResponse(ctx, request, RpcCommandBuilder.buildSuccess());
+            }
+        });
+    }
+
+    /**
+     * 回查返回UNKNOWN时累加回查次数，事务已完结则不更新
+     */
+    static Result<RocketMQMessage> increaseCheckTimes(StoreService<RocketMQMessage> storeService, Long transactionId,
+                                                      RocketMQMessage mqMessage){
+        if(mqMessage.getTransactionState() != TransactionState.PREPARE.getCode()){
+            return Result.buildSucc(mqMessage);
+        }
+        Short checkTimes = mqMessage.getCheckTimes();
+        mqMessage.setCheckTimes((short) (checkTimes == null ? 1 : checkTimes + 1));
+        return storeService.update(transactionId, mqMessage);
+    }
+
+    private Result<RocketMQMessage> increaseCheckTimes(Long transactionId, RocketMQMessage mqMessage){
+        return increaseCheckTimes(mQStoreService, transactionId, mqMessage);
+    }
+
+    @Override
+    public void updateSendStatus(Long transactionId, RocketMQMessage mqMessage, SendStatus sendStatus){
+        mqMessage.setSendStatus(sendStatus.getCode());
+        Result<RocketMQMessage> updateResult = mQStoreService.update(transactionId, mqMessage);
+        if(!updateResult.isSuccess()){
+            LOGGER.error("更新发送状态失败, transactionId: " + transactionId + ", error: " + updateResult.getErrorString());
+        }
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, RpcCommand request, RpcCommand response){
+        if(request.isOneWayRpc()){
+            return;
+        }
+        response.setOpaque(request.getOpaque());
+        response.setCmdType(RpcCommand.RESPONSE_COMMAND);
+        ctx.writeAndFlush(response);
+    }
+
+    private Message buildMessage(RocketMQMessage mqMessage){
+        Message msg = new Message(mqMessage.getTopic(),// topic
+                mqMessage.getTags(),       // tag
+                mqMessage.getMessageBody() // body
+        );
+        msg.setKeys(mqMessage.getMessageKey());
+        return msg;
+    }
+
+    private Semaphore getInFlight(String group){
+        Semaphore inFlight = inFlightTable.get(group);
+        if(inFlight == null){
+            inFlight = new Semaphore(serverConfig.getRocketMQSendMaxInFlight());
+            Semaphore prev = inFlightTable.putIfAbsent(group, inFlight);
+            if(prev != null){
+                inFlight = prev;
+            }
+        }
+        return inFlight;
+    }
+
     @Override
     public RpcCommand prepareMessage(ChannelHandlerContext ctx, RpcCommand request) {
         final RpcCommand response;
 
         final RocketMQBody mqBody = request.getBody(RocketMQBody.class);
 
-        RocketMQMessage mqMessage = RocketMQMessage.build(mqBody, TransactionState.PREPARE);
+        RocketMQMessage mqMessage = connector.encode(mqBody, TransactionState.PREPARE);
 
         //持久化 消息
         Result<Long> putResult = mQStoreService.put(mqMessage);
@@ -161,13 +354,30 @@ public class RocketMQProducer implements EventProducer {
                 if(commitResult.isSuccess()){
                     LOGGER.debug("提交事务消息 topic:{}, messageKey:{}, transactionId:{}" ,
                             mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
-                    response = RpcCommandBuilder.buildSuccess();  
+                    if(outboxRelay != null){
+                        //提交已持久化，由转发中继发送(投递失败时由扫描补发)
+                        outboxRelay.relay(transactionId, mqMessage);
+                        return RpcCommandBuilder.buildSuccess();
+                    }
+                    if(serverConfig.isRocketMQSendAsync()){
+                        //异步发送消息，更新发送状态后响应客户端
+                        forwardCommitted(ctx, request, transactionId, mqMessage);
+                        return null;
+                    }
+                    //同步发送消息并记录发送状态
+                    SendResult sendResult = null;
+                    try {
+                        sendResult = sendMessage(mqMessage);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Send committed message failed, transactionId: " + transactionId, e);
+                    }
+                    updateSendStatus(transactionId, mqMessage, sendResult != null ? SendStatus.SUCCESS : SendStatus.FAILED);
+                    response = RpcCommandBuilder.buildSuccess();
                 }else{
+                    //事务已回滚或不存在，不发送
                     LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ commitResult.getErrorString());
                     response = RpcCommandBuilder.buildFail("提交事务消息失败," + commitResult.getErrorString());
                 }
-                //发送消息
-                sendMessage(mqMessage);
             }
         }else{
             LOGGER.error("提交事务消息失败, transactionId: " + transactionId+", error: "+ getResult.getErrorString());
@@ -218,9 +428,8 @@ public class RocketMQProducer implements EventProducer {
             }else{
                 RocketMQMessage mqMessage = getResult.getData();
 
-                //TODO x锁更新
-                // update transaction_message set retry_times=retry_times+1 where id=#{transactionId} and transactionState=
-                Result<RocketMQMessage> updateResult = mQStoreService.update(transactionId, mqMessage);
+                //记录回查未决次数，回查服务据此退避及转入死信
+                Result<RocketMQMessage> updateResult = increaseCheckTimes(transactionId, mqMessage);
                 if(updateResult.isSuccess()){
                     LOGGER.debug("事务消息状态更新 topic:{}, messageKey:{}, transactionId:{}" ,
                             mqMessage.getTopic(), mqMessage.getMessageKey(), transactionId);
@@ -237,29 +446,60 @@ public class RocketMQProducer implements EventProducer {
         return response;
     }
 
-    private MQProducer getMQProducer(String group) throws MQClientException {
-        MQProducer mqProducer = producerTable.get(group);
-        if (mqProducer != null) {
-            return mqProducer;
+    /**
+     * 预热producerGroup，提前连接nameserv/broker
+     */
+    public void warmUp(Collection<String> groups){
+        for(String group : groups){
+            try {
+                getMQProducer(group);
+                LOGGER.info("Warm up producer, group: {}", group);
+            } catch (MQClientException e) {
+                LOGGER.warn("Warm up producer failed, group: " + group, e);
+            }
         }
-        try {
-            lock.lock();
+    }
 
-            mqProducer = producerTable.get(group);
-            if (mqProducer != null) {
-                return mqProducer;
+    private MQProducer getMQProducer(final String group) throws MQClientException {
+        Future<MQProducer> future = producerTable.get(group);
+        if (future == null) {
+            FutureTask<MQProducer> task = new FutureTask<MQProducer>(new Callable<MQProducer>() {
+                @Override
+                public MQProducer call() throws Exception {
+                    return createMQProducer(group);
+                }
+            });
+            future = producerTable.putIfAbsent(group, task);
+            if (future == null) {
+                future = task;
+                task.run();
             }
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            //创建失败，下次重新创建
+            producerTable.remove(group, future);
+            if (e.getCause() instanceof MQClientException) {
+                throw (MQClientException) e.getCause();
+            }
+            throw new MQClientException("Create producer failed, group: " + group, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MQClientException("Interrupted while creating producer, group: " + group, e);
+        }
+    }
 
-            DefaultMQProducer producer = new DefaultMQProducer(group);
+    private MQProducer createMQProducer(String group) throws MQClientException {
+        DefaultMQProducer producer;
+        if(serverConfig.isRocketMQStubEnable()){
+            producer = new StubMQProducer(group, serverConfig.getRocketMQStubLatencyMillis());
+        }else{
+            producer = new DefaultMQProducer(group);
             producer.setNamesrvAddr(namesrvAddr);
-            producer.start();
-
-            producerTable.put(group, producer);
-
-            return producer;
-        } finally {
-            lock.unlock();
         }
+        producer.start();
+        return producer;
     }
 
 }
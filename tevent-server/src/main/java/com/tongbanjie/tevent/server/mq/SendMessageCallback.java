@@ -0,0 +1,16 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+
+/**
+ * 发送消息回调<p>
+ * broker确认或失败后返回发送结果
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public interface SendMessageCallback {
+
+    void onComplete(RpcCommand response);
+
+}
@@ -0,0 +1,89 @@
+package com.tongbanjie.tevent.server.mq;
+
+import com.alibaba.rocketmq.client.exception.MQClientException;
+import com.alibaba.rocketmq.client.producer.DefaultMQProducer;
+import com.alibaba.rocketmq.client.producer.SendCallback;
+import com.alibaba.rocketmq.client.producer.SendResult;
+import com.alibaba.rocketmq.client.producer.SendStatus;
+import com.alibaba.rocketmq.common.message.Message;
+import com.tongbanjie.tevent.common.util.NamedSingleThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地桩RocketMQ Producer<p>
+ * 不连接nameserv/broker，按固定延迟模拟broker往返后返回发送成功，
+ * 用于脱离RocketMQ环境压测server的转发链路
+ *
+ * @author zixiao
+ * @date 16/10/26
+ */
+public class StubMQProducer extends DefaultMQProducer {
+
+    private final long latencyMillis;
+
+    private final AtomicLong msgIdSeq = new AtomicLong(0);
+
+    private volatile ScheduledExecutorService callbackExecutor;
+
+    public StubMQProducer(String producerGroup, long latencyMillis) {
+        super(producerGroup);
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public void start() throws MQClientException {
+        this.callbackExecutor = Executors.newSingleThreadScheduledExecutor(
+                new NamedSingleThreadFactory("StubMQProducerCallbackThread_" + getProducerGroup()));
+    }
+
+    @Override
+    public void shutdown() {
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public SendResult send(Message msg) throws InterruptedException {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        return buildSendResult();
+    }
+
+    @Override
+    public SendResult send(Message msg, long timeout) throws InterruptedException {
+        return send(msg);
+    }
+
+    @Override
+    public void send(Message msg, final SendCallback sendCallback) {
+        callbackExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendCallback.onSuccess(buildSendResult());
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback, long timeout) {
+        send(msg, sendCallback);
+    }
+
+    @Override
+    public void sendOneway(Message msg) {
+    }
+
+    private SendResult buildSendResult() {
+        SendResult sendResult = new SendResult();
+        sendResult.setSendStatus(SendStatus.SEND_OK);
+        sendResult.setMsgId("STUB" + msgIdSeq.incrementAndGet());
+        return sendResult;
+    }
+
+}
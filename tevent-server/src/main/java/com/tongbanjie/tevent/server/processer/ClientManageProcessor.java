@@ -19,6 +19,8 @@ package com.tongbanjie.tevent.server.processer;
 import com.tongbanjie.tevent.rpc.protocol.RequestCode;
 import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.exception.RpcCommandException;
+import com.tongbanjie.tevent.rpc.protocol.header.HeartbeatHeader;
+import com.tongbanjie.tevent.rpc.protocol.header.HeartbeatResponseHeader;
 import com.tongbanjie.tevent.rpc.protocol.header.RegisterRequestHeader;
 import com.tongbanjie.tevent.rpc.netty.NettyRequestProcessor;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
@@ -26,10 +28,14 @@ import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
 import com.tongbanjie.tevent.rpc.protocol.body.HeartbeatData;
 import com.tongbanjie.tevent.server.ServerController;
 import com.tongbanjie.tevent.server.client.ClientChannelInfo;
+import com.tongbanjie.tevent.server.client.ClientManager;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Map;
+
 public class ClientManageProcessor implements NettyRequestProcessor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientManageProcessor.class);
@@ -77,10 +83,16 @@ public class ClientManageProcessor implements NettyRequestProcessor {
     }
 
     public RpcCommand heartBeat(ChannelHandlerContext ctx, RpcCommand request) {
-        RpcCommand response = RpcCommandBuilder.buildResponse();
+        final ClientManager clientManager = this.serverController.getClientManager();
+
+        //合并心跳的group摘要未变化时只刷新时间戳，不解析心跳数据
+        Map<String, String> customFields = request.getCustomFields();
+        String groupsDigest = customFields == null ? null : customFields.get(HeartbeatHeader.GROUPS_DIGEST);
+        if (groupsDigest != null && clientManager.refreshHeartbeat(ctx.channel(), groupsDigest)) {
+            return request.isOneWayRpc() ? null : heartbeatResponse();
+        }
 
         HeartbeatData heartbeatData = request.getBody(HeartbeatData.class);
-        String group = heartbeatData.getGroup();
 
         ClientChannelInfo clientChannelInfo = new ClientChannelInfo(//
             ctx.channel(),//
@@ -88,10 +100,23 @@ public class ClientManageProcessor implements NettyRequestProcessor {
             request.getVersion()//
             );
 
-        this.serverController.getClientManager().register(group, clientChannelInfo);
+        List<String> groups = heartbeatData.getGroups();
+        if (groups != null) {
+            clientManager.registerHeartbeat(clientChannelInfo, groups, groupsDigest);
+        } else {
+            //单个group的心跳
+            clientManager.register(heartbeatData.getGroup(), clientChannelInfo);
+        }
 
-        response.setCmdCode(ResponseCode.SUCCESS);
-        response.setRemark(null);
-        return response;
+        return heartbeatResponse();
+    }
+
+    /**
+     * 心跳响应告知客户端支持合并心跳，客户端收到后才发送合并心跳
+     */
+    private RpcCommand heartbeatResponse() {
+        HeartbeatResponseHeader responseHeader = new HeartbeatResponseHeader();
+        responseHeader.setCombinedSupported(true);
+        return RpcCommandBuilder.buildSuccess(responseHeader);
     }
 }
@@ -9,15 +9,25 @@ import com.tongbanjie.tevent.rpc.protocol.RequestCode;
 import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchSendMessageData;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchSendResultData;
+import com.tongbanjie.tevent.rpc.protocol.body.BatchTransactionStateData;
+import com.tongbanjie.tevent.rpc.protocol.body.SendFailedItem;
+import com.tongbanjie.tevent.rpc.protocol.body.TransactionStateItem;
+import com.tongbanjie.tevent.rpc.protocol.header.BatchTransactionMessageHeader;
 import com.tongbanjie.tevent.rpc.protocol.header.SendMessageHeader;
 import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
 import com.tongbanjie.tevent.server.ServerController;
 import com.tongbanjie.tevent.server.mq.EventProducer;
-import com.tongbanjie.tevent.server.mq.EventProducerFactory;
+import com.tongbanjie.tevent.server.mq.MQConnectorManager;
+import com.tongbanjie.tevent.server.mq.SendMessageCallback;
 import io.netty.channel.ChannelHandlerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * 〈一句话功能简述〉<p>
  * 〈功能详细描述〉
@@ -42,6 +52,10 @@ public class SendMessageProcessor implements NettyRequestProcessor {
                 return this.sendMessage(ctx, request);
             case RequestCode.TRANSACTION_MESSAGE:
                 return this.transactionMessage(ctx, request);
+            case RequestCode.BATCH_TRANSACTION_MESSAGE:
+                return this.batchTransactionMessage(ctx, request);
+            case RequestCode.BATCH_SEND_MESSAGE:
+                return this.batchSendMessage(ctx, request);
             default:
                 LOGGER.warn("Invalid request，requestCode："+request.getCmdCode());
                 break;
@@ -58,18 +72,62 @@ public class SendMessageProcessor implements NettyRequestProcessor {
      * @throws MQClientException
      * @throws RpcCommandException
      */
-    private RpcCommand sendMessage(ChannelHandlerContext ctx, RpcCommand request) throws MQClientException, RpcCommandException {
+    private RpcCommand sendMessage(final ChannelHandlerContext ctx, final RpcCommand request) throws MQClientException, RpcCommandException {
         //1、解析并校验 消息头
         SendMessageHeader header = (SendMessageHeader)request.decodeCustomHeader(SendMessageHeader.class);
+        validateMessage(header);
+
+        //2、在连接器线程池中处理事件
+        return execute(header.getMqType(), ctx, request, new MQConnectorManager.ProducerCall() {
+            @Override
+            public RpcCommand call(EventProducer producer) throws Exception {
+                return producer.sendMessage(ctx, request);
+            }
+        });
+    }
 
-        //2、获取事件处理者
-        EventProducer producer = getProducer(header.getMqType());
-        if(producer == null){
-            return RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_ERROR,
-                    "System error：can not find a producer to handle the message {}" + header);
+    /**
+     * 批量发送普通消息，全部消息得到broker确认后响应一次
+     * @param ctx
+     * @param request
+     * @return
+     * @throws RpcCommandException
+     */
+    private RpcCommand batchSendMessage(final ChannelHandlerContext ctx, final RpcCommand request) throws RpcCommandException {
+        //1、解析并校验 消息头、消息体
+        final SendMessageHeader header = (SendMessageHeader)request.decodeCustomHeader(SendMessageHeader.class);
+        validateMessage(header);
+        final BatchSendMessageData sendData = request.getBody(BatchSendMessageData.class);
+        if(sendData == null || sendData.getMessages() == null || sendData.getMessages().isEmpty()){
+            throw new RpcCommandException("Param error: request body can not be empty");
         }
-        //3、处理事件
-        return producer.sendMessage(ctx, request);
+
+        //2、在连接器线程池中处理事件
+        return execute(header.getMqType(), ctx, request, new MQConnectorManager.ProducerCall() {
+            @Override
+            public RpcCommand call(EventProducer producer) throws Exception {
+                List<byte[]> messages = sendData.getMessages();
+                BatchSendCollector collector = new BatchSendCollector(ctx, request, messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    RpcCommand itemRequest = RpcCommandBuilder.buildRequest(RequestCode.SEND_MESSAGE, header);
+                    itemRequest.setSerializeType(request.getSerializeType());
+                    itemRequest.setBody(messages.get(i));
+                    SendMessageCallback callback = collector.callback(i);
+                    RpcCommand itemResponse;
+                    try {
+                        itemResponse = producer.sendMessage(itemRequest, callback);
+                    } catch (Exception e) {
+                        LOGGER.error("Batch send message failed, index: " + i, e);
+                        itemResponse = RpcCommandBuilder.buildFail("发送消息失败," + e.getMessage());
+                    }
+                    if (itemResponse != null) {
+                        callback.onComplete(itemResponse);
+                    }
+                }
+                //全部消息完成后由collector响应
+                return null;
+            }
+        });
     }
 
     /**
@@ -79,18 +137,80 @@ public class SendMessageProcessor implements NettyRequestProcessor {
      * @return
      * @throws RpcCommandException
      */
-    private RpcCommand transactionMessage(ChannelHandlerContext ctx, RpcCommand request) throws RpcCommandException {
+    private RpcCommand transactionMessage(final ChannelHandlerContext ctx, final RpcCommand request) throws RpcCommandException {
         //1、解析并校验 消息头
-        TransactionMessageHeader header = (TransactionMessageHeader) request.decodeCustomHeader(TransactionMessageHeader.class);
+        final TransactionMessageHeader header = (TransactionMessageHeader) request.decodeCustomHeader(TransactionMessageHeader.class);
         validateTransactionMessage(header);
+        if (header.getTransactionState() != TransactionState.PREPARE && header.getTransactionId() != null) {
+            //回查结果，更新该客户端的回查负载
+            this.serverController.getClientManager().checkAnswered(header.getTransactionId());
+        }
 
-        //2、获取事件处理者
-        EventProducer producer = getProducer(header.getMqType());
-        if(producer == null){
-            return RpcCommandBuilder.buildResponse(ResponseCode.SYSTEM_ERROR,
-                    "System error：can not find a producer to handle the message {}"+ header);
+        //2、在连接器线程池中处理事件
+        return execute(header.getMqType(), ctx, request, new MQConnectorManager.ProducerCall() {
+            @Override
+            public RpcCommand call(EventProducer producer) throws Exception {
+                return handleTransactionMessage(producer, ctx, request, header);
+            }
+        });
+    }
+
+    /**
+     * 批量事务状态(回查结果)，在连接器线程池中逐条提交、回滚或记录未决
+     * @param ctx
+     * @param request
+     * @return
+     * @throws RpcCommandException
+     */
+    private RpcCommand batchTransactionMessage(final ChannelHandlerContext ctx, final RpcCommand request) throws RpcCommandException {
+        //1、解析并校验 消息头、消息体
+        final BatchTransactionMessageHeader header = (BatchTransactionMessageHeader) request.decodeCustomHeader(BatchTransactionMessageHeader.class);
+        if(header == null){
+            throw new RpcCommandException("Param error: messageHeader can not be null");
+        }
+        header.checkFields();
+        final BatchTransactionStateData stateData = request.getBody(BatchTransactionStateData.class);
+        if(stateData == null || stateData.getItems() == null){
+            throw new RpcCommandException("Param error: request body can not be null");
         }
-        //3、处理事件
+        for (TransactionStateItem item : stateData.getItems()) {
+            if (item.getTransactionId() != null) {
+                this.serverController.getClientManager().checkAnswered(item.getTransactionId());
+            }
+        }
+
+        //2、在连接器线程池中处理事件
+        return execute(header.getMqType(), ctx, request, new MQConnectorManager.ProducerCall() {
+            @Override
+            public RpcCommand call(EventProducer producer) throws Exception {
+                for (TransactionStateItem item : stateData.getItems()) {
+                    if (item.getTransactionId() == null || item.getTransactionState() == null
+                            || item.getTransactionState() == TransactionState.PREPARE) {
+                        LOGGER.warn("Invalid transaction state, transactionId: {}, transactionState: {}",
+                                item.getTransactionId(), item.getTransactionState());
+                        continue;
+                    }
+                    TransactionMessageHeader itemHeader = new TransactionMessageHeader();
+                    itemHeader.setMqType(header.getMqType());
+                    itemHeader.setTransactionId(item.getTransactionId());
+                    itemHeader.setTransactionState(item.getTransactionState());
+                    //逐条处理，结果不单独响应
+                    RpcCommand itemRequest = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE, itemHeader,
+                            item.getRemark());
+                    itemRequest.setOneWayRpc(true);
+                    RpcCommand itemResponse = handleTransactionMessage(producer, ctx, itemRequest, itemHeader);
+                    if (itemResponse != null && itemResponse.getCmdCode() != ResponseCode.SUCCESS) {
+                        LOGGER.warn("Handle transaction state failed, transactionId: {}, transactionState: {}, remark: {}",
+                                item.getTransactionId(), item.getTransactionState(), itemResponse.getRemark());
+                    }
+                }
+                return RpcCommandBuilder.buildSuccess();
+            }
+        });
+    }
+
+    private RpcCommand handleTransactionMessage(EventProducer producer, ChannelHandlerContext ctx, RpcCommand request,
+                                                TransactionMessageHeader header){
         switch (header.getTransactionState()){
             case PREPARE:
                 return producer.prepareMessage(ctx, request);
@@ -125,8 +245,63 @@ public class SendMessageProcessor implements NettyRequestProcessor {
         }
     }
 
-    private EventProducer getProducer(MQType mqType){
-        return EventProducerFactory.getInstance().getAndCreate(mqType, this.serverController);
+    /**
+     * 收集批量发送中每条消息的结果，最后一条完成时响应客户端
+     */
+    private static class BatchSendCollector {
+
+        private final ChannelHandlerContext ctx;
+
+        private final RpcCommand request;
+
+        private final AtomicInteger remaining;
+
+        private final BatchSendResultData resultData = new BatchSendResultData();
+
+        BatchSendCollector(ChannelHandlerContext ctx, RpcCommand request, int size) {
+            this.ctx = ctx;
+            this.request = request;
+            this.remaining = new AtomicInteger(size);
+        }
+
+        SendMessageCallback callback(final int index) {
+            return new SendMessageCallback() {
+                @Override
+                public void onComplete(RpcCommand response) {
+                    complete(index, response);
+                }
+            };
+        }
+
+        private void complete(int index, RpcCommand response) {
+            if (response.getCmdCode() != ResponseCode.SUCCESS) {
+                SendFailedItem failedItem = new SendFailedItem();
+                failedItem.setIndex(index);
+                failedItem.setRemark(response.getRemark());
+                synchronized (resultData) {
+                    resultData.getFailedItems().add(failedItem);
+                }
+            }
+            if (remaining.decrementAndGet() != 0 || request.isOneWayRpc()) {
+                return;
+            }
+            RpcCommand batchResponse;
+            synchronized (resultData) {
+                int failed = resultData.getFailedItems().size();
+                batchResponse = failed == 0 ? RpcCommandBuilder.buildSuccess()
+                        : RpcCommandBuilder.buildFail("批量发送消息部分失败, failed: " + failed);
+                batchResponse.setSerializeType(request.getSerializeType());
+                batchResponse.setBody(resultData);
+            }
+            batchResponse.setOpaque(request.getOpaque());
+            batchResponse.setCmdType(RpcCommand.RESPONSE_COMMAND);
+            ctx.writeAndFlush(batchResponse);
+        }
+    }
+
+    private RpcCommand execute(MQType mqType, ChannelHandlerContext ctx, RpcCommand request,
+                               MQConnectorManager.ProducerCall call){
+        return this.serverController.getConnectorManager().execute(mqType, ctx, request, call);
     }
 
 
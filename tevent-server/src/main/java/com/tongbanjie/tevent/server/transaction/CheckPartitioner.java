@@ -0,0 +1,125 @@
+package com.tongbanjie.tevent.server.transaction;
+
+import com.tongbanjie.tevent.registry.Address;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 事务回查分区<p>
+ * 按存活的服务端构造一致性哈希环(每个服务端160个虚拟节点)，事务id落在哪个服务端的区间由该服务端回查；
+ * 服务端增减时只迁移相邻区间的事务；
+ * 服务端列表为空或注册中心不可用时，本机回查全部事务
+ *
+ * @author zixiao
+ * @date 16/11/3
+ */
+class CheckPartitioner {
+
+    private static final int VIRTUAL_NODES = 160;
+
+    private final String localAddress;
+
+    //虚拟节点hash -> 服务端地址，替换而不修改
+    private volatile TreeMap<Long, String> ring;
+
+    private volatile Set<String> members = new TreeSet<String>();
+
+    CheckPartitioner(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * 更新服务端列表
+     * @return 分区是否变化
+     */
+    synchronized boolean update(Iterable<Address> servers) {
+        Set<String> newMembers = new TreeSet<String>();
+        for (Address server : servers) {
+            newMembers.add(server.getAddress());
+        }
+        if (!newMembers.isEmpty()) {
+            //本机尚未注册或注册信息过期时也参与分区
+            newMembers.add(localAddress);
+        }
+        if (newMembers.equals(members)) {
+            return false;
+        }
+
+        TreeMap<Long, String> newRing = null;
+        if (newMembers.size() > 1) {
+            newRing = new TreeMap<Long, String>();
+            for (String member : newMembers) {
+                for (int i = 0; i < VIRTUAL_NODES / 4; i++) {
+                    byte[] digest = md5(member + "#" + i);
+                    //每个md5值拆分为4个虚拟节点
+                    for (int h = 0; h < 4; h++) {
+                        newRing.put(hash(digest, h), member);
+                    }
+                }
+            }
+        }
+        this.members = newMembers;
+        this.ring = newRing;
+        return true;
+    }
+
+    /**
+     * 本机是否负责回查该事务
+     */
+    boolean isOwner(long transactionId) {
+        TreeMap<Long, String> current = this.ring;
+        if (current == null) {
+            return true;
+        }
+        long hash = mix(transactionId) & 0xFFFFFFFFL;
+        SortedMap<Long, String> tail = current.tailMap(hash);
+        String owner = tail.isEmpty() ? current.firstEntry().getValue() : tail.get(tail.firstKey());
+        return localAddress.equals(owner);
+    }
+
+    int getMemberCount() {
+        return members.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CheckPartitioner{local=" + localAddress + ", members=" + members + '}';
+    }
+
+    private static long hash(byte[] digest, int index) {
+        return (((long) (digest[3 + index * 4] & 0xFF) << 24)
+                | ((long) (digest[2 + index * 4] & 0xFF) << 16)
+                | ((long) (digest[1 + index * 4] & 0xFF) << 8)
+                | (digest[index * 4] & 0xFF))
+                & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 事务id为分布式id，低位规律性强，先打散
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static byte[] md5(String value) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return md5.digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
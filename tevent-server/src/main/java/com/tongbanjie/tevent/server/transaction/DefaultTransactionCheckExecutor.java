@@ -15,35 +15,37 @@
  */
 package com.tongbanjie.tevent.server.transaction;
 
-import com.tongbanjie.tevent.common.body.RocketMQBody;
-import com.tongbanjie.tevent.common.message.MQMessage;
 import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.common.message.RocketMQMessage;
-import com.tongbanjie.tevent.rpc.InvokeCallback;
-import com.tongbanjie.tevent.rpc.ResponseFuture;
+import com.tongbanjie.tevent.common.message.TransactionState;
 import com.tongbanjie.tevent.rpc.RpcServer;
 import com.tongbanjie.tevent.rpc.exception.RpcException;
-import com.tongbanjie.tevent.rpc.protocol.RequestCode;
-import com.tongbanjie.tevent.rpc.protocol.ResponseCode;
 import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
-import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
-import com.tongbanjie.tevent.rpc.protocol.header.CheckTransactionStateHeader;
 import com.tongbanjie.tevent.server.ServerController;
-import com.tongbanjie.tevent.server.client.ClientChannelInfo;
+import com.tongbanjie.tevent.server.mq.MQConnector;
 import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.service.StoreService;
 import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 
 /**
- * 主动回查Producer的事务状态
+ * 主动回查Producer的事务状态<p>
+ * 同一producerGroup的多条事务合并为一个批量回查请求，单向发送，
+ * Producer通过TRANSACTION_MESSAGE请求返回各事务的状态
  *
  */
 public class DefaultTransactionCheckExecutor implements TransactionCheckExecutor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DefaultTransactionCheckExecutor.class);
 
+    private static final long SEND_TIMEOUT_MILLIS = 3000;
+
     private final ServerController serverController;
 
     private final RpcServer rpcServer;
@@ -55,69 +57,42 @@ public class DefaultTransactionCheckExecutor implements TransactionCheckExecutor
 
 
     @Override
-    public void gotoCheck(String producerGroup, MQMessage mqMessage) {
-        // 第一步、查询Producer
-        final ClientChannelInfo clientChannelInfo =
-                this.serverController.getClientManager().pickClientRandomly(producerGroup);
-        if (null == clientChannelInfo) {
-            LOGGER.warn("check a producer transaction state, but not find any channel of this group[{}]",
-                    producerGroup);
-            return;
+    @SuppressWarnings("unchecked")
+    public List<RocketMQMessage> gotoCheck(MQType mqType, Channel channel, String producerGroup, List<RocketMQMessage> mqMessages) {
+        final MQConnector connector = this.serverController.getConnectorManager().getConnector(mqType);
+        if (null == connector) {
+            LOGGER.warn("check a producer transaction state, but not find connector of mqType[{}]", mqType);
+            return Collections.emptyList();
         }
 
-        // 第二步、查询消息
-        Result<RocketMQMessage> result =
-                this.serverController.getStoreManager().getStoreService().get(mqMessage.getId());
-        if (null == result.getData()) {
-            LOGGER.warn("check a producer transaction state, but not find message by id: {}", mqMessage.getId());
-            return;
+        // 第一步、查询消息，排队期间已提交/回滚的不再回查
+        StoreService<RocketMQMessage> storeService = this.serverController.getStoreManager().getStoreService(mqType);
+        List<RocketMQMessage> checkMessages = new ArrayList<RocketMQMessage>(mqMessages.size());
+        for (RocketMQMessage mqMessage : mqMessages) {
+            Result<RocketMQMessage> result = storeService.get(mqMessage.getId());
+            if (null == result.getData()) {
+                LOGGER.warn("check a producer transaction state, but not find message by id: {}", mqMessage.getId());
+                continue;
+            }
+            if (result.getData().getTransactionState() == TransactionState.PREPARE.getCode()) {
+                checkMessages.add(result.getData());
+            }
+        }
+        if (checkMessages.isEmpty()) {
+            return checkMessages;
         }
 
-        // 第三步、向Producer发起请求
-        sendTransactionCheckRequest(clientChannelInfo.getChannel(), result.getData());
-    }
-
-    private void sendTransactionCheckRequest(final Channel channel, final RocketMQMessage rocketMQMessage){
-        final CheckTransactionStateHeader requestHeader = new CheckTransactionStateHeader();
-        requestHeader.setMqType(MQType.ROCKET_MQ);
-        requestHeader.setMessageKey(rocketMQMessage.getMessageKey());
-        requestHeader.setTransactionId(rocketMQMessage.getId());
-
-        final RocketMQBody mqBody = new RocketMQBody();
-        mqBody.setTopic(rocketMQMessage.getTopic());
-        mqBody.setProducerGroup(rocketMQMessage.getProducerGroup());
-        mqBody.setMessageBody(rocketMQMessage.getMessageBody());
-        mqBody.setMessageKey(rocketMQMessage.getMessageKey());
-
-        final Long tid = rocketMQMessage.getId();
-        final RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.CHECK_TRANSACTION_STATE,
-                requestHeader, mqBody);
+        // 第二步、向Producer发起请求，发送失败也计入回查次数，按退避时间重试
+        RpcCommand request = connector.buildBatchCheckRequest(producerGroup, checkMessages);
         try {
-            rpcServer.invokeAsync(channel, request, 10 * 1000, new InvokeCallback(){
-                @Override
-                public void operationComplete(ResponseFuture responseFuture) {
-                    RpcCommand response = responseFuture.getResponseCommand();
-                    if(response == null){
-                        if(responseFuture.isSendRequestOK()){
-                            LOGGER.info("Send transactionCheck request success, transactionId:{}", tid);
-                        }else{
-                            LOGGER.error("Send transactionCheck request failed, transactionId:{}", tid);
-                        }
-                    }else{
-                        if(response.getCmdCode() == ResponseCode.SUCCESS){
-                            LOGGER.info("Get transactionCheck response, result is success, transactionId:{}",  tid);
-                        }else{
-                            LOGGER.warn("Get transactionCheck response, result is error, errorCode:{}, transactionId:{}",
-                                    request.getCmdCode(),  tid);
-                        }
-                    }
-                }
-            });
+            rpcServer.invokeOneway(channel, request, SEND_TIMEOUT_MILLIS);
+            LOGGER.debug("Send transactionCheck request, group: {}, count: {}", producerGroup, checkMessages.size());
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             LOGGER.error("InterruptedException", e);
         } catch (RpcException e) {
-            LOGGER.error("RpcException", e);
+            LOGGER.error("Send transactionCheck request failed, group: " + producerGroup, e);
         }
-
+        return checkMessages;
     }
 }
@@ -0,0 +1,44 @@
+package com.tongbanjie.tevent.server.transaction;
+
+/**
+ * 令牌桶限流<p>
+ * 桶容量为每秒令牌数(允许1秒的突发)，单次申请超过桶容量时在桶满后放行并透支
+ *
+ * @author zixiao
+ * @date 16/11/1
+ */
+class TokenBucket {
+
+    private final double capacity;
+
+    private final double permitsPerMillis;
+
+    private double tokens;
+
+    private long lastRefillTime;
+
+    TokenBucket(int permitsPerSecond) {
+        this.capacity = Math.max(permitsPerSecond, 1);
+        this.permitsPerMillis = this.capacity / 1000;
+        this.tokens = this.capacity;
+        this.lastRefillTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 申请令牌
+     * @return 0表示成功，否则为需等待的毫秒数
+     */
+    synchronized long tryAcquire(int permits) {
+        long now = System.currentTimeMillis();
+        if (now > lastRefillTime) {
+            tokens = Math.min(capacity, tokens + (now - lastRefillTime) * permitsPerMillis);
+            lastRefillTime = now;
+        }
+        double need = Math.min(permits, capacity);
+        if (tokens >= need) {
+            tokens -= permits;
+            return 0;
+        }
+        return Math.max((long) Math.ceil((need - tokens) / permitsPerMillis), 1);
+    }
+}
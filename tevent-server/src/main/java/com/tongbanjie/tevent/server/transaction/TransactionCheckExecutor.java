@@ -15,7 +15,11 @@
  */
 package com.tongbanjie.tevent.server.transaction;
 
-import com.tongbanjie.tevent.common.message.MQMessage;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import io.netty.channel.Channel;
+
+import java.util.List;
 
 /**
  * Producer回查事务状态
@@ -23,5 +27,13 @@ import com.tongbanjie.tevent.common.message.MQMessage;
  */
 public interface TransactionCheckExecutor {
 
-    void gotoCheck(String producerGroup, MQMessage mqMessage);
+    /**
+     * 向Producer批量发起回查
+     * @param mqType
+     * @param channel 同一producerGroup的客户端连接
+     * @param producerGroup
+     * @param mqMessages
+     * @return 仍未完结、已发起回查的消息(从存储重新读取)，其余消息已完结或不存在
+     */
+    List<RocketMQMessage> gotoCheck(MQType mqType, Channel channel, String producerGroup, List<RocketMQMessage> mqMessages);
 }
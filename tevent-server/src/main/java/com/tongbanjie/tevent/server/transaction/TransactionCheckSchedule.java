@@ -0,0 +1,150 @@
+package com.tongbanjie.tevent.server.transaction;
+
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 未决事务的回查时间表<p>
+ * 按事务id索引，并按下次回查时间排序；
+ * 到期的事务取出后处于回查中状态(只在id索引中)，回查后重新排入或移除
+ *
+ * @author zixiao
+ * @date 16/11/2
+ */
+class TransactionCheckSchedule {
+
+    private final Map<Long/* transactionId */, CheckEntry> entryTable = new HashMap<Long, CheckEntry>();
+
+    private final TreeSet<CheckEntry> timeIndex = new TreeSet<CheckEntry>(new Comparator<CheckEntry>() {
+        @Override
+        public int compare(CheckEntry o1, CheckEntry o2) {
+            if (o1.nextCheckTime != o2.nextCheckTime) {
+                return o1.nextCheckTime < o2.nextCheckTime ? -1 : 1;
+            }
+            return o1.mqMessage.getId().compareTo(o2.mqMessage.getId());
+        }
+    });
+
+    /**
+     * 加入未跟踪的事务
+     * @return 是否成为最早到期的事务
+     */
+    synchronized boolean add(MQType mqType, RocketMQMessage mqMessage, int checkTimes, long nextCheckTime) {
+        if (entryTable.containsKey(mqMessage.getId())) {
+            return false;
+        }
+        CheckEntry entry = new CheckEntry(mqType, mqMessage, checkTimes);
+        entry.nextCheckTime = nextCheckTime;
+        entryTable.put(mqMessage.getId(), entry);
+        timeIndex.add(entry);
+        return timeIndex.first() == entry;
+    }
+
+    /**
+     * 取出到期的事务
+     */
+    synchronized List<CheckEntry> pollDue(long now, int maxSize) {
+        List<CheckEntry> entries = new ArrayList<CheckEntry>();
+        while (entries.size() < maxSize && !timeIndex.isEmpty() && timeIndex.first().nextCheckTime <= now) {
+            entries.add(timeIndex.pollFirst());
+        }
+        return entries;
+    }
+
+    /**
+     * 回查中的事务重新排入，期间已被移除的不再排入
+     */
+    synchronized void reschedule(CheckEntry entry, long nextCheckTime) {
+        if (entryTable.get(entry.mqMessage.getId()) != entry) {
+            return;
+        }
+        timeIndex.remove(entry);
+        entry.nextCheckTime = nextCheckTime;
+        timeIndex.add(entry);
+    }
+
+    /**
+     * 仍处于回查中状态(未重新排入也未移除)的事务重新排入，用于回查异常后的兜底
+     * @return 重新排入的事务数
+     */
+    synchronized int requeue(List<CheckEntry> entries, long nextCheckTime) {
+        int requeued = 0;
+        for (CheckEntry entry : entries) {
+            if (entryTable.get(entry.mqMessage.getId()) != entry || timeIndex.contains(entry)) {
+                continue;
+            }
+            entry.nextCheckTime = nextCheckTime;
+            timeIndex.add(entry);
+            requeued++;
+        }
+        return requeued;
+    }
+
+    synchronized void remove(Long transactionId) {
+        CheckEntry entry = entryTable.remove(transactionId);
+        if (entry != null) {
+            timeIndex.remove(entry);
+        }
+    }
+
+    /**
+     * 只保留该MQ类型仍未决的事务
+     * @return 移除的事务数
+     */
+    synchronized int retain(MQType mqType, Set<Long> transactionIds) {
+        int removed = 0;
+        Iterator<CheckEntry> it = entryTable.values().iterator();
+        while (it.hasNext()) {
+            CheckEntry entry = it.next();
+            if (entry.mqType == mqType && !transactionIds.contains(entry.mqMessage.getId())) {
+                it.remove();
+                timeIndex.remove(entry);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 最早的下次回查时间，没有排队的事务时返回Long.MAX_VALUE
+     */
+    synchronized long nextCheckTime() {
+        return timeIndex.isEmpty() ? Long.MAX_VALUE : timeIndex.first().nextCheckTime;
+    }
+
+    synchronized int size() {
+        return entryTable.size();
+    }
+
+    synchronized void clear() {
+        entryTable.clear();
+        timeIndex.clear();
+    }
+
+    static class CheckEntry {
+
+        final MQType mqType;
+
+        final RocketMQMessage mqMessage;
+
+        //已发起的回查次数
+        int checkTimes;
+
+        long nextCheckTime;
+
+        CheckEntry(MQType mqType, RocketMQMessage mqMessage, int checkTimes) {
+            this.mqType = mqType;
+            this.mqMessage = mqMessage;
+            this.checkTimes = checkTimes;
+        }
+    }
+}
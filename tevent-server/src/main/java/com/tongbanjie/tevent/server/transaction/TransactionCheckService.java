@@ -1,22 +1,47 @@
 package com.tongbanjie.tevent.server.transaction;
 
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
 import com.tongbanjie.tevent.common.util.NamedThreadFactory;
+import com.tongbanjie.tevent.registry.Address;
+import com.tongbanjie.tevent.registry.ServerChangeListener;
+import com.tongbanjie.tevent.server.ServerConfig;
 import com.tongbanjie.tevent.server.ServerController;
+import com.tongbanjie.tevent.server.client.ClientChannelInfo;
+import com.tongbanjie.tevent.server.mq.MQConnector;
+import com.tongbanjie.tevent.server.transaction.TransactionCheckSchedule.CheckEntry;
 import com.tongbanjie.tevent.store.Result;
-import com.tongbanjie.tevent.store.service.RocketMQStoreService;
 import com.tongbanjie.tevent.store.service.StoreService;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 〈一句话功能简述〉<p>
- * 〈功能详细描述〉
+ * 事务状态回查服务<p>
+ * 集群中按存活的服务端对事务id一致性哈希分区，每个服务端只回查自己分区内的事务，服务端增减时重新扫描；
+ * 定期扫描未决的事务消息，本机负责的事务按id分配到各回查线程的回查时间表(按下次回查时间排序)，并移除已完结的事务；
+ * 首次回查时间为创建时间加 transactionCheckMinAgeMillis，每次回查后按回查次数指数退避，
+ * 超过最大回查次数转入死信状态；
+ * 回查线程只在最早的事务到期时唤醒，到期事务按producerGroup合并为批量回查请求，
+ * 每个客户端连接按令牌桶限流，超出速率的事务延后回查
  *
  * @author zixiao
  * @date 16/10/14
@@ -25,21 +50,63 @@ public class TransactionCheckService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TransactionCheckService.class);
 
+    //每次唤醒最多取出的到期事务数
+    private static final int MAX_POLL_SIZE = 1024;
+
+    private static final long CHANNEL_CLEAN_INTERVAL_MILLIS = 60 * 1000;
+
     private final ServerController serverController;
 
+    private final ServerConfig serverConfig;
+
     private final TransactionCheckExecutor transactionCheckExecutor;
 
+    private final CheckWorker[] checkWorkers;
+
+    private final ConcurrentMap<Channel, TokenBucket> channelLimiterTable = new ConcurrentHashMap<Channel, TokenBucket>();
+
+    //启动时按本机地址创建
+    private volatile CheckPartitioner partitioner;
+
+    private final AtomicLong checkedCount = new AtomicLong(0);
+
+    private final AtomicLong throttledCount = new AtomicLong(0);
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    private final AtomicLong deadLetterCount = new AtomicLong(0);
+
     private ScheduledExecutorService scheduledExecutorService = Executors
             .newSingleThreadScheduledExecutor(new NamedThreadFactory("TransactionStateCheckScheduledThread"));
 
 
     public TransactionCheckService(final ServerController serverController) {
         this.serverController = serverController;
+        this.serverConfig = serverController.getServerConfig();
         this.transactionCheckExecutor  = new DefaultTransactionCheckExecutor(serverController);
+        this.checkWorkers = new CheckWorker[Math.max(serverConfig.getTransactionCheckThreadNums(), 1)];
+        for (int i = 0; i < checkWorkers.length; i++) {
+            checkWorkers[i] = new CheckWorker(i);
+        }
     }
 
 
     public void start() {
+        this.partitioner = new CheckPartitioner(serverController.getServerAddress().getAddress());
+        this.partitioner.update(serverController.getServerRegistry().getServers());
+        serverController.getServerRegistry().addServerChangeListener(new ServerChangeListener() {
+            @Override
+            public void onServerChanged(List<Address> servers) {
+                if (partitioner.update(servers)) {
+                    LOGGER.info("Transaction check partition changed, " + partitioner);
+                    rebalance();
+                }
+            }
+        });
+
+        for (CheckWorker worker : checkWorkers) {
+            worker.start();
+        }
         this.scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
@@ -50,22 +117,335 @@ public class TransactionCheckService {
                     LOGGER.error("", e);
                 }
             }
-        }, 1000 * 30, 1000 * 60 * 3, TimeUnit.MILLISECONDS);
+        }, 1000 * 30, serverConfig.getTransactionCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 分区变化后立即重新扫描，接管新分配的事务，移除不再负责的事务
+     */
+    private void rebalance(){
+        try {
+            this.scheduledExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TransactionCheckService.this.checkTransactionState();
+                    }
+                    catch (Exception e) {
+                        LOGGER.error("", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Rebalance transaction check rejected, service is shutdown");
+        }
     }
 
+    /**
+     * 扫描未决事务，更新回查时间表
+     */
     public void checkTransactionState(){
-        StoreService storeService = this.serverController.getStoreManager().getStoreService();
-        if(storeService instanceof RocketMQStoreService){
-            Result<List<RocketMQMessage>> listResult = storeService.selectTrans();
-            List<RocketMQMessage> list = listResult.getData();
-            for(RocketMQMessage mqMessage : list){
-                this.transactionCheckExecutor.gotoCheck(mqMessage.getProducerGroup(), mqMessage);
+        for(MQConnector connector : this.serverController.getConnectorManager().getConnectors()){
+            //客户端无法应答的MQ类型不回查，避免未决事务被转入死信
+            if(connector.isTransactionCheckSupported()){
+                scanTransactionState(connector.getMQType());
             }
         }
     }
 
+    /**
+     * 按id分页扫描未决事务，每页只保留本机负责的事务，不在内存中持有全部未决事务
+     */
+    @SuppressWarnings("unchecked")
+    private void scanTransactionState(MQType mqType){
+        StoreService storeService = this.serverController.getStoreManager().getStoreService(mqType);
+        int pageSize = Math.max(serverConfig.getTransactionCheckScanPageSize(), 1);
+        Set<Long> transactionIds = new HashSet<Long>();
+        boolean[] earlier = new boolean[checkWorkers.length];
+        long now = System.currentTimeMillis();
+        int pending = 0;
+        int owned = 0;
+        long lastId = Long.MIN_VALUE;
+        while (true){
+            Result<List<RocketMQMessage>> pageResult = storeService.selectTrans(lastId, pageSize);
+            if(!pageResult.isSuccess()){
+                //扫描不完整，不清理回查时间表，下次扫描重试
+                LOGGER.warn("Select " + mqType + " transaction messages failed, " + pageResult.getErrorString());
+                return;
+            }
+            List<RocketMQMessage> page = pageResult.getData();
+            for(RocketMQMessage mqMessage : page){
+                lastId = mqMessage.getId();
+                pending++;
+                if(!partitioner.isOwner(mqMessage.getId())){
+                    continue;
+                }
+                transactionIds.add(mqMessage.getId());
+                owned++;
+                long createTime = mqMessage.getCreateTime() == null ? now : mqMessage.getCreateTime().getTime();
+                int checkTimes = mqMessage.getCheckTimes() == null ? 0 : mqMessage.getCheckTimes();
+                int index = workerIndex(mqMessage.getId());
+                if(checkWorkers[index].checkSchedule.add(mqType, mqMessage, checkTimes,
+                        createTime + serverConfig.getTransactionCheckMinAgeMillis())){
+                    earlier[index] = true;
+                }
+            }
+            if(page.size() < pageSize){
+                break;
+            }
+        }
+        //已完结(或转入死信)、不再由本机负责的事务不再回查
+        int removed = 0;
+        int scheduled = 0;
+        for(int i = 0; i < checkWorkers.length; i++){
+            removed += checkWorkers[i].checkSchedule.retain(mqType, transactionIds);
+            scheduled += checkWorkers[i].checkSchedule.size();
+            if(earlier[i]){
+                checkWorkers[i].wakeup();
+            }
+        }
+        LOGGER.info("Scan {} transaction messages, pending: {}, owned: {}, removed: {}, scheduled: {}",
+                mqType, pending, owned, removed, scheduled);
+    }
+
+    private int workerIndex(long transactionId){
+        return (int) ((transactionId ^ (transactionId >>> 32)) & Integer.MAX_VALUE) % checkWorkers.length;
+    }
+
+    /**
+     * 第checkTimes次回查后的退避时间
+     */
+    private long backoffMillis(int checkTimes) {
+        long base = serverConfig.getTransactionCheckBackoffBaseMillis();
+        long delay = base << Math.min(Math.max(checkTimes - 1, 0), 20);
+        return Math.min(delay, serverConfig.getTransactionCheckBackoffMaxMillis());
+    }
+
+    private TokenBucket getLimiter(Channel channel){
+        TokenBucket limiter = channelLimiterTable.get(channel);
+        if(limiter == null){
+            limiter = new TokenBucket(serverConfig.getTransactionCheckChannelPermitsPerSecond());
+            TokenBucket prev = channelLimiterTable.putIfAbsent(channel, limiter);
+            if(prev != null){
+                limiter = prev;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * 转入死信状态，之后客户端仍可提交或回滚
+     */
+    @SuppressWarnings("unchecked")
+    private void deadLetter(CheckEntry entry){
+        Long transactionId = entry.mqMessage.getId();
+
+        StoreService<RocketMQMessage> storeService = this.serverController.getStoreManager().getStoreService(entry.mqType);
+        Result<RocketMQMessage> getResult = storeService.get(transactionId);
+        RocketMQMessage mqMessage = getResult.getData();
+        if(mqMessage == null || mqMessage.getTransactionState() != TransactionState.PREPARE.getCode()){
+            return;
+        }
+        mqMessage.setTransactionState(TransactionState.DEAD_LETTER.getCode());
+        Result<RocketMQMessage> updateResult = storeService.update(transactionId, mqMessage);
+        if(updateResult.isSuccess()){
+            deadLetterCount.incrementAndGet();
+            LOGGER.warn("Transaction exceeds max check times, move to dead letter, transactionId: {}, checkTimes: {}",
+                    transactionId, entry.checkTimes);
+        }else{
+            LOGGER.warn("Move transaction to dead letter failed, transactionId: " + transactionId
+                    + ", error: " + updateResult.getErrorString());
+        }
+    }
+
     public void shutdown(){
         this.scheduledExecutorService.shutdown();
+        for (CheckWorker worker : checkWorkers) {
+            worker.shutdown();
+        }
+    }
+
+    public long getCheckedCount() {
+        return checkedCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    public int getScheduledCount() {
+        int count = 0;
+        for (CheckWorker worker : checkWorkers) {
+            count += worker.checkSchedule.size();
+        }
+        return count;
+    }
+
+    class CheckWorker extends ServiceThread {
+
+        private final int index;
+
+        private final TransactionCheckSchedule checkSchedule = new TransactionCheckSchedule();
+
+        private long lastCleanTime = System.currentTimeMillis();
+
+        CheckWorker(int index) {
+            this.index = index;
+            //父类构造时index尚未赋值，线程名需重新设置
+            this.thread.setName(this.getServiceName());
+        }
+
+        @Override
+        public String getServiceName() {
+            return "TransactionCheckWorker_" + index;
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    //等待最早的事务到期，扫描到更早的事务时被唤醒
+                    long delay = checkSchedule.nextCheckTime() - System.currentTimeMillis();
+                    if (delay > 0) {
+                        this.waitForRunning(Math.min(delay, serverConfig.getTransactionCheckIntervalMillis()));
+                        continue;
+                    }
+                    List<CheckEntry> entries = checkSchedule.pollDue(System.currentTimeMillis(), MAX_POLL_SIZE);
+                    try {
+                        this.dispatch(entries);
+                    } finally {
+                        //回查异常时，未重新排入也未移除的事务延后重新排入，不能停留在回查中状态
+                        int requeued = checkSchedule.requeue(entries,
+                                System.currentTimeMillis() + serverConfig.getTransactionCheckIntervalMillis());
+                        if (requeued > 0) {
+                            LOGGER.warn("Requeue {} transactions after check failure", requeued);
+                        }
+                    }
+                    this.cleanLimiters();
+                } catch (Exception e) {
+                    LOGGER.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            //未回查的事务由下次启动后的扫描重新加入
+            checkSchedule.clear();
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+
+        private void dispatch(List<CheckEntry> entries) {
+            //按MQ类型和producerGroup分组，超过最大回查次数的转入死信
+            Map<String, List<CheckEntry>> groupTable = new LinkedHashMap<String, List<CheckEntry>>();
+            for (CheckEntry entry : entries) {
+                if (!partitioner.isOwner(entry.mqMessage.getId())) {
+                    //分区已变化，由新的服务端回查
+                    checkSchedule.remove(entry.mqMessage.getId());
+                    continue;
+                }
+                if (entry.checkTimes >= serverConfig.getTransactionCheckMaxTimes()) {
+                    checkSchedule.remove(entry.mqMessage.getId());
+                    deadLetter(entry);
+                    continue;
+                }
+                String key = entry.mqType + "@" + entry.mqMessage.getProducerGroup();
+                List<CheckEntry> list = groupTable.get(key);
+                if (list == null) {
+                    list = new ArrayList<CheckEntry>();
+                    groupTable.put(key, list);
+                }
+                list.add(entry);
+            }
+
+            int batchSize = Math.max(serverConfig.getTransactionCheckBatchSize(), 1);
+            for (List<CheckEntry> list : groupTable.values()) {
+                for (int i = 0; i < list.size(); i += batchSize) {
+                    this.dispatchBatch(list.subList(i, Math.min(i + batchSize, list.size())));
+                }
+            }
+        }
+
+        private void dispatchBatch(List<CheckEntry> batch) {
+            CheckEntry first = batch.get(0);
+            String producerGroup = first.mqMessage.getProducerGroup();
+            long now = System.currentTimeMillis();
+
+            ClientChannelInfo clientChannelInfo = serverController.getClientManager().pickClient(producerGroup);
+            if (null == clientChannelInfo) {
+                LOGGER.warn("check a producer transaction state, but not find any channel of this group[{}]",
+                        producerGroup);
+                //不计入回查次数，等待客户端重新连接
+                droppedCount.addAndGet(batch.size());
+                reschedule(batch, now + serverConfig.getTransactionCheckIntervalMillis());
+                return;
+            }
+
+            Channel channel = clientChannelInfo.getChannel();
+            long waitMillis = getLimiter(channel).tryAcquire(batch.size());
+            if (waitMillis > 0) {
+                //超出该连接的回查速率，延后回查
+                throttledCount.incrementAndGet();
+                reschedule(batch, now + waitMillis);
+                return;
+            }
+
+            List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>(batch.size());
+            for (CheckEntry entry : batch) {
+                mqMessages.add(entry.mqMessage);
+            }
+            List<RocketMQMessage> checked = transactionCheckExecutor.gotoCheck(first.mqType, channel,
+                    producerGroup, mqMessages);
+            checkedCount.addAndGet(checked.size());
+
+            Map<Long, RocketMQMessage> checkedTable = new HashMap<Long, RocketMQMessage>(checked.size() * 2);
+            for (RocketMQMessage mqMessage : checked) {
+                checkedTable.put(mqMessage.getId(), mqMessage);
+            }
+            if (!checkedTable.isEmpty()) {
+                serverController.getClientManager().checkSent(clientChannelInfo, checkedTable.keySet());
+            }
+            for (CheckEntry entry : batch) {
+                RocketMQMessage stored = checkedTable.get(entry.mqMessage.getId());
+                if (stored == null) {
+                    //已完结或不存在
+                    checkSchedule.remove(entry.mqMessage.getId());
+                    continue;
+                }
+                entry.checkTimes++;
+                if (stored.getCheckTimes() != null && stored.getCheckTimes() > entry.checkTimes) {
+                    entry.checkTimes = stored.getCheckTimes();
+                }
+                checkSchedule.reschedule(entry, now + backoffMillis(entry.checkTimes));
+            }
+        }
+
+        private void reschedule(List<CheckEntry> batch, long nextCheckTime) {
+            for (CheckEntry entry : batch) {
+                checkSchedule.reschedule(entry, nextCheckTime);
+            }
+        }
+
+        private void cleanLimiters() {
+            long now = System.currentTimeMillis();
+            if (now - lastCleanTime < CHANNEL_CLEAN_INTERVAL_MILLIS) {
+                return;
+            }
+            lastCleanTime = now;
+            Iterator<Channel> it = channelLimiterTable.keySet().iterator();
+            while (it.hasNext()) {
+                if (!it.next().isActive()) {
+                    it.remove();
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,143 @@
+package server;
+
+import com.tongbanjie.tevent.common.body.KafkaBody;
+import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.rpc.protocol.RequestCode;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommand;
+import com.tongbanjie.tevent.rpc.protocol.RpcCommandBuilder;
+import com.tongbanjie.tevent.rpc.protocol.header.TransactionMessageHeader;
+import com.tongbanjie.tevent.server.ServerConfig;
+import com.tongbanjie.tevent.server.mq.KafkaConnector;
+import com.tongbanjie.tevent.server.mq.KafkaEventProducer;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.service.RocketMQStoreService;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Kafka 事件处理者测试<p>
+ * 以MockProducer代替Kafka，内存存储作为事务消息存储，
+ * 验证提交后按messageKey发送，broker确认后的发送状态，以及失败后交给转发中继由其重发；
+ * 最后按默认配置创建真实的KafkaProducer，校验生产者配置
+ *
+ * @author zixiao
+ * @date 16/10/31
+ */
+public class KafkaEventProducerTest {
+
+    public static void main(String[] args) throws Exception {
+        DistributedIdGenerator.setUniqueWorkId(1);
+
+        RocketMQStoreService storeService = new RocketMQStoreService(new StoreConfig());
+        MockProducer<String, byte[]> mockProducer =
+                new MockProducer<String, byte[]>(false, new StringSerializer(), new ByteArraySerializer());
+        //转发中继不自动扫描，由用例控制重发时机
+        ServerConfig relayConfig = new ServerConfig();
+        relayConfig.setOutboxRelayScanIntervalMillis(60 * 1000);
+        relayConfig.setOutboxRelayRetryBaseMillis(0);
+        KafkaEventProducer producer = new KafkaEventProducer(new KafkaConnector(), storeService, mockProducer,
+                relayConfig);
+
+        //1、提交后发送，broker确认后发送状态为成功
+        Long tid = prepare(producer, "order_1");
+        producer.commitMessage(null, transactionRequest(TransactionState.COMMIT, tid), tid);
+        ProducerRecord<String, byte[]> record = mockProducer.history().get(0);
+        System.out.println("Sent record, topic: " + record.topic() + ", key(expect order_1): " + record.key());
+        mockProducer.completeNext();
+        System.out.println("Send status(expect " + SendStatus.SUCCESS.getCode() + "): " + waitSendStatus(storeService, tid));
+
+        //2、broker返回失败，发送状态为失败，交给转发中继并记录重试次数
+        tid = prepare(producer, "order_2");
+        producer.commitMessage(null, transactionRequest(TransactionState.COMMIT, tid), tid);
+        mockProducer.errorNext(new RuntimeException("broker unavailable"));
+        System.out.println("Send status(expect " + SendStatus.FAILED.getCode() + "): " + waitSendStatus(storeService, tid));
+        System.out.println("Retry times(expect 1): " + storeService.get(tid).getData().getRetryTimes());
+
+        //3、转发中继重发，等待broker确认
+        final RocketMQMessage failed = storeService.get(tid).getData();
+        failed.setId(tid);
+        final KafkaEventProducer relaySender = producer;
+        final AtomicBoolean resent = new AtomicBoolean(false);
+        Thread relayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                resent.set(relaySender.send(failed));
+            }
+        });
+        relayThread.start();
+        while (mockProducer.history().size() < 3) {
+            Thread.sleep(10);
+        }
+        mockProducer.completeNext();
+        relayThread.join();
+        System.out.println("Relay resend(expect true): " + resent.get()
+                + ", key(expect order_2): " + mockProducer.history().get(2).key());
+
+        //4、回滚的消息不发送
+        tid = prepare(producer, "order_3");
+        producer.rollbackMessage(null, transactionRequest(TransactionState.ROLLBACK, tid), tid);
+        System.out.println("Sent records(expect 3): " + mockProducer.history().size());
+
+        producer.shutdown();
+
+        //5、按默认配置创建真实的KafkaProducer(MockProducer不校验配置)，不连接broker
+        ServerConfig serverConfig = new ServerConfig();
+        Producer<String, byte[]> kafkaProducer = KafkaEventProducer.createKafkaProducer(serverConfig);
+        kafkaProducer.close();
+        serverConfig.setKafkaIdempotenceEnable(false);
+        kafkaProducer = KafkaEventProducer.createKafkaProducer(serverConfig);
+        kafkaProducer.close();
+        System.out.println("Create KafkaProducer with idempotence on and off, config valid");
+    }
+
+    private static Long prepare(KafkaEventProducer producer, String messageKey) {
+        KafkaBody mqBody = new KafkaBody();
+        mqBody.setTopic("tevent_kafka_test");
+        mqBody.setProducerGroup("tevent_kafka_group");
+        mqBody.setMessageKey(messageKey);
+        mqBody.setMessageBody(("body of " + messageKey).getBytes());
+
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE,
+                transactionHeader(TransactionState.PREPARE, null), mqBody);
+        RpcCommand response = producer.prepareMessage(null, request);
+        return ((TransactionMessageHeader) response.getCustomHeader()).getTransactionId();
+    }
+
+    private static RpcCommand transactionRequest(TransactionState state, Long tid) {
+        RpcCommand request = RpcCommandBuilder.buildRequest(RequestCode.TRANSACTION_MESSAGE,
+                transactionHeader(state, tid));
+        //不写响应
+        request.setOneWayRpc(true);
+        return request;
+    }
+
+    private static TransactionMessageHeader transactionHeader(TransactionState state, Long tid) {
+        TransactionMessageHeader header = new TransactionMessageHeader();
+        header.setMqType(MQType.KAFKA);
+        header.setTransactionState(state);
+        header.setTransactionId(tid);
+        return header;
+    }
+
+    private static Short waitSendStatus(RocketMQStoreService storeService, Long tid) throws InterruptedException {
+        //发送状态在回调线程中更新
+        for (int i = 0; i < 100; i++) {
+            RocketMQMessage mqMessage = storeService.get(tid).getData();
+            if (mqMessage.getSendStatus() != null && mqMessage.getSendStatus() != SendStatus.NOT_SEND.getCode()) {
+                return mqMessage.getSendStatus();
+            }
+            Thread.sleep(10);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,169 @@
+package server;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.tongbanjie.tevent.server.ServerConfig;
+import com.tongbanjie.tevent.server.mq.RabbitMQChannelPool;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RabbitMQ 发布channel池测试<p>
+ * 以不连接broker的Connection/Channel代替RabbitMQ，由测试手动触发确认，
+ * 验证单条/批量确认(multiple=true)、nack、确认超时以及channel断开
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class RabbitMQChannelPoolTest {
+
+    private static StubChannel channel;
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setRabbitMQChannelPoolSize(1);
+        serverConfig.setRabbitMQConfirmTimeoutMillis(500);
+        RabbitMQChannelPool channelPool = new RabbitMQChannelPool(serverConfig, new StubConnectionFactory());
+        CountingCallback callback = new CountingCallback();
+
+        //1、批量确认: ack(3, multiple) 确认前3条
+        for (int i = 1; i <= 3; i++) {
+            channelPool.publish("test_exchange", "test_key", "msg_" + i, new byte[16], callback);
+        }
+        System.out.println("Published 3, outstanding(expect 3): " + channelPool.getOutstandingConfirms());
+        channel.confirmListener.handleAck(3, true);
+        waitCompleted(callback, 3);
+        System.out.println("Multiple ack, success(expect 3): " + callback.success.get()
+                + ", outstanding(expect 0): " + channelPool.getOutstandingConfirms());
+
+        //2、单条确认与nack
+        channelPool.publish("test_exchange", "test_key", "msg_4", new byte[16], callback);
+        channelPool.publish("test_exchange", "test_key", "msg_5", new byte[16], callback);
+        channel.confirmListener.handleAck(4, false);
+        channel.confirmListener.handleNack(5, false);
+        waitCompleted(callback, 5);
+        System.out.println("Single ack and nack, success(expect 4): " + callback.success.get()
+                + ", failed(expect 1): " + callback.failed.get());
+
+        //3、超过确认超时时间未确认，按失败处理
+        channelPool.publish("test_exchange", "test_key", "msg_6", new byte[16], callback);
+        long start = System.currentTimeMillis();
+        waitCompleted(callback, 6);
+        System.out.println("Confirm timeout, failed(expect 2): " + callback.failed.get()
+                + ", cost(expect >= 500ms): " + (System.currentTimeMillis() - start) + "ms"
+                + ", last error: " + callback.lastError);
+
+        //4、channel断开，未确认消息按失败处理
+        channelPool.publish("test_exchange", "test_key", "msg_7", new byte[16], callback);
+        channel.open = false;
+        channel.shutdownListener.shutdownCompleted(new ShutdownSignalException(false, false, null, channel));
+        waitCompleted(callback, 7);
+        System.out.println("Channel shutdown, failed(expect 3): " + callback.failed.get()
+                + ", outstanding(expect 0): " + channelPool.getOutstandingConfirms());
+
+        //5、下次发布重建channel
+        channelPool.publish("test_exchange", "test_key", "msg_8", new byte[16], callback);
+        channel.confirmListener.handleAck(1, false);
+        waitCompleted(callback, 8);
+        System.out.println("Recreated channel, success(expect 5): " + callback.success.get());
+
+        channelPool.shutdown();
+    }
+
+    private static void waitCompleted(CountingCallback callback, int expect) throws InterruptedException {
+        //确认回调在回调线程中执行
+        for (int i = 0; i < 300; i++) {
+            if (callback.success.get() + callback.failed.get() >= expect) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    static class CountingCallback implements RabbitMQChannelPool.PublishCallback {
+
+        private final AtomicInteger success = new AtomicInteger(0);
+
+        private final AtomicInteger failed = new AtomicInteger(0);
+
+        private volatile Throwable lastError;
+
+        @Override
+        public void onSuccess() {
+            success.incrementAndGet();
+        }
+
+        @Override
+        public void onException(Throwable e) {
+            lastError = e;
+            failed.incrementAndGet();
+        }
+    }
+
+    static class StubConnectionFactory extends ConnectionFactory {
+
+        @Override
+        public Connection newConnection() throws IOException, TimeoutException {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[]{Connection.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            String name = method.getName();
+                            if ("createChannel".equals(name)) {
+                                channel = new StubChannel();
+                                return channel.proxy;
+                            } else if ("isOpen".equals(name)) {
+                                return true;
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 记录确认监听和断开监听，发布只分配deliveryTag
+     */
+    static class StubChannel implements InvocationHandler {
+
+        private final Channel proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class[]{Channel.class}, this);
+
+        private volatile boolean open = true;
+
+        private long nextPublishSeqNo = 1;
+
+        private ConfirmListener confirmListener;
+
+        private ShutdownListener shutdownListener;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getNextPublishSeqNo".equals(name)) {
+                return nextPublishSeqNo;
+            } else if ("basicPublish".equals(name)) {
+                nextPublishSeqNo++;
+            } else if ("addConfirmListener".equals(name)) {
+                confirmListener = (ConfirmListener) args[0];
+            } else if ("addShutdownListener".equals(name)) {
+                shutdownListener = (ShutdownListener) args[0];
+            } else if ("isOpen".equals(name)) {
+                return open;
+            } else if ("close".equals(name)) {
+                open = false;
+            }
+            return null;
+        }
+    }
+
+}
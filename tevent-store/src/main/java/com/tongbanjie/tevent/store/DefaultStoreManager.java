@@ -1,11 +1,18 @@
 package com.tongbanjie.tevent.store;
 
 import com.tongbanjie.tevent.common.message.MQType;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.store.cache.CachedStoreService;
 import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.config.StoreType;
+import com.tongbanjie.tevent.store.service.RocketMQJdbcStoreService;
+import com.tongbanjie.tevent.store.service.ShardedStoreService;
 import com.tongbanjie.tevent.store.service.StoreService;
 import com.tongbanjie.tevent.store.service.RocketMQStoreService;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -28,18 +35,62 @@ public class DefaultStoreManager implements StoreManager {
 
     @Override
     public boolean load() {
-        mqStoreServiceMap.put(MQType.ROCKET_MQ, new RocketMQStoreService(this.storeConfig));
+        //默认存储，其他MQ的存储由连接器注册
+        mqStoreServiceMap.put(MQType.ROCKET_MQ, createStoreService(storeConfig));
         return true;
     }
 
     @Override
-    public void start() throws Exception {
+    public synchronized StoreService registerStoreService(MQType mqType, String tableName) {
+        StoreService storeService = mqStoreServiceMap.get(mqType);
+        if(storeService == null){
+            storeService = createStoreService(tableName == null ? storeConfig : storeConfig.forTable(tableName));
+            mqStoreServiceMap.put(mqType, storeService);
+        }
+        return storeService;
+    }
+
+    private StoreService<RocketMQMessage> createStoreService(StoreConfig config){
+        StoreService<RocketMQMessage> storeService;
+        if(config.getShardNums() > 1){
+            List<StoreService<RocketMQMessage>> shards = new ArrayList<StoreService<RocketMQMessage>>();
+            for(int i=0; i<config.getShardNums(); i++){
+                shards.add(createRocketMQStoreService(config.forShard(i)));
+            }
+            storeService = new ShardedStoreService(shards);
+        }else{
+            storeService = createRocketMQStoreService(config);
+        }
+        if(config.isCacheEnable()){
+            storeService = new CachedStoreService(storeService, config.getCacheMaxBodyBytes());
+        }
+        return storeService;
+    }
 
+    private StoreService<RocketMQMessage> createRocketMQStoreService(StoreConfig config){
+        if(config.getStoreType() == StoreType.JDBC){
+            return new RocketMQJdbcStoreService(config);
+        }else{
+            return new RocketMQStoreService(config);
+        }
     }
 
     @Override
-    public void shutdown() {
+    public void start() throws Exception {
+        for(StoreService storeService : mqStoreServiceMap.values()){
+            if(storeService instanceof StoreLifecycle){
+                ((StoreLifecycle) storeService).start();
+            }
+        }
+    }
 
+    @Override
+    public void shutdown() {
+        for(StoreService storeService : mqStoreServiceMap.values()){
+            if(storeService instanceof StoreLifecycle){
+                ((StoreLifecycle) storeService).shutdown();
+            }
+        }
     }
 
     @Override
@@ -47,4 +98,9 @@ public class DefaultStoreManager implements StoreManager {
         return mqStoreServiceMap.get(MQType.ROCKET_MQ);
     }
 
+    @Override
+    public StoreService getStoreService(MQType mqType) {
+        return mqStoreServiceMap.get(mqType);
+    }
+
 }
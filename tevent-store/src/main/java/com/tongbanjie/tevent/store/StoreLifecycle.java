@@ -0,0 +1,17 @@
+package com.tongbanjie.tevent.store;
+
+/**
+ * 存储服务生命周期<p>
+ * 需要启动后台线程或释放资源的存储服务实现该接口，
+ * 由 {@link StoreManager} 统一启动和关闭
+ *
+ * @author zixiao
+ * @date 16/10/24
+ */
+public interface StoreLifecycle {
+
+    void start() throws Exception;
+
+    void shutdown();
+
+}
@@ -1,5 +1,6 @@
 package com.tongbanjie.tevent.store;
 
+import com.tongbanjie.tevent.common.message.MQType;
 import com.tongbanjie.tevent.store.service.StoreService;
 
 /**
@@ -19,4 +20,14 @@ public interface StoreManager {
 
     StoreService getStoreService();
 
+    StoreService getStoreService(MQType mqType);
+
+    /**
+     * 注册MQ的存储服务，需在start之前调用，已注册时返回已有的存储服务
+     * @param mqType
+     * @param tableName 存储表名，为null时使用默认表
+     * @return
+     */
+    StoreService registerStoreService(MQType mqType, String tableName);
+
 }
@@ -0,0 +1,301 @@
+package com.tongbanjie.tevent.store.cache;
+
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.StoreLifecycle;
+import com.tongbanjie.tevent.store.service.StoreService;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带写穿透LRU缓存的存储服务<p>
+ * 提交/回滚/回查大多访问刚准备的消息，缓存最近写入的未完结事务消息，
+ * put/update 成功后同步写入缓存，事务进入终态(COMMIT/ROLLBACK)后移出缓存；
+ * 缓存按消息体字节数限制大小，分段LRU淘汰；
+ * 缓存中保存的是消息快照，写入和读取时都复制，调用方修改返回的消息不会影响缓存
+ *
+ * @author zixiao
+ * @date 16/10/25
+ */
+public class CachedStoreService implements StoreService<RocketMQMessage>, StoreLifecycle {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    //每条缓存记录除消息体外的估算开销(字节)
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final StoreService<RocketMQMessage> delegate;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    //容量不足淘汰次数
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    //事务终态移出次数
+    private final AtomicLong terminalRemoveCount = new AtomicLong(0);
+
+    public CachedStoreService(StoreService<RocketMQMessage> delegate, long maxBodyBytes) {
+        this.delegate = delegate;
+        this.segments = new Segment[SEGMENT_COUNT];
+        long segmentMaxBytes = Math.max(maxBodyBytes / SEGMENT_COUNT, 1);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentMaxBytes);
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (delegate instanceof StoreLifecycle) {
+            ((StoreLifecycle) delegate).start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (delegate instanceof StoreLifecycle) {
+            ((StoreLifecycle) delegate).shutdown();
+        }
+    }
+
+    @Override
+    public Result<Long> put(RocketMQMessage mqMessage) {
+        Result<Long> result = delegate.put(mqMessage);
+        if (result.isSuccess() && result.getData() != null) {
+            cache(result.getData(), mqMessage);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<RocketMQMessage> get(Long id) {
+        Segment segment = segmentFor(id);
+        RocketMQMessage mqMessage = segment.get(id);
+        if (mqMessage != null) {
+            hitCount.incrementAndGet();
+            return Result.buildSucc(copy(mqMessage));
+        }
+        missCount.incrementAndGet();
+
+        //加载期间该段有写入时不回填，避免旧数据覆盖新状态
+        long version = segment.version();
+        Result<RocketMQMessage> result = delegate.get(id);
+        if (result.isSuccess() && result.getData() != null && !isTerminal(result.getData())) {
+            segment.putIfUnchanged(id, copy(result.getData()), weigh(result.getData()), version);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<RocketMQMessage> update(Long id, RocketMQMessage mqMessage) {
+        Result<RocketMQMessage> result = delegate.update(id, mqMessage);
+        if (!result.isSuccess()) {
+            //更新失败时底层状态未知，作废缓存
+            segmentFor(id).remove(id);
+            return result;
+        }
+        //内存存储update返回的是旧记录，按本次写入的消息更新缓存
+        if (isTerminal(mqMessage)) {
+            if (segmentFor(id).remove(id)) {
+                terminalRemoveCount.incrementAndGet();
+            }
+        } else {
+            cache(id, mqMessage);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans() {
+        return delegate.selectTrans();
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans(Long fromId, int limit) {
+        return delegate.selectTrans(fromId, limit);
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectUnsent(Long fromId, int limit, short maxRetryTimes) {
+        return delegate.selectUnsent(fromId, limit, maxRetryTimes);
+    }
+
+    private void cache(Long id, RocketMQMessage mqMessage) {
+        if (isTerminal(mqMessage)) {
+            segmentFor(id).remove(id);
+        } else {
+            segmentFor(id).put(id, copy(mqMessage), weigh(mqMessage));
+        }
+    }
+
+    /**
+     * 复制消息，消息体字节数组不会被修改，共享引用
+     */
+    private static RocketMQMessage copy(RocketMQMessage mqMessage) {
+        RocketMQMessage copy = new RocketMQMessage();
+        copy.setId(mqMessage.getId());
+        copy.setMessageKey(mqMessage.getMessageKey());
+        copy.setTopic(mqMessage.getTopic());
+        copy.setTags(mqMessage.getTags());
+        copy.setProducerGroup(mqMessage.getProducerGroup());
+        copy.setMessageBody(mqMessage.getMessageBody());
+        copy.setTransactionState(mqMessage.getTransactionState());
+        copy.setSendStatus(mqMessage.getSendStatus());
+        copy.setRetryTimes(mqMessage.getRetryTimes());
+        copy.setCheckTimes(mqMessage.getCheckTimes());
+        if (mqMessage.getCreateTime() != null) {
+            copy.setCreateTime(new Date(mqMessage.getCreateTime().getTime()));
+        }
+        return copy;
+    }
+
+    private static boolean isTerminal(RocketMQMessage mqMessage) {
+        Byte state = mqMessage.getTransactionState();
+        return state != null && (state == TransactionState.COMMIT.getCode()
+                || state == TransactionState.ROLLBACK.getCode());
+    }
+
+    private static long weigh(RocketMQMessage mqMessage) {
+        byte[] body = mqMessage.getMessageBody();
+        return ENTRY_OVERHEAD + (body == null ? 0 : body.length);
+    }
+
+    private Segment segmentFor(Long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return segments[(int) (hash >>> 60) & (SEGMENT_COUNT - 1)];
+    }
+
+    public StoreService<RocketMQMessage> getDelegate() {
+        return delegate;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public long getTerminalRemoveCount() {
+        return terminalRemoveCount.get();
+    }
+
+    public long getCachedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    public int getCachedSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private class Segment {
+
+        private final long maxBytes;
+
+        private final LinkedHashMap<Long, Entry> map = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+        private long bytes;
+
+        //每次写入/移出递增
+        private long version;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized RocketMQMessage get(Long id) {
+            Entry entry = map.get(id);
+            return entry == null ? null : entry.mqMessage;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void put(Long id, RocketMQMessage mqMessage, long weight) {
+            version++;
+            doPut(id, mqMessage, weight);
+        }
+
+        synchronized void putIfUnchanged(Long id, RocketMQMessage mqMessage, long weight, long expectVersion) {
+            if (version == expectVersion && !map.containsKey(id)) {
+                doPut(id, mqMessage, weight);
+            }
+        }
+
+        synchronized boolean remove(Long id) {
+            version++;
+            Entry entry = map.remove(id);
+            if (entry == null) {
+                return false;
+            }
+            bytes -= entry.weight;
+            return true;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        private void doPut(Long id, RocketMQMessage mqMessage, long weight) {
+            if (weight > maxBytes) {
+                Entry old = map.remove(id);
+                if (old != null) {
+                    bytes -= old.weight;
+                }
+                return;
+            }
+            Entry old = map.put(id, new Entry(mqMessage, weight));
+            bytes += weight - (old == null ? 0 : old.weight);
+            Iterator<Map.Entry<Long, Entry>> it = map.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Long, Entry> eldest = it.next();
+                if (eldest.getKey().equals(id)) {
+                    continue;
+                }
+                bytes -= eldest.getValue().weight;
+                it.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final RocketMQMessage mqMessage;
+
+        final long weight;
+
+        Entry(RocketMQMessage mqMessage, long weight) {
+            this.mqMessage = mqMessage;
+            this.weight = weight;
+        }
+    }
+
+}
@@ -7,8 +7,291 @@ package com.tongbanjie.tevent.store.config;
  * @author zixiao
  * @date 16/10/10
  */
-public class StoreConfig{
+public class StoreConfig implements Cloneable{
+
+    /**
+     * 分片jdbcUrl中的分片序号占位符
+     */
+    public static final String SHARD_PLACEHOLDER = "${shard}";
+
+    /**
+     * 存储类型
+     */
+    private StoreType storeType = StoreType.MEMORY;
+
+    /**
+     * 分片数，大于1时按消息id分片存储；
+     * JDBC存储时jdbcUrl可包含 ${shard} 占位符，每个分片使用独立的库
+     */
+    private int shardNums = 1;
+
+    /**
+     * 是否在存储服务前启用写穿透缓存，缓存未完结的事务消息，
+     * 适用于JDBC等持久化存储
+     */
+    private boolean cacheEnable = false;
+
+    /**
+     * 缓存最大字节数(按消息体估算)
+     */
+    private long cacheMaxBodyBytes = 1024L * 1024 * 64;
 
     //数据库配置
 
+    /**
+     * JDBC驱动类
+     */
+    private String jdbcDriverClass = "com.mysql.jdbc.Driver";
+
+    /**
+     * JDBC连接地址
+     */
+    private String jdbcUrl;
+
+    /**
+     * 事务消息表名
+     */
+    private String jdbcTableName = "transaction_message";
+
+    /**
+     * RabbitMQ事务消息表名
+     */
+    private String rabbitMQJdbcTableName = "rabbitmq_transaction_message";
+
+    /**
+     * Kafka事务消息表名
+     */
+    private String kafkaJdbcTableName = "kafka_transaction_message";
+
+    /**
+     * 数据库用户名
+     */
+    private String jdbcUsername;
+
+    /**
+     * 数据库密码
+     */
+    private String jdbcPassword;
+
+    /**
+     * 连接池最大连接数
+     */
+    private int jdbcPoolSize = 16;
+
+    /**
+     * 获取连接超时时间(毫秒)
+     */
+    private long jdbcBorrowTimeoutMillis = 3000;
+
+    /**
+     * 批量插入单批最大条数
+     */
+    private int insertBatchSize = 200;
+
+    /**
+     * 插入等待超时时间(毫秒)
+     */
+    private long insertTimeoutMillis = 3000;
+
+    /**
+     * 查询待回查事务消息时每页条数
+     */
+    private int selectTransPageSize = 500;
+
+    /**
+     * 消息体是否存储在堆外内存
+     * 开启后堆内只保留消息的索引记录(id, 状态, 地址, 长度)，消息体在发送或回查时才读取
+     */
+    private boolean offHeapBodyEnable = false;
+
+    /**
+     * 堆外内存单个slab大小(字节)，超过该大小的消息体仍存储在堆内
+     */
+    private int offHeapSlabSize = 1024 * 1024 * 64;
+
+    /**
+     * 堆外内存slab最大数量，slab耗尽后消息体存储在堆内
+     */
+    private int offHeapMaxSlabs = 16;
+
+    public boolean isOffHeapBodyEnable() {
+        return offHeapBodyEnable;
+    }
+
+    public void setOffHeapBodyEnable(boolean offHeapBodyEnable) {
+        this.offHeapBodyEnable = offHeapBodyEnable;
+    }
+
+    public int getOffHeapSlabSize() {
+        return offHeapSlabSize;
+    }
+
+    public void setOffHeapSlabSize(int offHeapSlabSize) {
+        this.offHeapSlabSize = offHeapSlabSize;
+    }
+
+    public int getOffHeapMaxSlabs() {
+        return offHeapMaxSlabs;
+    }
+
+    public void setOffHeapMaxSlabs(int offHeapMaxSlabs) {
+        this.offHeapMaxSlabs = offHeapMaxSlabs;
+    }
+
+    public StoreType getStoreType() {
+        return storeType;
+    }
+
+    public void setStoreType(StoreType storeType) {
+        this.storeType = storeType;
+    }
+
+    public String getJdbcDriverClass() {
+        return jdbcDriverClass;
+    }
+
+    public void setJdbcDriverClass(String jdbcDriverClass) {
+        this.jdbcDriverClass = jdbcDriverClass;
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public void setJdbcUrl(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    public String getJdbcTableName() {
+        return jdbcTableName;
+    }
+
+    public void setJdbcTableName(String jdbcTableName) {
+        this.jdbcTableName = jdbcTableName;
+    }
+
+    public String getRabbitMQJdbcTableName() {
+        return rabbitMQJdbcTableName;
+    }
+
+    public void setRabbitMQJdbcTableName(String rabbitMQJdbcTableName) {
+        this.rabbitMQJdbcTableName = rabbitMQJdbcTableName;
+    }
+
+    public String getKafkaJdbcTableName() {
+        return kafkaJdbcTableName;
+    }
+
+    public void setKafkaJdbcTableName(String kafkaJdbcTableName) {
+        this.kafkaJdbcTableName = kafkaJdbcTableName;
+    }
+
+    public String getJdbcUsername() {
+        return jdbcUsername;
+    }
+
+    public void setJdbcUsername(String jdbcUsername) {
+        this.jdbcUsername = jdbcUsername;
+    }
+
+    public String getJdbcPassword() {
+        return jdbcPassword;
+    }
+
+    public void setJdbcPassword(String jdbcPassword) {
+        this.jdbcPassword = jdbcPassword;
+    }
+
+    public int getJdbcPoolSize() {
+        return jdbcPoolSize;
+    }
+
+    public void setJdbcPoolSize(int jdbcPoolSize) {
+        this.jdbcPoolSize = jdbcPoolSize;
+    }
+
+    public long getJdbcBorrowTimeoutMillis() {
+        return jdbcBorrowTimeoutMillis;
+    }
+
+    public void setJdbcBorrowTimeoutMillis(long jdbcBorrowTimeoutMillis) {
+        this.jdbcBorrowTimeoutMillis = jdbcBorrowTimeoutMillis;
+    }
+
+    public int getInsertBatchSize() {
+        return insertBatchSize;
+    }
+
+    public void setInsertBatchSize(int insertBatchSize) {
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    public long getInsertTimeoutMillis() {
+        return insertTimeoutMillis;
+    }
+
+    public void setInsertTimeoutMillis(long insertTimeoutMillis) {
+        this.insertTimeoutMillis = insertTimeoutMillis;
+    }
+
+    public int getSelectTransPageSize() {
+        return selectTransPageSize;
+    }
+
+    public void setSelectTransPageSize(int selectTransPageSize) {
+        this.selectTransPageSize = selectTransPageSize;
+    }
+
+    public int getShardNums() {
+        return shardNums;
+    }
+
+    public void setShardNums(int shardNums) {
+        this.shardNums = shardNums;
+    }
+
+    public boolean isCacheEnable() {
+        return cacheEnable;
+    }
+
+    public void setCacheEnable(boolean cacheEnable) {
+        this.cacheEnable = cacheEnable;
+    }
+
+    public long getCacheMaxBodyBytes() {
+        return cacheMaxBodyBytes;
+    }
+
+    public void setCacheMaxBodyBytes(long cacheMaxBodyBytes) {
+        this.cacheMaxBodyBytes = cacheMaxBodyBytes;
+    }
+
+    /**
+     * 使用tableName表的存储配置
+     */
+    public StoreConfig forTable(String tableName){
+        StoreConfig tableConfig = copy();
+        tableConfig.setJdbcTableName(tableName);
+        return tableConfig;
+    }
+
+    /**
+     * 第shard个分片的配置
+     */
+    public StoreConfig forShard(int shard){
+        StoreConfig shardConfig = copy();
+        shardConfig.setShardNums(1);
+        if(jdbcUrl != null){
+            shardConfig.setJdbcUrl(jdbcUrl.replace(SHARD_PLACEHOLDER, String.valueOf(shard)));
+        }
+        return shardConfig;
+    }
+
+    private StoreConfig copy(){
+        try {
+            return (StoreConfig) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package com.tongbanjie.tevent.store.config;
+
+/**
+ * 存储类型<p>
+ * 〈功能详细描述〉
+ *
+ * @author zixiao
+ * @date 16/10/22
+ */
+public enum StoreType {
+
+    /**
+     * 内存存储
+     */
+    MEMORY,
+
+    /**
+     * 关系数据库存储
+     */
+    JDBC
+
+}
@@ -0,0 +1,297 @@
+package com.tongbanjie.tevent.store.index;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * long型key的并发Map<p>
+ * 分段加读写锁，段内使用开放地址法(线性探测)，key以long[]存储，
+ * 避免 Map&lt;Long, V&gt; 对每个id装箱以及每个Entry的节点对象开销
+ *
+ * @author zixiao
+ * @date 16/10/21
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Segment<V>[] segments;
+
+    private final int segmentShift;
+
+    public ConcurrentLongObjectMap() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongObjectMap(int initialCapacity, int concurrencyLevel) {
+        int segmentCount = tableSizeFor(Math.max(concurrencyLevel, 1));
+        int segmentCapacity = tableSizeFor(Math.max(initialCapacity / segmentCount, 2));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<V>(segmentCapacity);
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    public V get(long key) {
+        long hash = mix(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long hash = mix(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    public V remove(long key) {
+        long hash = mix(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * 逐段遍历，遍历某段时持有该段读锁，procedure内不能修改本Map
+     */
+    public void forEach(LongObjectProcedure<? super V> procedure) {
+        for (Segment<V> segment : segments) {
+            if (!segment.forEach(procedure)) {
+                return;
+            }
+        }
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        //高位选段，低位定槽
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * murmur3 fmix64, 打散雪花id的低位序列号
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = Integer.highestOneBit(capacity);
+        return n == capacity ? n : n << 1;
+    }
+
+    /**
+     * 遍历回调
+     */
+    public interface LongObjectProcedure<V> {
+
+        /**
+         * @return false 停止遍历
+         */
+        boolean apply(long key, V value);
+    }
+
+    private static final class Segment<V> {
+
+        //0作为空槽标记, key为0的元素单独存放
+        private static final long EMPTY = 0L;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private long[] keys;
+
+        private Object[] values;
+
+        private int mask;
+
+        private int threshold;
+
+        private int size;
+
+        private Object zeroValue;
+
+        private Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key, long hash) {
+            lock.readLock().lock();
+            try {
+                if (key == EMPTY) {
+                    return (V) zeroValue;
+                }
+                int index = indexOf(key, hash);
+                return index < 0 ? null : (V) values[index];
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V put(long key, long hash, V value) {
+            lock.writeLock().lock();
+            try {
+                if (key == EMPTY) {
+                    V old = (V) zeroValue;
+                    zeroValue = value;
+                    if (old == null) {
+                        size++;
+                    }
+                    return old;
+                }
+                int index = (int) hash & mask;
+                while (keys[index] != EMPTY) {
+                    if (keys[index] == key) {
+                        V old = (V) values[index];
+                        values[index] = value;
+                        return old;
+                    }
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = value;
+                if (++size > threshold) {
+                    rehash();
+                }
+                return null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V remove(long key, long hash) {
+            lock.writeLock().lock();
+            try {
+                if (key == EMPTY) {
+                    V old = (V) zeroValue;
+                    if (old != null) {
+                        zeroValue = null;
+                        size--;
+                    }
+                    return old;
+                }
+                int index = indexOf(key, hash);
+                if (index < 0) {
+                    return null;
+                }
+                V old = (V) values[index];
+                shiftBack(index);
+                size--;
+                return old;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        boolean forEach(LongObjectProcedure<? super V> procedure) {
+            lock.readLock().lock();
+            try {
+                if (zeroValue != null && !procedure.apply(EMPTY, (V) zeroValue)) {
+                    return false;
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != EMPTY && !procedure.apply(keys[i], (V) values[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private int indexOf(long key, long hash) {
+            int index = (int) hash & mask;
+            while (keys[index] != EMPTY) {
+                if (keys[index] == key) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * 删除后向前移动后续元素，保持探测链连续，不使用墓碑标记
+         */
+        private void shiftBack(int hole) {
+            int index = hole;
+            while (true) {
+                index = (index + 1) & mask;
+                long key = keys[index];
+                if (key == EMPTY) {
+                    break;
+                }
+                int home = (int) mix(key) & mask;
+                //home不在(hole, index]区间内, 则可前移到hole
+                boolean movable = hole <= index
+                        ? (home <= hole || home > index)
+                        : (home <= hole && home > index);
+                if (movable) {
+                    keys[hole] = key;
+                    values[hole] = values[index];
+                    hole = index;
+                }
+            }
+            keys[hole] = EMPTY;
+            values[hole] = null;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            allocate(oldKeys.length << 1);
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key != EMPTY) {
+                    int index = (int) mix(key) & mask;
+                    while (keys[index] != EMPTY) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = key;
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.tongbanjie.tevent.store.jdbc;
+
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBC连接池<p>
+ * 连接按需创建，最多 {@link StoreConfig#getJdbcPoolSize()} 个，
+ * 归还时失效的连接被丢弃，由后续借用重新创建
+ *
+ * @author zixiao
+ * @date 16/10/22
+ */
+public class JdbcConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    private final StoreConfig storeConfig;
+
+    private final BlockingQueue<Connection> idleConnections;
+
+    //已创建的连接数
+    private final AtomicInteger totalConnections = new AtomicInteger(0);
+
+    private volatile boolean closed = false;
+
+    public JdbcConnectionPool(StoreConfig storeConfig) {
+        this.storeConfig = storeConfig;
+        this.idleConnections = new ArrayBlockingQueue<Connection>(storeConfig.getJdbcPoolSize());
+        try {
+            Class.forName(storeConfig.getJdbcDriverClass());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("JDBC driver not found: " + storeConfig.getJdbcDriverClass(), e);
+        }
+    }
+
+    public Connection borrowConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        Connection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+        //未达到上限, 新建连接
+        while (true) {
+            int total = totalConnections.get();
+            if (total >= storeConfig.getJdbcPoolSize()) {
+                break;
+            }
+            if (totalConnections.compareAndSet(total, total + 1)) {
+                try {
+                    return createConnection();
+                } catch (SQLException e) {
+                    totalConnections.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        try {
+            connection = idleConnections.poll(storeConfig.getJdbcBorrowTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection.");
+        }
+        if (connection == null) {
+            throw new SQLException("Borrow connection timeout, poolSize: " + storeConfig.getJdbcPoolSize());
+        }
+        return connection;
+    }
+
+    public void returnConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        boolean reusable;
+        try {
+            reusable = !closed && !connection.isClosed() && connection.getAutoCommit();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        if (!reusable || !idleConnections.offer(connection)) {
+            discard(connection);
+        }
+    }
+
+    /**
+     * 执行出错的连接直接丢弃
+     */
+    public void discard(Connection connection) {
+        totalConnections.decrementAndGet();
+        closeQuietly(connection);
+    }
+
+    public void close() {
+        this.closed = true;
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    private Connection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(storeConfig.getJdbcUrl(),
+                storeConfig.getJdbcUsername(), storeConfig.getJdbcPassword());
+        LOGGER.info("Create jdbc connection, url:{}, total:{}", storeConfig.getJdbcUrl(), totalConnections.get());
+        return connection;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Close jdbc connection failed", e);
+        }
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+}
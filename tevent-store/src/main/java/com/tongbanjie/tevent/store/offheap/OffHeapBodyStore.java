@@ -0,0 +1,223 @@
+package com.tongbanjie.tevent.store.offheap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外消息体存储<p>
+ * 消息体按顺序追加写入固定大小的堆外slab(direct ByteBuffer)，
+ * 地址高32位为slab下标，低32位为slab内偏移；
+ * slab内所有消息体都释放后，slab被回收重用
+ *
+ * @author zixiao
+ * @date 16/10/20
+ */
+public class OffHeapBodyStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapBodyStore.class);
+
+    /**
+     * 无效地址，表示消息体未存储在堆外
+     */
+    public static final long NO_ADDRESS = -1L;
+
+    private final int slabSize;
+
+    private final Slab[] slabs;
+
+    private final LinkedList<Slab> freeSlabs = new LinkedList<Slab>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //已分配slab数量
+    private int slabCount = 0;
+
+    //当前写入的slab
+    private Slab current;
+
+    //存活的消息体字节数
+    private long liveBytes = 0;
+
+    //slab已耗尽，只在状态变化时打印日志
+    private boolean exhausted = false;
+
+    public OffHeapBodyStore(int slabSize, int maxSlabs) {
+        if (slabSize <= 0 || maxSlabs <= 0) {
+            throw new IllegalArgumentException("slabSize and maxSlabs must be positive.");
+        }
+        this.slabSize = slabSize;
+        this.slabs = new Slab[maxSlabs];
+    }
+
+    /**
+     * 写入消息体
+     *
+     * @param body 消息体
+     * @return 堆外地址, 空间不足时返回 {@link #NO_ADDRESS}
+     */
+    public long write(byte[] body) {
+        int length = body.length;
+        if (length == 0 || length > slabSize) {
+            return NO_ADDRESS;
+        }
+
+        Slab slab;
+        int offset;
+        lock.lock();
+        try {
+            slab = current;
+            if (slab == null || slab.position + length > slabSize) {
+                if (slab != null) {
+                    slab.sealed = true;
+                    recycleIfEmpty(slab);
+                }
+                slab = nextSlab();
+                current = slab;
+                if (slab == null) {
+                    return NO_ADDRESS;
+                }
+            }
+            offset = slab.position;
+            slab.position += length;
+            slab.live++;
+            liveBytes += length;
+        } finally {
+            lock.unlock();
+        }
+
+        //[offset, offset+length) 已被当前线程独占，拷贝无需加锁
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(body);
+        return toAddress(slab.index, offset);
+    }
+
+    /**
+     * 读取消息体
+     */
+    public byte[] read(long address, int length) {
+        Slab slab = slabs[slabIndex(address)];
+        byte[] body = new byte[length];
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(slabOffset(address));
+        buffer.get(body);
+        return body;
+    }
+
+    /**
+     * 释放消息体
+     */
+    public void free(long address, int length) {
+        if (address == NO_ADDRESS) {
+            return;
+        }
+        lock.lock();
+        try {
+            Slab slab = slabs[slabIndex(address)];
+            slab.live--;
+            liveBytes -= length;
+            recycleIfEmpty(slab);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Slab nextSlab() {
+        Slab slab = freeSlabs.poll();
+        if (slab != null) {
+            slab.sealed = false;
+            return available(slab);
+        }
+        if (slabCount < slabs.length) {
+            slab = new Slab(slabCount, ByteBuffer.allocateDirect(slabSize));
+            slabs[slabCount++] = slab;
+            LOGGER.info("Allocate off-heap slab, index:{}, size:{}", slab.index, slabSize);
+            return available(slab);
+        }
+        if (!exhausted) {
+            exhausted = true;
+            LOGGER.warn("Off-heap slabs are exhausted, message bodies will be kept on heap, slabCount:{}, liveBytes:{}",
+                    slabCount, liveBytes);
+        }
+        return null;
+    }
+
+    private Slab available(Slab slab) {
+        if (exhausted) {
+            exhausted = false;
+            LOGGER.info("Off-heap slab is available again, index:{}, liveBytes:{}", slab.index, liveBytes);
+        }
+        return slab;
+    }
+
+    private void recycleIfEmpty(Slab slab) {
+        if (slab.live > 0) {
+            return;
+        }
+        slab.position = 0;
+        if (slab.sealed) {
+            slab.sealed = false;
+            freeSlabs.add(slab);
+        }
+    }
+
+    private static long toAddress(int slabIndex, int offset) {
+        return ((long) slabIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slabIndex(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int slabOffset(long address) {
+        return (int) address;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public int getSlabCount() {
+        lock.lock();
+        try {
+            return slabCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLiveBytes() {
+        lock.lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Slab {
+
+        private final int index;
+
+        private final ByteBuffer buffer;
+
+        //下一个写入位置
+        private int position;
+
+        //存活的消息体数量
+        private int live;
+
+        //已写满，不再分配
+        private boolean sealed;
+
+        private Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.tongbanjie.tevent.store.offheap;
+
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+
+/**
+ * 消息体存储在堆外的RocketMQ消息记录<p>
+ * 堆内只保留消息元数据与消息体的堆外地址、长度，
+ * {@link #getMessageBody()} 时才从堆外读取；
+ * 调用 {@link #setMessageBody(byte[])} 后新消息体暂存在堆内，由 {@link #flushBody()} 写入堆外
+ *
+ * @author zixiao
+ * @date 16/10/20
+ */
+public class OffHeapRocketMQMessage extends RocketMQMessage {
+
+    private static final long serialVersionUID = -3512850716093823446L;
+
+    private final transient OffHeapBodyStore bodyStore;
+
+    private transient long bodyAddress = OffHeapBodyStore.NO_ADDRESS;
+
+    private transient int bodyLength;
+
+    public OffHeapRocketMQMessage(OffHeapBodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    public static OffHeapRocketMQMessage copyOf(RocketMQMessage mqMessage, OffHeapBodyStore bodyStore){
+        OffHeapRocketMQMessage record = new OffHeapRocketMQMessage(bodyStore);
+        record.setId(mqMessage.getId());
+        record.setMessageKey(mqMessage.getMessageKey());
+        record.setTopic(mqMessage.getTopic());
+        record.setTags(mqMessage.getTags());
+        record.setProducerGroup(mqMessage.getProducerGroup());
+        record.setMessageBody(mqMessage.getMessageBody());
+        record.setTransactionState(mqMessage.getTransactionState());
+        record.setSendStatus(mqMessage.getSendStatus());
+        record.setRetryTimes(mqMessage.getRetryTimes());
+        record.setCheckTimes(mqMessage.getCheckTimes());
+        record.setCreateTime(mqMessage.getCreateTime());
+        return record;
+    }
+
+    @Override
+    public synchronized byte[] getMessageBody() {
+        byte[] heapBody = super.getMessageBody();
+        if(heapBody != null){
+            return heapBody;
+        }
+        if(bodyAddress == OffHeapBodyStore.NO_ADDRESS){
+            return null;
+        }
+        return bodyStore.read(bodyAddress, bodyLength);
+    }
+
+    /**
+     * 将暂存在堆内的消息体写入堆外，并释放旧的堆外消息体；
+     * 堆外空间不足时消息体继续保留在堆内
+     */
+    public synchronized void flushBody(){
+        byte[] heapBody = super.getMessageBody();
+        if(heapBody == null){
+            return;
+        }
+        long address = bodyStore.write(heapBody);
+        releaseBody();
+        if(address != OffHeapBodyStore.NO_ADDRESS){
+            this.bodyAddress = address;
+            this.bodyLength = heapBody.length;
+            super.setMessageBody(null);
+        }
+    }
+
+    /**
+     * 释放堆外消息体
+     */
+    public synchronized void releaseBody(){
+        if(bodyAddress != OffHeapBodyStore.NO_ADDRESS){
+            bodyStore.free(bodyAddress, bodyLength);
+            this.bodyAddress = OffHeapBodyStore.NO_ADDRESS;
+            this.bodyLength = 0;
+        }
+    }
+
+    /**
+     * 消息已完结(回滚、死信或发送成功)，不再需要消息体，释放堆外空间并丢弃堆内暂存
+     */
+    public synchronized void discardBody(){
+        releaseBody();
+        super.setMessageBody(null);
+    }
+
+    public boolean isBodyOffHeap(){
+        return bodyAddress != OffHeapBodyStore.NO_ADDRESS;
+    }
+
+    public OffHeapBodyStore getBodyStore() {
+        return bodyStore;
+    }
+
+    public long getBodyAddress() {
+        return bodyAddress;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+}
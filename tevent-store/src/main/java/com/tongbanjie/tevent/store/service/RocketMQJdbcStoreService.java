@@ -0,0 +1,585 @@
+package com.tongbanjie.tevent.store.service;
+
+import com.tongbanjie.tevent.common.ServiceThread;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.StoreLifecycle;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.jdbc.JdbcConnectionPool;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RocketMQ 关系数据库存储服务<p>
+ * 表结构见 sql/transaction_message.sql；
+ * PREPARE消息由单独的写线程合并为批量插入，
+ * COMMIT/ROLLBACK/DEAD_LETTER只允许从PREPARE或DEAD_LETTER状态变更，PREPARE状态的更新(如回查次数)只在仍为PREPARE时生效，
+ * 消息体为空时不更新消息体(分页查询的记录不含消息体)，
+ * 待回查消息按id分页查询
+ *
+ * @author zixiao
+ * @date 16/10/22
+ */
+public class RocketMQJdbcStoreService implements StoreService<RocketMQMessage>, StoreLifecycle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RocketMQJdbcStoreService.class);
+
+    private static final String INSERT_SQL = "insert into %s (id, message_key, topic, tags, producer_group, "
+            + "message_body, transaction_state, send_status, retry_times, check_times, create_time) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SELECT_BY_ID_SQL = "select id, message_key, topic, tags, producer_group, message_body, "
+            + "transaction_state, send_status, retry_times, check_times, create_time from %s where id = ?";
+
+    private static final String UPDATE_SQL = "update %s set %stransaction_state = ?, "
+            + "send_status = ?, retry_times = ?, check_times = ? where id = ?";
+
+    private static final String UPDATE_BODY_COLUMN = "message_body = ?, ";
+
+    // update transaction_message set transactionState=COMMIT where id=? and transactionState in (PREPARE, DEAD_LETTER, COMMIT)
+    private static final String TRANSITION_CONDITION = " and transaction_state in (?, ?, ?)";
+
+    // update transaction_message set checkTimes=? where id=? and transactionState = PREPARE
+    private static final String PREPARE_CONDITION = " and transaction_state = ?";
+
+    private static final int GUARD_NONE = 0;
+
+    private static final int GUARD_TRANSITION = 1;
+
+    private static final int GUARD_PREPARE = 2;
+
+    //回查时会按id重新查询消息，分页查询不读取消息体
+    private static final String SELECT_TRANS_SQL = "select id, message_key, topic, tags, producer_group, "
+            + "transaction_state, send_status, retry_times, check_times, create_time from %s "
+            + "where transaction_state = ? and id > ? order by id limit ?";
+
+    private static final String SELECT_UNSENT_SQL = "select id, message_key, topic, tags, producer_group, "
+            + "transaction_state, send_status, retry_times, check_times, create_time from %s "
+            + "where transaction_state = ? and send_status in (?, ?) and retry_times < ? and id > ? order by id limit ?";
+
+    private final StoreConfig storeConfig;
+
+    //按表名生成的SQL
+    private final String insertSql;
+
+    private final String selectByIdSql;
+
+    //[是否更新消息体][状态条件]
+    private final String[][] updateSqls = new String[2][3];
+
+    private final String selectTransSql;
+
+    private final String selectUnsentSql;
+
+    private final JdbcConnectionPool connectionPool;
+
+    private final BlockingQueue<PutRequest> putRequestQueue = new LinkedBlockingQueue<PutRequest>();
+
+    private final BatchInsertService batchInsertService = new BatchInsertService();
+
+    private volatile boolean running = false;
+
+    public RocketMQJdbcStoreService(StoreConfig storeConfig){
+        this.storeConfig = storeConfig;
+        this.connectionPool = new JdbcConnectionPool(storeConfig);
+        this.insertSql = String.format(INSERT_SQL, storeConfig.getJdbcTableName());
+        this.selectByIdSql = String.format(SELECT_BY_ID_SQL, storeConfig.getJdbcTableName());
+        for(int withBody = 0; withBody < 2; withBody++){
+            String sql = String.format(UPDATE_SQL, storeConfig.getJdbcTableName(), withBody == 1 ? UPDATE_BODY_COLUMN : "");
+            this.updateSqls[withBody][GUARD_NONE] = sql;
+            this.updateSqls[withBody][GUARD_TRANSITION] = sql + TRANSITION_CONDITION;
+            this.updateSqls[withBody][GUARD_PREPARE] = sql + PREPARE_CONDITION;
+        }
+        this.selectTransSql = String.format(SELECT_TRANS_SQL, storeConfig.getJdbcTableName());
+        this.selectUnsentSql = String.format(SELECT_UNSENT_SQL, storeConfig.getJdbcTableName());
+    }
+
+    @Override
+    public void start(){
+        this.running = true;
+        this.batchInsertService.start();
+    }
+
+    @Override
+    public void shutdown(){
+        this.running = false;
+        this.batchInsertService.shutdown();
+        this.connectionPool.close();
+    }
+
+    @Override
+    public Result<Long> put(RocketMQMessage mqMessage) {
+        if(!running){
+            return Result.buildFail("", "存储服务未启动");
+        }
+        Result<Long> result;
+        try {
+            //分片存储时由路由层预先生成id
+            Long storeId = mqMessage.getId();
+            if(storeId == null){
+                storeId = DistributedIdGenerator.generateId();
+                mqMessage.setId(storeId);
+            }
+            if(mqMessage.getCreateTime() == null){
+                mqMessage.setCreateTime(new Date());
+            }
+            RocketMQStoreService.initSendStatus(mqMessage);
+            PutRequest putRequest = new PutRequest(mqMessage);
+            putRequestQueue.add(putRequest);
+            batchInsertService.wakeup();
+
+            //等待超时的消息仍可能已写入, 由事务回查处理
+            if(!putRequest.await(storeConfig.getInsertTimeoutMillis())){
+                result = Result.buildFail("", "插入事务消息超时");
+            }else if(putRequest.isSuccess()){
+                result = Result.buildSucc(storeId);
+            }else{
+                result = Result.buildFail("", "插入事务消息失败", putRequest.getErrorMsg());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Put message failed", e);
+            result = Result.buildFail("", "", e.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public Result<RocketMQMessage> get(Long storeId) {
+        Result<RocketMQMessage> result;
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            connection = connectionPool.borrowConnection();
+            ps = connection.prepareStatement(selectByIdSql);
+            ps.setLong(1, storeId);
+            rs = ps.executeQuery();
+            RocketMQMessage mqMessage = null;
+            if(rs.next()){
+                mqMessage = readMessage(rs, true);
+            }
+            result = Result.buildSucc(mqMessage);
+        } catch (Exception e) {
+            LOGGER.error("Get message failed, id:" + storeId, e);
+            result = Result.buildFail("", "", e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            closeQuietly(ps);
+            connectionPool.returnConnection(connection);
+        }
+        return result;
+    }
+
+    /**
+     * 提交、回滚或转入死信时，只允许从PREPARE、DEAD_LETTER(或相同状态)变更，
+     * 防止已回滚的消息被提交，已提交的消息被回滚，或已完结的消息转入死信；
+     * 仍为PREPARE的更新只在数据库中也是PREPARE时生效，避免覆盖并发的提交或回滚；
+     * 消息体为空时保留数据库中的消息体
+     */
+    @Override
+    public Result<RocketMQMessage> update(Long storeId, RocketMQMessage mqMessage) {
+        Result<RocketMQMessage> result;
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try {
+            Byte state = mqMessage.getTransactionState();
+            int guard = GUARD_NONE;
+            if(state != null && (state == TransactionState.COMMIT.getCode()
+                    || state == TransactionState.ROLLBACK.getCode() || state == TransactionState.DEAD_LETTER.getCode())){
+                guard = GUARD_TRANSITION;
+            }else if(state != null && state == TransactionState.PREPARE.getCode()){
+                guard = GUARD_PREPARE;
+            }
+            byte[] messageBody = mqMessage.getMessageBody();
+
+            connection = connectionPool.borrowConnection();
+            ps = connection.prepareStatement(updateSqls[messageBody == null ? 0 : 1][guard]);
+            int index = 1;
+            if(messageBody != null){
+                ps.setBytes(index++, messageBody);
+            }
+            setByte(ps, index++, state);
+            setShort(ps, index++, mqMessage.getSendStatus());
+            setShort(ps, index++, mqMessage.getRetryTimes());
+            setShort(ps, index++, mqMessage.getCheckTimes());
+            ps.setLong(index++, storeId);
+            if(guard == GUARD_TRANSITION){
+                ps.setByte(index++, TransactionState.PREPARE.getCode());
+                ps.setByte(index++, TransactionState.DEAD_LETTER.getCode());
+                ps.setByte(index, state);
+            }else if(guard == GUARD_PREPARE){
+                ps.setByte(index, TransactionState.PREPARE.getCode());
+            }
+            int rows = ps.executeUpdate();
+            if(rows > 0){
+                result = Result.buildSucc(mqMessage);
+            }else{
+                result = Result.buildFail("", "事务消息不存在或状态已变更");
+            }
+        } catch (Exception e) {
+            LOGGER.error("Update message failed, id:" + storeId, e);
+            result = Result.buildFail("", "", e.getMessage());
+        } finally {
+            closeQuietly(ps);
+            connectionPool.returnConnection(connection);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans() {
+        Result<List<RocketMQMessage>> result;
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try {
+            List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
+            int pageSize = storeConfig.getSelectTransPageSize();
+            long lastId = Long.MIN_VALUE;
+
+            connection = connectionPool.borrowConnection();
+            ps = connection.prepareStatement(selectTransSql);
+            while (true){
+                ps.setByte(1, TransactionState.PREPARE.getCode());
+                ps.setLong(2, lastId);
+                ps.setInt(3, pageSize);
+                int count = 0;
+                ResultSet rs = ps.executeQuery();
+                try {
+                    while (rs.next()){
+                        RocketMQMessage mqMessage = readMessage(rs, false);
+                        mqMessages.add(mqMessage);
+                        lastId = mqMessage.getId();
+                        count++;
+                    }
+                } finally {
+                    closeQuietly(rs);
+                }
+                if(count < pageSize){
+                    break;
+                }
+            }
+            result = Result.buildSucc(mqMessages);
+        } catch (Exception e) {
+            LOGGER.error("Select transaction messages failed", e);
+            result = Result.buildFail("", "", e.getMessage());
+        } finally {
+            closeQuietly(ps);
+            connectionPool.returnConnection(connection);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans(Long fromId, int limit) {
+        Result<List<RocketMQMessage>> result;
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
+            connection = connectionPool.borrowConnection();
+            ps = connection.prepareStatement(selectTransSql);
+            ps.setByte(1, TransactionState.PREPARE.getCode());
+            ps.setLong(2, fromId);
+            ps.setInt(3, limit);
+            rs = ps.executeQuery();
+            while (rs.next()){
+                mqMessages.add(readMessage(rs, false));
+            }
+            result = Result.buildSucc(mqMessages);
+        } catch (Exception e) {
+            LOGGER.error("Select transaction messages failed", e);
+            result = Result.buildFail("", "", e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            closeQuietly(ps);
+            connectionPool.returnConnection(connection);
+        }
+        return result;
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectUnsent(Long fromId, int limit, short maxRetryTimes) {
+        Result<List<RocketMQMessage>> result;
+        Connection connection = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
+            connection = connectionPool.borrowConnection();
+            ps = connection.prepareStatement(selectUnsentSql);
+            ps.setByte(1, TransactionState.COMMIT.getCode());
+            ps.setShort(2, SendStatus.NOT_SEND.getCode());
+            ps.setShort(3, SendStatus.FAILED.getCode());
+            ps.setShort(4, maxRetryTimes);
+            ps.setLong(5, fromId);
+            ps.setInt(6, limit);
+            rs = ps.executeQuery();
+            while (rs.next()){
+                mqMessages.add(readMessage(rs, false));
+            }
+            result = Result.buildSucc(mqMessages);
+        } catch (Exception e) {
+            LOGGER.error("Select unsent messages failed", e);
+            result = Result.buildFail("", "", e.getMessage());
+        } finally {
+            closeQuietly(rs);
+            closeQuietly(ps);
+            connectionPool.returnConnection(connection);
+        }
+        return result;
+    }
+
+    private void insertBatch(List<PutRequest> putRequests){
+        Connection connection = null;
+        PreparedStatement ps = null;
+        try {
+            connection = connectionPool.borrowConnection();
+            connection.setAutoCommit(false);
+            ps = connection.prepareStatement(insertSql);
+            for(PutRequest putRequest : putRequests){
+                bindInsert(ps, putRequest.getMqMessage());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            connection.commit();
+            for(PutRequest putRequest : putRequests){
+                putRequest.complete(true, null);
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Batch insert messages failed, size:" + putRequests.size(), e);
+            rollbackQuietly(connection);
+            if(putRequests.size() > 1 && connection != null){
+                //逐条重试, 避免一条失败导致整批失败
+                insertOneByOne(connection, putRequests);
+            }else{
+                for(PutRequest putRequest : putRequests){
+                    putRequest.complete(false, e.getMessage());
+                }
+            }
+        } finally {
+            closeQuietly(ps);
+            resetAutoCommit(connection);
+            connectionPool.returnConnection(connection);
+        }
+    }
+
+    private void insertOneByOne(Connection connection, List<PutRequest> putRequests){
+        for(PutRequest putRequest : putRequests){
+            PreparedStatement ps = null;
+            try {
+                connection.setAutoCommit(true);
+                ps = connection.prepareStatement(insertSql);
+                bindInsert(ps, putRequest.getMqMessage());
+                ps.executeUpdate();
+                putRequest.complete(true, null);
+            } catch (SQLException e) {
+                LOGGER.error("Insert message failed, id:" + putRequest.getMqMessage().getId(), e);
+                putRequest.complete(false, e.getMessage());
+            } finally {
+                closeQuietly(ps);
+            }
+        }
+    }
+
+    private static void bindInsert(PreparedStatement ps, RocketMQMessage mqMessage) throws SQLException {
+        ps.setLong(1, mqMessage.getId());
+        ps.setString(2, mqMessage.getMessageKey());
+        ps.setString(3, mqMessage.getTopic());
+        ps.setString(4, mqMessage.getTags());
+        ps.setString(5, mqMessage.getProducerGroup());
+        ps.setBytes(6, mqMessage.getMessageBody());
+        setByte(ps, 7, mqMessage.getTransactionState());
+        setShort(ps, 8, mqMessage.getSendStatus());
+        setShort(ps, 9, mqMessage.getRetryTimes());
+        setShort(ps, 10, mqMessage.getCheckTimes());
+        if(mqMessage.getCreateTime() == null){
+            ps.setNull(11, Types.TIMESTAMP);
+        }else{
+            ps.setTimestamp(11, new Timestamp(mqMessage.getCreateTime().getTime()));
+        }
+    }
+
+    private static RocketMQMessage readMessage(ResultSet rs, boolean withBody) throws SQLException {
+        RocketMQMessage mqMessage = new RocketMQMessage();
+        mqMessage.setId(rs.getLong("id"));
+        mqMessage.setMessageKey(rs.getString("message_key"));
+        mqMessage.setTopic(rs.getString("topic"));
+        mqMessage.setTags(rs.getString("tags"));
+        mqMessage.setProducerGroup(rs.getString("producer_group"));
+        if(withBody){
+            mqMessage.setMessageBody(rs.getBytes("message_body"));
+        }
+        mqMessage.setTransactionState(rs.getByte("transaction_state"));
+        short sendStatus = rs.getShort("send_status");
+        mqMessage.setSendStatus(rs.wasNull() ? null : sendStatus);
+        short retryTimes = rs.getShort("retry_times");
+        mqMessage.setRetryTimes(rs.wasNull() ? null : retryTimes);
+        short checkTimes = rs.getShort("check_times");
+        mqMessage.setCheckTimes(rs.wasNull() ? null : checkTimes);
+        Timestamp createTime = rs.getTimestamp("create_time");
+        if(createTime != null){
+            mqMessage.setCreateTime(new Date(createTime.getTime()));
+        }
+        return mqMessage;
+    }
+
+    private static void setByte(PreparedStatement ps, int index, Byte value) throws SQLException {
+        if(value == null){
+            ps.setNull(index, Types.TINYINT);
+        }else{
+            ps.setByte(index, value);
+        }
+    }
+
+    private static void setShort(PreparedStatement ps, int index, Short value) throws SQLException {
+        if(value == null){
+            ps.setNull(index, Types.SMALLINT);
+        }else{
+            ps.setShort(index, value);
+        }
+    }
+
+    private static void rollbackQuietly(Connection connection){
+        if(connection == null){
+            return;
+        }
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOGGER.warn("Rollback failed", e);
+        }
+    }
+
+    private static void resetAutoCommit(Connection connection){
+        if(connection == null){
+            return;
+        }
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.warn("Reset autoCommit failed", e);
+        }
+    }
+
+    private static void closeQuietly(Statement statement){
+        if(statement == null){
+            return;
+        }
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Close statement failed", e);
+        }
+    }
+
+    private static void closeQuietly(ResultSet rs){
+        if(rs == null){
+            return;
+        }
+        try {
+            rs.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Close resultSet failed", e);
+        }
+    }
+
+    public JdbcConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * 批量插入线程, 合并并发的PREPARE请求
+     */
+    class BatchInsertService extends ServiceThread {
+
+        @Override
+        public String getServiceName() {
+            return "JdbcBatchInsertService";
+        }
+
+        @Override
+        public void run() {
+            LOGGER.info(this.getServiceName() + " service started");
+
+            while (!this.isStopped()) {
+                try {
+                    this.waitForRunning(10);
+                    this.doInsert();
+                } catch (Exception e) {
+                    LOGGER.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            //停止前写完剩余请求
+            this.doInsert();
+
+            LOGGER.info(this.getServiceName() + " service end");
+        }
+
+        private void doInsert(){
+            int batchSize = storeConfig.getInsertBatchSize();
+            List<PutRequest> batch = new ArrayList<PutRequest>(batchSize);
+            while (putRequestQueue.drainTo(batch, batchSize) > 0){
+                insertBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    static class PutRequest {
+
+        private final RocketMQMessage mqMessage;
+
+        private final CountDownLatch countDownLatch = new CountDownLatch(1);
+
+        private volatile boolean success = false;
+
+        private volatile String errorMsg;
+
+        PutRequest(RocketMQMessage mqMessage) {
+            this.mqMessage = mqMessage;
+        }
+
+        void complete(boolean success, String errorMsg){
+            this.success = success;
+            this.errorMsg = errorMsg;
+            this.countDownLatch.countDown();
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return this.countDownLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        RocketMQMessage getMqMessage() {
+            return mqMessage;
+        }
+
+        boolean isSuccess() {
+            return success;
+        }
+
+        String getErrorMsg() {
+            return errorMsg;
+        }
+    }
+
+}
@@ -2,16 +2,18 @@ package com.tongbanjie.tevent.store.service;
 
 import com.tongbanjie.tevent.common.message.MQMessage;
 import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
 import com.tongbanjie.tevent.common.message.TransactionState;
 import com.tongbanjie.tevent.store.Result;
 import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.index.ConcurrentLongObjectMap;
+import com.tongbanjie.tevent.store.offheap.OffHeapBodyStore;
+import com.tongbanjie.tevent.store.offheap.OffHeapRocketMQMessage;
 import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
  * RocketMQ 存储服务<p>
@@ -23,12 +25,26 @@ import java.util.concurrent.ConcurrentHashMap;
 public class RocketMQStoreService implements StoreService<RocketMQMessage> {
 
     //模拟数据库
-    private static Map<Long /*storeId*/, MQMessage> storage = new ConcurrentHashMap<Long, MQMessage>();
+    private final ConcurrentLongObjectMap<MQMessage> storage = new ConcurrentLongObjectMap<MQMessage>();
+
+    //已提交未发送成功的消息id，按id有序，供selectUnsent分页
+    private final ConcurrentSkipListSet<Long> unsentIndex = new ConcurrentSkipListSet<Long>();
+
+    //未决事务的消息id，按id有序，供selectTrans分页
+    private final ConcurrentSkipListSet<Long> prepareIndex = new ConcurrentSkipListSet<Long>();
 
     private final StoreConfig storeConfig;
 
+    //堆外消息体存储, 未开启时为null
+    private final OffHeapBodyStore bodyStore;
+
     public RocketMQStoreService(StoreConfig storeConfig){
         this.storeConfig = storeConfig;
+        if(storeConfig.isOffHeapBodyEnable()){
+            this.bodyStore = new OffHeapBodyStore(storeConfig.getOffHeapSlabSize(), storeConfig.getOffHeapMaxSlabs());
+        }else{
+            this.bodyStore = null;
+        }
     }
 
     @Override
@@ -36,9 +52,17 @@ public class RocketMQStoreService implements StoreService<RocketMQMessage> {
         Result<Long> result;
         Long storeId;
         try {
-            storeId = DistributedIdGenerator.generateId();
-            mqMessage.setId(storeId);
-            storage.put(storeId, mqMessage);
+            //分片存储时由路由层预先生成id
+            storeId = mqMessage.getId();
+            if(storeId == null){
+                storeId = DistributedIdGenerator.generateId();
+                mqMessage.setId(storeId);
+            }
+            initSendStatus(mqMessage);
+            RocketMQMessage storeMessage = toStoreMessage(mqMessage);
+            storage.put(storeId, storeMessage);
+            reindex(storeId);
+            discardFinishedBody(storeMessage);
             result = Result.buildSucc(storeId);
         } catch (Exception e) {
             e.printStackTrace();
@@ -64,8 +88,21 @@ public class RocketMQStoreService implements StoreService<RocketMQMessage> {
     public Result<RocketMQMessage> update(Long storeId, RocketMQMessage mqMessage) {
         Result<RocketMQMessage> result;
         try {
-            RocketMQMessage newMqMessage = (RocketMQMessage)storage.put(storeId, mqMessage);
-            result = Result.buildSucc(newMqMessage);
+            if(bodyStore == null){
+                RocketMQMessage newMqMessage = (RocketMQMessage)storage.put(storeId, mqMessage);
+                reindex(storeId);
+                result = Result.buildSucc(newMqMessage);
+            }else{
+                //旧记录的堆外消息体会被释放, 返回新记录
+                RocketMQMessage storeMessage = toStoreMessage(mqMessage);
+                MQMessage oldMessage = storage.put(storeId, storeMessage);
+                if(oldMessage != storeMessage && oldMessage instanceof OffHeapRocketMQMessage){
+                    ((OffHeapRocketMQMessage) oldMessage).releaseBody();
+                }
+                reindex(storeId);
+                discardFinishedBody(storeMessage);
+                result = Result.buildSucc(storeMessage);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             result = Result.buildFail("", "", e.getMessage());
@@ -73,18 +110,141 @@ public class RocketMQStoreService implements StoreService<RocketMQMessage> {
         return result;
     }
 
+    /**
+     * 从有序索引中取fromId之后的前limit条，不再全表扫描排序
+     */
     @Override
-    public Result<List<RocketMQMessage>> selectTrans() {
+    public Result<List<RocketMQMessage>> selectUnsent(Long fromId, int limit, short maxRetryTimes) {
         Result<List<RocketMQMessage>> result;
         try {
-            List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
-            Set<Map.Entry<Long, MQMessage>> set = storage.entrySet();
-            for(Map.Entry<Long, MQMessage> entry : set){
-                RocketMQMessage message = (RocketMQMessage) entry.getValue();
-                if(message.getTransactionState() == TransactionState.PREPARE.getCode()){
-                    mqMessages.add(message);
+            List<RocketMQMessage> page = new ArrayList<RocketMQMessage>(Math.min(limit, 1024));
+            for(Long storeId : unsentIndex.tailSet(fromId, false)){
+                if(page.size() >= limit){
+                    break;
+                }
+                RocketMQMessage message = (RocketMQMessage) storage.get(storeId);
+                if(message == null || isSentOrFinished(message)){
+                    //并发更新时索引可能残留，读到终态时清理
+                    unsentIndex.remove(storeId);
+                }else if(isUnsent(message, maxRetryTimes)){
+                    page.add(message);
                 }
             }
+            result = Result.buildSucc(page);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Result.buildFail("", "", e.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans(Long fromId, int limit) {
+        Result<List<RocketMQMessage>> result;
+        try {
+            List<RocketMQMessage> page = new ArrayList<RocketMQMessage>(Math.min(limit, 1024));
+            for(Long storeId : prepareIndex.tailSet(fromId, false)){
+                if(page.size() >= limit){
+                    break;
+                }
+                RocketMQMessage message = (RocketMQMessage) storage.get(storeId);
+                if(message == null || message.getTransactionState() != TransactionState.PREPARE.getCode()){
+                    //并发更新时索引可能残留，读到非PREPARE时清理
+                    prepareIndex.remove(storeId);
+                }else{
+                    page.add(message);
+                }
+            }
+            result = Result.buildSucc(page);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Result.buildFail("", "", e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 按存储中的最新记录维护未发送索引及未决事务索引，
+     * 超过最大重试次数的仍保留在未发送索引中，由查询时按maxRetryTimes过滤
+     */
+    private void reindex(long storeId){
+        RocketMQMessage message = (RocketMQMessage) storage.get(storeId);
+        if(message != null && message.getTransactionState() != null
+                && message.getTransactionState() == TransactionState.PREPARE.getCode()){
+            prepareIndex.add(storeId);
+        }else{
+            prepareIndex.remove(storeId);
+        }
+        if(message != null && message.getTransactionState() != null
+                && message.getTransactionState() == TransactionState.COMMIT.getCode()
+                && !isSentOrFinished(message)){
+            unsentIndex.add(storeId);
+        }else{
+            unsentIndex.remove(storeId);
+        }
+    }
+
+    /**
+     * 已发送成功，或事务已回滚/进入死信，不会再变为待发送
+     */
+    private static boolean isSentOrFinished(RocketMQMessage message){
+        Byte state = message.getTransactionState();
+        if(state != null && (state == TransactionState.ROLLBACK.getCode()
+                || state == TransactionState.DEAD_LETTER.getCode())){
+            return true;
+        }
+        Short sendStatus = message.getSendStatus();
+        return sendStatus != null && sendStatus == SendStatus.SUCCESS.getCode();
+    }
+
+    /**
+     * 内存存储不删除记录，完结的消息释放堆外消息体，避免slab被占满后退回堆内
+     */
+    private void discardFinishedBody(RocketMQMessage storeMessage){
+        if(storeMessage instanceof OffHeapRocketMQMessage && isSentOrFinished(storeMessage)){
+            ((OffHeapRocketMQMessage) storeMessage).discardBody();
+        }
+    }
+
+    private static boolean isUnsent(RocketMQMessage message, short maxRetryTimes){
+        if(message.getTransactionState() != TransactionState.COMMIT.getCode()){
+            return false;
+        }
+        Short sendStatus = message.getSendStatus();
+        if(sendStatus != null && sendStatus == SendStatus.SUCCESS.getCode()){
+            return false;
+        }
+        Short retryTimes = message.getRetryTimes();
+        return retryTimes == null || retryTimes < maxRetryTimes;
+    }
+
+    /**
+     * 未转发的消息发送状态为NOT_SEND，重试次数为0
+     */
+    static void initSendStatus(RocketMQMessage mqMessage){
+        if(mqMessage.getSendStatus() == null){
+            mqMessage.setSendStatus(SendStatus.NOT_SEND.getCode());
+        }
+        if(mqMessage.getRetryTimes() == null){
+            mqMessage.setRetryTimes((short) 0);
+        }
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans() {
+        Result<List<RocketMQMessage>> result;
+        try {
+            final List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
+            storage.forEach(new ConcurrentLongObjectMap.LongObjectProcedure<MQMessage>() {
+                @Override
+                public boolean apply(long storeId, MQMessage value) {
+                    RocketMQMessage message = (RocketMQMessage) value;
+                    if(message.getTransactionState() == TransactionState.PREPARE.getCode()){
+                        mqMessages.add(message);
+                    }
+                    return true;
+                }
+            });
             result = Result.buildSucc(mqMessages);
         } catch (Exception e) {
             e.printStackTrace();
@@ -93,4 +253,26 @@ public class RocketMQStoreService implements StoreService<RocketMQMessage> {
         return result;
     }
 
+    /**
+     * 开启堆外存储时, 转换为消息体在堆外的记录
+     */
+    private RocketMQMessage toStoreMessage(RocketMQMessage mqMessage){
+        if(bodyStore == null){
+            return mqMessage;
+        }
+        OffHeapRocketMQMessage record;
+        if(mqMessage instanceof OffHeapRocketMQMessage
+                && ((OffHeapRocketMQMessage) mqMessage).getBodyStore() == bodyStore){
+            record = (OffHeapRocketMQMessage) mqMessage;
+        }else{
+            record = OffHeapRocketMQMessage.copyOf(mqMessage, bodyStore);
+        }
+        record.flushBody();
+        return record;
+    }
+
+    public OffHeapBodyStore getBodyStore() {
+        return bodyStore;
+    }
+
 }
@@ -0,0 +1,189 @@
+package com.tongbanjie.tevent.store.service;
+
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.util.NamedThreadFactory;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.StoreLifecycle;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 分片存储服务<p>
+ * 按消息id将消息路由到N个相互独立的分片，
+ * 写操作(put/update)在调用线程上直接路由到所在分片，分片之间没有共享锁，
+ * 分片内的并发写由分片自身合并(如JDBC分片的批量插入)；
+ * selectTrans 并行查询所有分片后按id合并
+ *
+ * @author zixiao
+ * @date 16/10/24
+ */
+public class ShardedStoreService implements StoreService<RocketMQMessage>, StoreLifecycle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedStoreService.class);
+
+    private final List<StoreService<RocketMQMessage>> shards;
+
+    private final ExecutorService selectExecutor;
+
+    public ShardedStoreService(List<StoreService<RocketMQMessage>> shards) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("shards must not be empty.");
+        }
+        this.shards = new ArrayList<StoreService<RocketMQMessage>>(shards);
+        this.selectExecutor = Executors.newFixedThreadPool(shards.size(), new NamedThreadFactory("StoreShardSelectThread_"));
+    }
+
+    @Override
+    public void start() throws Exception {
+        for (StoreService<RocketMQMessage> shard : shards) {
+            if (shard instanceof StoreLifecycle) {
+                ((StoreLifecycle) shard).start();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        this.selectExecutor.shutdown();
+        for (StoreService<RocketMQMessage> shard : shards) {
+            if (shard instanceof StoreLifecycle) {
+                ((StoreLifecycle) shard).shutdown();
+            }
+        }
+    }
+
+    @Override
+    public Result<Long> put(RocketMQMessage mqMessage) {
+        Long storeId = mqMessage.getId();
+        if (storeId == null) {
+            try {
+                storeId = DistributedIdGenerator.generateId();
+            } catch (Exception e) {
+                LOGGER.error("Generate id failed", e);
+                return Result.buildFail("", "", e.getMessage());
+            }
+            mqMessage.setId(storeId);
+        }
+        return shards.get(shardIndex(storeId)).put(mqMessage);
+    }
+
+    @Override
+    public Result<RocketMQMessage> get(Long storeId) {
+        return shards.get(shardIndex(storeId)).get(storeId);
+    }
+
+    @Override
+    public Result<RocketMQMessage> update(Long storeId, RocketMQMessage mqMessage) {
+        return shards.get(shardIndex(storeId)).update(storeId, mqMessage);
+    }
+
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans() {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(shards.size());
+        for (final StoreService<RocketMQMessage> shard : shards) {
+            futures.add(selectExecutor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return shard.selectTrans();
+                }
+            }));
+        }
+
+        return merge(futures, "Select transaction messages failed");
+    }
+
+    /**
+     * 各分片分别按id查询前limit条，合并排序后取前limit条
+     */
+    @Override
+    public Result<List<RocketMQMessage>> selectTrans(final Long fromId, final int limit) {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(shards.size());
+        for (final StoreService<RocketMQMessage> shard : shards) {
+            futures.add(selectExecutor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return shard.selectTrans(fromId, limit);
+                }
+            }));
+        }
+        return firstPage(merge(futures, "Select transaction messages failed"), limit);
+    }
+
+    private Result<List<RocketMQMessage>> merge(List<Future<Result>> futures, String errorMsg) {
+        List<RocketMQMessage> mqMessages = new ArrayList<RocketMQMessage>();
+        for (int i = 0; i < futures.size(); i++) {
+            Result<List<RocketMQMessage>> shardResult;
+            try {
+                shardResult = futures.get(i).get();
+            } catch (Exception e) {
+                LOGGER.error(errorMsg + ", shard:" + i, e);
+                return Result.buildFail("", "", e.getMessage());
+            }
+            if (!shardResult.isSuccess()) {
+                LOGGER.error(errorMsg + ", shard:{}, error:{}", i, shardResult.getErrorString());
+                return Result.buildFail(shardResult.getErrorCode(), shardResult.getErrorMsg(), shardResult.getExceptionMsg());
+            }
+            mqMessages.addAll(shardResult.getData());
+        }
+        //按id(即创建时间)排序
+        Collections.sort(mqMessages, new Comparator<RocketMQMessage>() {
+            @Override
+            public int compare(RocketMQMessage o1, RocketMQMessage o2) {
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+        return Result.buildSucc(mqMessages);
+    }
+
+    /**
+     * 各分片分别按id查询前limit条，合并排序后取前limit条
+     */
+    @Override
+    public Result<List<RocketMQMessage>> selectUnsent(final Long fromId, final int limit, final short maxRetryTimes) {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(shards.size());
+        for (final StoreService<RocketMQMessage> shard : shards) {
+            futures.add(selectExecutor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return shard.selectUnsent(fromId, limit, maxRetryTimes);
+                }
+            }));
+        }
+        return firstPage(merge(futures, "Select unsent messages failed"), limit);
+    }
+
+    private Result<List<RocketMQMessage>> firstPage(Result<List<RocketMQMessage>> result, int limit) {
+        if (result.isSuccess() && result.getData().size() > limit) {
+            List<RocketMQMessage> page = new ArrayList<RocketMQMessage>(result.getData().subList(0, limit));
+            return Result.buildSucc(page);
+        }
+        return result;
+    }
+
+    /**
+     * 雪花id低位是毫秒内序列号，低并发时大多为0，乘法散列后取高位再取模
+     */
+    public int shardIndex(long storeId) {
+        long hash = storeId * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % shards.size());
+    }
+
+    public int getShardNums() {
+        return shards.size();
+    }
+
+    public StoreService<RocketMQMessage> getShard(int index) {
+        return shards.get(index);
+    }
+
+}
@@ -20,4 +20,19 @@ public interface StoreService<T extends MQMessage> {
 
     Result selectTrans();
 
+    /**
+     * 按id升序分页查询未决(PREPARE)事务消息(不含消息体)
+     * @param fromId 只查询id大于fromId的消息
+     * @param limit 最大条数
+     */
+    Result selectTrans(Long fromId, int limit);
+
+    /**
+     * 按id升序查询已提交但未成功转发到MQ的消息(不含消息体)
+     * @param fromId 只查询id大于fromId的消息
+     * @param limit 最大条数
+     * @param maxRetryTimes 只查询重试次数小于该值的消息
+     */
+    Result selectUnsent(Long fromId, int limit, short maxRetryTimes);
+
 }
@@ -0,0 +1,61 @@
+-- 事务消息表
+CREATE TABLE transaction_message (
+  id                BIGINT       NOT NULL,
+  message_key       VARCHAR(128),
+  topic             VARCHAR(128) NOT NULL,
+  tags              VARCHAR(128),
+  producer_group    VARCHAR(128) NOT NULL,
+  message_body      BLOB,
+  transaction_state TINYINT      NOT NULL,
+  send_status       SMALLINT,
+  retry_times       SMALLINT,
+  check_times       SMALLINT,
+  create_time       DATETIME,
+  PRIMARY KEY (id)
+);
+
+-- 按状态分页查询待回查消息
+CREATE INDEX idx_state_id ON transaction_message (transaction_state, id);
+
+-- 转发中继分页查询已提交未发送消息
+CREATE INDEX idx_state_send_id ON transaction_message (transaction_state, send_status, id);
+
+-- RabbitMQ事务消息表，结构同 transaction_message，topic 存 exchange，tags 存 routingKey
+CREATE TABLE rabbitmq_transaction_message (
+  id                BIGINT       NOT NULL,
+  message_key       VARCHAR(128),
+  topic             VARCHAR(128) NOT NULL,
+  tags              VARCHAR(128),
+  producer_group    VARCHAR(128) NOT NULL,
+  message_body      BLOB,
+  transaction_state TINYINT      NOT NULL,
+  send_status       SMALLINT,
+  retry_times       SMALLINT,
+  check_times       SMALLINT,
+  create_time       DATETIME,
+  PRIMARY KEY (id)
+);
+
+CREATE INDEX idx_rabbitmq_state_id ON rabbitmq_transaction_message (transaction_state, id);
+
+CREATE INDEX idx_rabbitmq_state_send_id ON rabbitmq_transaction_message (transaction_state, send_status, id);
+
+-- Kafka事务消息表，结构同 transaction_message，tags 不使用
+CREATE TABLE kafka_transaction_message (
+  id                BIGINT       NOT NULL,
+  message_key       VARCHAR(128),
+  topic             VARCHAR(128) NOT NULL,
+  tags              VARCHAR(128),
+  producer_group    VARCHAR(128) NOT NULL,
+  message_body      BLOB,
+  transaction_state TINYINT      NOT NULL,
+  send_status       SMALLINT,
+  retry_times       SMALLINT,
+  check_times       SMALLINT,
+  create_time       DATETIME,
+  PRIMARY KEY (id)
+);
+
+CREATE INDEX idx_kafka_state_id ON kafka_transaction_message (transaction_state, id);
+
+CREATE INDEX idx_kafka_state_send_id ON kafka_transaction_message (transaction_state, send_status, id);
@@ -0,0 +1,61 @@
+package store;
+
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.store.cache.CachedStoreService;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.service.RocketMQStoreService;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+
+/**
+ * 写穿透缓存测试<p>
+ * 以内存存储作为底层存储，验证命中、终态移出与按字节淘汰
+ *
+ * @author zixiao
+ * @date 16/10/25
+ */
+public class CachedStoreServiceTest {
+
+    public static void main(String[] args) throws Exception {
+        DistributedIdGenerator.setUniqueWorkId(1);
+
+        CachedStoreService storeService = new CachedStoreService(new RocketMQStoreService(new StoreConfig()), 1024 * 1024);
+
+        Long id = storeService.put(buildMessage("cache_key", 100)).getData();
+        RocketMQMessage mqMessage = storeService.get(id).getData();
+        System.out.println("Get after put, hit(expect 1): " + storeService.getHitCount());
+
+        //修改返回的消息不影响缓存
+        mqMessage.setTransactionState(TransactionState.ROLLBACK.getCode());
+        System.out.println("Modify returned message, cached state(expect PREPARE " + TransactionState.PREPARE.getCode()
+                + "): " + storeService.get(id).getData().getTransactionState());
+
+        mqMessage.setTransactionState(TransactionState.COMMIT.getCode());
+        storeService.update(id, mqMessage);
+        System.out.println("Commit, cached size(expect 0): " + storeService.getCachedSize()
+                + ", terminal removed: " + storeService.getTerminalRemoveCount());
+
+        storeService.get(id);
+        System.out.println("Get after commit, miss(expect 1): " + storeService.getMissCount()
+                + ", cached size(expect 0): " + storeService.getCachedSize());
+
+        //每条约10KB，1MB缓存约能容纳100条
+        for(int i=0; i<1000; i++){
+            storeService.put(buildMessage("evict_key_" + i, 10 * 1024));
+        }
+        System.out.println("Put 1000 messages, cached size: " + storeService.getCachedSize()
+                + ", cached bytes: " + storeService.getCachedBytes()
+                + ", evictions: " + storeService.getEvictionCount());
+    }
+
+    private static RocketMQMessage buildMessage(String messageKey, int bodySize){
+        RocketMQBody mqBody = new RocketMQBody();
+        mqBody.setTopic("TEST_TOPIC");
+        mqBody.setProducerGroup("TEST_GROUP");
+        mqBody.setMessageKey(messageKey);
+        mqBody.setMessageBody(new byte[bodySize]);
+        return RocketMQMessage.build(mqBody, TransactionState.PREPARE);
+    }
+
+}
@@ -0,0 +1,180 @@
+package store;
+
+import com.tongbanjie.tevent.common.body.RocketMQBody;
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.store.Result;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.config.StoreType;
+import com.tongbanjie.tevent.store.service.RocketMQJdbcStoreService;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBC存储服务测试<p>
+ * 使用H2内存数据库(MySQL兼容模式)，建表语句取自 sql/transaction_message.sql
+ *
+ * @author zixiao
+ * @date 16/10/22
+ */
+public class JdbcStoreServiceTest {
+
+    private static final String JDBC_URL = "jdbc:h2:mem:tevent;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    public static void main(String[] args) throws Exception {
+        DistributedIdGenerator.setUniqueWorkId(1);
+        createTable();
+
+        StoreConfig storeConfig = new StoreConfig();
+        storeConfig.setStoreType(StoreType.JDBC);
+        storeConfig.setJdbcDriverClass("org.h2.Driver");
+        storeConfig.setJdbcUrl(JDBC_URL);
+        storeConfig.setJdbcUsername("sa");
+        storeConfig.setJdbcPassword("");
+        storeConfig.setSelectTransPageSize(100);
+
+        RocketMQJdbcStoreService storeService = new RocketMQJdbcStoreService(storeConfig);
+        storeService.start();
+        try {
+            testConcurrentPut(storeService, 8, 1000);
+            testConditionalUpdate(storeService);
+            testStalePrepareUpdate(storeService);
+            testSelectTrans(storeService);
+        } finally {
+            storeService.shutdown();
+        }
+    }
+
+    private static void createTable() throws Exception {
+        StringBuilder sql = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                JdbcStoreServiceTest.class.getClassLoader().getResourceAsStream("sql/transaction_message.sql"), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                if(!line.trim().startsWith("--")){
+                    sql.append(line).append('\n');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        Class.forName("org.h2.Driver");
+        Connection connection = DriverManager.getConnection(JDBC_URL, "sa", "");
+        try {
+            Statement statement = connection.createStatement();
+            for(String ddl : sql.toString().split(";")){
+                if(ddl.trim().length() > 0){
+                    statement.execute(ddl);
+                }
+            }
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void testConcurrentPut(final RocketMQJdbcStoreService storeService,
+                                          int threads, final int perThread) throws InterruptedException {
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        for(int i=0; i<threads; i++){
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0; j<perThread; j++){
+                        Result<Long> result = storeService.put(buildMessage("key_" + j));
+                        if(!result.isSuccess()){
+                            failed.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+        System.out.println("Put " + threads * perThread + " messages, failed: " + failed.get()
+                + ", cost: " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static void testConditionalUpdate(RocketMQJdbcStoreService storeService){
+        Long id = storeService.put(buildMessage("update_key")).getData();
+
+        RocketMQMessage mqMessage = storeService.get(id).getData();
+        System.out.println("Get message, id: " + id + ", body: " + new String(mqMessage.getMessageBody()));
+
+        mqMessage.setTransactionState(TransactionState.COMMIT.getCode());
+        System.out.println("PREPARE -> COMMIT, success: " + storeService.update(id, mqMessage).isSuccess());
+
+        mqMessage.setTransactionState(TransactionState.ROLLBACK.getCode());
+        System.out.println("COMMIT -> ROLLBACK, success(expect false): " + storeService.update(id, mqMessage).isSuccess());
+    }
+
+    /**
+     * 回查线程基于旧记录更新回查次数时，不能覆盖并发的提交；不含消息体的记录更新时保留消息体
+     */
+    private static void testStalePrepareUpdate(RocketMQJdbcStoreService storeService){
+        Long id = storeService.put(buildMessage("stale_key")).getData();
+        RocketMQMessage stale = storeService.get(id).getData();
+
+        RocketMQMessage committed = storeService.get(id).getData();
+        committed.setTransactionState(TransactionState.COMMIT.getCode());
+        storeService.update(id, committed);
+
+        stale.setCheckTimes((short) 1);
+        System.out.println("Stale PREPARE update after COMMIT, success(expect false): "
+                + storeService.update(id, stale).isSuccess()
+                + ", state(expect COMMIT " + TransactionState.COMMIT.getCode() + "): "
+                + storeService.get(id).getData().getTransactionState());
+
+        RocketMQMessage withoutBody = storeService.get(id).getData();
+        withoutBody.setMessageBody(null);
+        withoutBody.setSendStatus(SendStatus.SUCCESS.getCode());
+        storeService.update(id, withoutBody);
+        System.out.println("Update without body, body(expect Hello stale_key): "
+                + new String(storeService.get(id).getData().getMessageBody()));
+    }
+
+    private static void testSelectTrans(RocketMQJdbcStoreService storeService){
+        Result<List<RocketMQMessage>> result = storeService.selectTrans();
+        System.out.println("Select PREPARE messages, size: " + result.getData().size());
+
+        //分页查询与全量查询的条数一致
+        int paged = 0;
+        long lastId = Long.MIN_VALUE;
+        while (true){
+            List<RocketMQMessage> page = storeService.selectTrans(lastId, 100).getData();
+            paged += page.size();
+            if(page.size() < 100){
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+        System.out.println("Select PREPARE messages by page(expect " + result.getData().size() + "): " + paged);
+    }
+
+    private static RocketMQMessage buildMessage(String messageKey){
+        RocketMQBody mqBody = new RocketMQBody();
+        mqBody.setTopic("TEST_TOPIC");
+        mqBody.setProducerGroup("TEST_GROUP");
+        mqBody.setMessageKey(messageKey);
+        mqBody.setMessageBody(("Hello " + messageKey).getBytes());
+        return RocketMQMessage.build(mqBody, TransactionState.PREPARE);
+    }
+
+}
@@ -0,0 +1,80 @@
+package store;
+
+import com.tongbanjie.tevent.common.util.IdWorker;
+import com.tongbanjie.tevent.store.index.ConcurrentLongObjectMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 存储索引内存占用对比<p>
+ * 分别以1M、10M个雪花id为key，对比 ConcurrentHashMap&lt;Long, Object&gt; 与 ConcurrentLongObjectMap 的堆占用，
+ * 10M需要足够大的堆，如 -Xmx4g
+ *
+ * @author zixiao
+ * @date 16/10/21
+ */
+public class LongObjectMapFootprintTest {
+
+    //所有value共享同一个对象，只统计索引本身的开销
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args) {
+        int[] sizes = new int[]{1000000, 10000000};
+        for(int size : sizes){
+            long[] ids = generateIds(size);
+            System.out.println("---- entries: " + size + " ----");
+            System.out.println("ConcurrentHashMap      : " + toMB(measureConcurrentHashMap(ids)) + " MB");
+            System.out.println("ConcurrentLongObjectMap: " + toMB(measureLongObjectMap(ids)) + " MB");
+        }
+    }
+
+    private static long[] generateIds(int size){
+        IdWorker idWorker = new IdWorker(1, 1);
+        long[] ids = new long[size];
+        for(int i=0; i<size; i++){
+            ids[i] = idWorker.nextId();
+        }
+        return ids;
+    }
+
+    private static long measureConcurrentHashMap(long[] ids){
+        long before = usedMemory();
+        Map<Long, Object> map = new ConcurrentHashMap<Long, Object>();
+        for(long id : ids){
+            map.put(id, VALUE);
+        }
+        long used = usedMemory() - before;
+        System.out.println("size: " + map.size());
+        return used;
+    }
+
+    private static long measureLongObjectMap(long[] ids){
+        long before = usedMemory();
+        ConcurrentLongObjectMap<Object> map = new ConcurrentLongObjectMap<Object>();
+        for(long id : ids){
+            map.put(id, VALUE);
+        }
+        long used = usedMemory() - before;
+        System.out.println("size: " + map.size());
+        return used;
+    }
+
+    private static long usedMemory(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i<3; i++){
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String toMB(long bytes){
+        return String.format("%.1f", bytes / 1024.0 / 1024.0);
+    }
+
+}
@@ -0,0 +1,102 @@
+package store;
+
+import com.tongbanjie.tevent.common.message.RocketMQMessage;
+import com.tongbanjie.tevent.common.message.SendStatus;
+import com.tongbanjie.tevent.common.message.TransactionState;
+import com.tongbanjie.tevent.store.config.StoreConfig;
+import com.tongbanjie.tevent.store.service.RocketMQStoreService;
+import com.tongbanjie.tevent.store.util.DistributedIdGenerator;
+
+/**
+ * 消息体堆外存储内存占用对比<p>
+ * 分别关闭、开启堆外消息体存储，向RocketMQStoreService写入1M条1KB消息体的PREPARE消息，对比堆占用，
+ * 需要足够大的堆和堆外内存，如 -Xmx4g -XX:MaxDirectMemorySize=2g；
+ * 开启堆外存储时，再将全部消息回滚或标记为发送成功，验证完结消息的堆外消息体被释放
+ *
+ * @author zixiao
+ * @date 16/11/4
+ */
+public class OffHeapBodyFootprintTest {
+
+    private static final int MESSAGES = 1000000;
+
+    private static final int BODY_SIZE = 1024;
+
+    public static void main(String[] args) {
+        DistributedIdGenerator.setUniqueWorkId(1);
+        System.out.println("---- messages: " + MESSAGES + ", body: " + BODY_SIZE + " bytes ----");
+        System.out.println("on-heap body : " + toMB(measure(false)) + " MB");
+        System.out.println("off-heap body: " + toMB(measure(true)) + " MB");
+    }
+
+    private static long measure(boolean offHeap){
+        StoreConfig storeConfig = new StoreConfig();
+        storeConfig.setOffHeapBodyEnable(offHeap);
+        storeConfig.setOffHeapSlabSize(1024 * 1024 * 64);
+        storeConfig.setOffHeapMaxSlabs((int) ((long) MESSAGES * BODY_SIZE / (1024 * 1024 * 64)) + 1);
+
+        long before = usedMemory();
+        RocketMQStoreService storeService = new RocketMQStoreService(storeConfig);
+        long[] storeIds = new long[MESSAGES];
+        for(int i=0; i<MESSAGES; i++){
+            storeIds[i] = storeService.put(buildMessage(i)).getData();
+        }
+        long used = usedMemory() - before;
+        if(offHeap){
+            System.out.println("off-heap slabs: " + storeService.getBodyStore().getSlabCount()
+                    + ", live bytes: " + toMB(storeService.getBodyStore().getLiveBytes()) + " MB");
+            finishAll(storeService, storeIds);
+            System.out.println("all finished, live bytes(expect 0.0): "
+                    + toMB(storeService.getBodyStore().getLiveBytes()) + " MB");
+        }
+        //保持引用直到统计完成
+        System.out.println("stored: " + storeService.getClass().getSimpleName());
+        return used;
+    }
+
+    /**
+     * 偶数回滚，奇数提交后标记为发送成功
+     */
+    private static void finishAll(RocketMQStoreService storeService, long[] storeIds){
+        for(int i=0; i<storeIds.length; i++){
+            RocketMQMessage mqMessage = storeService.get(storeIds[i]).getData();
+            if(i % 2 == 0){
+                mqMessage.setTransactionState(TransactionState.ROLLBACK.getCode());
+                storeService.update(storeIds[i], mqMessage);
+            }else{
+                mqMessage.setTransactionState(TransactionState.COMMIT.getCode());
+                storeService.update(storeIds[i], mqMessage);
+                mqMessage.setSendStatus(SendStatus.SUCCESS.getCode());
+                storeService.update(storeIds[i], mqMessage);
+            }
+        }
+    }
+
+    private static RocketMQMessage buildMessage(int i){
+        RocketMQMessage mqMessage = new RocketMQMessage();
+        mqMessage.setMessageKey("key_" + i);
+        mqMessage.setTopic("test_topic");
+        mqMessage.setProducerGroup("test_group");
+        mqMessage.setMessageBody(new byte[BODY_SIZE]);
+        mqMessage.setTransactionState(TransactionState.PREPARE.getCode());
+        return mqMessage;
+    }
+
+    private static long usedMemory(){
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i<3; i++){
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String toMB(long bytes){
+        return String.format("%.1f", bytes / 1024.0 / 1024.0);
+    }
+
+}